@@ -0,0 +1,67 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks matching the given patterns once for each thread count.<br> <br> The thread counts default to the powers of two up to the number of available processors, and can be
+ * overridden with a comma separated list in the "threads" system property.  An empty list keeps the defaults.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : getThreadCounts()) {
+            ChainedOptionsBuilder options = new OptionsBuilder().threads(threads);
+            for (String include : args) {
+                options.include(include);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+
+    private static int[] getThreadCounts() {
+        String property = System.getProperty("threads");
+        if (property != null && !property.trim().isEmpty()) {
+            String[] split = property.split(",");
+            int[] counts = new int[split.length];
+            for (int i = 0; i < split.length; i++) {
+                counts[i] = Integer.parseInt(split[i].trim());
+            }
+            return counts;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 0;
+        for (int i = 1; i <= processors; i <<= 1) {
+            count++;
+        }
+        int[] counts = new int[count];
+        for (int i = 0; i < count; i++) {
+            counts[i] = 1 << i;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link SpinLock} with {@link ReentrantLock} on a short critical section.<br> <br> Each operation holds the lock for the given number of tokens of work, and does some work outside of
+ * the lock.  The spin and park counts of the spin locks are reported as auxiliary counters for each iteration.  The thread count is set by the runner.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class SpinLockBenchmark {
+    @Param ({"spin", "fairspin", "reentrant", "fairreentrant"})
+    public String lock;
+    @Param ({"10", "100"})
+    public int heldTokens;
+    @Param ({"100"})
+    public int freeTokens;
+    private Lock target;
+    private long counter = 0;
+    private final AtomicBoolean reported = new AtomicBoolean();
+
+    @Setup (Level.Trial)
+    public void setup() {
+        switch (lock) {
+            case "spin":
+                target = new SpinLock();
+                break;
+            case "fairspin":
+                target = new SpinLock(true);
+                break;
+            case "reentrant":
+                target = new ReentrantLock();
+                break;
+            case "fairreentrant":
+                target = new ReentrantLock(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown lock " + lock);
+        }
+    }
+
+    @Setup (Level.Iteration)
+    public void resetCounters() {
+        if (target instanceof SpinLock) {
+            ((SpinLock) target).resetCounters();
+        }
+        reported.set(false);
+    }
+
+    @Benchmark
+    public long lockUnlock(Contention contention) {
+        Blackhole.consumeCPU(freeTokens);
+        target.lock();
+        try {
+            Blackhole.consumeCPU(heldTokens);
+            return ++counter;
+        } finally {
+            target.unlock();
+        }
+    }
+
+    /**
+     * The spin and park counts of the lock during an iteration.  JMH clears the counters before each iteration and sums them over the threads, so only the first thread to finish reports the lock's
+     * counts.
+     */
+    @State (Scope.Thread)
+    @AuxCounters (AuxCounters.Type.EVENTS)
+    public static class Contention {
+        public long spins;
+        public long parks;
+
+        @TearDown (Level.Iteration)
+        public void report(SpinLockBenchmark benchmark) {
+            if (benchmark.target instanceof SpinLock && benchmark.reported.compareAndSet(false, true)) {
+                SpinLock lock = (SpinLock) benchmark.target;
+                spins = lock.getSpinCount();
+                parks = lock.getParkCount();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flowpowered.commons.map.TSyncIntObjectMap;
+
+/**
+ * Compares the striped lock {@link TSyncIntObjectHashMap} with the lock-free {@link TNonBlockingIntObjectHashMap}.<br> <br> The map starts with half of the keys in range mapped, writes put or
+ * remove a random key with equal chance, so the size stays about the same.  The thread count is set by the runner.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class TSyncIntObjectMapBenchmark {
+    @Param ({"striped", "nonblocking"})
+    public String map;
+    @Param ({"1024", "65536"})
+    public int keys;
+    @Param ({"0", "10", "50"})
+    public int writePercent;
+    private TSyncIntObjectMap<Object> target;
+    private final Object value = new Object();
+
+    @Setup (Level.Trial)
+    public void setup() {
+        switch (map) {
+            case "striped":
+                target = new TSyncIntObjectHashMap<>();
+                break;
+            case "nonblocking":
+                target = new TNonBlockingIntObjectHashMap<>();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown map " + map);
+        }
+        for (int i = 0; i < keys; i += 2) {
+            target.put(i, value);
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        return target.get(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int key = random.nextInt(keys);
+        if (random.nextInt(100) < writePercent) {
+            return random.nextBoolean() ? target.put(key, value) : target.remove(key);
+        }
+        return target.get(key);
+    }
+
+    @Benchmark
+    public boolean putIfAbsentRemove() {
+        int key = ThreadLocalRandom.current().nextInt(keys);
+        return target.putIfAbsent(key, value) == null ? target.remove(key, value) : target.containsKey(key);
+    }
+}
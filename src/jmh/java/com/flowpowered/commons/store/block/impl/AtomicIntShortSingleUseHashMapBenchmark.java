@@ -0,0 +1,104 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks palette id lookups in {@link AtomicIntShortSingleUseHashMap}, sized as in {@link AtomicShortIntPaletteBackingArray}.<br> <br> The distribution parameter selects the sequence of
+ * looked up states: "uniform" picks any state, "skewed" picks a few common states most of the time, as in natural terrain, and "runs" repeats each state several times, as when writing rows of
+ * blocks.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AtomicIntShortSingleUseHashMapBenchmark {
+    private static final int SEQUENCE = 4096;
+    @Param ({"16", "256", "1024"})
+    public int paletteSize;
+    @Param ({"uniform", "skewed", "runs"})
+    public String distribution;
+    private AtomicIntShortSingleUseHashMap map;
+    private int[] sequence;
+    private int next;
+
+    @Setup (Level.Trial)
+    public void setup() {
+        map = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+        // Block states are the id in the high half and the data in the low half, most blocks have no data
+        int[] states = new int[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            states[i] = (i >> 2) << 16 | (i & 3);
+            map.putIfAbsent(states[i], (short) i);
+        }
+        Random random = new Random(paletteSize);
+        sequence = new int[SEQUENCE];
+        for (int i = 0; i < SEQUENCE; i++) {
+            switch (distribution) {
+                case "uniform":
+                    sequence[i] = states[random.nextInt(paletteSize)];
+                    break;
+                case "skewed":
+                    sequence[i] = states[random.nextInt(10) < 8 ? random.nextInt(Math.min(4, paletteSize)) : random.nextInt(paletteSize)];
+                    break;
+                case "runs":
+                    sequence[i] = i % 16 == 0 ? states[random.nextInt(paletteSize)] : sequence[i - 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution " + distribution);
+            }
+        }
+    }
+
+    @Benchmark
+    public short get() {
+        int i = next;
+        next = (i + 1) & (SEQUENCE - 1);
+        return map.get(sequence[i]);
+    }
+
+    @Benchmark
+    public short getAbsent() {
+        int i = next;
+        next = (i + 1) & (SEQUENCE - 1);
+        return map.get(~sequence[i]);
+    }
+}
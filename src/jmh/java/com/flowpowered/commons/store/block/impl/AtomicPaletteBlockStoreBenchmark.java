@@ -0,0 +1,245 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the hot paths of {@link AtomicPaletteBlockStore}.<br> <br> The palette parameter is the number of distinct states in the store: "uniform" for a single state, a number for a
+ * palette of that size, or "direct" for enough states to force the direct backing array. The thread count is set by the runner.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AtomicPaletteBlockStoreBenchmark {
+    @Param ({"4", "5"})
+    public int shift;
+    @Param ({"uniform", "4", "16", "256", "direct"})
+    public String palette;
+    @Param ({"READ_WRITE_LOCK", "LOCK_FREE", "STRIPED_LOCK"})
+    public AtomicShortIntArray.SyncMode mode;
+    private AtomicPaletteBlockStore store;
+    private int[] states;
+    private int length;
+    private int side;
+
+    @Setup (Level.Trial)
+    public void setup() {
+        side = 1 << shift;
+        length = side * side * side;
+        states = createStates(palette, length);
+        store = createStore(shift, states, length, mode);
+    }
+
+    @Benchmark
+    public int getFullData() {
+        return store.getFullData(ThreadLocalRandom.current().nextInt(length));
+    }
+
+    @Benchmark
+    public void getFullArray(Blackhole blackhole) {
+        blackhole.consume(store.getFullArray());
+    }
+
+    @Benchmark
+    public void setBlock() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int state = states[random.nextInt(states.length)];
+        store.setBlock(random.nextInt(side), random.nextInt(side), random.nextInt(side), (short) (state >> 16), (short) state);
+    }
+
+    @Benchmark
+    public boolean compareAndSetBlock() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(side);
+        int y = random.nextInt(side);
+        int z = random.nextInt(side);
+        int expect = store.getFullData(x, y, z);
+        int update = states[random.nextInt(states.length)];
+        return store.compareAndSetBlock(x, y, z, (short) (expect >> 16), (short) expect, (short) (update >> 16), (short) update);
+    }
+
+    @Benchmark
+    public int mixed(WriteRatio ratio) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(side);
+        int y = random.nextInt(side);
+        int z = random.nextInt(side);
+        if (random.nextInt(100) < ratio.writePercent) {
+            int state = states[random.nextInt(states.length)];
+            store.setBlock(x, y, z, (short) (state >> 16), (short) state);
+            return state;
+        }
+        return store.getFullData(x, y, z);
+    }
+
+    @Benchmark
+    public void fill() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int state = states[random.nextInt(states.length)];
+        int half = side >> 1;
+        int x = random.nextInt(half);
+        int y = random.nextInt(half);
+        int z = random.nextInt(half);
+        store.fill(x, y, z, x + half - 1, y + half - 1, z + half - 1, (short) (state >> 16), (short) state);
+    }
+
+    @Benchmark
+    public void dirtyReset() {
+        store.resetDirtyArrays();
+    }
+
+    /**
+     * The share of writes in {@link #mixed(WriteRatio)}, kept out of the outer state so the other benchmarks don't run once per ratio.
+     */
+    @State (Scope.Benchmark)
+    public static class WriteRatio {
+        @Param ({"0", "10", "50"})
+        public int writePercent;
+    }
+
+    /**
+     * Benchmarks {@link AtomicPaletteBlockStore#compress()} on a store with a palette that grew wider than its content requires.
+     */
+    @State (Scope.Thread)
+    @BenchmarkMode (Mode.AverageTime)
+    @OutputTimeUnit (TimeUnit.MICROSECONDS)
+    public static class Compress {
+        @Param ({"4", "5"})
+        public int shift;
+        @Param ({"uniform", "4", "16", "256"})
+        public String palette;
+        private AtomicPaletteBlockStore store;
+
+        @Setup (Level.Invocation)
+        public void setup() {
+            int side = 1 << shift;
+            int length = side * side * side;
+            // Fill with the widest palette first, then overwrite with the target states, leaving the palette oversized
+            store = createStore(shift, createStates("direct", length), length, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK);
+            int[] states = createStates(palette, length);
+            Random random = new Random(length);
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    for (int z = 0; z < side; z++) {
+                        int state = states[random.nextInt(states.length)];
+                        store.setBlock(x, y, z, (short) (state >> 16), (short) state);
+                    }
+                }
+            }
+        }
+
+        @Benchmark
+        public void compress() {
+            store.compress();
+        }
+    }
+
+    /**
+     * Benchmarks filling a fresh store with the given number of distinct states, which repeatedly expands the palette from uniform to its final width.
+     */
+    @State (Scope.Thread)
+    @BenchmarkMode (Mode.AverageTime)
+    @OutputTimeUnit (TimeUnit.MICROSECONDS)
+    public static class PaletteExpansion {
+        @Param ({"4", "5"})
+        public int shift;
+        @Param ({"4", "16", "256", "direct"})
+        public String palette;
+        @Param ({"READ_WRITE_LOCK", "LOCK_FREE", "STRIPED_LOCK"})
+        public AtomicShortIntArray.SyncMode mode;
+        private int[] states;
+        private int side;
+
+        @Setup (Level.Trial)
+        public void setup() {
+            side = 1 << shift;
+            states = createStates(palette, side * side * side);
+        }
+
+        @Benchmark
+        public AtomicPaletteBlockStore expand() {
+            AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(shift, false, 10, mode);
+            int i = 0;
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    for (int z = 0; z < side; z++) {
+                        int state = states[i++ % states.length];
+                        store.setBlock(x, y, z, (short) (state >> 16), (short) state);
+                    }
+                }
+            }
+            return store;
+        }
+    }
+
+    private static int[] createStates(String palette, int length) {
+        int count;
+        switch (palette) {
+            case "uniform":
+                count = 1;
+                break;
+            case "direct":
+                count = length;
+                break;
+            default:
+                count = Integer.parseInt(palette);
+        }
+        int[] states = new int[count];
+        for (int i = 0; i < count; i++) {
+            // Block ids in the high short, with a few data values in the low short
+            states[i] = (i + 1) << 16 | (i & 0x7);
+        }
+        return states;
+    }
+
+    private static AtomicPaletteBlockStore createStore(int shift, int[] states, int length, AtomicShortIntArray.SyncMode mode) {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(shift, false, 10, mode);
+        for (int i = 0; i < length; i++) {
+            int state = states[i % states.length];
+            store.setBlock(i & ((1 << shift) - 1), i >> (shift << 1), (i >> shift) & ((1 << shift) - 1), (short) (state >> 16), (short) state);
+        }
+        store.compress();
+        return store;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the packed {@link AtomicVariableWidthArray} and the {@link AtomicShortIntArray} built on top of it.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AtomicVariableWidthArrayBenchmark {
+    private static final int LENGTH = 4096;
+    @Param ({"1", "2", "4", "8", "16", "32"})
+    public int width;
+    private AtomicVariableWidthArray array;
+    private AtomicShortIntArray shortIntArray;
+    private int[] destination;
+    private int valueMask;
+
+    @Setup (Level.Trial)
+    public void setup() {
+        array = new AtomicVariableWidthArray(LENGTH, width);
+        valueMask = width == 32 ? -1 : (1 << width) - 1;
+        shortIntArray = new AtomicShortIntArray(LENGTH);
+        int unique = Math.min(1 << width, LENGTH);
+        for (int i = 0; i < LENGTH; i++) {
+            array.set(i, i & valueMask);
+            shortIntArray.set(i, i % unique);
+        }
+        destination = new int[LENGTH];
+    }
+
+    @Benchmark
+    public int get() {
+        return array.get(ThreadLocalRandom.current().nextInt(LENGTH));
+    }
+
+    @Benchmark
+    public void set() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        array.set(random.nextInt(LENGTH), random.nextInt() & valueMask);
+    }
+
+    @Benchmark
+    public boolean compareAndSet() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(LENGTH);
+        return array.compareAndSet(i, array.get(i), random.nextInt() & valueMask);
+    }
+
+    @Benchmark
+    public void getArray(Blackhole blackhole) {
+        blackhole.consume(array.getArray(destination));
+    }
+
+    @Benchmark
+    public void setArray() {
+        array.set(0, destination, 0, LENGTH);
+    }
+
+    @Benchmark
+    public void getPacked(Blackhole blackhole) {
+        blackhole.consume(array.getPacked());
+    }
+
+    @Benchmark
+    public int shortIntGet() {
+        return shortIntArray.get(ThreadLocalRandom.current().nextInt(LENGTH));
+    }
+
+    @Benchmark
+    public int shortIntGetUnique() {
+        return shortIntArray.getUnique();
+    }
+}
@@ -24,101 +24,308 @@
 package com.flowpowered.commons.concurrent;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 /**
- * A non-reentrant spin lock.<br> <br> The lock will spin 100 times before falling back to using wait/notify.
+ * A non-reentrant adaptive spin lock.<br> <br> A contended lock spins in rounds before queueing and parking the thread until the lock is released.  Each round busy-waits for a pause that
+ * doubles every round, up to a cap, then tries to take the lock.  The number of rounds adapts to how often spinning succeeded recently, and spinning is disabled on single processor machines.  A
+ * fair lock hands the lock to the queued threads in FIFO order, and only spins while no thread is queued.  {@link #tryLock()} always barges.<br> <br> The lock counts the spin rounds and the
+ * acquisitions that had to park, and optionally the number of times it was locked and the total time it was held, so it can be compared with other locks on hot sections.
  */
 public class SpinLock implements Lock {
-    private static int MAX_SPINS = 100;
-    private AtomicBoolean locked = new AtomicBoolean();
-    private AtomicInteger waiting = new AtomicInteger();
+    private static final int MAX_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+    private static final int MIN_SPINS = Math.min(4, MAX_SPINS);
+    /**
+     * The longest pause of a spin round, in busy-wait steps
+     */
+    private static final int MAX_BACKOFF = 256;
+    /**
+     * Written only if a pause ends with zero noise, which doesn't happen
+     */
+    private static int sink;
+    private final Sync sync;
+    private final boolean fair;
+    private final boolean recordHoldTime;
+    /**
+     * The number of spin rounds a contended lock makes before parking, racy updates are harmless
+     */
+    private volatile int spinLimit = MIN_SPINS;
+    private final AtomicLong spins = new AtomicLong();
+    private final AtomicLong parks = new AtomicLong();
+    /**
+     * Only updated while holding the lock
+     */
+    private volatile long lockCount = 0;
+    private volatile long holdTime = 0;
+    private long lockTime;
+    /**
+     * If the current hold is counted, false for the hold taken by {@link #resetCounters()}
+     */
+    private boolean recorded;
 
-    @Override
-    public void lock() {
-        for (int i = 0; i < MAX_SPINS; i++) {
-            if (tryLock()) {
-                return;
-            }
-        }
+    /**
+     * Creates an unfair lock that does not record hold times
+     */
+    public SpinLock() {
+        this(false);
+    }
 
-        boolean interrupted = false;
-        boolean success = false;
+    /**
+     * Creates a lock that does not record hold times
+     *
+     * @param fair true to hand the lock to queued threads in FIFO order
+     */
+    public SpinLock(boolean fair) {
+        this(fair, false);
+    }
 
-        try {
-            while (!success) {
-                try {
-                    waitLock();
-                    success = true;
-                } catch (InterruptedException ie) {
-                    interrupted = true;
-                }
-            }
-        } finally {
-            if (interrupted) {
-                Thread.currentThread().interrupt();
-            }
+    /**
+     * Creates a lock
+     *
+     * @param fair true to hand the lock to queued threads in FIFO order
+     * @param recordHoldTime true to count the locks and the time the lock is held, which reads the system timer on each lock and unlock
+     */
+    public SpinLock(boolean fair, boolean recordHoldTime) {
+        this.fair = fair;
+        this.recordHoldTime = recordHoldTime;
+        sync = new Sync();
+    }
+
+    @Override
+    public void lock() {
+        if (!sync.tryAcquire(1) && !spin()) {
+            parks.incrementAndGet();
+            sync.acquire(1);
         }
     }
 
     @Override
     public void lockInterruptibly() throws InterruptedException {
-        for (int i = 0; i < MAX_SPINS; i++) {
-            if (tryLock()) {
-                return;
-            }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (!sync.tryAcquire(1) && !spin()) {
+            parks.incrementAndGet();
+            sync.acquireInterruptibly(1);
         }
-        waitLock();
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        long endTime = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(time, unit) + 1;
-        boolean timedOut = false;
-        while (!tryLock()) {
-            timedOut = System.currentTimeMillis() >= endTime;
-            if (timedOut) {
-                break;
-            }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (sync.tryAcquire(1) || spin()) {
+            return true;
         }
-        return !timedOut;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        parks.incrementAndGet();
+        return sync.tryAcquireNanos(1, remaining);
     }
 
     @Override
-    public Condition newCondition() {
-        throw new UnsupportedOperationException();
+    public boolean tryLock() {
+        return sync.barge(true);
     }
 
     @Override
-    public boolean tryLock() {
-        return locked.compareAndSet(false, true);
+    public void unlock() {
+        sync.release(1);
+    }
+
+    /**
+     * Creates a condition bound to this lock.  The lock must be held by the thread that awaits or signals the condition.
+     *
+     * @return the condition
+     */
+    @Override
+    public Condition newCondition() {
+        return sync.newCondition();
+    }
+
+    /**
+     * Gets if the lock is held by any thread
+     *
+     * @return true if locked
+     */
+    public boolean isLocked() {
+        return sync.isLocked();
+    }
+
+    /**
+     * Gets if queued threads are handed the lock in FIFO order
+     *
+     * @return true if fair
+     */
+    public boolean isFair() {
+        return fair;
+    }
+
+    /**
+     * Gets the number of spin rounds made by threads waiting for the lock
+     *
+     * @return the spin count
+     */
+    public long getSpinCount() {
+        return spins.get();
     }
 
-    private void waitLock() throws InterruptedException {
-        waiting.incrementAndGet();
+    /**
+     * Gets the number of acquisitions that stopped spinning and queued to park
+     *
+     * @return the park count
+     */
+    public long getParkCount() {
+        return parks.get();
+    }
+
+    /**
+     * Gets the number of times the lock was locked, only counted when recording hold times
+     *
+     * @return the lock count
+     */
+    public long getLockCount() {
+        return lockCount;
+    }
+
+    /**
+     * Gets the total time the lock was held, only recorded when recording hold times
+     *
+     * @param unit the time unit of the result
+     * @return the hold time
+     */
+    public long getHoldTime(TimeUnit unit) {
+        return unit.convert(holdTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Resets the spin and park counts, and, if the lock is not held, the lock count and hold time
+     *
+     * @return false if the lock was held and its lock count and hold time were not reset
+     */
+    public boolean resetCounters() {
+        spins.set(0);
+        parks.set(0);
+        if (!sync.barge(false)) {
+            return false;
+        }
         try {
-            synchronized (waiting) {
-                while (!tryLock()) {
-                    waiting.wait();
-                }
-            }
+            lockCount = 0;
+            holdTime = 0;
         } finally {
-            waiting.decrementAndGet();
+            sync.release(1);
         }
+        return true;
     }
 
-    @Override
-    public void unlock() {
-        if (!locked.compareAndSet(true, false)) {
-            throw new IllegalStateException("Attempt to unlock lock when it isn't locked");
+    /**
+     * Spins in rounds, each a pause that doubles every round followed by an attempt to take the lock, until it is acquired or the spin limit is reached
+     *
+     * @return true if the lock was acquired
+     */
+    private boolean spin() {
+        int limit = spinLimit;
+        int rounds = 0;
+        int backoff = 1;
+        int noise = 1;
+        boolean acquired = false;
+        while (rounds < limit && !(fair && sync.hasQueuedThreads())) {
+            rounds++;
+            noise = pause(noise, backoff);
+            if (!sync.isLocked() && sync.tryAcquire(1)) {
+                acquired = true;
+                break;
+            }
+            backoff = Math.min(backoff << 1, MAX_BACKOFF);
+        }
+        if (noise == 0) {
+            // Never true, but the JIT can't tell, so the pauses are not optimized away
+            sink = noise;
+        }
+        if (rounds > 0) {
+            spins.addAndGet(rounds);
         }
-        if (!waiting.compareAndSet(0, 0)) {
-            synchronized (waiting) {
-                waiting.notifyAll();
+        if (acquired) {
+            if (limit < MAX_SPINS) {
+                spinLimit = limit << 1;
             }
+        } else if (limit > MIN_SPINS) {
+            spinLimit = limit >> 1;
+        }
+        return acquired;
+    }
+
+    /**
+     * Busy-waits for the given number of steps without touching shared memory.  Each step is a xorshift of the noise, which never reaches zero from a non zero seed.
+     *
+     * @param noise the non zero noise
+     * @param steps the number of steps
+     * @return the new noise
+     */
+    private static int pause(int noise, int steps) {
+        for (int i = 0; i < steps; i++) {
+            noise ^= noise << 13;
+            noise ^= noise >>> 17;
+            noise ^= noise << 5;
+        }
+        return noise;
+    }
+
+    private final class Sync extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean tryAcquire(int acquires) {
+            if (fair && hasQueuedPredecessors()) {
+                return false;
+            }
+            return barge(true);
+        }
+
+        private boolean barge(boolean record) {
+            if (getState() == 0 && compareAndSetState(0, 1)) {
+                setExclusiveOwnerThread(Thread.currentThread());
+                recorded = record && recordHoldTime;
+                if (recorded) {
+                    lockCount++;
+                    lockTime = System.nanoTime();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int releases) {
+            if (getState() == 0) {
+                throw new IllegalStateException("Attempt to unlock lock when it isn't locked");
+            }
+            if (recorded) {
+                holdTime += System.nanoTime() - lockTime;
+            }
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        private boolean isLocked() {
+            return getState() != 0;
+        }
+
+        private Condition newCondition() {
+            return new ConditionObject();
         }
     }
 
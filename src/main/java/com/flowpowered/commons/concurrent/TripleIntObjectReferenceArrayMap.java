@@ -23,51 +23,52 @@
  */
 package com.flowpowered.commons.concurrent;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.flowpowered.commons.map.TripleIntObjectVisitor;
+import com.flowpowered.commons.map.TripleIntSpheres;
+
 /**
- * A 3d int based Object map that is backed by AtomicReferenceArrays arranged in a tree structure.<br> <br> The Map operates in a tree structure.  The bits variable indicates the number of bits used
- * per level of the tree.  This is used to mask the input coordinates.<br> <br> The length of the internal arrays are determined by the bits parameter.<br> <br> If bits is set to 4, then each
- * coordinate provides 4 bits for the array index. That gives a total array length of 16 * 16 * 16 = 4096.<br> <br> Inserting a new object with a random key would probably require new arrays to be
- * created for the entire depth of the tree.<br> <br> A given depth can be guaranteed by keeping ensuring that all elements are within a cube that has an edge of 2 ^ (depth * bits) or smaller.
- * Increasing the bits variable reduces the depth of the internal tree at the expense of more memory used per array.<br> <br> The map is thread-safe.  Map update operations can not be carried out by
- * more than one thread at the same time.  However, read operations are concurrent.<br> <br> The map is optimised for use where all the coordinates occur in a small number of contiguous cuboids.
+ * A 3d int based Object map that is backed by AtomicReferenceArrays arranged in a tree structure.<br> <br> The bits variable indicates the number of bits used per level of the tree.  This is used
+ * to mask the input coordinates.<br> <br> The length of the internal arrays are determined by the bits parameter.<br> <br> If bits is set to 4, then each coordinate provides 4 bits for the array
+ * index. That gives a total array length of 16 * 16 * 16 = 4096.<br> <br> Each array covers the keys that share a common prefix, the bits of the coordinates above those used for its index, so a
+ * branch is only as deep as needed to separate the keys it contains.  When a new key collides with an existing entry, only that slot is split into a new array at the highest level where the two
+ * keys differ, the rest of the tree is left in place.<br> <br> The map is thread-safe.  Reads are wait-free and updates are lock-free, an update only ever publishes a fully built entry with a single
+ * compare and set.  Keys that are removed keep their leaf entries, so that they can be reused without splitting.<br> <br> The map is optimised for use where all the coordinates occur in a small
+ * number of contiguous cuboids.
  *
  * @param <T> the value type
  */
 public class TripleIntObjectReferenceArrayMap<T> {
-
     private final int bits;
     private final int doubleBits;
     private final int bitMask;
     private final int arraySize;
-    private final AtomicReference<Entry<T>> root;
-    private final LinkedHashSet<T> values;
-    private final LinkedHashSet<LeafEntry> leafEntries;
-    private final AtomicReference<Collection<T>> valuesSnapshot = new AtomicReference<>(null);
+    private final AtomicReference<Entry<T>> root = new AtomicReference<>(null);
+    private final Set<T> values = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    private final AtomicInteger modCount = new AtomicInteger();
+    private final AtomicReference<ValuesSnapshot<T>> valuesSnapshot = new AtomicReference<>(null);
 
     public TripleIntObjectReferenceArrayMap(int bits) {
-        this(bits, 1);
-    }
-
-    private TripleIntObjectReferenceArrayMap(int bits, int depth) {
+        if (bits < 1 || bits > 10) {
+            throw new IllegalArgumentException("Bits per level must be between 1 and 10: " + bits);
+        }
         this.bits = bits;
         this.doubleBits = bits << 1;
         int width = 1 << bits;
         this.bitMask = width - 1;
-        this.arraySize = (width) * (width) * (width);
-        this.root = new AtomicReference<>(null);
-        this.root.set(new AtomicReferenceArrayEntry(depth));
-        this.values = new LinkedHashSet<>();
-        this.leafEntries = new LinkedHashSet<>();
+        this.arraySize = width * width * width;
     }
 
     public T get(int x, int y, int z) {
-        Entry<T> entry = getEntryRaw(x, y, z);
+        LeafEntry entry = getEntryRaw(x, y, z);
         if (entry != null) {
             return entry.getValue();
         } else {
@@ -75,15 +76,15 @@ public class TripleIntObjectReferenceArrayMap<T> {
         }
     }
 
-    public synchronized T remove(int x, int y, int z) {
-        Entry<T> entry = getEntryRaw(x, y, z);
+    public T remove(int x, int y, int z) {
+        LeafEntry entry = getEntryRaw(x, y, z);
         if (entry != null) {
             T value = entry.remove();
             if (value != null) {
-                valuesSnapshot.set(null);
                 if (!values.remove(value)) {
                     throw new IllegalStateException("Item removed from map was not in item set");
                 }
+                modCount.incrementAndGet();
             }
             return value;
         } else {
@@ -91,15 +92,15 @@ public class TripleIntObjectReferenceArrayMap<T> {
         }
     }
 
-    public synchronized boolean remove(int x, int y, int z, T value) {
-        Entry<T> entry = getEntryRaw(x, y, z);
+    public boolean remove(int x, int y, int z, T value) {
+        LeafEntry entry = getEntryRaw(x, y, z);
         if (entry != null) {
             boolean b = entry.remove(value);
             if (b) {
-                valuesSnapshot.set(null);
                 if (!values.remove(value)) {
                     throw new IllegalStateException("Item removed from map was not in item set");
                 }
+                modCount.incrementAndGet();
             }
             return b;
         } else {
@@ -107,250 +108,297 @@ public class TripleIntObjectReferenceArrayMap<T> {
         }
     }
 
-    public synchronized T put(int x, int y, int z, T value) {
+    public T put(int x, int y, int z, T value) {
         if (value == null) {
             throw new NullPointerException("Null values are not permitted");
         }
-        Entry<T> entry = getOrCreateEntry(x, y, z);
-        if (entry != null) {
-            T old = entry.put(value);
-            valuesSnapshot.set(null);
-            if (!values.add(value)) {
-                throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
-            }
-            if (old != null) {
-                if (!values.remove(old)) {
-                    throw new IllegalStateException("Item removed from map was not in item set");
-                }
+        LeafEntry entry = getOrCreateEntry(x, y, z);
+        // The value is added to the set before it is published, so the thread that later takes it out of the entry always finds it in the set
+        if (!values.add(value)) {
+            throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
+        }
+        T old = entry.put(value);
+        if (old != null) {
+            if (!values.remove(old)) {
+                throw new IllegalStateException("Item removed from map was not in item set");
             }
-            return old;
-        } else {
-            throw new IllegalStateException("Unable to create entry for put");
         }
+        modCount.incrementAndGet();
+        return old;
     }
 
-    public synchronized T putIfAbsent(int x, int y, int z, T value) {
+    public T putIfAbsent(int x, int y, int z, T value) {
         if (value == null) {
             throw new NullPointerException("Null values are not permitted");
         }
-        Entry<T> entry = getOrCreateEntry(x, y, z);
-        if (entry != null) {
-            T old = entry.putIfAbsent(value);
-            if (old == null) {
-                valuesSnapshot.set(null);
-                if (!values.add(value)) {
-                    throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
-                }
-            }
+        LeafEntry entry = getOrCreateEntry(x, y, z);
+        T old = entry.getValue();
+        if (old != null) {
             return old;
+        }
+        if (!values.add(value)) {
+            throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
+        }
+        old = entry.putIfAbsent(value);
+        if (old == null) {
+            modCount.incrementAndGet();
         } else {
-            throw new IllegalStateException("Unable to create entry for put");
+            values.remove(value);
         }
+        return old;
     }
 
+    /**
+     * Gets an unmodifiable snapshot of the values in the map.  The snapshot is cached until the map is next modified.
+     *
+     * @return the values
+     */
     public Collection<T> valueCollection() {
-        Collection<T> newValues = this.valuesSnapshot.get();
-        if (newValues != null) {
-            return newValues;
-        }
-        synchronized (this) {
-            newValues = this.valuesSnapshot.get();
-            if (newValues != null) {
-                return newValues;
-            }
-            newValues = Collections.unmodifiableCollection(new LinkedHashSet<>(this.values));
-            this.valuesSnapshot.set(newValues);
-            return newValues;
-        }
+        int count = modCount.get();
+        ValuesSnapshot<T> snapshot = valuesSnapshot.get();
+        if (snapshot != null && snapshot.modCount == count) {
+            return snapshot.values;
+        }
+        // A snapshot tagged with an older count than the set it was copied from is just rebuilt on the next call
+        Collection<T> newValues = Collections.unmodifiableCollection(new ArrayList<>(values));
+        valuesSnapshot.compareAndSet(snapshot, new ValuesSnapshot<>(count, newValues));
+        return newValues;
     }
 
-    private synchronized Entry<T> getOrCreateEntry(int x, int y, int z) {
-        Entry<T> entry = getEntryRaw(x, y, z);
-        if (entry != null) {
-            return entry;
-        }
-        entry = this.root.get();
-        int depth = entry.getDepth();
-        int shift = entry.getInitialShift();
-        Entry<T> prevEntry = null;
+    /**
+     * Visits every entry with a key inside the given box, the bounds are inclusive.  Arrays whose prefix is outside of the box are skipped.  Entries updated concurrently may or may not be visited.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param visitor the visitor to call for each entry
+     */
+    public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectVisitor<T> visitor) {
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+        forEachInRange(root.get(), new RangeQuery<>(minX, minY, minZ, maxX, maxY, maxZ, 0, 0, 0, -1, visitor));
+    }
 
-        int keyDepth = 0;
-        while (true) {
-            prevEntry = entry;
-            entry = entry.getSubEntry(x, y, z, shift);
-            shift -= bits;
-            if (entry == null) {
-                break;
-            }
-            keyDepth++;
-        }
+    /**
+     * Visits every entry with a key within the given distance of a point, including the keys at exactly that distance.  Arrays that don't intersect the sphere are skipped.  Entries updated
+     * concurrently may or may not be visited.
+     *
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param z the z coordinate of the center
+     * @param radius the radius of the sphere
+     * @param visitor the visitor to call for each entry
+     */
+    public void forEachInSphere(int x, int y, int z, int radius, TripleIntObjectVisitor<T> visitor) {
+        if (radius < 0) {
+            return;
+        }
+        forEachInRange(root.get(), new RangeQuery<>(clamp((long) x - radius), clamp((long) y - radius), clamp((long) z - radius), clamp((long) x + radius), clamp((long) y + radius),
+                clamp((long) z + radius), x, y, z, (long) radius * radius, visitor));
+    }
 
-        // Map must be resized if we hit a leaf node (collision) or the map was already at max depth
-        if (keyDepth > depth || prevEntry instanceof TripleIntObjectReferenceArrayMap.LeafEntry) {
-            resizeMap();
-            return getOrCreateEntry(x, y, z);
-        } else if (keyDepth > depth) {
-            throw new IllegalStateException("Map has a depth that exceeds the depth variable");
+    private void forEachInRange(Entry<T> entry, RangeQuery<T> query) {
+        if (entry == null) {
+            return;
         }
-
-        entry = prevEntry;
-        shift += bits;
-
-        for (int i = keyDepth; i < depth; i++) {
-            Entry<T> newEntry = new AtomicReferenceArrayEntry(depth);
-            if (!((AtomicReferenceArrayEntry) entry).addNewEntry(x, y, z, shift, newEntry)) {
-                throw new IllegalStateException("Unable to add new map entry");
+        if (entry instanceof TripleIntObjectReferenceArrayMap.LeafEntry) {
+            LeafEntry leaf = (LeafEntry) entry;
+            T value = leaf.getValue();
+            if (value != null && query.contains(leaf.getX(), leaf.getY(), leaf.getZ())) {
+                query.visitor.visit(leaf.getX(), leaf.getY(), leaf.getZ(), value);
+            }
+            return;
+        }
+        AtomicReferenceArrayEntry branch = (AtomicReferenceArrayEntry) entry;
+        int span = (1 << branch.shift) - 1;
+        for (int i = 0; i <= bitMask; i++) {
+            int lowX = branch.getSlotLow(branch.getX(), i);
+            if (lowX > query.maxX || (lowX | span) < query.minX) {
+                continue;
+            }
+            for (int j = 0; j <= bitMask; j++) {
+                int lowY = branch.getSlotLow(branch.getY(), j);
+                if (lowY > query.maxY || (lowY | span) < query.minY) {
+                    continue;
+                }
+                for (int k = 0; k <= bitMask; k++) {
+                    int lowZ = branch.getSlotLow(branch.getZ(), k);
+                    if (lowZ > query.maxZ || (lowZ | span) < query.minZ || !query.intersectsSphere(lowX, lowY, lowZ, span)) {
+                        continue;
+                    }
+                    forEachInRange(branch.array.get((i << doubleBits) | (j << bits) | k), query);
+                }
             }
-            shift -= bits;
-            entry = newEntry;
-        }
-        if (shift != 0) {
-            throw new IllegalStateException("Shift counter in illegal state: " + shift);
-        }
-        LeafEntry newEntry = new LeafEntry(x, y, z);
-        if (!((AtomicReferenceArrayEntry) entry).addNewEntry(x, y, z, 0, newEntry)) {
-            throw new IllegalStateException("Unable to add new leaf entry");
         }
-        this.leafEntries.add(newEntry);
-        return newEntry;
     }
 
-    private synchronized void resizeMap() {
-        TripleIntObjectReferenceArrayMap.Entry<T> oldRoot = this.root.get();
-        int newDepth = oldRoot.getDepth() + 1;
-        TripleIntObjectReferenceArrayMap<T> temp = new TripleIntObjectReferenceArrayMap<>(bits, newDepth);
+    private static int clamp(long value) {
+        return TripleIntSpheres.clamp(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
 
-        for (LeafEntry le : leafEntries) {
-            T value = le.getValue();
-            if (value != null) {
-                int x = le.getX();
-                int y = le.getY();
-                int z = le.getZ();
-                temp.put(x, y, z, value);
-                if (!values.remove(value)) {
-                    throw new IllegalStateException("Value moved to other map on resize was not in value list");
+    private LeafEntry getOrCreateEntry(int x, int y, int z) {
+        LeafEntry newEntry = null;
+        while (true) {
+            AtomicReferenceArrayEntry parent = null;
+            Entry<T> entry = root.get();
+            while (entry instanceof TripleIntObjectReferenceArrayMap.AtomicReferenceArrayEntry) {
+                AtomicReferenceArrayEntry branch = (AtomicReferenceArrayEntry) entry;
+                if (!branch.testPrefix(x, y, z)) {
+                    break;
                 }
+                parent = branch;
+                entry = branch.getSubEntry(x, y, z);
+            }
+            if (entry instanceof TripleIntObjectReferenceArrayMap.LeafEntry && entry.testPrefix(x, y, z)) {
+                return (LeafEntry) entry;
+            }
+            if (newEntry == null) {
+                newEntry = new LeafEntry(x, y, z);
+            }
+            // An empty slot takes the leaf directly, otherwise the entry in the slot is pushed down into a new array together with the leaf
+            Entry<T> replacement = entry == null ? newEntry : split(entry, newEntry);
+            if (parent == null ? root.compareAndSet(entry, replacement) : parent.compareAndSet(x, y, z, entry, replacement)) {
+                return newEntry;
             }
-        }
-
-        if (!this.values.isEmpty()) {
-            throw new IllegalStateException("Some values were not transferred to the new map on resize");
-        }
-
-        this.leafEntries.clear();
-        this.leafEntries.addAll(temp.leafEntries);
-
-        this.values.addAll(temp.values);
-        if (!this.root.compareAndSet(oldRoot, temp.root.get())) {
-            throw new IllegalStateException("Old root changed while resizing");
         }
     }
 
-    private Entry<T> getEntryRaw(int x, int y, int z) {
-        Entry<T> entry = this.root.get();
-        int depth = entry.getDepth();
-        int shift = entry.getInitialShift();
+    /**
+     * Creates an array entry containing both the given entry and the new leaf.  The array is placed at the highest level where the prefix of the entry and the key of the leaf differ.
+     *
+     * @param entry the entry to push down
+     * @param leaf the new leaf
+     * @return the new array entry
+     */
+    private AtomicReferenceArrayEntry split(Entry<T> entry, LeafEntry leaf) {
+        int prefixShift = entry.getPrefixShift();
+        int diff = (entry.getX() ^ leaf.getX()) | (entry.getY() ^ leaf.getY()) | (entry.getZ() ^ leaf.getZ());
+        diff = (diff >>> prefixShift) << prefixShift;
+        if (diff == 0) {
+            throw new IllegalStateException("Unable to split an entry that contains the new key");
+        }
+        int shift = ((31 - Integer.numberOfLeadingZeros(diff)) / bits) * bits;
+        AtomicReferenceArrayEntry branch = new AtomicReferenceArrayEntry(shift, leaf.getX(), leaf.getY(), leaf.getZ());
+        branch.array.set(getIndex(entry.getX(), entry.getY(), entry.getZ(), shift), entry);
+        branch.array.set(getIndex(leaf.getX(), leaf.getY(), leaf.getZ(), shift), leaf);
+        return branch;
+    }
 
-        for (int i = 0; i <= depth; i++) {
-            entry = entry.getSubEntry(x, y, z, shift);
-            if (entry == null) {
+    private LeafEntry getEntryRaw(int x, int y, int z) {
+        Entry<T> entry = root.get();
+        while (entry != null) {
+            if (!entry.testPrefix(x, y, z)) {
                 return null;
             }
-            shift -= bits;
-        }
-        if (entry.testKey(x, y, z)) {
-            return entry;
-        } else {
-            return null;
+            if (entry instanceof TripleIntObjectReferenceArrayMap.LeafEntry) {
+                return (LeafEntry) entry;
+            }
+            entry = ((AtomicReferenceArrayEntry) entry).getSubEntry(x, y, z);
         }
+        return null;
     }
 
     private static interface Entry<T> {
+        /**
+         * Gets the lowest bit of the coordinates that is fixed for all the keys under this entry
+         *
+         * @return the prefix shift
+         */
+        public int getPrefixShift();
 
-        public Entry<T> getSubEntry(int x, int y, int z, int shift);
-
-        public boolean testKey(int x, int y, int z);
-
-        public T getValue();
+        /**
+         * Tests if a key could be under this entry, which is true if the key matches the fixed bits of the coordinates
+         *
+         * @return true if the prefix matches
+         */
+        public boolean testPrefix(int x, int y, int z);
 
-        public T remove();
+        public int getX();
 
-        public boolean remove(T value);
+        public int getY();
 
-        public T putIfAbsent(T value);
-
-        public T put(T value);
-
-        public int getDepth();
-
-        public int getInitialShift();
+        public int getZ();
     }
 
     private class AtomicReferenceArrayEntry implements Entry<T> {
-
-        private final int depth;
-        private final int initialShift;
+        private final int shift;
+        private final int prefixShift;
+        private final int x;
+        private final int y;
+        private final int z;
         private final AtomicReferenceArray<Entry<T>> array;
 
-        public AtomicReferenceArrayEntry(int depth) {
-            this.depth = depth;
+        /**
+         * Creates an array entry
+         *
+         * @param shift the lowest bit of the coordinates used for the index into this array
+         * @param x the x coordinate of a key under this entry
+         * @param y the y coordinate of a key under this entry
+         * @param z the z coordinate of a key under this entry
+         */
+        public AtomicReferenceArrayEntry(int shift, int x, int y, int z) {
+            this.shift = shift;
+            this.prefixShift = shift + bits;
+            this.x = x;
+            this.y = y;
+            this.z = z;
             this.array = new AtomicReferenceArray<>(arraySize);
-            this.initialShift = depth * bits;
         }
 
-        @Override
-        public Entry<T> getSubEntry(int x, int y, int z, int shift) {
-            return array.get(getIndex(x, y, z, shift));
+        /**
+         * Gets the lowest coordinate covered along one axis by the slots with the given index along that axis
+         *
+         * @param coordinate the coordinate of a key under this entry along the axis
+         * @param index the index along the axis
+         * @return the lowest coordinate
+         */
+        public int getSlotLow(int coordinate, int index) {
+            int prefix = prefixShift >= 32 ? 0 : coordinate >> prefixShift << prefixShift;
+            return prefix | (index << shift);
         }
 
-        @Override
-        public T getValue() {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class cannot store values directly");
-        }
-
-        @Override
-        public int getDepth() {
-            return depth;
+        public Entry<T> getSubEntry(int x, int y, int z) {
+            return array.get(getIndex(x, y, z, shift));
         }
 
-        @Override
-        public int getInitialShift() {
-            return initialShift;
+        public boolean compareAndSet(int x, int y, int z, Entry<T> expect, Entry<T> update) {
+            return array.compareAndSet(getIndex(x, y, z, shift), expect, update);
         }
 
         @Override
-        public boolean testKey(int x, int y, int z) {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
+        public int getPrefixShift() {
+            return prefixShift;
         }
 
         @Override
-        public T remove() {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
+        public boolean testPrefix(int x, int y, int z) {
+            if (prefixShift >= 32) {
+                return true;
+            }
+            return ((this.x ^ x) | (this.y ^ y) | (this.z ^ z)) >>> prefixShift == 0;
         }
 
         @Override
-        public boolean remove(T value) {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
+        public int getX() {
+            return x;
         }
 
         @Override
-        public T putIfAbsent(T value) {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
+        public int getY() {
+            return y;
         }
 
         @Override
-        public T put(T value) {
-            throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
-        }
-
-        public boolean addNewEntry(int x, int y, int z, int shift, Entry<T> subEntry) {
-            int index = getIndex(x, y, z, shift);
-            return array.compareAndSet(index, null, subEntry);
+        public int getZ() {
+            return z;
         }
     }
 
     private class LeafEntry implements Entry<T> {
-
         private final AtomicReference<T> value;
         private final int x;
         private final int y;
@@ -364,31 +412,27 @@ public class TripleIntObjectReferenceArrayMap<T> {
         }
 
         @Override
-        public Entry<T> getSubEntry(int x, int y, int z, int shift) {
-            return null;
+        public int getPrefixShift() {
+            return 0;
         }
 
         @Override
-        public boolean testKey(int x, int y, int z) {
+        public boolean testPrefix(int x, int y, int z) {
             return (x == this.x) && (y == this.y) && (z == this.z);
         }
 
-        @Override
         public T getValue() {
             return this.value.get();
         }
 
-        @Override
         public T remove() {
             return this.value.getAndSet(null);
         }
 
-        @Override
         public boolean remove(T value) {
             return this.value.compareAndSet(value, null);
         }
 
-        @Override
         public T putIfAbsent(T value) {
             while (true) {
                 T old = this.value.get();
@@ -401,46 +445,92 @@ public class TripleIntObjectReferenceArrayMap<T> {
             }
         }
 
-        @Override
         public T put(T value) {
             return this.value.getAndSet(value);
         }
 
-        @Override
-        public int getDepth() {
-            throw new UnsupportedOperationException("The LeafEntry class does not support this method");
-        }
-
-        @Override
-        public int getInitialShift() {
-            throw new UnsupportedOperationException("The LeafEntry class does not support this method");
-        }
-
         @Override
         public String toString() {
             return "{" + x + ", " + y + ", " + z + "}";
         }
 
+        @Override
         public int getX() {
             return x;
         }
 
+        @Override
         public int getY() {
             return y;
         }
 
+        @Override
         public int getZ() {
             return z;
         }
     }
 
+    private static class RangeQuery<T> {
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final long radiusSquared;
+        private final TripleIntObjectVisitor<T> visitor;
+
+        /**
+         * Creates a range query for a box, and optionally a sphere inside of it
+         *
+         * @param radiusSquared the squared radius of the sphere, or -1 to visit the whole box
+         */
+        public RangeQuery(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int x, int y, int z, long radiusSquared, TripleIntObjectVisitor<T> visitor) {
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radiusSquared = radiusSquared;
+            this.visitor = visitor;
+        }
+
+        public boolean contains(int px, int py, int pz) {
+            if (px < minX || px > maxX || py < minY || py > maxY || pz < minZ || pz > maxZ) {
+                return false;
+            }
+            return intersectsSphere(px, py, pz, 0);
+        }
+
+        /**
+         * Tests if the cube with the given lowest corner and span intersects the sphere, always true if the query has no sphere
+         */
+        public boolean intersectsSphere(int lowX, int lowY, int lowZ, int span) {
+            return TripleIntSpheres.intersects(x, y, z, radiusSquared, lowX, lowY, lowZ, lowX | span, lowY | span, lowZ | span);
+        }
+    }
+
+    private static class ValuesSnapshot<T> {
+        private final int modCount;
+        private final Collection<T> values;
+
+        public ValuesSnapshot(int modCount, Collection<T> values) {
+            this.modCount = modCount;
+            this.values = values;
+        }
+    }
+
     private int getIndex(int x, int y, int z, int shift) {
         x >>= shift;
         y >>= shift;
         z >>= shift;
-        x &= bitMask;
-        y &= bitMask;
-        z &= bitMask;
         return ((x & bitMask) << doubleBits) | ((y & bitMask) << bits) | (z & bitMask);
     }
 }
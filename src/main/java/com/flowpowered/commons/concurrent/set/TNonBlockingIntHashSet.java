@@ -0,0 +1,263 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.concurrent.set;
+
+import java.util.Collection;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.set.TIntSet;
+
+import com.flowpowered.commons.map.impl.NonBlockingLongHashTable;
+
+/**
+ * A lock-free version of the Trove IntHashSet.<br> <br> Reads never block, and updates only contend on the slot of their value, or briefly when the table is resized, see {@link
+ * NonBlockingLongHashTable}.  Bulk operations are weakly consistent and never lock the set.
+ */
+public class TNonBlockingIntHashSet extends NonBlockingLongHashTable<Object> implements TIntSet {
+    private static final Object PRESENT = new Object();
+    private final int no_entry_value;
+
+    /**
+     * Creates a lock-free set
+     */
+    public TNonBlockingIntHashSet() {
+        this(32);
+    }
+
+    /**
+     * Creates a lock-free set
+     *
+     * @param initialCapacity the initial capacity of the set
+     */
+    public TNonBlockingIntHashSet(int initialCapacity) {
+        this(initialCapacity, Constants.DEFAULT_INT_NO_ENTRY_VALUE);
+    }
+
+    /**
+     * Creates a lock-free set
+     *
+     * @param initialCapacity the initial capacity of the set
+     * @param noEntryValue the value reported by {@link #getNoEntryValue()}, it can still be added to the set
+     */
+    public TNonBlockingIntHashSet(int initialCapacity, int noEntryValue) {
+        super(initialCapacity);
+        this.no_entry_value = noEntryValue;
+    }
+
+    @Override
+    public int getNoEntryValue() {
+        return no_entry_value;
+    }
+
+    @Override
+    public boolean contains(int value) {
+        return getValue(value) != null;
+    }
+
+    @Override
+    public TIntIterator iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] toArray() {
+        return toArray(null);
+    }
+
+    @Override
+    public int[] toArray(int[] dest) {
+        final int[][] values = {new int[Math.max(size(), 16)]};
+        final int[] position = {0};
+        forEachKeyValue(new TLongObjectProcedure<Object>() {
+            @Override
+            public boolean execute(long key, Object present) {
+                if (position[0] == values[0].length) {
+                    int[] grown = new int[values[0].length << 1];
+                    System.arraycopy(values[0], 0, grown, 0, position[0]);
+                    values[0] = grown;
+                }
+                values[0][position[0]++] = (int) key;
+                return true;
+            }
+        });
+        if (dest == null || dest.length < position[0]) {
+            dest = new int[position[0]];
+        }
+        System.arraycopy(values[0], 0, dest, 0, position[0]);
+        return dest;
+    }
+
+    @Override
+    public boolean add(int value) {
+        return putIfMatch(value, PRESENT, ABSENT) == null;
+    }
+
+    @Override
+    public boolean remove(int value) {
+        return putIfMatch(value, TOMBSTONE, ANY) != null;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection) {
+        for (Object value : collection) {
+            if (!(value instanceof Integer) || !contains((Integer) value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll(TIntCollection collection) {
+        return collection.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int value) {
+                return contains(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean containsAll(int[] array) {
+        for (int value : array) {
+            if (!contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> collection) {
+        boolean modified = false;
+        for (int value : collection) {
+            modified |= add(value);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean addAll(TIntCollection collection) {
+        return addAll(collection.toArray());
+    }
+
+    @Override
+    public boolean addAll(int[] array) {
+        boolean modified = false;
+        for (int value : array) {
+            modified |= add(value);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean retainAll(final Collection<?> collection) {
+        return removeIf(new TIntProcedure() {
+            @Override
+            public boolean execute(int value) {
+                return !collection.contains(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean retainAll(final TIntCollection collection) {
+        return removeIf(new TIntProcedure() {
+            @Override
+            public boolean execute(int value) {
+                return !collection.contains(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean retainAll(int[] array) {
+        final TNonBlockingIntHashSet retained = new TNonBlockingIntHashSet(array.length);
+        retained.addAll(array);
+        return retainAll(retained);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        boolean modified = false;
+        for (Object value : collection) {
+            if (value instanceof Integer) {
+                modified |= remove((Integer) value);
+            }
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean removeAll(TIntCollection collection) {
+        return removeAll(collection.toArray());
+    }
+
+    @Override
+    public boolean removeAll(int[] array) {
+        boolean modified = false;
+        for (int value : array) {
+            modified |= remove(value);
+        }
+        return modified;
+    }
+
+    @Override
+    public void clear() {
+        removeIf(new TIntProcedure() {
+            @Override
+            public boolean execute(int value) {
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean forEach(final TIntProcedure procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<Object>() {
+            @Override
+            public boolean execute(long key, Object present) {
+                return procedure.execute((int) key);
+            }
+        });
+    }
+
+    private boolean removeIf(final TIntProcedure filter) {
+        final boolean[] modified = {false};
+        forEachKeyValue(new TLongObjectProcedure<Object>() {
+            @Override
+            public boolean execute(long key, Object present) {
+                if (filter.execute((int) key) && remove((int) key)) {
+                    modified[0] = true;
+                }
+                return true;
+            }
+        });
+        return modified[0];
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.hashing;
+
+/**
+ * A class for hashing 3 21 bit integers into a long in Morton (Z-order), and vice-versa.<br> <br> The bits of the three integers are interleaved, so keys that are close in space are usually close
+ * in value, and the key of every point in a box lies between the keys of its minimum and maximum corners.  The integers are offset by 2^20 so that the ordering holds for negative values.
+ */
+public class Int21TripleMortonHashed {
+    private static final int OFFSET = 0x100000;
+
+    /**
+     * Interleaves the 21 least significant bits of each int into a <code>long</code>, x in the most significant position of each group of three bits
+     *
+     * @param x an <code>int</code> value
+     * @param y an <code>int</code> value
+     * @param z an <code>int</code> value
+     * @return the interleaved key
+     */
+    public static long key(int x, int y, int z) {
+        return spread(x) << 2 | spread(y) << 1 | spread(z);
+    }
+
+    /**
+     * Gets the first 21-bit integer value from a long key
+     *
+     * @param key to get from
+     * @return the first 21-bit integer value in the key
+     */
+    public static int key1(long key) {
+        return compact(key >> 2);
+    }
+
+    /**
+     * Gets the second 21-bit integer value from a long key
+     *
+     * @param key to get from
+     * @return the second 21-bit integer value in the key
+     */
+    public static int key2(long key) {
+        return compact(key >> 1);
+    }
+
+    /**
+     * Gets the third 21-bit integer value from a long key
+     *
+     * @param key to get from
+     * @return the third 21-bit integer value in the key
+     */
+    public static int key3(long key) {
+        return compact(key);
+    }
+
+    private static long spread(int value) {
+        long v = (value ^ OFFSET) & 0x1FFFFF;
+        v = (v | v << 32) & 0x1F00000000FFFFL;
+        v = (v | v << 16) & 0x1F0000FF0000FFL;
+        v = (v | v << 8) & 0x100F00F00F00F00FL;
+        v = (v | v << 4) & 0x10C30C30C30C30C3L;
+        return (v | v << 2) & 0x1249249249249249L;
+    }
+
+    private static int compact(long key) {
+        long v = key & 0x1249249249249249L;
+        v = (v ^ v >> 2) & 0x10C30C30C30C30C3L;
+        v = (v ^ v >> 4) & 0x100F00F00F00F00FL;
+        v = (v ^ v >> 8) & 0x1F0000FF0000FFL;
+        v = (v ^ v >> 16) & 0x1F00000000FFFFL;
+        v = (v ^ v >> 32) & 0x1FFFFFL;
+        return ((int) v ^ OFFSET) << 11 >> 11;
+    }
+}
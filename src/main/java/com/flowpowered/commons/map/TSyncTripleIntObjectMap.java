@@ -0,0 +1,55 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map;
+
+/**
+ * This is a thread safe version of {@link TripleIntObjectMap}, with atomic conditional updates
+ *
+ * @param <T> the value type
+ */
+public interface TSyncTripleIntObjectMap<T> extends TripleIntObjectMap<T> {
+    /**
+     * Removes a key/value pair from the map, but only if the key is mapped to a given value
+     *
+     * @param x an <code>int</code> value
+     * @param y an <code>int</code> value
+     * @param z an <code>int</code> value
+     * @param value the expected value
+     * @return true on success
+     */
+    public boolean remove(int x, int y, int z, T value);
+
+    /**
+     * Gets the value mapped to the key, or, if the key is not in the map, maps it to a value computed by the given function.  When threads race to compute the same key, the function is called by one
+     * of them and the others wait for its value.  The function is called again only if it returned null or threw, and must not compute the same key itself.  If another method inserts the key
+     * concurrently, its value is kept and returned instead.
+     *
+     * @param x an <code>int</code> value
+     * @param y an <code>int</code> value
+     * @param z an <code>int</code> value
+     * @param function computes the value for the key, returning null leaves the map unchanged
+     * @return the value mapped to the key, or null if the key was absent and the function returned null
+     */
+    public T computeIfAbsent(int x, int y, int z, TripleIntFunction<? extends T> function);
+}
@@ -126,4 +126,28 @@ public interface TripleIntObjectMap<T> {
      * Returns a collection containing all the values in the Map
      */
     public Collection<T> valueCollection();
+
+    /**
+     * Visits every entry with a key inside the given box, the bounds are inclusive.  The order of the visits is unspecified.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param visitor the visitor to call for each entry
+     */
+    public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectVisitor<T> visitor);
+
+    /**
+     * Visits every entry with a key within the given distance of a point, including the keys at exactly that distance.  The order of the visits is unspecified.
+     *
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param z the z coordinate of the center
+     * @param radius the radius of the sphere
+     * @param visitor the visitor to call for each entry
+     */
+    public void forEachInSphere(int x, int y, int z, int radius, TripleIntObjectVisitor<T> visitor);
 }
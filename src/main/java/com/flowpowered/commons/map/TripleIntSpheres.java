@@ -0,0 +1,88 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map;
+
+/**
+ * Sphere tests shared by the {@link TripleIntObjectMap#forEachInSphere(int, int, int, int, TripleIntObjectVisitor)} implementations.
+ */
+public class TripleIntSpheres {
+    private TripleIntSpheres() {
+    }
+
+    /**
+     * Tests if the box between the given corners, both inclusive, intersects the sphere. A single key is the box with equal corners.
+     *
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param z the z coordinate of the center
+     * @param radiusSquared the square of an <code>int</code> radius, or a negative value for no sphere, in which case this is always true
+     * @param minX the lowest x coordinate of the box
+     * @param minY the lowest y coordinate of the box
+     * @param minZ the lowest z coordinate of the box
+     * @param maxX the highest x coordinate of the box
+     * @param maxY the highest y coordinate of the box
+     * @param maxZ the highest z coordinate of the box
+     * @return whether the box and the sphere share at least one point
+     */
+    public static boolean intersects(int x, int y, int z, long radiusSquared, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        if (radiusSquared < 0) {
+            return true;
+        }
+        long dx = distance(x, minX, maxX);
+        long dy = distance(y, minY, maxY);
+        long dz = distance(z, minZ, maxZ);
+        if (dx > Integer.MAX_VALUE || dy > Integer.MAX_VALUE || dz > Integer.MAX_VALUE) {
+            return false;
+        }
+        // Each square is now below 2^62, subtracting them one at a time and stopping once negative stays above Long.MIN_VALUE
+        long remaining = radiusSquared - dx * dx;
+        if (remaining < 0) {
+            return false;
+        }
+        remaining -= dy * dy;
+        return remaining >= 0 && remaining >= dz * dz;
+    }
+
+    /**
+     * Clamps a coordinate computed as a <code>long</code>, such as a center plus a radius, to the given range
+     *
+     * @param value the coordinate
+     * @param min the lowest coordinate
+     * @param max the highest coordinate
+     * @return the clamped coordinate
+     */
+    public static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    private static long distance(int value, int low, int high) {
+        if (value < low) {
+            return (long) low - value;
+        }
+        if (value > high) {
+            return (long) value - high;
+        }
+        return 0;
+    }
+}
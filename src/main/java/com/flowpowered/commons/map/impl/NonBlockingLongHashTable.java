@@ -0,0 +1,429 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import gnu.trove.procedure.TLongObjectProcedure;
+
+import com.flowpowered.math.GenericMath;
+
+/**
+ * The lock-free open addressing hash table behind the non-blocking primitive maps and sets.<br> <br> Keys are claimed in a slot with a compare and set and are never removed from a table, removed
+ * values leave a tombstone.  Reads never block or write, except to help move an entry that is being copied to a larger table.<br> <br> A full table is replaced by copying its entries to a new
+ * table, the copy is shared by all the threads that update the table while it is in progress.  An entry is copied by boxing its value, which stops updates to the old slot, then adding the value to
+ * the new table, but only if the new slot has never been written, and finally marking the old slot as moved.  A table is only itself copied once all its entries have reached it, so a late copy of
+ * an entry never overwrites a newer update.
+ *
+ * @param <V> the value type
+ */
+public abstract class NonBlockingLongHashTable<V> {
+    /**
+     * Matches any current value, see {@link #putIfMatch(long, Object, Object)}
+     */
+    protected static final Object ANY = new Object();
+    /**
+     * Matches no current value, see {@link #putIfMatch(long, Object, Object)}
+     */
+    protected static final Object ABSENT = new Object();
+    /**
+     * Removes the value when used as the new value, see {@link #putIfMatch(long, Object, Object)}
+     */
+    protected static final Object TOMBSTONE = new Object();
+    private static final Object MOVED = new Object();
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int COPY_CHUNK = 256;
+    private final AtomicReference<Table> top;
+    private final AtomicReference<Object> zeroValue = new AtomicReference<>(null);
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * Creates a table
+     *
+     * @param initialCapacity the number of entries the table can hold before its first copy
+     */
+    protected NonBlockingLongHashTable(int initialCapacity) {
+        top = new AtomicReference<>(new Table(getCapacity(initialCapacity)));
+    }
+
+    /**
+     * Gets the number of keys with a value in the table
+     *
+     * @return the size
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Checks if no key has a value in the table
+     *
+     * @return true if the table is empty
+     */
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Gets the value for the given key
+     *
+     * @param key the key
+     * @return the value, or null if none
+     */
+    @SuppressWarnings ("unchecked")
+    protected final V getValue(long key) {
+        if (key == 0) {
+            return (V) zeroValue.get();
+        }
+        Table t = top.get();
+        while (true) {
+            int i = hash(key) & t.mask;
+            int probes = 0;
+            long k;
+            while ((k = t.keys.get(i)) != key && k != 0 && probes++ < t.mask) {
+                i = (i + 1) & t.mask;
+            }
+            if (k == key) {
+                Object v = t.values.get(i);
+                if (v != MOVED && !(v instanceof Prime)) {
+                    return v == TOMBSTONE ? null : (V) v;
+                }
+                copySlot(t, i);
+            }
+            // The key may have been added to the table being copied to
+            t = t.next.get();
+            if (t == null) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Sets the value for the given key, but only if the current value matches the expected value.  Values are matched by identity.
+     *
+     * @param key the key
+     * @param value the new value, or {@link #TOMBSTONE} to remove the value
+     * @param expect the expected value, {@link #ANY} to match any value or {@link #ABSENT} to match no value
+     * @return the current value, the value is updated if it matches the expected value
+     */
+    @SuppressWarnings ("unchecked")
+    protected final V putIfMatch(long key, Object value, Object expect) {
+        if (key == 0) {
+            return putZero(value, expect);
+        }
+        Table t = top.get();
+        outer:
+        while (true) {
+            int i = hash(key) & t.mask;
+            int probes = 0;
+            long k;
+            while ((k = t.keys.get(i)) != key) {
+                if (k == 0) {
+                    Table next = t.next.get();
+                    if (next != null) {
+                        // Keys are only added to the newest table.  The slot may have been claimed, and written, before the next table was created
+                        if (t.keys.get(i) != 0) {
+                            continue;
+                        }
+                        t = next;
+                        continue outer;
+                    }
+                    if (value == TOMBSTONE) {
+                        return null;
+                    }
+                    // A long run of keys means they are clustered, a larger table spreads them out
+                    boolean clustered = probes >= t.reprobeLimit;
+                    if (clustered || !t.reserve()) {
+                        // The table is probed again, another thread may have added the key before the next table was created
+                        resize(t, clustered);
+                        continue outer;
+                    }
+                    if (t.keys.compareAndSet(i, 0, key)) {
+                        break;
+                    }
+                    t.claimed.decrementAndGet();
+                    continue;
+                }
+                if (++probes > t.mask) {
+                    if (value == TOMBSTONE && t.next.get() == null) {
+                        return null;
+                    }
+                    resize(t, true);
+                    continue outer;
+                }
+                i = (i + 1) & t.mask;
+            }
+            while (true) {
+                Object v = t.values.get(i);
+                if (v == MOVED || v instanceof Prime || t.next.get() != null) {
+                    // Updates go to the newest table, the old entry is copied first so that it can't overwrite the update
+                    copySlot(t, i);
+                    helpCopy(t);
+                    t = t.next.get();
+                    continue outer;
+                }
+                Object current = v == TOMBSTONE ? null : v;
+                if (expect != ANY && (expect == ABSENT ? current != null : current != expect)) {
+                    return (V) current;
+                }
+                if (value == TOMBSTONE && current == null) {
+                    return null;
+                }
+                if (t.values.compareAndSet(i, v, value)) {
+                    if (current == null) {
+                        size.incrementAndGet();
+                    } else if (value == TOMBSTONE) {
+                        size.decrementAndGet();
+                    }
+                    return (V) current;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings ("unchecked")
+    private V putZero(Object value, Object expect) {
+        Object update = value == TOMBSTONE ? null : value;
+        while (true) {
+            Object current = zeroValue.get();
+            if (expect != ANY && (expect == ABSENT ? current != null : current != expect)) {
+                return (V) current;
+            }
+            if (update == null && current == null) {
+                return null;
+            }
+            if (zeroValue.compareAndSet(current, update)) {
+                if (current == null) {
+                    size.incrementAndGet();
+                } else if (update == null) {
+                    size.decrementAndGet();
+                }
+                return (V) current;
+            }
+        }
+    }
+
+    /**
+     * Calls the procedure for each key with a value.  The iteration is weakly consistent, every key that has a value for the whole iteration is visited exactly once, keys updated concurrently may
+     * or may not be visited.  Pending table copies are completed first.
+     *
+     * @param procedure the procedure, returns false to stop the iteration
+     * @return false if the procedure stopped the iteration
+     */
+    @SuppressWarnings ("unchecked")
+    protected final boolean forEachKeyValue(TLongObjectProcedure<? super V> procedure) {
+        Object zero = zeroValue.get();
+        if (zero != null && !procedure.execute(0, (V) zero)) {
+            return false;
+        }
+        Table t;
+        while ((t = top.get()).next.get() != null) {
+            copyAll(t);
+        }
+        for (int i = 0; i <= t.mask; i++) {
+            long k = t.keys.get(i);
+            if (k == 0) {
+                continue;
+            }
+            Object v = t.values.get(i);
+            if (v == MOVED || v instanceof Prime) {
+                v = getValue(k);
+            }
+            if (v == null || v == TOMBSTONE) {
+                continue;
+            }
+            if (!procedure.execute(k, (V) v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the table to copy a table to, if not already done.  Only the newest table, once all the entries of the table before it have been copied, is copied.
+     *
+     * @param t the full table
+     * @param grow whether to double the capacity, used when the keys are clustered rather than the table full
+     */
+    private void resize(Table t, boolean grow) {
+        while (true) {
+            if (t.next.get() != null) {
+                return;
+            }
+            Table current = top.get();
+            if (current != t) {
+                // The table is still being copied to
+                copyAll(current);
+                continue;
+            }
+            int capacity = getCapacity(size.get());
+            if (grow) {
+                capacity = Math.min(MAX_CAPACITY, Math.max(capacity, (t.mask + 1) << 1));
+            }
+            t.next.compareAndSet(null, new Table(capacity));
+        }
+    }
+
+    /**
+     * Copies a chunk of entries of the given table to the next table
+     */
+    private void helpCopy(Table t) {
+        int capacity = t.mask + 1;
+        int start = t.copyIndex.getAndAdd(COPY_CHUNK);
+        if (start < capacity) {
+            int end = Math.min(capacity, start + COPY_CHUNK);
+            for (int i = start; i < end; i++) {
+                copySlot(t, i);
+            }
+        }
+        if (t.copied.get() == capacity) {
+            top.compareAndSet(t, t.next.get());
+        }
+    }
+
+    /**
+     * Copies all the entries of the given table to the next table, and replaces it with the next table
+     */
+    private void copyAll(Table t) {
+        int capacity = t.mask + 1;
+        while (t.copyIndex.get() < capacity) {
+            helpCopy(t);
+        }
+        // Chunks claimed by other threads may still be in progress
+        for (int i = 0; i < capacity; i++) {
+            copySlot(t, i);
+        }
+        top.compareAndSet(t, t.next.get());
+    }
+
+    /**
+     * Copies an entry of the given table to the next table, if not already done
+     */
+    private void copySlot(Table t, int i) {
+        Object v = t.values.get(i);
+        while (!(v instanceof Prime)) {
+            if (v == MOVED) {
+                return;
+            }
+            Object update = v == null || v == TOMBSTONE ? MOVED : new Prime(v);
+            if (t.values.compareAndSet(i, v, update)) {
+                if (update == MOVED) {
+                    t.copied.incrementAndGet();
+                    return;
+                }
+                v = update;
+            } else {
+                v = t.values.get(i);
+            }
+        }
+        t.next.get().copyIn(t.keys.get(i), ((Prime) v).value);
+        if (t.values.compareAndSet(i, v, MOVED)) {
+            t.copied.incrementAndGet();
+        }
+    }
+
+    private static int getCapacity(int entries) {
+        // Copies start with the table at most a quarter full, leaving room for the keys added while the entries are copied
+        return Math.max(MIN_CAPACITY, GenericMath.roundUpPow2((int) Math.min(MAX_CAPACITY, (long) entries << 2)));
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+        private final int threshold;
+        private final int reprobeLimit;
+        private final AtomicInteger claimed = new AtomicInteger(0);
+        private final AtomicInteger copyIndex = new AtomicInteger(0);
+        private final AtomicInteger copied = new AtomicInteger(0);
+        private final AtomicReference<Table> next = new AtomicReference<>(null);
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+            threshold = capacity >> 1;
+            reprobeLimit = 10 + (capacity >> 2);
+        }
+
+        /**
+         * Reserves a slot for a new key, updates stop adding keys at half the capacity
+         *
+         * @return false if the table is full
+         */
+        private boolean reserve() {
+            while (true) {
+                int count = claimed.get();
+                if (count >= threshold) {
+                    return false;
+                }
+                if (claimed.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Adds a copied entry, but only if the slot for the key has never been written.  A table starts at most a quarter full with the copied entries, and updates stop adding keys at half the
+         * capacity, so there is room for them.
+         */
+        private void copyIn(long key, Object value) {
+            int i = hash(key) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long k = keys.get(i);
+                if (k == 0) {
+                    if (keys.compareAndSet(i, 0, key)) {
+                        claimed.incrementAndGet();
+                        k = key;
+                    } else {
+                        k = keys.get(i);
+                    }
+                }
+                if (k == key) {
+                    values.compareAndSet(i, null, value);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            throw new IllegalStateException("No free slot for a copied entry");
+        }
+    }
+
+    private static final class Prime {
+        private final Object value;
+
+        private Prime(Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import gnu.trove.function.TObjectFunction;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.procedure.TIntObjectProcedure;
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.procedure.TObjectProcedure;
+import gnu.trove.set.TIntSet;
+
+import com.flowpowered.commons.map.TSyncIntObjectMap;
+
+/**
+ * A lock-free version of the Trove IntObjectHashMap.<br> <br> Reads never block, and updates only contend on the slot of their key, or briefly when the table is resized.  The table is
+ * resized concurrently by the threads that update it, see {@link NonBlockingLongHashTable}.  Bulk operations and iteration are weakly consistent and never lock the map.<br> <br> Null values are not
+ * stored, putting a null value removes the key.  Values are compared by identity in {@link #remove(int, Object)}.
+ *
+ * @param <V> the value type
+ */
+public class TNonBlockingIntObjectHashMap<V> extends NonBlockingLongHashTable<V> implements TSyncIntObjectMap<V> {
+    private final int no_entry_key;
+
+    /**
+     * Creates a lock-free map
+     */
+    public TNonBlockingIntObjectHashMap() {
+        this(32);
+    }
+
+    /**
+     * Creates a lock-free map
+     *
+     * @param initialCapacity the initial capacity of the map
+     */
+    public TNonBlockingIntObjectHashMap(int initialCapacity) {
+        this(initialCapacity, Constants.DEFAULT_INT_NO_ENTRY_VALUE);
+    }
+
+    /**
+     * Creates a lock-free map
+     *
+     * @param initialCapacity the initial capacity of the map
+     * @param noEntryKey the key reported by {@link #getNoEntryKey()}, it can still be used as a key
+     */
+    public TNonBlockingIntObjectHashMap(int initialCapacity, int noEntryKey) {
+        super(initialCapacity);
+        this.no_entry_key = noEntryKey;
+    }
+
+    @Override
+    public void clear() {
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                remove((int) key, value);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean containsKey(int key) {
+        return getValue(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return !forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V v) {
+                return !v.equals(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean forEachEntry(final TIntObjectProcedure<? super V> procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                return procedure.execute((int) key, value);
+            }
+        });
+    }
+
+    @Override
+    public boolean forEachKey(final TIntProcedure procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                return procedure.execute((int) key);
+            }
+        });
+    }
+
+    @Override
+    public boolean forEachValue(final TObjectProcedure<? super V> procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                return procedure.execute(value);
+            }
+        });
+    }
+
+    @Override
+    public V get(int key) {
+        return getValue(key);
+    }
+
+    @Override
+    public int getNoEntryKey() {
+        return no_entry_key;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the entries of the map.  The keys are copied when the iterator is created, each value is read when the iterator reaches its key, and keys removed by
+     * then are skipped.  The iterator never throws {@link java.util.ConcurrentModificationException} and never blocks updates.
+     *
+     * @return the iterator
+     */
+    @Override
+    public TIntObjectIterator<V> iterator() {
+        return new WeakIterator(keys());
+    }
+
+    @Override
+    public TIntSet keySet() {
+        throw new UnsupportedOperationException("This operation is not supported");
+    }
+
+    @Override
+    public int[] keys(int[] dest) {
+        final int[][] keys = {new int[Math.max(size(), 16)]};
+        final int[] position = {0};
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                if (position[0] == keys[0].length) {
+                    int[] grown = new int[keys[0].length << 1];
+                    System.arraycopy(keys[0], 0, grown, 0, position[0]);
+                    keys[0] = grown;
+                }
+                keys[0][position[0]++] = (int) key;
+                return true;
+            }
+        });
+        if (dest == null || dest.length < position[0]) {
+            dest = new int[position[0]];
+        }
+        System.arraycopy(keys[0], 0, dest, 0, position[0]);
+        return dest;
+    }
+
+    @Override
+    public int[] keys() {
+        return keys(null);
+    }
+
+    @Override
+    public V put(int key, V value) {
+        return putIfMatch(key, value == null ? TOMBSTONE : value, ANY);
+    }
+
+    @Override
+    public void putAll(Map<? extends Integer, ? extends V> map) {
+        for (Map.Entry<? extends Integer, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void putAll(TIntObjectMap<? extends V> map) {
+        map.forEachEntry(new TIntObjectProcedure<V>() {
+            @Override
+            public boolean execute(int key, V value) {
+                put(key, value);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public V putIfAbsent(int key, V value) {
+        if (value == null) {
+            return getValue(key);
+        }
+        return putIfMatch(key, value, ABSENT);
+    }
+
+    @Override
+    public V remove(int key) {
+        return putIfMatch(key, TOMBSTONE, ANY);
+    }
+
+    @Override
+    public boolean remove(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot remove null values");
+        }
+        return putIfMatch(key, TOMBSTONE, value) == value;
+    }
+
+    @Override
+    public boolean retainEntries(final TIntObjectProcedure<? super V> procedure) {
+        final boolean[] modified = {false};
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                if (!procedure.execute((int) key, value) && remove((int) key, value)) {
+                    modified[0] = true;
+                }
+                return true;
+            }
+        });
+        return modified[0];
+    }
+
+    @Override
+    public void transformValues(final TObjectFunction<V, V> function) {
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                // The value is only replaced if it wasn't updated since it was transformed
+                while (value != null) {
+                    V current = putIfMatch(key, function.execute(value), value);
+                    if (current == value) {
+                        break;
+                    }
+                    value = current;
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public Collection<V> valueCollection() {
+        final List<V> collection = new ArrayList<>(size());
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                collection.add(value);
+                return true;
+            }
+        });
+        return Collections.unmodifiableCollection(collection);
+    }
+
+    @Override
+    public V[] values() {
+        return values(null);
+    }
+
+    @Override
+    @SuppressWarnings ("unchecked")
+    public V[] values(V[] dest) {
+        Collection<V> collection = valueCollection();
+        V[] values;
+        if (dest == null) {
+            values = (V[]) new Object[collection.size()];
+        } else if (dest.length == collection.size()) {
+            values = dest;
+        } else {
+            values = (V[]) Array.newInstance(dest.getClass().getComponentType(), collection.size());
+        }
+        return collection.toArray(values);
+    }
+
+    private class WeakIterator implements TIntObjectIterator<V> {
+        private final int[] keys;
+        private int next = 0;
+        private V nextValue = null;
+        private int key;
+        private V value = null;
+
+        private WeakIterator(int[] keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextValue == null && next < keys.length) {
+                nextValue = getValue(keys[next]);
+                if (nextValue == null) {
+                    next++;
+                }
+            }
+            return nextValue != null;
+        }
+
+        @Override
+        public void advance() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            key = keys[next++];
+            value = nextValue;
+            nextValue = null;
+        }
+
+        @Override
+        public int key() {
+            return key;
+        }
+
+        @Override
+        public V value() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V val) {
+            V old = put(key, val);
+            value = val;
+            return old;
+        }
+
+        @Override
+        public void remove() {
+            if (value == null) {
+                throw new IllegalStateException("No entry to remove");
+            }
+            TNonBlockingIntObjectHashMap.this.remove(key);
+            value = null;
+        }
+    }
+}
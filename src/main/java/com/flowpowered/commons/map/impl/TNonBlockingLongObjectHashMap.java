@@ -0,0 +1,355 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import gnu.trove.function.TObjectFunction;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.procedure.TObjectProcedure;
+import gnu.trove.set.TLongSet;
+
+import com.flowpowered.commons.map.TSyncLongObjectMap;
+
+/**
+ * A lock-free version of the Trove LongObjectHashMap.  Keys packed by {@link com.flowpowered.commons.hashing.Int21TripleHashed} can be used for (x, y, z) keys.<br> <br> Reads never block, and updates only contend on the slot of their key, or briefly when the table is resized.  The table is
+ * resized concurrently by the threads that update it, see {@link NonBlockingLongHashTable}.  Bulk operations and iteration are weakly consistent and never lock the map.<br> <br> Null values are not
+ * stored, putting a null value removes the key.  Values are compared by identity in {@link #remove(long, Object)}.
+ *
+ * @param <V> the value type
+ */
+public class TNonBlockingLongObjectHashMap<V> extends NonBlockingLongHashTable<V> implements TSyncLongObjectMap<V> {
+    private final long no_entry_key;
+
+    /**
+     * Creates a lock-free map
+     */
+    public TNonBlockingLongObjectHashMap() {
+        this(32);
+    }
+
+    /**
+     * Creates a lock-free map
+     *
+     * @param initialCapacity the initial capacity of the map
+     */
+    public TNonBlockingLongObjectHashMap(int initialCapacity) {
+        this(initialCapacity, Constants.DEFAULT_LONG_NO_ENTRY_VALUE);
+    }
+
+    /**
+     * Creates a lock-free map
+     *
+     * @param initialCapacity the initial capacity of the map
+     * @param noEntryKey the key reported by {@link #getNoEntryKey()}, it can still be used as a key
+     */
+    public TNonBlockingLongObjectHashMap(int initialCapacity, long noEntryKey) {
+        super(initialCapacity);
+        this.no_entry_key = noEntryKey;
+    }
+
+    @Override
+    public void clear() {
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                remove(key, value);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return getValue(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return !forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V v) {
+                return !v.equals(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean forEachEntry(final TLongObjectProcedure<? super V> procedure) {
+        return forEachKeyValue(procedure);
+    }
+
+    @Override
+    public boolean forEachKey(final TLongProcedure procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                return procedure.execute(key);
+            }
+        });
+    }
+
+    @Override
+    public boolean forEachValue(final TObjectProcedure<? super V> procedure) {
+        return forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                return procedure.execute(value);
+            }
+        });
+    }
+
+    @Override
+    public V get(long key) {
+        return getValue(key);
+    }
+
+    @Override
+    public long getNoEntryKey() {
+        return no_entry_key;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the entries of the map.  The keys are copied when the iterator is created, each value is read when the iterator reaches its key, and keys removed by
+     * then are skipped.  The iterator never throws {@link java.util.ConcurrentModificationException} and never blocks updates.
+     *
+     * @return the iterator
+     */
+    @Override
+    public TLongObjectIterator<V> iterator() {
+        return new WeakIterator(keys());
+    }
+
+    @Override
+    public TLongSet keySet() {
+        throw new UnsupportedOperationException("This operation is not supported");
+    }
+
+    @Override
+    public long[] keys(long[] dest) {
+        final long[][] keys = {new long[Math.max(size(), 16)]};
+        final int[] position = {0};
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                if (position[0] == keys[0].length) {
+                    long[] grown = new long[keys[0].length << 1];
+                    System.arraycopy(keys[0], 0, grown, 0, position[0]);
+                    keys[0] = grown;
+                }
+                keys[0][position[0]++] = key;
+                return true;
+            }
+        });
+        if (dest == null || dest.length < position[0]) {
+            dest = new long[position[0]];
+        }
+        System.arraycopy(keys[0], 0, dest, 0, position[0]);
+        return dest;
+    }
+
+    @Override
+    public long[] keys() {
+        return keys(null);
+    }
+
+    @Override
+    public V put(long key, V value) {
+        return putIfMatch(key, value == null ? TOMBSTONE : value, ANY);
+    }
+
+    @Override
+    public void putAll(Map<? extends Long, ? extends V> map) {
+        for (Map.Entry<? extends Long, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void putAll(TLongObjectMap<? extends V> map) {
+        map.forEachEntry(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                put(key, value);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public V putIfAbsent(long key, V value) {
+        if (value == null) {
+            return getValue(key);
+        }
+        return putIfMatch(key, value, ABSENT);
+    }
+
+    @Override
+    public V remove(long key) {
+        return putIfMatch(key, TOMBSTONE, ANY);
+    }
+
+    @Override
+    public boolean remove(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot remove null values");
+        }
+        return putIfMatch(key, TOMBSTONE, value) == value;
+    }
+
+    @Override
+    public boolean retainEntries(final TLongObjectProcedure<? super V> procedure) {
+        final boolean[] modified = {false};
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                if (!procedure.execute(key, value) && remove(key, value)) {
+                    modified[0] = true;
+                }
+                return true;
+            }
+        });
+        return modified[0];
+    }
+
+    @Override
+    public void transformValues(final TObjectFunction<V, V> function) {
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                // The value is only replaced if it wasn't updated since it was transformed
+                while (value != null) {
+                    V current = putIfMatch(key, function.execute(value), value);
+                    if (current == value) {
+                        break;
+                    }
+                    value = current;
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public Collection<V> valueCollection() {
+        final List<V> collection = new ArrayList<>(size());
+        forEachKeyValue(new TLongObjectProcedure<V>() {
+            @Override
+            public boolean execute(long key, V value) {
+                collection.add(value);
+                return true;
+            }
+        });
+        return Collections.unmodifiableCollection(collection);
+    }
+
+    @Override
+    public V[] values() {
+        return values(null);
+    }
+
+    @Override
+    @SuppressWarnings ("unchecked")
+    public V[] values(V[] dest) {
+        Collection<V> collection = valueCollection();
+        V[] values;
+        if (dest == null) {
+            values = (V[]) new Object[collection.size()];
+        } else if (dest.length == collection.size()) {
+            values = dest;
+        } else {
+            values = (V[]) Array.newInstance(dest.getClass().getComponentType(), collection.size());
+        }
+        return collection.toArray(values);
+    }
+
+    private class WeakIterator implements TLongObjectIterator<V> {
+        private final long[] keys;
+        private int next = 0;
+        private V nextValue = null;
+        private long key;
+        private V value = null;
+
+        private WeakIterator(long[] keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextValue == null && next < keys.length) {
+                nextValue = getValue(keys[next]);
+                if (nextValue == null) {
+                    next++;
+                }
+            }
+            return nextValue != null;
+        }
+
+        @Override
+        public void advance() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            key = keys[next++];
+            value = nextValue;
+            nextValue = null;
+        }
+
+        @Override
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public V value() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V val) {
+            V old = put(key, val);
+            value = val;
+            return old;
+        }
+
+        @Override
+        public void remove() {
+            if (value == null) {
+                throw new IllegalStateException("No entry to remove");
+            }
+            TNonBlockingLongObjectHashMap.this.remove(key);
+            value = null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.concurrent.CountDownLatch;
+
+import gnu.trove.set.TLongSet;
+
+import com.flowpowered.commons.map.TSyncLongObjectMap;
+import com.flowpowered.commons.map.TSyncTripleIntObjectMap;
+import com.flowpowered.commons.map.TripleIntFunction;
+
+/**
+ * A thread safe {@link TTripleInt21ObjectHashMap}, backed by a {@link TNonBlockingLongObjectHashMap}.  Reads and updates never lock, {@link #putIfAbsent(int, int, int, Object)} and
+ * {@link #remove(int, int, int, Object)} are atomic, and {@link #iterator()} is weakly consistent.  Null values are not supported, putting a null value removes the key.<br> <br>
+ * {@link #computeIfAbsent(int, int, int, TripleIntFunction)} computes each absent key once.  The computations in progress are kept in a separate map, so readers never see them, and only threads
+ * that compute the same key wait for each other.
+ *
+ * @param <T> the value type
+ */
+public class TSyncTripleInt21ObjectHashMap<T> extends TTripleInt21ObjectHashMap<T> implements TSyncTripleIntObjectMap<T> {
+    /**
+     * The keys being computed by {@link #computeIfAbsent(int, int, int, TripleIntFunction)}, released once the computed value is in the map
+     */
+    private final TNonBlockingLongObjectHashMap<CountDownLatch> computing = new TNonBlockingLongObjectHashMap<>();
+
+    /**
+     * Creates a new <code>TSyncTripleInt21ObjectHashMap</code> instance backend by a {@see TNonBlockingLongObjectHashMap} instance with the default capacity.
+     */
+    public TSyncTripleInt21ObjectHashMap() {
+        super(new TNonBlockingLongObjectHashMap<T>());
+    }
+
+    /**
+     * Creates a new <code>TSyncTripleInt21ObjectHashMap</code> instance backend by a {@see TNonBlockingLongObjectHashMap} instance sized to hold <code>capacity</code> entries without resizing.
+     *
+     * @param capacity an <code>int</code> value
+     */
+    public TSyncTripleInt21ObjectHashMap(int capacity) {
+        super(new TNonBlockingLongObjectHashMap<T>(capacity));
+    }
+
+    @Override
+    @SuppressWarnings ("unchecked")
+    public boolean remove(int x, int y, int z, T value) {
+        long key = key(x, y, z);
+        return ((TSyncLongObjectMap<T>) map).remove(key, value);
+    }
+
+    @Override
+    public T computeIfAbsent(int x, int y, int z, TripleIntFunction<? extends T> function) {
+        long key = key(x, y, z);
+        while (true) {
+            T value = map.get(key);
+            if (value != null) {
+                return value;
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch other = computing.putIfAbsent(key, latch);
+            if (other != null) {
+                // Another thread is computing the key, its value is in the map once it is done, unless the function returned null or threw
+                awaitUninterruptibly(other);
+                continue;
+            }
+            try {
+                value = map.get(key);
+                if (value != null) {
+                    return value;
+                }
+                value = function.apply(x, y, z);
+                if (value == null) {
+                    return null;
+                }
+                T previous = map.putIfAbsent(key, value);
+                return previous != null ? previous : value;
+            } finally {
+                computing.remove(key, latch);
+                latch.countDown();
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The key set of a <code>TSyncTripleInt21ObjectHashMap</code> is not supported, use {@link #keys()} or {@link #iterator()} instead.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public TLongSet keySet() {
+        throw new UnsupportedOperationException("This operation is not supported");
+    }
+}
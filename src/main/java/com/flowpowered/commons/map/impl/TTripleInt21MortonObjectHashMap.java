@@ -0,0 +1,85 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import com.flowpowered.commons.hashing.Int21TripleMortonHashed;
+
+/**
+ * A {@link TTripleInt21ObjectHashMap} with Morton ordered keys.  Nearby keys have nearby hashes, which keeps the probes of a range query close together in the backing map, and a scan can reject
+ * most keys outside of a box without unpacking them.  The keys returned by {@link #keys()}, {@link #keySet()} and {@link #iterator()} are packed by {@link Int21TripleMortonHashed}.
+ *
+ * @see {@link Int21TripleMortonHashed}
+ */
+public class TTripleInt21MortonObjectHashMap<T> extends TTripleInt21ObjectHashMap<T> {
+    /**
+     * Creates a new <code>TTripleInt21MortonObjectHashMap</code> instance backend by a {@see TLongObjectHashMap} instance with an capacity of 100 and the default load factor.
+     */
+    public TTripleInt21MortonObjectHashMap() {
+        super();
+    }
+
+    /**
+     * Creates a new <code>TTripleInt21MortonObjectHashMap</code> instance backend by a {@see TLongObjectHashMap} instance with a prime capacity equal to or greater than <code>capacity</code> and
+     * with the default load factor.
+     *
+     * @param capacity an <code>int</code> value
+     */
+    public TTripleInt21MortonObjectHashMap(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Creates a new <code>TTripleInt21MortonObjectHashMap</code> instance backend by <code>map</code>
+     */
+    public TTripleInt21MortonObjectHashMap(TTripleInt21MortonObjectHashMap<T> map) {
+        super(map);
+    }
+
+    @Override
+    protected long key(int x, int y, int z) {
+        return Int21TripleMortonHashed.key(x, y, z);
+    }
+
+    @Override
+    protected int key1(long key) {
+        return Int21TripleMortonHashed.key1(key);
+    }
+
+    @Override
+    protected int key2(long key) {
+        return Int21TripleMortonHashed.key2(key);
+    }
+
+    @Override
+    protected int key3(long key) {
+        return Int21TripleMortonHashed.key3(key);
+    }
+
+    @Override
+    protected boolean isOutside(long key, long minKey, long maxKey) {
+        return key < minKey || key > maxKey;
+    }
+}
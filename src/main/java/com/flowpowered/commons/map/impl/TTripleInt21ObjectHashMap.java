@@ -28,10 +28,13 @@ import java.util.Collection;
 import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongObjectProcedure;
 import gnu.trove.set.TLongSet;
 
 import com.flowpowered.commons.hashing.Int21TripleHashed;
 import com.flowpowered.commons.map.TripleIntObjectMap;
+import com.flowpowered.commons.map.TripleIntObjectVisitor;
+import com.flowpowered.commons.map.TripleIntSpheres;
 
 /**
  * A simplistic map that supports a 3 21 bit integers for keys, using a trove long Object hashmap in the backend. 1 bit is wasted.
@@ -39,6 +42,8 @@ import com.flowpowered.commons.map.TripleIntObjectMap;
  * @see {@link Int21TripleHashed}
  */
 public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
+    private static final int MIN_COORDINATE = -0x100000;
+    private static final int MAX_COORDINATE = 0xFFFFF;
     protected final TLongObjectMap<T> map;
 
     /**
@@ -58,6 +63,15 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
         map = new TLongObjectHashMap<>(capacity);
     }
 
+    /**
+     * Creates a new <code>TTripleInt21ObjectHashMap</code> instance backend by the given long object map, the keys of which are packed by {@link #key(int, int, int)}
+     *
+     * @param map the backing map
+     */
+    protected TTripleInt21ObjectHashMap(TLongObjectMap<T> map) {
+        this.map = map;
+    }
+
     /**
      * Creates a new <code>TTripleInt21ObjectHashMap</code> instance backend by <code>map</code>
      */
@@ -81,13 +95,14 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
      */
     @Override
     public T put(int x, int y, int z, T value) {
-        long key = Int21TripleHashed.key(x, y, z);
+        long key = key(x, y, z);
         return map.put(key, value);
     }
 
     @Override
     public T putIfAbsent(int x, int y, int z, T value) {
-        return null;
+        long key = key(x, y, z);
+        return map.putIfAbsent(key, value);
     }
 
     /**
@@ -104,7 +119,7 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
      */
     @Override
     public T get(int x, int y, int z) {
-        long key = Int21TripleHashed.key(x, y, z);
+        long key = key(x, y, z);
         return map.get(key);
     }
 
@@ -119,7 +134,7 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
      */
     @Override
     public boolean containsKey(int x, int y, int z) {
-        long key = Int21TripleHashed.key(x, y, z);
+        long key = key(x, y, z);
         return map.containsKey(key);
     }
 
@@ -199,7 +214,7 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
      */
     @Override
     public T remove(int x, int y, int z) {
-        long key = Int21TripleHashed.key(x, y, z);
+        long key = key(x, y, z);
         return map.remove(key);
     }
 
@@ -224,6 +239,162 @@ public class TTripleInt21ObjectHashMap<T> implements TripleIntObjectMap<T> {
         return map.valueCollection();
     }
 
+    @Override
+    public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectVisitor<T> visitor) {
+        forEachInRange(minX, minY, minZ, maxX, maxY, maxZ, 0, 0, 0, -1, visitor);
+    }
+
+    @Override
+    public void forEachInSphere(int x, int y, int z, int radius, TripleIntObjectVisitor<T> visitor) {
+        if (radius < 0) {
+            return;
+        }
+        forEachInRange(clamp((long) x - radius), clamp((long) y - radius), clamp((long) z - radius), clamp((long) x + radius), clamp((long) y + radius), clamp((long) z + radius), x, y, z,
+                (long) radius * radius, visitor);
+    }
+
+    /**
+     * Visits the entries in a box, and optionally within a sphere.  Small boxes are probed key by key, larger ones are found by a scan of all the entries.
+     *
+     * @param radiusSquared the squared radius of the sphere, or -1 to visit the whole box
+     */
+    private void forEachInRange(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int x, int y, int z, long radiusSquared, TripleIntObjectVisitor<T> visitor) {
+        // Coordinates outside of the key range would alias other keys
+        minX = Math.max(minX, MIN_COORDINATE);
+        minY = Math.max(minY, MIN_COORDINATE);
+        minZ = Math.max(minZ, MIN_COORDINATE);
+        maxX = Math.min(maxX, MAX_COORDINATE);
+        maxY = Math.min(maxY, MAX_COORDINATE);
+        maxZ = Math.min(maxZ, MAX_COORDINATE);
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+        long area = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (area <= map.size() && area * (maxZ - minZ + 1) <= map.size()) {
+            // z is innermost, as it is in the least significant bits of the keys
+            for (int px = minX; px <= maxX; px++) {
+                for (int py = minY; py <= maxY; py++) {
+                    for (int pz = minZ; pz <= maxZ; pz++) {
+                        T value = map.get(key(px, py, pz));
+                        if (value != null && isInSphere(px, py, pz, x, y, z, radiusSquared)) {
+                            visitor.visit(px, py, pz, value);
+                        }
+                    }
+                }
+            }
+        } else {
+            map.forEachEntry(new RangeScan(minX, minY, minZ, maxX, maxY, maxZ, x, y, z, radiusSquared, visitor));
+        }
+    }
+
+    private class RangeScan implements TLongObjectProcedure<T> {
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final long radiusSquared;
+        private final long minKey;
+        private final long maxKey;
+        private final TripleIntObjectVisitor<T> visitor;
+
+        private RangeScan(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int x, int y, int z, long radiusSquared, TripleIntObjectVisitor<T> visitor) {
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radiusSquared = radiusSquared;
+            this.visitor = visitor;
+            minKey = key(minX, minY, minZ);
+            maxKey = key(maxX, maxY, maxZ);
+        }
+
+        @Override
+        public boolean execute(long key, T value) {
+            if (isOutside(key, minKey, maxKey)) {
+                return true;
+            }
+            int px = key1(key);
+            int py = key2(key);
+            int pz = key3(key);
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ && isInSphere(px, py, pz, x, y, z, radiusSquared)) {
+                visitor.visit(px, py, pz, value);
+            }
+            return true;
+        }
+    }
+
+    private static boolean isInSphere(int px, int py, int pz, int x, int y, int z, long radiusSquared) {
+        return TripleIntSpheres.intersects(x, y, z, radiusSquared, px, py, pz, px, py, pz);
+    }
+
+    private static int clamp(long value) {
+        return TripleIntSpheres.clamp(value, MIN_COORDINATE, MAX_COORDINATE);
+    }
+
+    /**
+     * Packs the coordinates into a key of the backing map
+     *
+     * @param x an <code>int</code> value
+     * @param y an <code>int</code> value
+     * @param z an <code>int</code> value
+     * @return the key
+     */
+    protected long key(int x, int y, int z) {
+        return Int21TripleHashed.key(x, y, z);
+    }
+
+    /**
+     * Gets the x coordinate from a key of the backing map
+     *
+     * @param key the key
+     * @return the x coordinate
+     */
+    protected int key1(long key) {
+        return Int21TripleHashed.key1(key);
+    }
+
+    /**
+     * Gets the y coordinate from a key of the backing map
+     *
+     * @param key the key
+     * @return the y coordinate
+     */
+    protected int key2(long key) {
+        return Int21TripleHashed.key2(key);
+    }
+
+    /**
+     * Gets the z coordinate from a key of the backing map
+     *
+     * @param key the key
+     * @return the z coordinate
+     */
+    protected int key3(long key) {
+        return Int21TripleHashed.key3(key);
+    }
+
+    /**
+     * Tests if a key is certainly outside of a box, without unpacking the coordinates.  Keys for which this returns false are unpacked and tested against the box.
+     *
+     * @param key the key
+     * @param minKey the key of the minimum corner of the box
+     * @param maxKey the key of the maximum corner of the box
+     * @return true if the key can't be in the box
+     */
+    protected boolean isOutside(long key, long minKey, long maxKey) {
+        return false;
+    }
+
     /**
      * Returns the values of the map as an array of <code>long</code> values. Changes to the array of values will not be reflected in the map nor vice-versa.
      *
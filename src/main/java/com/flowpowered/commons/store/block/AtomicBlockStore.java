@@ -80,6 +80,49 @@ public interface AtomicBlockStore {
      */
     int getFullData(int index);
 
+    /**
+     * Gets the full state of the blocks from index from (inclusive) to index to (exclusive), which is faster than getting the blocks one at a time.<br> <br> If the store is updated while the blocks
+     * are read, data tearing could occur.
+     *
+     * @param from the first block index
+     * @param to the index after the last block index
+     * @param dst the array to place the states in
+     * @param offset the index in the destination array of the first state
+     */
+    void getFullData(int from, int to, int[] dst, int offset);
+
+    /**
+     * Gets the block ids of the blocks from index from (inclusive) to index to (exclusive), which is faster than getting the blocks one at a time.<br> <br> If the store is updated while the blocks
+     * are read, data tearing could occur.
+     *
+     * @param from the first block index
+     * @param to the index after the last block index
+     * @param dst the array to place the block ids in
+     * @param offset the index in the destination array of the first block id
+     */
+    void getBlockIds(int from, int to, short[] dst, int offset);
+
+    /**
+     * Gets the full state of a row of blocks along the x axis.<br> <br> If the store is updated while the blocks are read, data tearing could occur.
+     *
+     * @param x the x coordinate of the first block
+     * @param y the y coordinate of the row
+     * @param z the z coordinate of the row
+     * @param dst the array to place the states in
+     * @param offset the index in the destination array of the first state
+     * @param length the number of blocks in the row
+     */
+    void getRow(int x, int y, int z, int[] dst, int offset, int length);
+
+    /**
+     * Gets the full state of all the blocks with the given y coordinate, in z then x order.<br> <br> If the store is updated while the blocks are read, data tearing could occur.
+     *
+     * @param y the y coordinate of the slice
+     * @param dst the array to place the states in
+     * @param offset the index in the destination array of the first state
+     */
+    void getSlice(int y, int[] dst, int offset);
+
     /**
      * Marks the block id at (x, y, z) as dirty.<br>
      *
@@ -128,6 +171,46 @@ public interface AtomicBlockStore {
      */
     boolean isBlockUniform();
 
+    /**
+     * Gets the full state shared by all the blocks in the store, without reading the individual blocks.<br> <br> Note: this method may spuriously return notUniform for uniform stores
+     *
+     * @param notUniform the value to return if the store is not uniform
+     * @return the full state of all the blocks, or notUniform
+     */
+    int getUniformFullData(int notUniform);
+
+    /**
+     * Gets an immutable view of the blocks in the store.  Taking a snapshot waits for in flight updates, but doesn't copy the blocks.  The next update to the store copies the blocks instead, so
+     * that the snapshot is not modified.
+     *
+     * @return the snapshot
+     */
+    BlockStoreSnapshot snapshot();
+
+    /**
+     * Gets the full state shared by all the blocks in a region.  If the whole store is uniform, the region is not read.<br> <br> If the store is updated while the region is read, data tearing
+     * could occur.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param notUniform the value to return if the region is not uniform
+     * @return the full state of all the blocks in the region, or notUniform
+     */
+    int getUniformFullData(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int notUniform);
+
+    /**
+     * Visits the cubic sections of the store that contain more than one state, so that callers can skip the uniform sections.  If the whole store is uniform, no section is visited and the
+     * blocks are not read.<br> <br> If the store is updated during this method call, data tearing could occur.
+     *
+     * @param sectionShift the log2 of the side length of the sections, at most the shift of the store
+     * @param visitor the visitor
+     */
+    void forEachNonUniformSection(int sectionShift, BlockSectionVisitor visitor);
+
     /**
      * Sets the block id and data for the block at (x, y, z).<br> <br> If the data is 0, then the block will be stored as a single short.<br>
      *
@@ -191,6 +274,39 @@ public interface AtomicBlockStore {
      */
     boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData);
 
+    /**
+     * Sets the block id and data for every block in the region between (minX, minY, minZ) and (maxX, maxY, maxZ), inclusive.<br> <br> The store is write locked for the duration of the fill. The
+     * blocks are not added to the dirty block list, instead the dirty bounds are extended to include the region and the dirty list is marked as overflowed.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param id the block id
+     * @param data the block data
+     */
+    void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short id, short data);
+
+    /**
+     * Copies the full state of every block in the region of the source store between (minX, minY, minZ) and (maxX, maxY, maxZ), inclusive, to the region of this store starting at (destX, destY,
+     * destZ).<br> <br> The source region is read before any block is written, so the source may be this store, even if the regions overlap. This store is write locked while the blocks are written.
+     * The blocks are not added to the dirty block list, instead the dirty bounds are extended to include the destination region and the dirty list is marked as overflowed.
+     *
+     * @param source the store to copy from
+     * @param minX the minimum x coordinate of the source region
+     * @param minY the minimum y coordinate of the source region
+     * @param minZ the minimum z coordinate of the source region
+     * @param maxX the maximum x coordinate of the source region
+     * @param maxY the maximum y coordinate of the source region
+     * @param maxZ the maximum z coordinate of the source region
+     * @param destX the x coordinate in this store of the minimum corner of the source region
+     * @param destY the y coordinate in this store of the minimum corner of the source region
+     * @param destZ the z coordinate in this store of the minimum corner of the source region
+     */
+    void copyFrom(AtomicBlockStore source, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int destX, int destY, int destZ);
+
     /**
      * Gets if the store would benefit from compression.<br> <br> If this method is called when the store is being accessed by another thread, it may give spurious results.
      *
@@ -281,6 +397,16 @@ public interface AtomicBlockStore {
      */
     boolean resetDirtyArrays();
 
+    /**
+     * Resets the dirty arrays, and reports the blocks that were dirty before the reset.  A block that changes concurrently is either reported or kept dirty for the next call, see
+     * {@link DirtyTracker#drain(DirtyBlockVisitor, int[])}.  The visitor should not write to the store.
+     *
+     * @param visitor the visitor for the dirty blocks that are tracked individually
+     * @param bounds an array of at least 6 elements, receives the bounds of the dirty blocks in the order of {@link #getDirtyBounds(int[])}
+     * @return the number of blocks visited, or -1 if the dirty arrays overflowed, in which case only the bounds are valid
+     */
+    int drainDirty(DirtyBlockVisitor visitor, int[] bounds);
+
     /**
      * Gets the number of dirty blocks since the last update
      */
@@ -296,6 +422,30 @@ public interface AtomicBlockStore {
      */
     Vector3i getMaxDirty();
 
+    /**
+     * Copies the bounds of the dirty blocks into an array, in the order min x, min y, min z, max x, max y, max z.  Unlike {@link #getMinDirty()} and {@link #getMaxDirty()}, this does not allocate.
+     *
+     * @param dst an array of at least 6 elements
+     */
+    void getDirtyBounds(int[] dst);
+
+    /**
+     * Visits the dirty blocks that are tracked individually, with their old and new states.  Unlike {@link #getDirtyBlock(int)}, this does not allocate for each block.  If the dirty blocks
+     * overflowed, only the dirty bounds are valid.
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    int forEachDirtyBlock(DirtyBlockVisitor visitor);
+
+    /**
+     * Copies the indexes of the dirty blocks that are tracked individually into an array.  The indexes are those used by {@link #getFullData(int)}.
+     *
+     * @param dst the array to place the indexes in, indexes that do not fit are dropped
+     * @return the number of indexes copied
+     */
+    int getDirtyIndices(int[] dst);
+
     /**
      * Gets the position of the dirty block at a given index.<br> <br> If there is no block at that index, then the method return null.<br> <br> Note: the x, y and z values returned are the chunk
      * coordinates, not the world coordinates and the method has no effect on the world field of the block.<br>
@@ -342,6 +492,11 @@ public interface AtomicBlockStore {
      */
     boolean tryWriteLock();
 
+    /**
+     * Releases the memory held by the store, which may be off the heap.  The store must not be accessed after, or concurrently with, this method call.
+     */
+    void free();
+
     /**
      * Represents a mask used for packing multiple value inside the data short.
      */
@@ -0,0 +1,103 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block;
+
+/**
+ * An immutable view of the blocks of an {@link AtomicBlockStore} at the time {@link AtomicBlockStore#snapshot()} was called.  Updates to the store after that are not visible, so a snapshot can be
+ * read from any thread without locking the store.
+ */
+public interface BlockStoreSnapshot {
+    /**
+     * Gets the full state of a block
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the full state of the block
+     */
+    int getFullData(int x, int y, int z);
+
+    /**
+     * Gets the full state of a block
+     *
+     * @param index the block index
+     * @return the full state of the block
+     */
+    int getFullData(int index);
+
+    /**
+     * Gets the block id of a block
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the block id
+     */
+    short getBlockId(int x, int y, int z);
+
+    /**
+     * Gets the block data of a block
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the block data
+     */
+    short getData(int x, int y, int z);
+
+    /**
+     * Gets the full state of all the blocks
+     *
+     * @return a new array containing the states
+     */
+    int[] getFullArray();
+
+    /**
+     * Gets if all the blocks have the same state
+     *
+     * @return true if the snapshot is uniform
+     */
+    boolean isBlockUniform();
+
+    /**
+     * Gets the width of the packed array, see {@link #getPackedArray()}
+     *
+     * @return the packed width
+     */
+    int getPackedWidth();
+
+    /**
+     * Gets the packed array of palette ids, or of states if there is no palette.  The array must not be modified.
+     *
+     * @return the packed array
+     */
+    int[] getPackedArray();
+
+    /**
+     * Gets the palette, or an array of zero length if no palette is in use.  The array must not be modified.
+     *
+     * @return the palette
+     */
+    int[] getPalette();
+}
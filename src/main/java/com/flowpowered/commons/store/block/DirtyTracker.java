@@ -0,0 +1,133 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block;
+
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Tracks the blocks of a store that changed since the last reset.  Implementations differ in how writers contend with each other and in what happens once many blocks are dirty, see the
+ * implementations in {@link com.flowpowered.commons.store.block.impl}.  Coordinates are relative to the store.
+ */
+public interface DirtyTracker {
+    /**
+     * Records that a block changed
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param oldState the state before the change
+     * @param newState the state after the change
+     */
+    void markDirty(int x, int y, int z, int oldState, int newState);
+
+    /**
+     * Records that every block in a region may have changed.  All the coordinates are inclusive.
+     */
+    void markDirtyRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
+    /**
+     * Gets if any block changed since the last reset
+     *
+     * @return true if there are dirty blocks
+     */
+    boolean isDirty();
+
+    /**
+     * Gets if the tracker dropped individual dirty blocks since the last reset, in which case only the dirty bounds are valid
+     *
+     * @return true if there was an overflow
+     */
+    boolean isDirtyOverflow();
+
+    /**
+     * Forgets all the dirty blocks
+     *
+     * @return true if there were dirty blocks
+     */
+    boolean reset();
+
+    /**
+     * Forgets all the dirty blocks, and reports the blocks that were forgotten.  Unlike reading the dirty blocks and then calling {@link #reset()}, a block that is marked concurrently is either
+     * reported by this drain or kept for the next one.  Writers may wait for the drain to complete, so the visitor should not block or write to the store.
+     *
+     * @param visitor the visitor for the dirty blocks that are tracked individually
+     * @param bounds an array of at least 6 elements, receives the bounds of the forgotten blocks in the order of {@link #getDirtyBounds(int[])}
+     * @return the number of blocks visited, or -1 if the tracker dropped individual dirty blocks, in which case only the bounds cover all the forgotten blocks
+     */
+    int drain(DirtyBlockVisitor visitor, int[] bounds);
+
+    /**
+     * Gets the number of dirty blocks since the last reset
+     */
+    int getDirtyBlocks();
+
+    /**
+     * Gets the coordinate of the lowest dirty block
+     */
+    Vector3i getMinDirty();
+
+    /**
+     * Gets the coordinate of the maximum dirty block
+     */
+    Vector3i getMaxDirty();
+
+    /**
+     * Copies the bounds of the dirty blocks into an array, in the order min x, min y, min z, max x, max y, max z.  The minimums are greater than the maximums if there are no dirty blocks.
+     *
+     * @param dst an array of at least 6 elements
+     */
+    void getDirtyBounds(int[] dst);
+
+    /**
+     * Visits the dirty blocks that are tracked individually, in the same order as {@link #getDirtyBlock(int)}
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    int forEachDirtyBlock(DirtyBlockVisitor visitor);
+
+    /**
+     * Copies the indexes of the dirty blocks that are tracked individually into an array, in the same order as {@link #getDirtyBlock(int)}.  An index is (y << (shift * 2)) + (z << shift) + x.
+     *
+     * @param dst the array to place the indexes in, indexes that do not fit are dropped
+     * @param shift the log2 of the side length of the store
+     * @return the number of indexes copied
+     */
+    int getDirtyIndices(int[] dst, int shift);
+
+    /**
+     * Gets the position of the dirty block at a given index, or null if there is no block at that index
+     */
+    Vector3i getDirtyBlock(int i);
+
+    /**
+     * Gets the old state for the dirty block at a given index, or -1 if there is no block at that index or states are not tracked
+     */
+    int getDirtyOldState(int i);
+
+    /**
+     * Gets the new state for the dirty block at a given index, or -1 if there is no block at that index or states are not tracked
+     */
+    int getDirtyNewState(int i);
+}
@@ -0,0 +1,331 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore.DataMask;
+import com.flowpowered.commons.store.block.impl.ArrayDirtyTracker;
+import com.flowpowered.commons.store.block.impl.AtomicIntStorage;
+import com.flowpowered.commons.store.block.impl.AtomicPaletteBlockStore;
+import com.flowpowered.commons.store.block.impl.AtomicShortIntArray;
+
+/**
+ * A file that holds many palette compressed block stores, one per slot.  The file is memory mapped, so stores are written to and read from the mapping without stream copying.<br> <br> The file
+ * starts with a header and a slot table, followed by the store data.  The file is divided into sectors, each store occupies a run of consecutive sectors and the free sectors are tracked in memory.
+ * The header contains the magic number, the version, the store shift and the number of slots.  Each slot table entry contains the first sector, the sector count and the data length in bytes, a
+ * sector count of zero means the slot is empty.  The store data is in the format written by {@link AtomicPaletteBlockStore#writeTo(ByteBuffer)}.
+ */
+public class MappedRegionFile implements Closeable {
+    public static final int SECTOR_SIZE = 4096;
+    /**
+     * The maximum number of sectors, a mapping can't be larger than {@link Integer#MAX_VALUE} bytes
+     */
+    public static final int MAX_SECTORS = Integer.MAX_VALUE / SECTOR_SIZE;
+    private static final int MAGIC = 0x464C5247;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_ENTRY_SIZE = 12;
+    private final Path path;
+    private final int shift;
+    private final int slots;
+    private final int tableSectors;
+    private final FileChannel channel;
+    private final BitSet usedSectors = new BitSet();
+    private MappedByteBuffer buffer;
+    private int sectors;
+
+    /**
+     * Opens a region file, creating it if it doesn't exist.
+     *
+     * @param path the file path
+     * @param shift the shift of the stores in the file
+     * @param slots the number of slots in the file
+     * @throws IOException if the file can't be opened, or if it exists with a different shift or number of slots
+     */
+    public MappedRegionFile(Path path, int shift, int slots) throws IOException {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("The number of slots must be positive " + slots);
+        }
+        this.path = path;
+        this.shift = shift;
+        this.slots = slots;
+        tableSectors = toSectors(HEADER_SIZE + slots * SLOT_ENTRY_SIZE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                map(tableSectors);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, shift);
+                buffer.putInt(12, slots);
+            } else {
+                if (size % SECTOR_SIZE != 0 || size / SECTOR_SIZE < tableSectors || size / SECTOR_SIZE > MAX_SECTORS) {
+                    throw new IOException("Region file has an invalid size " + size + ": " + path);
+                }
+                map((int) (size / SECTOR_SIZE));
+                readHeader();
+            }
+            usedSectors.set(0, tableSectors);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a region file: " + path);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported region file version " + buffer.getInt(4) + ": " + path);
+        }
+        if (buffer.getInt(8) != shift || buffer.getInt(12) != slots) {
+            throw new IOException("Region file has shift " + buffer.getInt(8) + " and " + buffer.getInt(12) + " slots, expected shift " + shift + " and " + slots + " slots: " + path);
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            int first = getFirstSector(slot);
+            int count = getSectorCount(slot);
+            if (count == 0) {
+                continue;
+            }
+            if (first < tableSectors || count < 0 || count > sectors - first || getLength(slot) > count * SECTOR_SIZE) {
+                throw new IOException("Region file has an invalid entry for slot " + slot + ": " + path);
+            }
+            int overlap = usedSectors.nextSetBit(first);
+            if (overlap >= 0 && overlap < first + count) {
+                throw new IOException("Region file has an invalid entry for slot " + slot + ": " + path);
+            }
+            usedSectors.set(first, first + count);
+        }
+    }
+
+    /**
+     * Gets the shift of the stores in the file
+     *
+     * @return the shift
+     */
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Gets the number of slots in the file
+     *
+     * @return the number of slots
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Gets if the given slot contains a store
+     *
+     * @param slot the slot
+     * @return true if the slot contains a store
+     */
+    public synchronized boolean hasStore(int slot) {
+        checkSlot(slot);
+        return getSectorCount(slot) != 0;
+    }
+
+    /**
+     * Loads the store in the given slot.  The store is constructed from its palette, width and packed array, and is not dirty.  A store that was saved with data fields in separate layers is loaded
+     * with the same layers.
+     *
+     * @param slot the slot
+     * @param storeState if the old and new states of dirty blocks are stored
+     * @param dirtySize the number of dirty blocks that are tracked individually
+     * @return the store, or null if the slot is empty
+     * @throws IOException if the stored data is corrupt
+     */
+    public synchronized AtomicPaletteBlockStore load(int slot, boolean storeState, int dirtySize) throws IOException {
+        checkSlot(slot);
+        if (getSectorCount(slot) == 0) {
+            return null;
+        }
+        ByteBuffer data = slice(getFirstSector(slot), getLength(slot));
+        try {
+            DataMask[] layers = AtomicPaletteBlockStore.getSerializedLayers(data);
+            if (layers.length != 0) {
+                AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(shift, new ArrayDirtyTracker(dirtySize, storeState), AtomicShortIntArray.SyncMode.READ_WRITE_LOCK,
+                        AtomicIntStorage.Type.HEAP, layers);
+                store.readFrom(data);
+                store.resetDirtyArrays();
+                return store;
+            }
+            int width = data.getInt();
+            int[] palette = new int[data.getInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = data.getInt();
+            }
+            int[] packed = new int[data.getInt()];
+            for (int i = 0; i < packed.length; i++) {
+                packed[i] = data.getInt();
+            }
+            return new AtomicPaletteBlockStore(shift, storeState, true, dirtySize, palette, width, packed);
+        } catch (RuntimeException e) {
+            throw new IOException("Region file has corrupt data in slot " + slot + ": " + path, e);
+        }
+    }
+
+    /**
+     * Saves a store to the given slot, if the store is dirty.  The store is write locked while it is written, and is written directly to the mapped file.  The store is written to free sectors and
+     * the slot entry is only switched to them once it is complete, so an interrupted save leaves the previous copy intact.  The dirty state of the store is not reset, as it is also used to report
+     * block changes.
+     *
+     * @param slot the slot
+     * @param store the store, which must have the same shift as the file
+     * @return true if the store was dirty and has been written
+     * @throws IOException if the file can't be grown, or would grow past {@link #MAX_SECTORS}
+     */
+    public synchronized boolean save(int slot, AtomicPaletteBlockStore store) throws IOException {
+        checkSlot(slot);
+        if (!store.isDirty()) {
+            return false;
+        }
+        store.writeLock();
+        try {
+            int length = store.getSerializedSize();
+            int count = toSectors(length);
+            int oldFirst = getFirstSector(slot);
+            int oldCount = getSectorCount(slot);
+            // The store is always written to free sectors, so the old copy stays intact until the entry is updated
+            int first = allocate(count);
+            try {
+                store.writeTo(slice(first, length));
+            } catch (RuntimeException e) {
+                usedSectors.clear(first, first + count);
+                throw e;
+            }
+            setEntry(slot, first, count, length);
+            usedSectors.clear(oldFirst, oldFirst + oldCount);
+            return true;
+        } finally {
+            store.writeUnlock();
+        }
+    }
+
+    /**
+     * Removes the store in the given slot
+     *
+     * @param slot the slot
+     */
+    public synchronized void delete(int slot) {
+        checkSlot(slot);
+        int first = getFirstSector(slot);
+        usedSectors.clear(first, first + getSectorCount(slot));
+        setEntry(slot, 0, 0, 0);
+    }
+
+    /**
+     * Forces the changes to the file to be written to the storage device
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Allocates a run of free sectors, growing the file if there is no large enough run.
+     *
+     * @param count the number of sectors
+     * @return the first sector
+     * @throws IOException if the file can't be grown, or would grow past {@link #MAX_SECTORS}
+     */
+    private int allocate(int count) throws IOException {
+        int first = usedSectors.nextClearBit(tableSectors);
+        while (first < sectors) {
+            int end = usedSectors.nextSetBit(first);
+            if (end < 0 || end >= first + count) {
+                break;
+            }
+            first = usedSectors.nextClearBit(end);
+        }
+        if (count > sectors - first) {
+            if (count > MAX_SECTORS - first) {
+                throw new IOException("Region file is full, " + count + " sectors don't fit in " + MAX_SECTORS + " sectors: " + path);
+            }
+            // Grow in large steps, so that the file is rarely remapped
+            map(Math.min(MAX_SECTORS, Math.max(first + count, sectors + (sectors >> 1))));
+        }
+        usedSectors.set(first, first + count);
+        return first;
+    }
+
+    private void map(int sectors) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) sectors * SECTOR_SIZE);
+        this.sectors = sectors;
+    }
+
+    private ByteBuffer slice(int sector, int length) {
+        ByteBuffer data = buffer.duplicate();
+        int position = sector * SECTOR_SIZE;
+        data.limit(position + length);
+        data.position(position);
+        return data.slice();
+    }
+
+    private int getFirstSector(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * SLOT_ENTRY_SIZE);
+    }
+
+    private int getSectorCount(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * SLOT_ENTRY_SIZE + 4);
+    }
+
+    private int getLength(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * SLOT_ENTRY_SIZE + 8);
+    }
+
+    private void setEntry(int slot, int first, int count, int length) {
+        int index = HEADER_SIZE + slot * SLOT_ENTRY_SIZE;
+        buffer.putInt(index, first);
+        buffer.putInt(index + 4, count);
+        buffer.putInt(index + 8, length);
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= slots) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " is outside the range 0 to " + (slots - 1));
+        }
+    }
+
+    private static int toSectors(int bytes) {
+        return (bytes + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+}
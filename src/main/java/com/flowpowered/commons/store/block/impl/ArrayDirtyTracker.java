@@ -0,0 +1,292 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+import com.flowpowered.commons.store.block.DirtyTracker;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Records dirty blocks in fixed size arrays, shared by all writers.  Once the arrays are full, the individual blocks are dropped and only the dirty bounds are kept.
+ */
+public class ArrayDirtyTracker implements DirtyTracker {
+    /**
+     * Set in {@link #writers} while a drain runs
+     */
+    private static final int CLOSED = Integer.MIN_VALUE;
+    private final byte[] dirtyX;
+    private final byte[] dirtyY;
+    private final byte[] dirtyZ;
+    private final int[] newState;
+    private final int[] oldState;
+    private final AtomicInteger maxX = new AtomicInteger(Integer.MIN_VALUE);
+    private final AtomicInteger maxY = new AtomicInteger(Integer.MIN_VALUE);
+    private final AtomicInteger maxZ = new AtomicInteger(Integer.MIN_VALUE);
+    private final AtomicInteger minX = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger minY = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger minZ = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+    /**
+     * The number of writers that are marking blocks, with {@link #CLOSED} set while a drain runs
+     */
+    private final AtomicInteger writers = new AtomicInteger();
+
+    /**
+     * Creates a tracker.
+     *
+     * @param dirtySize the number of dirty blocks that are tracked individually
+     * @param storeState if the old and new states of dirty blocks are stored
+     */
+    public ArrayDirtyTracker(int dirtySize, boolean storeState) {
+        dirtyX = new byte[dirtySize];
+        dirtyY = new byte[dirtySize];
+        dirtyZ = new byte[dirtySize];
+        if (storeState) {
+            oldState = new int[dirtySize];
+            newState = new int[dirtySize];
+        } else {
+            oldState = null;
+            newState = null;
+        }
+    }
+
+    @Override
+    public void markDirty(int x, int y, int z, int oldState, int newState) {
+        enter();
+        try {
+            mark(x, y, z, oldState, newState);
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    private void mark(int x, int y, int z, int oldState, int newState) {
+        setAsMax(maxX, x);
+        setAsMin(minX, x);
+
+        setAsMax(maxY, y);
+        setAsMin(minY, y);
+
+        setAsMax(maxZ, z);
+        setAsMin(minZ, z);
+
+        int index = incrementDirtyIndex();
+        if (index < dirtyX.length) {
+            dirtyX[index] = (byte) x;
+            dirtyY[index] = (byte) y;
+            dirtyZ[index] = (byte) z;
+            if (this.oldState != null) {
+                this.oldState[index] = oldState;
+                this.newState[index] = newState;
+            }
+        }
+    }
+
+    @Override
+    public void markDirtyRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        enter();
+        try {
+            setAsMax(this.maxX, maxX);
+            setAsMin(this.minX, minX);
+
+            setAsMax(this.maxY, maxY);
+            setAsMin(this.minY, minY);
+
+            setAsMax(this.maxZ, maxZ);
+            setAsMin(this.minZ, minZ);
+
+            setAsMax(dirtyBlocks, dirtyX.length);
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    private void enter() {
+        while (true) {
+            int w = writers.get();
+            if (w < 0) {
+                // Wait for the drain to complete
+                Thread.yield();
+            } else if (writers.compareAndSet(w, w + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reserves the next index in the dirty arrays
+     *
+     * @return the index, which is at least the array length if the arrays are full
+     */
+    public int incrementDirtyIndex() {
+        boolean success = false;
+        int index = -1;
+        while (!success) {
+            index = dirtyBlocks.get();
+            if (index > dirtyX.length) {
+                break;
+            }
+            int next = index + 1;
+            success = dirtyBlocks.compareAndSet(index, next);
+        }
+        return index;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirtyBlocks.get() > 0;
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        return dirtyBlocks.get() >= dirtyX.length;
+    }
+
+    @Override
+    public boolean reset() {
+        minX.set(Integer.MAX_VALUE);
+        minY.set(Integer.MAX_VALUE);
+        minZ.set(Integer.MAX_VALUE);
+        maxX.set(Integer.MIN_VALUE);
+        maxY.set(Integer.MIN_VALUE);
+        maxZ.set(Integer.MIN_VALUE);
+        return dirtyBlocks.getAndSet(0) > 0;
+    }
+
+    /**
+     * {@inheritDoc}<br> <br> Writers wait while the arrays are read and reset.
+     */
+    @Override
+    public int drain(DirtyBlockVisitor visitor, int[] bounds) {
+        int w;
+        while ((w = writers.get()) < 0 || !writers.compareAndSet(w, w | CLOSED)) {
+            // Another drain is running
+            Thread.yield();
+        }
+        try {
+            // Wait for the writers that entered before the drain
+            while (writers.get() != CLOSED) {
+                Thread.yield();
+            }
+            getDirtyBounds(bounds);
+            int count = isDirtyOverflow() ? -1 : forEachDirtyBlock(visitor);
+            reset();
+            return count;
+        } finally {
+            writers.set(0);
+        }
+    }
+
+    @Override
+    public int getDirtyBlocks() {
+        return dirtyBlocks.get();
+    }
+
+    @Override
+    public Vector3i getMaxDirty() {
+        return new Vector3i(maxX.get(), maxY.get(), maxZ.get());
+    }
+
+    @Override
+    public Vector3i getMinDirty() {
+        return new Vector3i(minX.get(), minY.get(), minZ.get());
+    }
+
+    @Override
+    public void getDirtyBounds(int[] dst) {
+        dst[0] = minX.get();
+        dst[1] = minY.get();
+        dst[2] = minZ.get();
+        dst[3] = maxX.get();
+        dst[4] = maxY.get();
+        dst[5] = maxZ.get();
+    }
+
+    @Override
+    public int forEachDirtyBlock(DirtyBlockVisitor visitor) {
+        int count = Math.min(dirtyBlocks.get(), dirtyX.length);
+        for (int i = 0; i < count; i++) {
+            int oldState = this.oldState == null ? -1 : this.oldState[i];
+            int newState = this.newState == null ? -1 : this.newState[i];
+            visitor.visit(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF, oldState, newState);
+        }
+        return count;
+    }
+
+    @Override
+    public int getDirtyIndices(int[] dst, int shift) {
+        int count = Math.min(Math.min(dirtyBlocks.get(), dirtyX.length), dst.length);
+        for (int i = 0; i < count; i++) {
+            dst[i] = ((dirtyY[i] & 0xFF) << (shift << 1)) + ((dirtyZ[i] & 0xFF) << shift) + (dirtyX[i] & 0xFF);
+        }
+        return count;
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        if (i >= dirtyBlocks.get() || i >= dirtyX.length) {
+            return null;
+        }
+
+        return new Vector3i(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+    }
+
+    @Override
+    public int getDirtyOldState(int i) {
+        if (oldState == null || i >= dirtyBlocks.get() || i >= oldState.length) {
+            return -1;
+        }
+
+        return oldState[i];
+    }
+
+    @Override
+    public int getDirtyNewState(int i) {
+        if (newState == null || i >= dirtyBlocks.get() || i >= newState.length) {
+            return -1;
+        }
+
+        return newState[i];
+    }
+
+    private static void setAsMin(AtomicInteger i, int x) {
+        int old;
+        while ((old = i.get()) > x) {
+            if (i.compareAndSet(old, x)) {
+                return;
+            }
+        }
+    }
+
+    private static void setAsMax(AtomicInteger i, int x) {
+        int old;
+        while ((old = i.get()) < x) {
+            if (i.compareAndSet(old, x)) {
+                return;
+            }
+        }
+    }
+}
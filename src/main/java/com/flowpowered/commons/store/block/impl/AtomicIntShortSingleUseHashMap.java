@@ -23,74 +23,117 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.flowpowered.math.GenericMath;
+
 /**
- * An atomic HashMap that maps integers to positive short values<br> <br> Once a key value pair is set, it cannot be changed again
+ * An atomic HashMap that maps integers to positive short values<br> <br> Once a key value pair is set, it cannot be changed again<br> <br> The table is a power of two in length and is probed
+ * linearly.  The longest probe sequence of any insertion is recorded, so lookups for absent keys stop early even when the probe wraps through a full cluster.  The bound is raised before an entry
+ * is inserted, so a lookup that sees the entry also probes far enough to find it.
  */
 public class AtomicIntShortSingleUseHashMap {
     private final static short EMPTY_VALUE = -1;
     private final static long EMPTY_ENTRY = 0xFFFF000000000000L;
     private final AtomicLongArray array;
     private final int length;
+    private final int mask;
+    /**
+     * The longest distance from its home slot at which an entry was inserted
+     */
+    private final AtomicInteger maxProbe = new AtomicInteger(0);
 
     AtomicIntShortSingleUseHashMap(int length) {
-        this.array = new AtomicLongArray(length);
-        for (int i = 0; i < length; i++) {
+        this.length = GenericMath.roundUpPow2(Math.max(2, length));
+        this.mask = this.length - 1;
+        this.array = new AtomicLongArray(this.length);
+        for (int i = 0; i < this.length; i++) {
             this.array.set(i, EMPTY_ENTRY);
         }
-        this.length = length;
     }
 
     public short get(int key) {
-        int hashed = hash(key);
-        int index = hashed;
-        long probedEntry;
-        boolean empty;
-        while (!(empty = isEmpty(probedEntry = array.get(index))) && getKey(probedEntry) != key) {
-            index = (index + 1) % length;
-            if (index == hashed) {
+        int index = hash(key);
+        int probes = maxProbe.get();
+        for (int i = 0; i <= probes; i++) {
+            long entry = array.get(index);
+            if (isEmpty(entry)) {
                 return EMPTY_VALUE;
             }
+            if (getKey(entry) == key) {
+                return getValue(entry);
+            }
+            index = (index + 1) & mask;
         }
-        if (!empty) {
-            return getValue(probedEntry);
-        } else {
-            return EMPTY_VALUE;
-        }
+        return EMPTY_VALUE;
     }
 
     public short putIfAbsent(int key, short value) {
-        int hashed = hash(key);
-        int index = hashed;
-        long probedEntry = 0; // Doesn't actually need initialization
-        boolean entrySet;
-        while (!(entrySet = setEntry(index, key, value)) && getKey(probedEntry = array.get(index)) != key) {
-            index = (index + 1) % length;
-            if (index == hashed) {
-                throw new IllegalStateException("Map is full");
+        int index = hash(key);
+        for (int i = 0; i < length; i++) {
+            long probedEntry = array.get(index);
+            if (isEmpty(probedEntry)) {
+                // Publish the bound first, a lookup that sees the new entry must probe this far
+                setProbe(i);
+                if (setEntry(index, key, value)) {
+                    return EMPTY_VALUE;
+                }
+                probedEntry = array.get(index);
             }
+            if (getKey(probedEntry) == key) {
+                return getValue(probedEntry);
+            }
+            index = (index + 1) & mask;
         }
-        if (entrySet) {
-            return EMPTY_VALUE;
-        } else {
-            return getValue(probedEntry);
-        }
+        throw new IllegalStateException("Map is full");
     }
 
     public boolean isEmptyValue(short value) {
         return value == EMPTY_VALUE;
     }
 
+    /**
+     * Gets the number of slots in the table
+     *
+     * @return the table length
+     */
+    public int getCapacity() {
+        return length;
+    }
+
+    /**
+     * Gets the longest distance from its home slot at which an entry was inserted
+     *
+     * @return the maximum probe length
+     */
+    public int getMaxProbe() {
+        return maxProbe.get();
+    }
+
     private boolean setEntry(int index, int key, short value) {
         return array.compareAndSet(index, EMPTY_ENTRY, pack(key, value));
     }
 
+    private void setProbe(int probe) {
+        int old;
+        while ((old = maxProbe.get()) < probe) {
+            if (maxProbe.compareAndSet(old, probe)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Mixes the key with the murmur3 finalizer, so that keys which only differ in their high bits, such as block ids with the same data, spread over the table
+     */
     private int hash(int h) {
-        h ^= (h >>> 20) ^ (h >>> 12);
-        h = (h ^ (h >>> 7) ^ (h >>> 4));
-        h = (h & 0x7FFFFFFF) % length;
-        return h;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
     }
 
     private static int getKey(long entry) {
@@ -0,0 +1,108 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+/**
+ * The atomic int words that back the packed and direct arrays of a block store.  The storage may be on the heap or off the heap, see {@link Type}.
+ */
+public interface AtomicIntStorage {
+    /**
+     * Gets the number of ints in the storage
+     *
+     * @return the length
+     */
+    int length();
+
+    int get(int i);
+
+    void set(int i, int newValue);
+
+    void lazySet(int i, int newValue);
+
+    int getAndSet(int i, int newValue);
+
+    boolean compareAndSet(int i, int expect, int update);
+
+    int getAndAdd(int i, int delta);
+
+    int addAndGet(int i, int delta);
+
+    /**
+     * Releases the memory held by the storage.  The storage must not be accessed after, or concurrently with, this method call.  Storage on the heap is left to the garbage collector, and this method
+     * does nothing.
+     */
+    void free();
+
+    /**
+     * Where the storage is allocated
+     */
+    enum Type {
+        /**
+         * The storage is an {@link java.util.concurrent.atomic.AtomicIntegerArray} on the heap
+         */
+        HEAP {
+            @Override
+            public AtomicIntStorage allocate(int length) {
+                return new HeapAtomicIntStorage(length);
+            }
+
+            @Override
+            public AtomicIntStorage allocate(int[] initial) {
+                return new HeapAtomicIntStorage(initial);
+            }
+        },
+        /**
+         * The storage is allocated off the heap, so it is not scanned or copied by the garbage collector.  It is released by {@link AtomicIntStorage#free()}, or once the storage is garbage
+         * collected.
+         */
+        OFF_HEAP {
+            @Override
+            public AtomicIntStorage allocate(int length) {
+                return new OffHeapAtomicIntStorage(length);
+            }
+        };
+
+        /**
+         * Allocates zeroed storage
+         *
+         * @param length the number of ints
+         * @return the storage
+         */
+        public abstract AtomicIntStorage allocate(int length);
+
+        /**
+         * Allocates storage containing a copy of the given array
+         *
+         * @param initial the initial values
+         * @return the storage
+         */
+        public AtomicIntStorage allocate(int[] initial) {
+            AtomicIntStorage storage = allocate(initial.length);
+            for (int i = 0; i < initial.length; i++) {
+                storage.lazySet(i, initial[i]);
+            }
+            return storage;
+        }
+    }
+}
@@ -23,46 +23,103 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.BlockSectionVisitor;
+import com.flowpowered.commons.store.block.BlockStoreSnapshot;
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+import com.flowpowered.commons.store.block.DirtyTracker;
 import com.flowpowered.math.vector.Vector3i;
 
 public class AtomicPaletteBlockStore implements AtomicBlockStore {
     private final int shift;
     private final int doubleShift;
     private final int length;
-    private final AtomicShortIntArray store;
-    private final byte[] dirtyX;
-    private final byte[] dirtyY;
-    private final byte[] dirtyZ;
-    private final int[] newState;
-    private final int[] oldState;
-    private final AtomicInteger maxX = new AtomicInteger();
-    private final AtomicInteger maxY = new AtomicInteger();
-    private final AtomicInteger maxZ = new AtomicInteger();
-    private final AtomicInteger minX = new AtomicInteger();
-    private final AtomicInteger minY = new AtomicInteger();
-    private final AtomicInteger minZ = new AtomicInteger();
-    private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+    private final StateArray store;
+    /**
+     * The store, if data fields are stored in separate layers, or null
+     */
+    private final LayeredStateArray layered;
+    private final DirtyTracker dirty;
 
     public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize) {
+        this(shift, storeState, dirtySize, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK);
+    }
+
+    /**
+     * Creates an empty block store.
+     *
+     * @param shift the log2 of the side length
+     * @param storeState if the old and new states of dirty blocks are stored
+     * @param dirtySize the number of dirty blocks that are tracked individually
+     * @param mode the synchronization used for block updates
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, AtomicShortIntArray.SyncMode mode) {
+        this(shift, storeState, dirtySize, mode, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates an empty block store.
+     *
+     * @param shift the log2 of the side length
+     * @param storeState if the old and new states of dirty blocks are stored
+     * @param dirtySize the number of dirty blocks that are tracked individually
+     * @param mode the synchronization used for block updates
+     * @param storage where to allocate the block arrays, off heap storage should be released with {@link #free()}
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, AtomicShortIntArray.SyncMode mode, AtomicIntStorage.Type storage) {
+        this(shift, new ArrayDirtyTracker(dirtySize, storeState), mode, storage);
+    }
+
+    /**
+     * Creates an empty block store.
+     *
+     * @param shift the log2 of the side length
+     * @param dirty the tracker that records the blocks changed by writers
+     */
+    public AtomicPaletteBlockStore(int shift, DirtyTracker dirty) {
+        this(shift, dirty, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates an empty block store.
+     *
+     * @param shift the log2 of the side length
+     * @param dirty the tracker that records the blocks changed by writers
+     * @param mode the synchronization used for block updates
+     * @param storage where to allocate the block arrays, off heap storage should be released with {@link #free()}
+     */
+    public AtomicPaletteBlockStore(int shift, DirtyTracker dirty, AtomicShortIntArray.SyncMode mode, AtomicIntStorage.Type storage) {
+        this(shift, dirty, mode, storage, new DataMask[0]);
+    }
+
+    /**
+     * Creates an empty block store that stores the given data fields in separate layers, each with its own palette and width.  Blocks with many data values then don't widen the palette of the block
+     * ids, and reading or writing one of the fields with {@link #getData(int, int, int, DataMask)} or {@link #setData(int, int, int, short, DataMask)} only touches its layer.<br> <br> In a
+     * layered store, {@link #getPalette()}, {@link #getPackedArray()} and {@link #getPackedWidth()} describe the base layer only, and snapshots copy the blocks.
+     *
+     * @param shift the log2 of the side length
+     * @param dirty the tracker that records the blocks changed by writers
+     * @param mode the synchronization used by each layer
+     * @param storage where to allocate the block arrays, off heap storage should be released with {@link #free()}
+     * @param layers the data fields stored in their own layers, which must not overlap, or no fields for a single layer
+     */
+    public AtomicPaletteBlockStore(int shift, DirtyTracker dirty, AtomicShortIntArray.SyncMode mode, AtomicIntStorage.Type storage, DataMask... layers) {
         int side = 1 << shift;
         this.shift = shift;
         this.doubleShift = shift << 1;
         int size = side * side * side;
-        store = new AtomicShortIntArray(size);
-        this.length = size;
-        dirtyX = new byte[dirtySize];
-        dirtyY = new byte[dirtySize];
-        dirtyZ = new byte[dirtySize];
-        if (storeState) {
-            oldState = new int[dirtySize];
-            newState = new int[dirtySize];
+        if (layers.length == 0) {
+            store = new AtomicShortIntArray(size, mode, storage);
+            layered = null;
         } else {
-            oldState = null;
-            newState = null;
+            layered = new LayeredStateArray(size, mode, storage, layers);
+            store = layered;
         }
+        this.length = size;
+        this.dirty = dirty;
     }
 
     public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] initial) {
@@ -73,7 +130,8 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
             } else {
                 store.uncompressedSet(initial);
             }
-            dirtyBlocks.set(initial.length);
+            int max = (1 << shift) - 1;
+            dirty.markDirtyRegion(0, 0, 0, max, max, max);
         }
     }
 
@@ -99,6 +157,15 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return initial;
     }
 
+    /**
+     * Gets the log2 of the side length of the store
+     *
+     * @return the shift
+     */
+    public int getShift() {
+        return shift;
+    }
+
     @Override
     public int getFullData(int x, int y, int z) {
         return getFullData(getIndex(x, y, z));
@@ -109,6 +176,28 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return store.get(index);
     }
 
+    @Override
+    public void getFullData(int from, int to, int[] dst, int offset) {
+        store.get(from, to, dst, offset);
+    }
+
+    @Override
+    public void getBlockIds(int from, int to, short[] dst, int offset) {
+        store.getIds(from, to, dst, offset);
+    }
+
+    @Override
+    public void getRow(int x, int y, int z, int[] dst, int offset, int length) {
+        int index = getIndex(x, y, z);
+        store.get(index, index + length, dst, offset);
+    }
+
+    @Override
+    public void getSlice(int y, int[] dst, int offset) {
+        int index = y << doubleShift;
+        store.get(index, index + (1 << doubleShift), dst, offset);
+    }
+
     @Override
     public int getAndSetBlock(int x, int y, int z, short id, short data) {
         int newState = id << 16 | data & 0xFFFF;
@@ -180,13 +269,20 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
     @Override
     public void setData(int x, int y, int z, short data, DataMask mask) {
         final int index = getIndex(x, y, z);
+        final int bits = (mask.getMask() & 0xFFFF) << mask.getShift() & 0xFFFF;
+        int layer = layered == null ? -1 : layered.getLayer(mask);
+        if (layer >= 0) {
+            int oldState = layered.setField(index, layer, data);
+            markDirty(x, y, z, oldState, oldState & ~bits | mask.apply(data) & 0xFFFF);
+            return;
+        }
         data = mask.apply(data);
         boolean done = false;
         int oldState = 0, newState = 0;
         try {
             while (!done) {
                 oldState = store.get(index);
-                newState = oldState & 0xFFFF0000 | data & 0xFFFF;
+                newState = oldState & ~bits | data & 0xFFFF;
                 done = store.compareAndSet(index, oldState, newState);
             }
         } finally {
@@ -216,6 +312,10 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
     @Override
     public short getData(int x, int y, int z, DataMask mask) {
+        int layer = layered == null ? -1 : layered.getLayer(mask);
+        if (layer >= 0) {
+            return (short) layered.getField(getIndex(x, y, z), layer);
+        }
         return mask.extract(getData(x, y, z));
     }
 
@@ -230,18 +330,78 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return success;
     }
 
+    @Override
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short id, short data) {
+        checkRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        int state = id << 16 | data & 0xFFFF;
+        int side = 1 << shift;
+        store.lock();
+        try {
+            if (minX == 0 && maxX == side - 1 && minZ == 0 && maxZ == side - 1) {
+                // Whole layers are contiguous
+                store.fill(getIndex(0, minY, 0), getIndex(0, maxY + 1, 0), state);
+            } else if (minX == 0 && maxX == side - 1) {
+                for (int y = minY; y <= maxY; y++) {
+                    store.fill(getIndex(0, y, minZ), getIndex(0, y, maxZ + 1), state);
+                }
+            } else {
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = minZ; z <= maxZ; z++) {
+                        store.fill(getIndex(minX, y, z), getIndex(maxX + 1, y, z), state);
+                    }
+                }
+            }
+        } finally {
+            store.unlock();
+        }
+        markDirtyRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    @Override
+    public void copyFrom(AtomicBlockStore source, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int destX, int destY, int destZ) {
+        int sizeX = maxX - minX + 1;
+        int sizeY = maxY - minY + 1;
+        int sizeZ = maxZ - minZ + 1;
+        checkRegion(destX, destY, destZ, destX + sizeX - 1, destY + sizeY - 1, destZ + sizeZ - 1);
+        int[] states = new int[sizeX * sizeY * sizeZ];
+        int i = 0;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                source.getRow(minX, y, z, states, i, sizeX);
+                i += sizeX;
+            }
+        }
+        store.lock();
+        try {
+            i = 0;
+            for (int y = 0; y < sizeY; y++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    store.set(getIndex(destX, destY + y, destZ + z), states, i, sizeX);
+                    i += sizeX;
+                }
+            }
+        } finally {
+            store.unlock();
+        }
+        markDirtyRegion(destX, destY, destZ, destX + sizeX - 1, destY + sizeY - 1, destZ + sizeZ - 1);
+    }
+
+    private void checkRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int side = 1 << shift;
+        if (minX < 0 || minY < 0 || minZ < 0 || maxX >= side || maxY >= side || maxZ >= side || minX > maxX || minY > maxY || minZ > maxZ) {
+            throw new IllegalArgumentException("Invalid region (" + minX + ", " + minY + ", " + minZ + ") to (" + maxX + ", " + maxY + ", " + maxZ + ") for a store of side " + side);
+        }
+    }
+
     @Override
     public boolean needsCompression() {
-        // TODO - needs removal or optimisation
-        return true;
+        return store.needsCompression();
     }
 
     @Override
     public int[] getFullArray() {
         int[] array = new int[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = store.get(i);
-        }
+        store.get(0, length, array, 0);
         return array;
     }
 
@@ -255,9 +415,11 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         if (array.length != length) {
             throw new IllegalArgumentException("Invalid array size! Expected: " + length + " Got: " + array.length);
         }
-        for (int i = 0; i < length; i++) {
-            array[i] = (short) (store.get(i) >> 16);
+        if (store.isUniform()) {
+            Arrays.fill(array, (short) (store.get(0) >> 16));
+            return array;
         }
+        getBlockIds(0, length, array, 0);
         return array;
     }
 
@@ -276,8 +438,16 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         if (array.length != length) {
             array = new short[length];
         }
-        for (int i = 0; i < length; i++) {
-            array[i] = (short) (store.get(i));
+        if (store.isUniform()) {
+            Arrays.fill(array, (short) store.get(0));
+            return array;
+        }
+        int[] states = new int[1 << doubleShift];
+        for (int y = 0; y < length; y += states.length) {
+            store.get(y, y + states.length, states, 0);
+            for (int i = 0; i < states.length; i++) {
+                array[y + i] = (short) states[i];
+            }
         }
         return array;
     }
@@ -287,8 +457,16 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         if (array.length != length) {
             array = new short[length];
         }
-        for (int i = 0; i < length; i++) {
-            array[i] = mask.extract((short) store.get(i));
+        if (store.isUniform()) {
+            Arrays.fill(array, mask.extract((short) store.get(0)));
+            return array;
+        }
+        int[] states = new int[1 << doubleShift];
+        for (int y = 0; y < length; y += states.length) {
+            store.get(y, y + states.length, states, 0);
+            for (int i = 0; i < states.length; i++) {
+                array[y + i] = mask.extract((short) states[i]);
+            }
         }
         return array;
     }
@@ -298,103 +476,111 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         store.compress();
     }
 
+    /**
+     * Gets the number of unique states in the store.<br> <br> If the store is updated during this method call, the count may be inaccurate.
+     *
+     * @return the number of unique states
+     */
+    public int getUnique() {
+        return store.getUnique();
+    }
+
     @Override
     public boolean isDirtyOverflow() {
-        return dirtyBlocks.get() >= dirtyX.length;
+        return dirty.isDirtyOverflow();
     }
 
     @Override
     public boolean isDirty() {
-        return dirtyBlocks.get() > 0;
+        return dirty.isDirty();
     }
 
     @Override
     public boolean resetDirtyArrays() {
-        minX.set(Integer.MAX_VALUE);
-        minY.set(Integer.MAX_VALUE);
-        minZ.set(Integer.MAX_VALUE);
-        maxX.set(Integer.MIN_VALUE);
-        maxY.set(Integer.MIN_VALUE);
-        maxZ.set(Integer.MIN_VALUE);
-        return dirtyBlocks.getAndSet(0) > 0;
+        return dirty.reset();
+    }
+
+    @Override
+    public int drainDirty(DirtyBlockVisitor visitor, int[] bounds) {
+        return dirty.drain(visitor, bounds);
     }
 
     @Override
     public int getDirtyBlocks() {
-        return dirtyBlocks.get();
+        return dirty.getDirtyBlocks();
     }
 
     @Override
     public Vector3i getMaxDirty() {
-        return new Vector3i(maxX.get(), maxY.get(), maxZ.get());
+        return dirty.getMaxDirty();
     }
 
     @Override
     public Vector3i getMinDirty() {
-        return new Vector3i(minX.get(), minY.get(), minZ.get());
+        return dirty.getMinDirty();
     }
 
     @Override
-    public Vector3i getDirtyBlock(int i) {
-        if (i >= dirtyBlocks.get()) {
-            return null;
-        }
+    public void getDirtyBounds(int[] dst) {
+        dirty.getDirtyBounds(dst);
+    }
 
-        return new Vector3i(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+    @Override
+    public int forEachDirtyBlock(DirtyBlockVisitor visitor) {
+        return dirty.forEachDirtyBlock(visitor);
     }
 
     @Override
-    public int getDirtyOldState(int i) {
-        if (oldState == null || i >= dirtyBlocks.get()) {
-            return -1;
-        }
+    public int getDirtyIndices(int[] dst) {
+        return dirty.getDirtyIndices(dst, shift);
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        return dirty.getDirtyBlock(i);
+    }
 
-        return oldState[i];
+    @Override
+    public int getDirtyOldState(int i) {
+        return dirty.getDirtyOldState(i);
     }
 
     @Override
     public int getDirtyNewState(int i) {
-        if (newState == null || i >= dirtyBlocks.get()) {
-            return -1;
-        }
+        return dirty.getDirtyNewState(i);
+    }
 
-        return newState[i];
+    /**
+     * Gets the tracker that records the blocks changed in this store
+     *
+     * @return the dirty tracker
+     */
+    public DirtyTracker getDirtyTracker() {
+        return dirty;
     }
 
     public void markDirty(int x, int y, int z, int oldState, int newState) {
-        setAsMax(maxX, x);
-        setAsMin(minX, x);
-
-        setAsMax(maxY, y);
-        setAsMin(minY, y);
-
-        setAsMax(maxZ, z);
-        setAsMin(minZ, z);
-
-        int index = incrementDirtyIndex();
-        if (index < dirtyX.length) {
-            dirtyX[index] = (byte) x;
-            dirtyY[index] = (byte) y;
-            dirtyZ[index] = (byte) z;
-            if (this.oldState != null) {
-                this.oldState[index] = oldState;
-                this.newState[index] = newState;
-            }
-        }
+        dirty.markDirty(x, y, z, oldState, newState);
     }
 
+    /**
+     * Extends the dirty bounds to include the given region and marks the dirty block list as overflowed, so that consumers update the whole region.
+     */
+    public void markDirtyRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        dirty.markDirtyRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Reserves the next index in the dirty arrays, this is only supported when the store uses an {@link ArrayDirtyTracker}
+     *
+     * @deprecated reserving an index without recording the block is only meaningful for the shared dirty arrays, use {@link #markDirty(int, int, int, int, int)}
+     */
+    @Deprecated
     public int incrementDirtyIndex() {
-        boolean success = false;
-        int index = -1;
-        while (!success) {
-            index = dirtyBlocks.get();
-            if (index > dirtyX.length) {
-                break;
-            }
-            int next = index + 1;
-            success = dirtyBlocks.compareAndSet(index, next);
+        if (dirty instanceof ArrayDirtyTracker) {
+            return ((ArrayDirtyTracker) dirty).incrementDirtyIndex();
         }
-        return index;
+        throw new UnsupportedOperationException("The dirty tracker does not use dirty arrays");
     }
 
     private int getIndex(int x, int y, int z) {
@@ -416,6 +602,72 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return store.getPalette();
     }
 
+    /**
+     * Gets the number of bytes written by {@link #writeTo(ByteBuffer)}.  The size may change if the store is updated, the store should be write locked to get the exact size for the next write.
+     *
+     * @return the serialized size
+     */
+    public int getSerializedSize() {
+        return store.getSerializedSize();
+    }
+
+    /**
+     * Writes the width, the palette and the packed array of the store to a buffer, using the buffer's byte order.  The store is write locked while it is written, so the state written is consistent.  A layered store writes a header with its data fields, see {@link #getSerializedLayers(ByteBuffer)}, then each layer in turn.
+     *
+     * @param buffer the buffer to write to, either heap or direct
+     * @throws java.nio.BufferOverflowException if the buffer is too small, in which case nothing is written
+     * @see AtomicShortIntArray#writeTo(ByteBuffer)
+     */
+    public void writeTo(ByteBuffer buffer) {
+        store.writeTo(buffer);
+    }
+
+    /**
+     * Replaces the contents of the store with a store written by {@link #writeTo(ByteBuffer)}, from a store of the same size.  The data of a store with other layered fields is converted to the
+     * layers of this store.  The whole store is marked as dirty.
+     *
+     * @param buffer the buffer to read from
+     */
+    public void readFrom(ByteBuffer buffer) {
+        if (layered == null && LayeredStateArray.getLayers(buffer).length != 0) {
+            store.set(LayeredStateArray.readStates(buffer, length));
+        } else {
+            store.readFrom(buffer);
+        }
+        int max = (1 << shift) - 1;
+        markDirtyRegion(0, 0, 0, max, max, max);
+    }
+
+    /**
+     * Gets the data fields that a store written by {@link #writeTo(ByteBuffer)} stores in separate layers, without moving the position of the buffer.  A store created with these fields reads the
+     * data without converting it.
+     *
+     * @param buffer the buffer, at the start of the store data
+     * @return the layered data fields, or no fields if the store data is a single layer
+     * @throws IllegalArgumentException if the layer header is malformed
+     */
+    public static DataMask[] getSerializedLayers(ByteBuffer buffer) {
+        return LayeredStateArray.getLayers(buffer);
+    }
+
+    /**
+     * Encodes the blocks that changed since the dirty arrays were last reset as a compact patch, see {@link BlockStoreDelta}.
+     *
+     * @return the patch
+     */
+    public byte[] encodeDelta() {
+        return BlockStoreDelta.encode(this);
+    }
+
+    /**
+     * Applies a patch created by {@link #encodeDelta()} on a store of the same size.  The changed blocks are marked as dirty.
+     *
+     * @param patch the patch
+     */
+    public void applyDelta(ByteBuffer patch) {
+        BlockStoreDelta.apply(this, patch);
+    }
+
     @Override
     public void writeLock() {
         store.lock();
@@ -431,26 +683,82 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return store.tryLock();
     }
 
+    @Override
+    public void free() {
+        store.free();
+    }
+
     @Override
     public boolean isBlockUniform() {
         return store.isUniform();
     }
 
-    private void setAsMin(AtomicInteger i, int x) {
-        int old;
-        while ((old = i.get()) > x) {
-            if (i.compareAndSet(old, x)) {
-                return;
+    @Override
+    public BlockStoreSnapshot snapshot() {
+        return new PaletteBlockStoreSnapshot(shift, store.freeze());
+    }
+
+    @Override
+    public int getUniformFullData(int notUniform) {
+        return store.getUniformValue(notUniform);
+    }
+
+    @Override
+    public int getUniformFullData(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int notUniform) {
+        checkRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        int first = store.get(getIndex(minX, minY, minZ));
+        if (store.isUniform()) {
+            return first;
+        }
+        int sizeX = maxX - minX + 1;
+        int[] row = new int[sizeX];
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                getRow(minX, y, z, row, 0, sizeX);
+                for (int x = 0; x < sizeX; x++) {
+                    if (row[x] != first) {
+                        return notUniform;
+                    }
+                }
             }
         }
+        return first;
     }
 
-    private void setAsMax(AtomicInteger i, int x) {
-        int old;
-        while ((old = i.get()) < x) {
-            if (i.compareAndSet(old, x)) {
-                return;
+    @Override
+    public void forEachNonUniformSection(int sectionShift, BlockSectionVisitor visitor) {
+        if (sectionShift < 0 || sectionShift > shift) {
+            throw new IllegalArgumentException("Invalid section shift " + sectionShift + " for a store of shift " + shift);
+        }
+        if (store.isUniform()) {
+            return;
+        }
+        int side = 1 << shift;
+        int sectionSide = 1 << sectionShift;
+        int[] row = new int[sectionSide];
+        for (int sy = 0; sy < side; sy += sectionSide) {
+            for (int sz = 0; sz < side; sz += sectionSide) {
+                for (int sx = 0; sx < side; sx += sectionSide) {
+                    if (!isSectionUniform(sx, sy, sz, sectionSide, row)) {
+                        visitor.visit(sx, sy, sz, sectionSide);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isSectionUniform(int minX, int minY, int minZ, int side, int[] row) {
+        int first = store.get(getIndex(minX, minY, minZ));
+        for (int y = minY; y < minY + side; y++) {
+            for (int z = minZ; z < minZ + side; z++) {
+                getRow(minX, y, z, row, 0, side);
+                for (int x = 0; x < side; x++) {
+                    if (row[x] != first) {
+                        return false;
+                    }
+                }
             }
         }
+        return true;
     }
 }
@@ -23,36 +23,124 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import gnu.trove.set.hash.TIntHashSet;
+import com.flowpowered.math.GenericMath;
 
 /**
- * An integer array that has a short index.  The array is atomic and is backed by a palette based lookup system.
+ * An integer array that has a short index.  The array is atomic and is backed by a palette based lookup system.<br> <br> Updates are synchronized according to the {@link SyncMode} given at
+ * construction.
  */
-public class AtomicShortIntArray {
+public class AtomicShortIntArray implements StateArray {
+    /**
+     * The ways updates to the array can be synchronized with replacing the backing array
+     */
+    public enum SyncMode {
+        /**
+         * Updates hold the read lock of a read/write lock.  When the palette fills, the write lock is held while the array is copied into a larger backing array.
+         */
+        READ_WRITE_LOCK,
+        /**
+         * Updates register with a writer counter for the stripe of the array that they change.  When the palette fills, the writers cooperatively copy the array into a larger backing array, one
+         * stripe at a time, and no lock is held.  Reads never block.  Locking the array, and operations that replace the whole array, such as compression, wait for the writers to leave every
+         * stripe.
+         */
+        LOCK_FREE,
+        /**
+         * Updates register with one of several padded counters, chosen by the updating thread, instead of a read lock, so updates from different threads don't contend on a shared lock word.  When
+         * the palette fills, the counters are drained and the array is copied while holding the lock, as with {@link #READ_WRITE_LOCK}.  Reads never block.
+         */
+        STRIPED_LOCK
+    }
+
+    /**
+     * Stripe state when the stripe has been copied to the next generation
+     */
+    private static final int MOVED = -1;
+    /**
+     * Stripe state when the stripe is being copied to the next generation
+     */
+    private static final int COPYING = -2;
+    /**
+     * Stripe state when the array is locked
+     */
+    private static final int LOCKED = -3;
+    /**
+     * The stripe writer counters are spaced out so that each one is in its own cache line
+     */
+    private static final int STRIPE_PADDING_SHIFT = 4;
+    private static final int MAX_STRIPES = 64;
+    private static final int SET = 0;
+    private static final int COMPARE_AND_SET = 1;
+    private static final int FILL = 2;
+    private static final int SET_RANGE = 3;
     /**
      * The length of the array
      */
     private final int length;
+    private final SyncMode mode;
     /**
-     * A reference to the store.  When the palette fills, or when the store is compressed.  A new store is created.
+     * Where the backing arrays allocate their storage
      */
-    private final AtomicReference<AtomicShortIntBackingArray> store = new AtomicReference<>();
+    private final AtomicIntStorage.Type storage;
+    /**
+     * The number of stripes and the shift from an index to its stripe, used in the lock free mode
+     */
+    private final int stripes;
+    private final int stripeShift;
+    /**
+     * A reference to the current generation of the store.  When the palette fills, or when the store is compressed, a new generation is created.
+     */
+    private final AtomicReference<Generation> generation = new AtomicReference<>();
     /**
      * Locks<br> A ReadWrite lock is used to managing locking<br> When copying to a new store instance, and updating to new the store reference, all updates must be stopped.  The write lock is used as
-     * the resize lock.<br> When making changes to the data stored in an array instance, multiple threads can access the array concurrently.  The read lock is used for the update lock. Reads to the
-     * array are atomic and do not require any locking. <br>
+     * the resize lock.<br> When making changes to the data stored in an array instance, multiple threads can access the array concurrently.  The read lock is used for the update lock, unless the
+     * lock free mode is used. Reads to the array are atomic and do not require any locking. <br>
      */
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock resizeLock = lock.writeLock();
     private final Lock updateLock = lock.readLock();
+    /**
+     * The padded update counters of the striped lock mode, or null in the other modes
+     */
+    private final AtomicIntegerArray updaters;
+    private final int updaterMask;
+    /**
+     * Set while the array is locked in the striped lock mode, updaters that see it wait for the lock
+     */
+    private volatile boolean exclusive;
 
     public AtomicShortIntArray(int length) {
+        this(length, SyncMode.READ_WRITE_LOCK);
+    }
+
+    public AtomicShortIntArray(int length, SyncMode mode) {
+        this(length, mode, AtomicIntStorage.Type.HEAP);
+    }
+
+    public AtomicShortIntArray(int length, SyncMode mode, AtomicIntStorage.Type storage) {
         this.length = length;
-        store.set(new AtomicShortIntUniformBackingArray(length));
+        this.mode = mode;
+        this.storage = storage;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(0, length - 1));
+        int stripeBits = Math.min(Integer.numberOfTrailingZeros(GenericMath.roundUpPow2(Runtime.getRuntime().availableProcessors() << 1)), Integer.numberOfTrailingZeros(MAX_STRIPES));
+        stripeShift = Math.max(0, bits - stripeBits);
+        stripes = length == 0 ? 1 : ((length - 1) >> stripeShift) + 1;
+        if (mode == SyncMode.STRIPED_LOCK) {
+            int counters = Math.min(MAX_STRIPES, GenericMath.roundUpPow2(Runtime.getRuntime().availableProcessors() << 1));
+            updaters = new AtomicIntegerArray(counters << STRIPE_PADDING_SHIFT);
+            updaterMask = counters - 1;
+        } else {
+            updaters = null;
+            updaterMask = 0;
+        }
+        generation.set(new Generation(new AtomicShortIntUniformBackingArray(length, 0, storage), createStripes(0)));
     }
 
     /**
@@ -61,7 +149,7 @@ public class AtomicShortIntArray {
      * @return the width
      */
     public int width() {
-        return store.get().width();
+        return generation.get().array.width();
     }
 
     /**
@@ -73,13 +161,65 @@ public class AtomicShortIntArray {
         return length;
     }
 
+    /**
+     * Gets the synchronization mode of the array
+     *
+     * @return the mode
+     */
+    public SyncMode getSyncMode() {
+        return mode;
+    }
+
+    /**
+     * Gets where the backing arrays allocate their storage
+     *
+     * @return the storage type
+     */
+    public AtomicIntStorage.Type getStorageType() {
+        return storage;
+    }
+
+    /**
+     * Releases the storage of the current backing array.  The array must not be accessed after, or concurrently with, this method call.  Backing arrays that were replaced are released once they are
+     * garbage collected, as readers may still hold them.
+     */
+    public void free() {
+        lock();
+        try {
+            Generation g = generation.get();
+            // A frozen array may still be read by snapshots, its storage is released when it is garbage collected
+            if (!g.frozen) {
+                g.array.free();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Freezes the current backing array and returns it.  The frozen array is never modified again, the next update copies it into a new backing array first.  In flight updates are waited for, but
+     * no values are copied by this method.
+     *
+     * @return the frozen backing array
+     */
+    public AtomicShortIntBackingArray freeze() {
+        lock();
+        try {
+            Generation g = generation.get();
+            g.frozen = true;
+            return g.array;
+        } finally {
+            unlock();
+        }
+    }
+
     /**
      * Gets the size of the internal palette
      *
      * @return the palette size
      */
     public int getPaletteSize() {
-        return store.get().getPaletteSize();
+        return generation.get().array.getPaletteSize();
     }
 
     /**
@@ -88,7 +228,7 @@ public class AtomicShortIntArray {
      * @return the number of entries
      */
     public int getPaletteUsage() {
-        return store.get().getPaletteUsage();
+        return generation.get().array.getPaletteUsage();
     }
 
     /**
@@ -98,7 +238,64 @@ public class AtomicShortIntArray {
      * @return the element
      */
     public int get(int i) {
-        return store.get().get(i);
+        Generation g = generation.get();
+        while (true) {
+            int value = g.array.get(i);
+            Generation next = g.next;
+            if (next == null || !g.isMoved(i >> stripeShift)) {
+                return value;
+            }
+            g = next;
+        }
+    }
+
+    /**
+     * Gets the elements from index from (inclusive) to index to (exclusive).  Each stripe is read in bulk from the backing array, so a packed array only reads each packed int once.<br> <br> Data
+     * tearing may occur if the array is updated during this method call.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param dst the array to place the elements in
+     * @param offset the index in the destination array of the first element
+     */
+    public void get(int from, int to, int[] dst, int offset) {
+        int start = from;
+        while (start < to) {
+            int end = Math.min(to, ((start >> stripeShift) + 1) << stripeShift);
+            Generation g = generation.get();
+            while (true) {
+                g.array.get(start, end, dst, offset);
+                Generation next = g.next;
+                if (next == null || !g.isMoved(start >> stripeShift)) {
+                    break;
+                }
+                g = next;
+            }
+            offset += end - start;
+            start = end;
+        }
+    }
+
+    /**
+     * Gets the upper 16 bits of the elements from index from (inclusive) to index to (exclusive), which are the block ids when the elements are block states.  The elements are read in bulk as by
+     * {@link #get(int, int, int[], int)}, through a buffer that is reused by the calling thread.<br> <br> Data tearing may occur if the array is updated during this method call.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param dst the array to place the ids in
+     * @param offset the index in the destination array of the first id
+     */
+    public void getIds(int from, int to, short[] dst, int offset) {
+        int[] values = UniqueCounter.get().getBuffer(Math.min(to - from, 1 << stripeShift));
+        int chunk = values.length;
+        while (from < to) {
+            int end = Math.min(to, from + chunk);
+            get(from, end, values, 0);
+            for (int i = 0; i < end - from; i++) {
+                dst[offset++] = (short) (values[i] >> 16);
+            }
+            from = end;
+        }
     }
 
     /**
@@ -109,31 +306,39 @@ public class AtomicShortIntArray {
      * @return the old value
      */
     public int set(int i, int newValue) {
-        while (true) {
+        return update(SET, i, i + 1, newValue, 0, null, 0);
+    }
+
+    /**
+     * Sets all the elements from index from (inclusive) to index to (exclusive) to the given value.<br> <br> If the range covers the whole array, the array is replaced by a uniform array.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param value the new value
+     */
+    public void fill(int from, int to, int value) {
+        if (from == 0 && to == length) {
+            lock();
             try {
-                updateLock.lock();
-                try {
-                    return store.get().set(i, newValue);
-                } finally {
-                    updateLock.unlock();
-                }
-            } catch (PaletteFullException pfe) {
-                resizeLock.lock();
-                try {
-                    try {
-                        return store.get().set(i, newValue);
-                    } catch (PaletteFullException pfe2) {
-                        if (store.get().isPaletteMaxSize()) {
-                            store.set(new AtomicShortIntDirectBackingArray(store.get()));
-                        } else {
-                            store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
-                        }
-                    }
-                } finally {
-                    resizeLock.unlock();
-                }
+                replace(new AtomicShortIntUniformBackingArray(length, value, storage));
+            } finally {
+                unlock();
             }
+            return;
         }
+        updateRange(FILL, from, to, value, null, 0);
+    }
+
+    /**
+     * Sets consecutive elements, starting at the given index, to the values in an array.
+     *
+     * @param i the index of the first element
+     * @param values the array containing the new values
+     * @param offset the index of the first value in the array
+     * @param count the number of values to set
+     */
+    public void set(int i, int[] values, int offset, int count) {
+        updateRange(SET_RANGE, i, i + count, 0, values, offset);
     }
 
     /**
@@ -142,7 +347,7 @@ public class AtomicShortIntArray {
      * @param initial the array containing the new values
      */
     public void set(int[] initial) {
-        resizeLock.lock();
+        lock();
         try {
             if (initial.length != length) {
                 throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
@@ -150,14 +355,14 @@ public class AtomicShortIntArray {
             int unique = AtomicShortIntArray.getUnique(initial);
             int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
             if (unique == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(length, initial[0]));
+                replace(new AtomicShortIntUniformBackingArray(length, initial[0], storage));
             } else if (unique > allowedPalette) {
-                store.set(new AtomicShortIntDirectBackingArray(length, initial));
+                replace(new AtomicShortIntDirectBackingArray(length, initial, storage));
             } else {
-                store.set(new AtomicShortIntPaletteBackingArray(length, unique, initial));
+                replace(new AtomicShortIntPaletteBackingArray(length, unique, initial, storage));
             }
         } finally {
-            resizeLock.unlock();
+            unlock();
         }
     }
 
@@ -167,14 +372,14 @@ public class AtomicShortIntArray {
      * @param initial the array containing the new values
      */
     public void uncompressedSet(int[] initial) {
-        resizeLock.lock();
+        lock();
         try {
             if (initial.length != length) {
                 throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
             }
-            store.set(new AtomicShortIntDirectBackingArray(length, initial));
+            replace(new AtomicShortIntDirectBackingArray(length, initial, storage));
         } finally {
-            resizeLock.unlock();
+            unlock();
         }
     }
 
@@ -186,17 +391,69 @@ public class AtomicShortIntArray {
      * @param variableWidthBlockArray the array containing the new values, packed into ints
      */
     public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
-        resizeLock.lock();
+        lock();
         try {
             if (palette.length == 0) {
-                store.set(new AtomicShortIntDirectBackingArray(length, variableWidthBlockArray));
+                replace(new AtomicShortIntDirectBackingArray(length, variableWidthBlockArray, storage));
             } else if (palette.length == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(length, palette[0]));
+                replace(new AtomicShortIntUniformBackingArray(length, palette[0], storage));
             } else {
-                store.set(new AtomicShortIntPaletteBackingArray(length, palette, blockArrayWidth, variableWidthBlockArray));
+                replace(new AtomicShortIntPaletteBackingArray(length, palette, blockArrayWidth, variableWidthBlockArray, storage));
             }
         } finally {
-            resizeLock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * Gets the number of bytes written by {@link #writeTo(ByteBuffer)}.  The size may change if the array is updated, the store should be locked to get the exact size for the next write.
+     *
+     * @return the serialized size
+     */
+    public int getSerializedSize() {
+        return generation.get().array.getSerializedSize();
+    }
+
+    /**
+     * Writes the array to a buffer, using the buffer's byte order.  The array is locked while it is written, so the state written is consistent.<br> <br> The format is the width, the palette length,
+     * the palette, the packed array length and the packed array, all as ints.  The palette is empty if the array is not palette based, and the packed array is empty if the array is uniform.
+     *
+     * @param buffer the buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer is too small, in which case nothing is written
+     */
+    public void writeTo(ByteBuffer buffer) {
+        lock();
+        try {
+            generation.get().array.writeTo(buffer);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets the array equal to the array written to a buffer by {@link #writeTo(ByteBuffer)}.  The array that was written should be the same length as this array.
+     *
+     * @param buffer the buffer to read from
+     */
+    public void readFrom(ByteBuffer buffer) {
+        lock();
+        try {
+            int width = buffer.getInt();
+            int position = buffer.position();
+            int paletteLength = buffer.getInt();
+            if (paletteLength == 0) {
+                replace(new AtomicShortIntDirectBackingArray(length, buffer, storage));
+            } else if (paletteLength == 1) {
+                int value = buffer.getInt();
+                int packedLength = buffer.getInt();
+                buffer.position(buffer.position() + (packedLength << 2));
+                replace(new AtomicShortIntUniformBackingArray(length, value, storage));
+            } else {
+                buffer.position(position);
+                replace(new AtomicShortIntPaletteBackingArray(length, width, buffer, storage));
+            }
+        } finally {
+            unlock();
         }
     }
 
@@ -209,63 +466,73 @@ public class AtomicShortIntArray {
      * @return true on success
      */
     public boolean compareAndSet(int i, int expect, int update) {
-        while (true) {
-            try {
-                updateLock.lock();
-                try {
-                    return store.get().compareAndSet(i, expect, update);
-                } finally {
-                    updateLock.unlock();
-                }
-            } catch (PaletteFullException pfe) {
-                resizeLock.lock();
-                try {
-                    if (store.get().isPaletteMaxSize()) {
-                        store.set(new AtomicShortIntDirectBackingArray(store.get()));
-                    } else {
-                        store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
-                    }
-                } finally {
-                    resizeLock.unlock();
-                }
-            }
-        }
+        return update(COMPARE_AND_SET, i, i + 1, update, expect, null, 0) != 0;
     }
 
     /**
      * Attempts to compress the array
      */
     public void compress() {
-        resizeLock.lock();
+        lock();
         try {
-            AtomicShortIntBackingArray s = store.get();
-            if (s instanceof AtomicShortIntUniformBackingArray) {
-                return;
-            }
-            int unique = s.getUnique();
-            if (AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) >= s.width()) {
-                return;
-            }
-            if (unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(s.length())) {
+            AtomicShortIntBackingArray s = generation.get().array;
+            int unique = getCompressedUnique(s);
+            if (unique < 0) {
                 return;
             }
             if (unique == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(s));
+                replace(new AtomicShortIntUniformBackingArray(s));
             } else {
-                store.set(new AtomicShortIntPaletteBackingArray(s, length, true, false, unique));
+                replace(new AtomicShortIntPaletteBackingArray(s, length, true, false, unique));
             }
         } finally {
-            resizeLock.unlock();
+            unlock();
         }
     }
 
+    /**
+     * Gets if compressing the array would reduce its width.  The packed array is scanned, but the scan stops as soon as there are too many unique entries for a narrower width.<br> <br> If the array
+     * is updated during this method call, it may give spurious results.
+     *
+     * @return true if {@link #compress()} would replace the backing array
+     */
+    public boolean needsCompression() {
+        return getCompressedUnique(generation.get().array) >= 0;
+    }
+
+    /**
+     * Gets the number of unique entries of a backing array, if it can be replaced by a narrower array
+     *
+     * @param s the backing array
+     * @return the number of unique entries, or -1 if compression would not reduce the width
+     */
+    private static int getCompressedUnique(AtomicShortIntBackingArray s) {
+        if (s instanceof AtomicShortIntUniformBackingArray) {
+            return -1;
+        }
+        int width = s.width();
+        // The widths are powers of two, so the array can only shrink if the unique entries fit in half the width
+        int limit = Math.min(width <= 1 ? 1 : 1 << (width >> 1), AtomicShortIntPaletteBackingArray.getAllowedPalette(s.length()));
+        int unique = s.getUnique(limit);
+        if (unique > limit || AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) >= width) {
+            return -1;
+        }
+        return unique;
+    }
+
     /**
      * Gets the number of unique entries in the array
      */
     public int getUnique() {
-        TIntHashSet inUse = new TIntHashSet();
-        for (int i = 0; i < length; i++) {
-            inUse.add(get(i));
+        UniqueCounter inUse = UniqueCounter.get();
+        int chunk = Math.min(length, 1 << stripeShift);
+        int[] values = inUse.getBuffer(chunk);
+        for (int i = 0; i < length; i += chunk) {
+            int count = Math.min(chunk, length - i);
+            get(i, i + count, values, 0);
+            for (int j = 0; j < count; j++) {
+                inUse.add(values[j]);
+            }
         }
         return inUse.size();
     }
@@ -274,19 +541,21 @@ public class AtomicShortIntArray {
      * Gets the palette in use by the backing array or an array of zero length if no palette is in use.<br> <br> Data tearing may occur if the store is updated during this method call.
      */
     public int[] getPalette() {
-        return store.get().getPalette();
+        return generation.get().array.getPalette();
     }
 
     /**
      * Gets the packed array used by the backing store.  This is a flat array if there is no palette in use.<br> <br> Data tearing may occur if the store is updated during this method call.
      */
     public int[] getBackingArray() {
-        return store.get().getBackingArray();
+        return generation.get().array.getBackingArray();
     }
 
     private static int getUnique(int[] initial) {
-        TIntHashSet inUse = new TIntHashSet();
-        inUse.addAll(initial);
+        UniqueCounter inUse = UniqueCounter.get();
+        for (int value : initial) {
+            inUse.add(value);
+        }
         return inUse.size();
     }
 
@@ -295,12 +564,22 @@ public class AtomicShortIntArray {
      */
     public void lock() {
         resizeLock.lock();
+        if (lock.getWriteHoldCount() == 1) {
+            exclude();
+        }
     }
 
     /**
      * Unlocks the store
      */
     public void unlock() {
+        if (lock.getWriteHoldCount() == 1) {
+            if (mode == SyncMode.LOCK_FREE) {
+                unseal();
+            } else if (mode == SyncMode.STRIPED_LOCK) {
+                exclusive = false;
+            }
+        }
         resizeLock.unlock();
     }
 
@@ -310,13 +589,394 @@ public class AtomicShortIntArray {
      * @return true on success
      */
     public boolean tryLock() {
-        return resizeLock.tryLock();
+        if (!resizeLock.tryLock()) {
+            return false;
+        }
+        if (lock.getWriteHoldCount() == 1) {
+            exclude();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the updates that don't use the read lock to leave the array.  The resize lock must be held when calling this method.
+     */
+    private void exclude() {
+        if (mode == SyncMode.LOCK_FREE) {
+            seal();
+        } else if (mode == SyncMode.STRIPED_LOCK) {
+            // Updaters register before checking the flag, and the flag is set before checking the counters, so either the updater sees the flag or the counter is seen
+            exclusive = true;
+            for (int c = 0; c <= updaterMask; c++) {
+                while (updaters.get(c << STRIPE_PADDING_SHIFT) != 0) {
+                    Thread.yield();
+                }
+            }
+        }
     }
 
     /**
      * Gets if the store is uniform
      */
     public boolean isUniform() {
-        return store.get() instanceof AtomicShortIntUniformBackingArray;
+        return generation.get().array instanceof AtomicShortIntUniformBackingArray;
+    }
+
+    /**
+     * Gets the value of all the elements if the array is backed by a uniform array.  The value is read once, so it is consistent with the uniform check.<br> <br> Note: this method may
+     * spuriously return notUniform for uniform arrays
+     *
+     * @param notUniform the value to return if the array is not uniform
+     * @return the value of all the elements, or notUniform
+     */
+    public int getUniformValue(int notUniform) {
+        Generation g = generation.get();
+        if (g.next != null || !(g.array instanceof AtomicShortIntUniformBackingArray)) {
+            return notUniform;
+        }
+        return g.array.get(0);
+    }
+
+    private void updateRange(int op, int from, int to, int value, int[] values, int offset) {
+        if (mode != SyncMode.LOCK_FREE) {
+            update(op, from, to, value, 0, values, offset);
+            return;
+        }
+        // Lock free updates register with one stripe at a time
+        for (int start = from, end; start < to; start = end) {
+            end = Math.min(to, ((start >> stripeShift) + 1) << stripeShift);
+            update(op, start, end, value, 0, values, offset + start - from);
+        }
+    }
+
+    private int update(int op, int from, int to, int value, int expect, int[] values, int offset) {
+        if (mode == SyncMode.READ_WRITE_LOCK) {
+            while (true) {
+                try {
+                    updateLock.lock();
+                    try {
+                        Generation g = generation.get();
+                        if (!g.frozen) {
+                            return apply(g.array, op, from, to, value, expect, values, offset);
+                        }
+                    } finally {
+                        updateLock.unlock();
+                    }
+                } catch (PaletteFullException ignored) {
+                }
+                lock();
+                try {
+                    return updateExclusive(op, from, to, value, expect, values, offset);
+                } finally {
+                    unlock();
+                }
+            }
+        }
+        if (mode == SyncMode.STRIPED_LOCK) {
+            long id = Thread.currentThread().getId();
+            int slot = ((int) (id ^ (id >>> 16)) & updaterMask) << STRIPE_PADDING_SHIFT;
+            updaters.incrementAndGet(slot);
+            try {
+                if (!exclusive) {
+                    Generation g = generation.get();
+                    if (!g.frozen) {
+                        return apply(g.array, op, from, to, value, expect, values, offset);
+                    }
+                }
+            } catch (PaletteFullException ignored) {
+            } finally {
+                updaters.decrementAndGet(slot);
+            }
+            lock();
+            try {
+                return updateExclusive(op, from, to, value, expect, values, offset);
+            } finally {
+                unlock();
+            }
+        }
+        int stripe = from >> stripeShift;
+        int slot = stripe << STRIPE_PADDING_SHIFT;
+        Generation g = generation.get();
+        while (true) {
+            AtomicIntegerArray counters = g.stripes;
+            int writers = counters.get(slot);
+            if (writers >= 0) {
+                if (!counters.compareAndSet(slot, writers, writers + 1)) {
+                    continue;
+                }
+                boolean frozen = g.frozen;
+                try {
+                    if (!frozen) {
+                        return apply(g.array, op, from, to, value, expect, values, offset);
+                    }
+                } catch (PaletteFullException pfe) {
+                    // The transfer is started while registered, so the array can't be sealed before the transfer is visible
+                    startTransfer(g);
+                } finally {
+                    counters.decrementAndGet(slot);
+                }
+                if (frozen) {
+                    // The array was frozen while the store was locked, so it can only be copied under the lock
+                    lock();
+                    try {
+                        return updateExclusive(op, from, to, value, expect, values, offset);
+                    } finally {
+                        unlock();
+                    }
+                }
+                g = helpTransfer(g, stripe);
+            } else if (writers == MOVED) {
+                g = g.next;
+            } else if (writers == COPYING) {
+                g = helpTransfer(g, stripe);
+            } else if (lock.isWriteLockedByCurrentThread()) {
+                return updateExclusive(op, from, to, value, expect, values, offset);
+            } else {
+                // Wait for the array to be unlocked
+                resizeLock.lock();
+                resizeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies an update, expanding the backing array as required.  The resize lock must be held when calling this method.
+     */
+    private int updateExclusive(int op, int from, int to, int value, int expect, int[] values, int offset) {
+        if (generation.get().frozen) {
+            replace(copyOf(generation.get().array));
+        }
+        while (true) {
+            try {
+                return apply(generation.get().array, op, from, to, value, expect, values, offset);
+            } catch (PaletteFullException pfe) {
+                AtomicShortIntBackingArray s = generation.get().array;
+                if (s.isPaletteMaxSize()) {
+                    replace(new AtomicShortIntDirectBackingArray(s));
+                } else {
+                    replace(new AtomicShortIntPaletteBackingArray(s, true));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a frozen backing array into a new array of the same kind.
+     */
+    private AtomicShortIntBackingArray copyOf(AtomicShortIntBackingArray s) {
+        if (s instanceof AtomicShortIntUniformBackingArray) {
+            return new AtomicShortIntUniformBackingArray(length, s.get(0), storage);
+        } else if (s instanceof AtomicShortIntDirectBackingArray) {
+            return new AtomicShortIntDirectBackingArray(s);
+        } else {
+            return new AtomicShortIntPaletteBackingArray(s, length, true, false, s.getUnique());
+        }
+    }
+
+    private static int apply(AtomicShortIntBackingArray array, int op, int from, int to, int value, int expect, int[] values, int offset) throws PaletteFullException {
+        switch (op) {
+            case SET:
+                return array.set(from, value);
+            case COMPARE_AND_SET:
+                return array.compareAndSet(from, expect, value) ? 1 : 0;
+            case FILL:
+                array.fill(from, to, value);
+                return 0;
+            case SET_RANGE:
+                array.set(from, values, offset, to - from);
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    /**
+     * Replaces the backing array.  The resize lock must be held when calling this method.<br> <br> The old generation is linked to the new one before it is marked as moved, so that readers which
+     * still hold the old generation find the new values.
+     */
+    private void replace(AtomicShortIntBackingArray array) {
+        Generation g = generation.get();
+        Generation next = new Generation(array, createStripes(LOCKED));
+        g.next = next;
+        if (g.stripes != null) {
+            for (int s = 0; s < stripes; s++) {
+                g.stripes.set(s << STRIPE_PADDING_SHIFT, MOVED);
+            }
+        }
+        generation.set(next);
+    }
+
+    /**
+     * Starts a transfer of the given generation into a larger backing array, if one hasn't been started already.  Only the current generation may be transferred, a generation that is still being
+     * copied into has its palette entries reserved for the copy.
+     */
+    private void startTransfer(Generation g) {
+        if (g.next != null || generation.get() != g) {
+            return;
+        }
+        AtomicShortIntBackingArray s = g.array;
+        AtomicShortIntBackingArray successor;
+        if (s.isPaletteMaxSize()) {
+            successor = new AtomicShortIntDirectBackingArray(length, storage);
+        } else {
+            successor = new AtomicShortIntPaletteBackingArray(s, s.getPaletteSize());
+        }
+        g.casNext(new Generation(successor, createStripes(0)));
+    }
+
+    /**
+     * Helps to copy the given generation into its successor.  If the generation has no successor, it is still being copied into, and that transfer is completed instead.
+     *
+     * @param g the generation
+     * @param stripe the stripe the caller needs, which is moved when this method returns
+     * @return the generation to retry the update in
+     */
+    private Generation helpTransfer(Generation g, int stripe) {
+        Generation next = g.next;
+        if (next == null) {
+            Generation current = generation.get();
+            if (current != g) {
+                transfer(current);
+                while (generation.get() == current) {
+                    Thread.yield();
+                }
+            }
+            return g;
+        }
+        transfer(g);
+        int slot = stripe << STRIPE_PADDING_SHIFT;
+        while (g.stripes.get(slot) != MOVED) {
+            Thread.yield();
+        }
+        return next;
+    }
+
+    /**
+     * Claims and copies stripes of the given generation into its successor, until all the stripes are claimed.  The last thread to finish copying makes the successor the current generation.
+     */
+    private void transfer(Generation g) {
+        Generation next = g.next;
+        AtomicIntegerArray counters = g.stripes;
+        int s;
+        while ((s = g.claim()) < stripes) {
+            int slot = s << STRIPE_PADDING_SHIFT;
+            while (!counters.compareAndSet(slot, 0, COPYING)) {
+                Thread.yield();
+            }
+            int from = s << stripeShift;
+            int to = Math.min(length, from + (1 << stripeShift));
+            try {
+                int[] values = new int[to - from];
+                g.array.get(from, to, values, 0);
+                for (int i = from; i < to; i++) {
+                    next.array.copy(i, values[i - from]);
+                }
+            } catch (PaletteFullException pfe) {
+                throw new IllegalStateException("Unable to copy old array to new array, as palette was filled");
+            }
+            counters.set(slot, MOVED);
+            if (g.moved() == stripes) {
+                next.array.releaseReserve();
+                generation.compareAndSet(g, next);
+            }
+        }
+    }
+
+    /**
+     * Seals every stripe of the current generation, once the writers have left it.  If a transfer is in progress, or starts while sealing, the sealed stripes are released and the transfer is completed
+     * first.  The resize lock must be held when calling this method.
+     */
+    private void seal() {
+        while (true) {
+            Generation g = generation.get();
+            if (g.next != null) {
+                transfer(g);
+                while (generation.get() == g) {
+                    Thread.yield();
+                }
+                continue;
+            }
+            AtomicIntegerArray counters = g.stripes;
+            int sealed = 0;
+            while (sealed < stripes && g.next == null) {
+                int slot = sealed << STRIPE_PADDING_SHIFT;
+                if (counters.compareAndSet(slot, 0, LOCKED)) {
+                    sealed++;
+                } else {
+                    Thread.yield();
+                }
+            }
+            if (sealed == stripes && g.next == null) {
+                return;
+            }
+            for (int s = 0; s < sealed; s++) {
+                counters.set(s << STRIPE_PADDING_SHIFT, 0);
+            }
+        }
+    }
+
+    /**
+     * Releases every stripe of the current generation.  The resize lock must be held when calling this method.
+     */
+    private void unseal() {
+        AtomicIntegerArray counters = generation.get().stripes;
+        for (int s = 0; s < stripes; s++) {
+            counters.set(s << STRIPE_PADDING_SHIFT, 0);
+        }
+    }
+
+    private AtomicIntegerArray createStripes(int state) {
+        if (mode != SyncMode.LOCK_FREE) {
+            return null;
+        }
+        AtomicIntegerArray counters = new AtomicIntegerArray(stripes << STRIPE_PADDING_SHIFT);
+        if (state != 0) {
+            for (int s = 0; s < stripes; s++) {
+                counters.set(s << STRIPE_PADDING_SHIFT, state);
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * A backing array together with the state needed to replace it.  A generation is never reused once it has been replaced.
+     */
+    private static final class Generation {
+        private static final AtomicReferenceFieldUpdater<Generation, Generation> NEXT = AtomicReferenceFieldUpdater.newUpdater(Generation.class, Generation.class, "next");
+        private static final AtomicIntegerFieldUpdater<Generation> CLAIMED = AtomicIntegerFieldUpdater.newUpdater(Generation.class, "claimed");
+        private static final AtomicIntegerFieldUpdater<Generation> MOVED_COUNT = AtomicIntegerFieldUpdater.newUpdater(Generation.class, "movedCount");
+        private final AtomicShortIntBackingArray array;
+        /**
+         * The padded stripe states, a non-negative state is the number of registered writers.  This is null when the read/write lock is used, in which case the whole array moves at once.
+         */
+        private final AtomicIntegerArray stripes;
+        private volatile Generation next;
+        /**
+         * True if the array is shared with snapshots, updates must copy the array before modifying it.  This is only set while the store is locked.
+         */
+        private volatile boolean frozen;
+        private volatile int claimed;
+        private volatile int movedCount;
+
+        private Generation(AtomicShortIntBackingArray array, AtomicIntegerArray stripes) {
+            this.array = array;
+            this.stripes = stripes;
+        }
+
+        private boolean isMoved(int stripe) {
+            return stripes == null || stripes.get(stripe << STRIPE_PADDING_SHIFT) == MOVED;
+        }
+
+        private boolean casNext(Generation next) {
+            return NEXT.compareAndSet(this, null, next);
+        }
+
+        private int claim() {
+            return CLAIMED.getAndIncrement(this);
+        }
+
+        private int moved() {
+            return MOVED_COUNT.incrementAndGet(this);
+        }
     }
 }
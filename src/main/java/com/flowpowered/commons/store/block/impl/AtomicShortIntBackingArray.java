@@ -23,12 +23,17 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import gnu.trove.set.hash.TIntHashSet;
-
 public abstract class AtomicShortIntBackingArray {
+    /**
+     * The number of values read from a previous array at a time when copying
+     */
+    private static final int COPY_CHUNK = 1024;
     private final int length;
+    private final AtomicIntStorage.Type storage;
 
     /**
      * Creates an AtomicShortIntArray
@@ -36,7 +41,33 @@ public abstract class AtomicShortIntBackingArray {
      * @param length the number of entries
      */
     public AtomicShortIntBackingArray(int length) {
+        this(length, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates an AtomicShortIntArray
+     *
+     * @param length the number of entries
+     * @param storage where to allocate the array storage, arrays that replace this array use the same storage type
+     */
+    public AtomicShortIntBackingArray(int length, AtomicIntStorage.Type storage) {
         this.length = length;
+        this.storage = storage;
+    }
+
+    /**
+     * Gets where the array storage is allocated
+     *
+     * @return the storage type
+     */
+    public AtomicIntStorage.Type getStorageType() {
+        return storage;
+    }
+
+    /**
+     * Releases the storage of the array, see {@link AtomicIntStorage#free()}.  The array must not be accessed after, or concurrently with, this method call.
+     */
+    public void free() {
     }
 
     /**
@@ -77,6 +108,20 @@ public abstract class AtomicShortIntBackingArray {
      */
     public abstract int get(int i);
 
+    /**
+     * Gets the elements from index from (inclusive) to index to (exclusive).
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param dst the array to place the elements in
+     * @param offset the index in the destination array of the first element
+     */
+    public void get(int from, int to, int[] dst, int offset) {
+        for (int i = from; i < to; i++) {
+            dst[offset++] = get(i);
+        }
+    }
+
     /**
      * Sets an element to the given value
      *
@@ -98,15 +143,76 @@ public abstract class AtomicShortIntBackingArray {
 
     public abstract boolean isPaletteMaxSize();
 
+    /**
+     * Sets all the elements from index from (inclusive) to index to (exclusive) to the given value.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param value the new value
+     */
+    public void fill(int from, int to, int value) throws PaletteFullException {
+        for (int i = from; i < to; i++) {
+            set(i, value);
+        }
+    }
+
+    /**
+     * Sets consecutive elements, starting at the given index, to the values in an array.<br> <br> If the palette fills, some of the elements may have been set before the exception is thrown.
+     *
+     * @param i the index of the first element
+     * @param values the array containing the new values
+     * @param offset the index of the first value in the array
+     * @param length the number of values to set
+     */
+    public void set(int i, int[] values, int offset, int length) throws PaletteFullException {
+        for (int j = 0; j < length; j++) {
+            set(i + j, values[offset + j]);
+        }
+    }
+
+    /**
+     * Sets an element to a value copied from the array this array is replacing.  The copy may use palette entries that are reserved for copying.
+     *
+     * @param i the index
+     * @param value the copied value
+     */
+    protected void copy(int i, int value) throws PaletteFullException {
+        set(i, value);
+    }
+
+    /**
+     * Releases the palette entries reserved for copying, once all the values of the replaced array have been copied.
+     */
+    protected void releaseReserve() {
+    }
+
     /**
      * Gets the number of unique entries in the array
      */
     public int getUnique() {
-        TIntHashSet inUseSet = new TIntHashSet();
-        for (int i = 0; i < length; i++) {
-            inUseSet.add(get(i));
+        return getUnique(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the number of unique entries in the array, stopping the count once it is over the given limit
+     *
+     * @param limit the highest count of interest
+     * @return the number of unique entries, or a number greater than the limit
+     */
+    public int getUnique(int limit) {
+        UniqueCounter inUse = UniqueCounter.get();
+        int chunk = Math.min(length, COPY_CHUNK);
+        int[] values = inUse.getBuffer(chunk);
+        for (int i = 0; i < length; i += chunk) {
+            int count = Math.min(chunk, length - i);
+            get(i, i + count, values, 0);
+            for (int j = 0; j < count; j++) {
+                if (inUse.add(values[j]) && inUse.size() > limit) {
+                    return inUse.size();
+                }
+            }
         }
-        return inUseSet.size();
+        return inUse.size();
     }
 
     /**
@@ -119,16 +225,57 @@ public abstract class AtomicShortIntBackingArray {
      */
     public abstract int[] getBackingArray();
 
+    /**
+     * Gets the number of bytes written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @return the serialized size
+     */
+    public abstract int getSerializedSize();
+
+    /**
+     * Writes the width, the palette and the packed array to a buffer, in the format read by {@link AtomicShortIntArray#readFrom(ByteBuffer)}. Data tearing may occur if the store is updated during
+     * this method call.
+     *
+     * @param buffer the buffer to write to
+     */
+    public abstract void writeTo(ByteBuffer buffer);
+
     protected void copyFromPrevious(AtomicShortIntBackingArray previous) throws PaletteFullException {
         if (previous != null) {
-            for (int i = 0; i < length; i++) {
-                set(i, previous.get(i));
+            int[] values = new int[Math.min(length, COPY_CHUNK)];
+            for (int i = 0; i < length; i += values.length) {
+                int count = Math.min(values.length, length - i);
+                previous.get(i, i + count, values, 0);
+                set(i, values, 0, count);
             }
         } else {
             set(0, 0);
         }
     }
 
+    /**
+     * Gets the number of bytes needed to serialize a backing array with the given palette and packed array lengths.
+     *
+     * @param paletteLength the palette length
+     * @param packedLength the packed array length
+     * @return the serialized size
+     */
+    protected static int getSerializedSize(int paletteLength, int packedLength) {
+        return (3 + paletteLength + packedLength) << 2;
+    }
+
+    /**
+     * Checks that a buffer has enough space remaining to write the given number of bytes, so that nothing is written if it is too small.
+     *
+     * @param buffer the buffer
+     * @param size the number of bytes
+     */
+    protected static void checkRemaining(ByteBuffer buffer, int size) {
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+    }
+
     protected static int[] toIntArray(AtomicIntegerArray array, int length) {
         int[] packed = new int[length];
         for (int i = 0; i < length; i++) {
@@ -137,6 +284,15 @@ public abstract class AtomicShortIntBackingArray {
         return packed;
     }
 
+    protected static int[] toIntArray(AtomicIntStorage array) {
+        int length = array.length();
+        int[] packed = new int[length];
+        for (int i = 0; i < length; i++) {
+            packed[i] = array.get(i);
+        }
+        return packed;
+    }
+
     protected static int[] toIntArray(AtomicIntegerArray array) {
         int length = array.length();
         int[] packed = new int[length];
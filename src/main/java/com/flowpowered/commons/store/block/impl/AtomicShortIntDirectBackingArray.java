@@ -23,24 +23,28 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.ByteBuffer;
 
 public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray {
     private final static int[] NO_PALETTE = new int[0];
-    private final AtomicIntegerArray store;
+    private final AtomicIntStorage store;
     private final int width;
 
     public AtomicShortIntDirectBackingArray(int length) {
-        this(length, (AtomicShortIntBackingArray) null);
+        this(length, AtomicIntStorage.Type.HEAP);
+    }
+
+    public AtomicShortIntDirectBackingArray(int length, AtomicIntStorage.Type storage) {
+        this(length, (AtomicShortIntBackingArray) null, storage);
     }
 
     public AtomicShortIntDirectBackingArray(AtomicShortIntBackingArray previous) {
-        this(previous.length(), previous);
+        this(previous.length(), previous, previous.getStorageType());
     }
 
-    private AtomicShortIntDirectBackingArray(int length, AtomicShortIntBackingArray previous) {
-        super(length);
-        store = new AtomicIntegerArray(length);
+    private AtomicShortIntDirectBackingArray(int length, AtomicShortIntBackingArray previous, AtomicIntStorage.Type storage) {
+        super(length, storage);
+        store = storage.allocate(length);
         width = AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
         try {
             copyFromPrevious(previous);
@@ -50,11 +54,44 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
     }
 
     public AtomicShortIntDirectBackingArray(int length, int[] initial) {
-        super(length);
+        this(length, initial, AtomicIntStorage.Type.HEAP);
+    }
+
+    public AtomicShortIntDirectBackingArray(int length, int[] initial, AtomicIntStorage.Type storage) {
+        super(length, storage);
         if (initial.length != length) {
             throw new IllegalArgumentException("The length of the initialization array must match the given length");
         }
-        store = new AtomicIntegerArray(initial);
+        store = storage.allocate(initial);
+        width = AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
+    }
+
+    /**
+     * Creates a direct backing array, reading the packed array length and the values from a buffer.
+     *
+     * @param length the number of entries
+     * @param buffer the buffer to read from
+     */
+    public AtomicShortIntDirectBackingArray(int length, ByteBuffer buffer) {
+        this(length, buffer, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates a direct backing array, reading the packed array length and the values from a buffer.
+     *
+     * @param length the number of entries
+     * @param buffer the buffer to read from
+     * @param storage where to allocate the array storage
+     */
+    public AtomicShortIntDirectBackingArray(int length, ByteBuffer buffer, AtomicIntStorage.Type storage) {
+        super(length, storage);
+        if (buffer.getInt() != length) {
+            throw new IllegalArgumentException("The length of the initialization array must match the given length");
+        }
+        store = storage.allocate(length);
+        for (int i = 0; i < length; i++) {
+            store.lazySet(i, buffer.getInt());
+        }
         width = AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
     }
 
@@ -78,6 +115,13 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
         return store.get(i);
     }
 
+    @Override
+    public void get(int from, int to, int[] dst, int offset) {
+        for (int i = from; i < to; i++) {
+            dst[offset++] = store.get(i);
+        }
+    }
+
     @Override
     public int set(int i, int newValue) throws PaletteFullException {
         return store.getAndSet(i, newValue);
@@ -88,6 +132,25 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
         return store.compareAndSet(i, expect, update);
     }
 
+    @Override
+    public void fill(int from, int to, int value) {
+        for (int i = from; i < to; i++) {
+            store.set(i, value);
+        }
+    }
+
+    @Override
+    public void set(int i, int[] values, int offset, int length) {
+        for (int j = 0; j < length; j++) {
+            store.set(i + j, values[offset + j]);
+        }
+    }
+
+    @Override
+    public void free() {
+        store.free();
+    }
+
     @Override
     public boolean isPaletteMaxSize() {
         return true;
@@ -102,4 +165,21 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
     public int[] getBackingArray() {
         return toIntArray(store);
     }
+
+    @Override
+    public int getSerializedSize() {
+        return getSerializedSize(0, length());
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int length = length();
+        checkRemaining(buffer, getSerializedSize(0, length));
+        buffer.putInt(width);
+        buffer.putInt(0);
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.putInt(store.get(i));
+        }
+    }
 }
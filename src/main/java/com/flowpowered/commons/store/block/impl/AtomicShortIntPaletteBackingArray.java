@@ -23,6 +23,7 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
@@ -37,6 +38,10 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
     private final AtomicIntegerArray palette;
     private final AtomicInteger paletteCounter;
     private final boolean maxPaletteSize;
+    /**
+     * The number of palette entries that can only be allocated when copying from a replaced array
+     */
+    private volatile int reserved;
 
     public AtomicShortIntPaletteBackingArray(int length) {
         this(null, length, false, false, CALCULATE_UNIQUE);
@@ -47,7 +52,7 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
     }
 
     public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int length, boolean compress, boolean expand, int unique) {
-        super(length);
+        super(length, previous == null ? AtomicIntStorage.Type.HEAP : previous.getStorageType());
         if (previous == null) {
             width = 1;
         } else {
@@ -57,14 +62,13 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
                 }
                 width = roundUpWidth(expand ? unique : (unique - 1));
             } else {
-                int oldWidth = previous.width();
-                width = oldWidth == 0 ? 1 : oldWidth <= 8 ? (oldWidth << 1) : (16);
+                width = expandWidth(previous.width());
             }
         }
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
         paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
         maxPaletteSize = paletteSize == allowedPalette;
-        store = new AtomicVariableWidthArray(length, width);
+        store = new AtomicVariableWidthArray(length, width, getStorageType());
         palette = new AtomicIntegerArray(paletteSize);
         paletteCounter = new AtomicInteger(0);
         idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
@@ -82,15 +86,42 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         }
     }
 
+    /**
+     * Creates an empty array with the expanded width of a previous array, without copying the previous values.  The given number of palette entries are reserved for {@link #copy(int, int)}, so that
+     * the values of the previous array can always be copied, even if other values are set concurrently.
+     *
+     * @param previous the array being replaced
+     * @param reserved the number of palette entries to reserve
+     */
+    public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int reserved) {
+        super(previous.length(), previous.getStorageType());
+        width = expandWidth(previous.width());
+        int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length());
+        paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
+        if (reserved > paletteSize) {
+            throw new IllegalArgumentException("Reserved palette entries exceed the palette size, reserved " + reserved + ", paletteSize " + paletteSize);
+        }
+        maxPaletteSize = paletteSize == allowedPalette;
+        store = new AtomicVariableWidthArray(length(), width, getStorageType());
+        palette = new AtomicIntegerArray(paletteSize);
+        paletteCounter = new AtomicInteger(0);
+        idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+        this.reserved = reserved;
+    }
+
     public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial) {
-        super(length);
+        this(length, unique, initial, AtomicIntStorage.Type.HEAP);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial, AtomicIntStorage.Type storage) {
+        super(length, storage);
         width = roundUpWidth(unique - 1);
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
         paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
         paletteCounter = new AtomicInteger(0);
         maxPaletteSize = paletteSize == allowedPalette;
         palette = new AtomicIntegerArray(paletteSize);
-        store = new AtomicVariableWidthArray(length, width);
+        store = new AtomicVariableWidthArray(length, width, storage);
         idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
         try {
             for (int i = 0; i < length; i++) {
@@ -102,20 +133,65 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
     }
 
     public AtomicShortIntPaletteBackingArray(int length, int[] palette, int width, int[] variableWidthBlockArray) {
-        super(length);
+        this(length, palette, width, variableWidthBlockArray, AtomicIntStorage.Type.HEAP);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int[] palette, int width, int[] variableWidthBlockArray, AtomicIntStorage.Type storage) {
+        super(length, storage);
         this.width = width;
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
         this.paletteSize = palette.length;
         this.paletteCounter = new AtomicInteger(palette.length);
         this.maxPaletteSize = paletteSize >= allowedPalette;
         this.palette = new AtomicIntegerArray(palette);
-        store = new AtomicVariableWidthArray(length, width, variableWidthBlockArray);
+        store = new AtomicVariableWidthArray(length, width, variableWidthBlockArray, storage);
         idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
         for (int i = 0; i < paletteSize; i++) {
             idLookup.putIfAbsent(palette[i], (short) i);
         }
     }
 
+    /**
+     * Creates a palette backing array, reading the palette length, the palette, the packed array length and the packed array from a buffer.
+     *
+     * @param length the number of entries
+     * @param width the width of each entry in the packed array
+     * @param buffer the buffer to read from
+     */
+    public AtomicShortIntPaletteBackingArray(int length, int width, ByteBuffer buffer) {
+        this(length, width, buffer, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates a palette backing array, reading the palette length, the palette, the packed array length and the packed array from a buffer.
+     *
+     * @param length the number of entries
+     * @param width the width of each entry in the packed array
+     * @param buffer the buffer to read from
+     * @param storage where to allocate the packed array
+     */
+    public AtomicShortIntPaletteBackingArray(int length, int width, ByteBuffer buffer, AtomicIntStorage.Type storage) {
+        super(length, storage);
+        this.width = width;
+        int paletteLength = buffer.getInt();
+        int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
+        this.paletteSize = Math.max(paletteLength, Math.min(widthToPaletteSize(width), allowedPalette));
+        this.paletteCounter = new AtomicInteger(paletteLength);
+        this.maxPaletteSize = paletteSize >= allowedPalette;
+        this.palette = new AtomicIntegerArray(paletteSize);
+        idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+        for (int i = 0; i < paletteLength; i++) {
+            int value = buffer.getInt();
+            palette.lazySet(i, value);
+            idLookup.putIfAbsent(value, (short) i);
+        }
+        int packedLength = buffer.getInt();
+        if (packedLength != length * width >> 5) {
+            throw new IllegalArgumentException("Length of packed array did not match expected");
+        }
+        store = new AtomicVariableWidthArray(length, width, buffer, storage);
+    }
+
     @Override
     public int width() {
         return width;
@@ -131,6 +207,11 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return paletteCounter.get();
     }
 
+    @Override
+    public void free() {
+        store.free();
+    }
+
     @Override
     public boolean isPaletteMaxSize() {
         return maxPaletteSize;
@@ -141,6 +222,53 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return palette.get(store.get(i));
     }
 
+    @Override
+    public void get(int from, int to, int[] dst, int offset) {
+        store.get(from, to, dst, offset);
+        int end = offset + to - from;
+        for (int j = offset; j < end; j++) {
+            dst[j] = palette.get(dst[j]);
+        }
+    }
+
+    /**
+     * Counts the palette ids that are referenced by the packed array, so entries that are no longer in use are not counted.  The ids are read in bulk and marked in a bitmap, without hashing the
+     * values.
+     */
+    @Override
+    public int getUnique(int limit) {
+        UniqueCounter scratch = UniqueCounter.get();
+        long[] seen = scratch.getBits((store.getMaxValue() >>> 6) + 1);
+        int chunk = Math.min(length(), 1024);
+        int[] ids = scratch.getBuffer(chunk);
+        int unique = 0;
+        for (int from = 0; from < length(); from += chunk) {
+            int to = Math.min(length(), from + chunk);
+            store.get(from, to, ids, 0);
+            for (int i = 0; i < to - from; i++) {
+                int id = ids[i];
+                long bit = 1L << id;
+                if ((seen[id >> 6] & bit) == 0) {
+                    seen[id >> 6] |= bit;
+                    if (++unique > limit) {
+                        return unique;
+                    }
+                }
+            }
+        }
+        return unique;
+    }
+
+    @Override
+    protected void copy(int i, int value) throws PaletteFullException {
+        store.set(i, getId(value, paletteSize));
+    }
+
+    @Override
+    protected void releaseReserve() {
+        reserved = 0;
+    }
+
     @Override
     public int set(int i, int newValue) throws PaletteFullException {
         int id = getId(newValue);
@@ -158,6 +286,27 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return store.compareAndSet(i, expId, newId);
     }
 
+    @Override
+    public void fill(int from, int to, int value) throws PaletteFullException {
+        store.fill(from, to, getId(value));
+    }
+
+    @Override
+    public void set(int i, int[] values, int offset, int length) throws PaletteFullException {
+        int[] ids = new int[length];
+        int lastValue = 0;
+        int lastId = -1;
+        for (int j = 0; j < length; j++) {
+            int value = values[offset + j];
+            if (lastId == -1 || value != lastValue) {
+                lastId = getId(value);
+                lastValue = value;
+            }
+            ids[j] = lastId;
+        }
+        store.set(i, ids, 0, length);
+    }
+
     /**
      * Gets the id for the given value, allocating an id if required
      *
@@ -167,18 +316,31 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         short id = idLookup.get(value);
         if (!idLookup.isEmptyValue(id)) {
             return id;
-        } else {
-            id = (short) paletteCounter.getAndIncrement();
-            if (id >= paletteSize) {
-                throw new PaletteFullException();
-            }
-            short oldId = idLookup.putIfAbsent(value, id);
-            if (!idLookup.isEmptyValue(oldId)) {
-                id = oldId;
-            }
-            palette.set(id, value);
+        }
+        return getId(value, paletteSize - reserved);
+    }
+
+    /**
+     * Gets the id for the given value, allocating an id below the given limit if required.  The palette entry is written before the id is published, so that the id never maps to a stale value.
+     *
+     * @param limit the number of palette entries that may be in use
+     * @return the id
+     */
+    private int getId(int value, int limit) throws PaletteFullException {
+        short id = idLookup.get(value);
+        if (!idLookup.isEmptyValue(id)) {
             return id;
         }
+        int newId;
+        do {
+            newId = paletteCounter.get();
+            if (newId >= limit) {
+                throw new PaletteFullException();
+            }
+        } while (!paletteCounter.compareAndSet(newId, newId + 1));
+        palette.set(newId, value);
+        short oldId = idLookup.putIfAbsent(value, (short) newId);
+        return idLookup.isEmptyValue(oldId) ? newId : oldId;
     }
 
     private static final byte[] roundLookup = new byte[65537];
@@ -206,6 +368,10 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return roundLookup[GenericMath.roundUpPow2(i + 1)];
     }
 
+    private static int expandWidth(int width) {
+        return width == 0 ? 1 : width <= 8 ? (width << 1) : (16);
+    }
+
     public static int widthToPaletteSize(int width) {
         return 1 << width;
     }
@@ -216,7 +382,34 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 
     @Override
     public int[] getPalette() {
-        return toIntArray(palette, paletteCounter.get());
+        return toIntArray(palette, getPaletteCount());
+    }
+
+    @Override
+    public int getSerializedSize() {
+        return getSerializedSize(getPaletteCount(), store.getPackedLength());
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int count = getPaletteCount();
+        checkRemaining(buffer, getSerializedSize(count, store.getPackedLength()));
+        buffer.putInt(width);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(palette.get(i));
+        }
+        buffer.putInt(store.getPackedLength());
+        store.writePacked(buffer);
+    }
+
+    /**
+     * Gets the number of palette entries in use.  The counter can exceed the palette size when an allocation fails because the palette is full.
+     *
+     * @return the number of entries
+     */
+    private int getPaletteCount() {
+        return Math.min(paletteCounter.get(), paletteSize);
     }
 
     @Override
@@ -23,6 +23,8 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArray {
@@ -37,7 +39,7 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
     }
 
     private AtomicShortIntUniformBackingArray(int length, AtomicShortIntBackingArray previous) {
-        super(length);
+        super(length, previous == null ? AtomicIntStorage.Type.HEAP : previous.getStorageType());
         if (previous == null) {
             store = new AtomicInteger(0);
         } else {
@@ -51,7 +53,18 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
     }
 
     public AtomicShortIntUniformBackingArray(int length, int initial) {
-        super(length);
+        this(length, initial, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates a uniform array.  The array has no storage, but arrays that replace it allocate from the given storage type.
+     *
+     * @param length the number of entries
+     * @param initial the value of every entry
+     * @param storage where arrays that replace this array allocate their storage
+     */
+    public AtomicShortIntUniformBackingArray(int length, int initial, AtomicIntStorage.Type storage) {
+        super(length, storage);
         store = new AtomicInteger(initial);
     }
 
@@ -75,6 +88,16 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
         return store.get();
     }
 
+    @Override
+    public int getUnique(int limit) {
+        return 1;
+    }
+
+    @Override
+    public void get(int from, int to, int[] dst, int offset) {
+        Arrays.fill(dst, offset, offset + to - from, store.get());
+    }
+
     @Override
     public int set(int i, int newValue) throws PaletteFullException {
         if (!store.compareAndSet(newValue, newValue)) {
@@ -95,6 +118,13 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
         }
     }
 
+    @Override
+    public void fill(int from, int to, int value) throws PaletteFullException {
+        if (from < to) {
+            set(from, value);
+        }
+    }
+
     @Override
     public boolean isPaletteMaxSize() {
         return false;
@@ -109,4 +139,18 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
     public int[] getBackingArray() {
         return new int[] {};
     }
+
+    @Override
+    public int getSerializedSize() {
+        return getSerializedSize(1, 0);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        checkRemaining(buffer, getSerializedSize(1, 0));
+        buffer.putInt(0);
+        buffer.putInt(1);
+        buffer.putInt(store.get());
+        buffer.putInt(0);
+    }
 }
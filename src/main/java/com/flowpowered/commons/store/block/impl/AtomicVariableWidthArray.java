@@ -24,15 +24,18 @@
 package com.flowpowered.commons.store.block.impl;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.ByteBuffer;
 
 import com.flowpowered.math.GenericMath;
 
 /**
- * This class implements a variable width Atomic array.  It is backed by an AtomicInteger array.<br> <br> Entries widths can be a power of 2 from 1 to 32
+ * This class implements a variable width Atomic array.  It is backed by {@link AtomicIntStorage}, on or off the heap.<br> <br> Entries widths can be a power of 2 from 1 to 32
  */
 public class AtomicVariableWidthArray implements Serializable {
-    private static final long serialVersionUID = 423785245671235L;
+    /**
+     * Changed when the packed ints moved from an AtomicIntegerArray to an {@link AtomicIntStorage}, so that the older form is rejected instead of misread
+     */
+    private static final long serialVersionUID = 423785245671236L;
     private final static int[] log2 = new int[33];
 
     static {
@@ -51,7 +54,7 @@ public class AtomicVariableWidthArray implements Serializable {
     private final int[] valueShift;
     private final int maxValue;
     private final int width;
-    private AtomicIntegerArray array;
+    private AtomicIntStorage array;
     private final int length;
 
     /**
@@ -61,7 +64,18 @@ public class AtomicVariableWidthArray implements Serializable {
      * @param width the number of bits in each entry
      */
     public AtomicVariableWidthArray(int length, int width) {
-        this(length, width, null);
+        this(length, width, (int[]) null);
+    }
+
+    /**
+     * Creates a variable Atomic array.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of elements that fit in an int after packing.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param storage where to allocate the packed ints
+     */
+    public AtomicVariableWidthArray(int length, int width, AtomicIntStorage.Type storage) {
+        this(length, width, (int[]) null, storage);
     }
 
     /**
@@ -72,6 +86,18 @@ public class AtomicVariableWidthArray implements Serializable {
      * @param initial the initial state of the array (in packed format)
      */
     public AtomicVariableWidthArray(int length, int width, int[] initial) {
+        this(length, width, initial, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates a variable Atomic array.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of elements that fit in an int after packing.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param initial the initial state of the array (in packed format)
+     * @param storage where to allocate the packed ints
+     */
+    public AtomicVariableWidthArray(int length, int width, int[] initial, AtomicIntStorage.Type storage) {
         if (GenericMath.roundUpPow2(width) != width || width < 1 || width > 32) {
             throw new IllegalArgumentException("Width must be a power of 2 between 1 and 32 " + width);
         }
@@ -101,9 +127,9 @@ public class AtomicVariableWidthArray implements Serializable {
             if (newLength != initial.length) {
                 throw new IllegalArgumentException("Length of packed array did not match expected");
             }
-            this.array = new AtomicIntegerArray(initial);
+            this.array = storage.allocate(initial);
         } else {
-            this.array = new AtomicIntegerArray(newLength);
+            this.array = storage.allocate(newLength);
         }
 
         this.fullWidth = width == 32;
@@ -113,6 +139,35 @@ public class AtomicVariableWidthArray implements Serializable {
         this.width = width;
     }
 
+    /**
+     * Creates a variable Atomic array, reading the initial state in packed format from a buffer.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of
+     * elements that fit in an int after packing.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param packed the buffer to read the packed ints from
+     */
+    public AtomicVariableWidthArray(int length, int width, ByteBuffer packed) {
+        this(length, width, packed, AtomicIntStorage.Type.HEAP);
+    }
+
+    /**
+     * Creates a variable Atomic array, reading the initial state in packed format from a buffer.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of
+     * elements that fit in an int after packing.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param packed the buffer to read the packed ints from
+     * @param storage where to allocate the packed ints
+     */
+    public AtomicVariableWidthArray(int length, int width, ByteBuffer packed, AtomicIntStorage.Type storage) {
+        this(length, width, storage);
+        int packedLength = this.array.length();
+        for (int i = 0; i < packedLength; i++) {
+            this.array.lazySet(i, packed.getInt());
+        }
+    }
+
     /**
      * Gets the maximum unsigned value that can be stored in the array
      *
@@ -136,6 +191,148 @@ public class AtomicVariableWidthArray implements Serializable {
         return unPack(array.get(getIndex(i)), getSubIndex(i));
     }
 
+    /**
+     * Gets the elements from index from (inclusive) to index to (exclusive).  Each packed int is read once and all the elements it contains are unpacked from that read.  The returned values are not
+     * guaranteed to be from the same time instant.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param dst the array to place the elements in
+     * @param offset the index in the destination array of the first element
+     */
+    public final void get(int from, int to, int[] dst, int offset) {
+        if (fullWidth) {
+            for (int i = from; i < to; i++) {
+                dst[offset++] = array.get(i);
+            }
+            return;
+        }
+
+        int valuesPerInt = 1 << indexShift;
+        int i = from;
+        while (i < to) {
+            int index = getIndex(i);
+            int end = Math.min(to, (index + 1) << indexShift);
+            if (end - i == valuesPerInt) {
+                unpackWord(array.get(index), dst, offset);
+                offset += valuesPerInt;
+                i = end;
+                continue;
+            }
+            int packed = array.get(index) >>> valueShift[getSubIndex(i)];
+            for (; i < end; i++) {
+                dst[offset++] = packed & maxValue;
+                packed >>>= width;
+            }
+        }
+    }
+
+    /**
+     * Sets consecutive elements, starting at the given index, to the values in an array.  Packed ints that are entirely covered by the range are packed from the values and written in a single
+     * operation.
+     *
+     * @param i the index of the first element
+     * @param values the array containing the new values
+     * @param offset the index of the first value in the array
+     * @param length the number of values to set
+     */
+    public final void set(int i, int[] values, int offset, int length) {
+        int to = i + length;
+        if (fullWidth) {
+            for (; i < to; i++) {
+                array.set(i, values[offset++]);
+            }
+            return;
+        }
+
+        int valuesPerInt = 1 << indexShift;
+        while (i < to) {
+            if (getSubIndex(i) == 0 && to - i >= valuesPerInt) {
+                array.set(getIndex(i), packWord(values, offset));
+                i += valuesPerInt;
+                offset += valuesPerInt;
+            } else {
+                set(i++, values[offset++]);
+            }
+        }
+    }
+
+    /**
+     * Unpacks all the entries of a packed int.  The loops have a constant trip count for each width, so that they can be unrolled.
+     *
+     * @param packed the packed int
+     * @param dst the array to place the entries in
+     * @param offset the index in the destination array of the first entry
+     */
+    private void unpackWord(int packed, int[] dst, int offset) {
+        switch (width) {
+            case 1:
+                for (int j = 0; j < 32; j++) {
+                    dst[offset + j] = (packed >>> j) & 0x1;
+                }
+                break;
+            case 2:
+                for (int j = 0; j < 16; j++) {
+                    dst[offset + j] = (packed >>> (j << 1)) & 0x3;
+                }
+                break;
+            case 4:
+                for (int j = 0; j < 8; j++) {
+                    dst[offset + j] = (packed >>> (j << 2)) & 0xF;
+                }
+                break;
+            case 8:
+                dst[offset] = packed & 0xFF;
+                dst[offset + 1] = (packed >>> 8) & 0xFF;
+                dst[offset + 2] = (packed >>> 16) & 0xFF;
+                dst[offset + 3] = packed >>> 24;
+                break;
+            case 16:
+                dst[offset] = packed & 0xFFFF;
+                dst[offset + 1] = packed >>> 16;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected width " + width);
+        }
+    }
+
+    /**
+     * Packs the entries of a packed int from an array of values, the values are masked to the width of the array.
+     *
+     * @param values the array containing the values
+     * @param offset the index of the first value in the array
+     * @return the packed int
+     */
+    private int packWord(int[] values, int offset) {
+        int packed = 0;
+        switch (width) {
+            case 1:
+                for (int j = 0; j < 32; j++) {
+                    packed |= (values[offset + j] & 0x1) << j;
+                }
+                break;
+            case 2:
+                for (int j = 0; j < 16; j++) {
+                    packed |= (values[offset + j] & 0x3) << (j << 1);
+                }
+                break;
+            case 4:
+                for (int j = 0; j < 8; j++) {
+                    packed |= (values[offset + j] & 0xF) << (j << 2);
+                }
+                break;
+            case 8:
+                packed = (values[offset] & 0xFF) | (values[offset + 1] & 0xFF) << 8 | (values[offset + 2] & 0xFF) << 16 | values[offset + 3] << 24;
+                break;
+            case 16:
+                packed = (values[offset] & 0xFFFF) | values[offset + 1] << 16;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected width " + width);
+        }
+        return packed;
+    }
+
     /**
      * Sets an element to the given value
      *
@@ -210,6 +407,61 @@ public class AtomicVariableWidthArray implements Serializable {
         return unPack(prev, subIndex);
     }
 
+    /**
+     * Sets all the elements from index from (inclusive) to index to (exclusive) to the given value.  Packed ints that are entirely covered by the range are written in a single operation.
+     *
+     * @param from the first index
+     * @param to the index after the last index
+     * @param value the new value
+     */
+    public final void fill(int from, int to, int value) {
+        if (fullWidth) {
+            for (int i = from; i < to; i++) {
+                array.set(i, value);
+            }
+            return;
+        }
+
+        if (from >= to) {
+            return;
+        }
+        int replicated = replicate(value);
+        int firstIndex = getIndex(from);
+        int lastIndex = getIndex(to - 1);
+        int firstMask = -1 << valueShift[getSubIndex(from)];
+        int lastMask = -1 >>> (32 - valueShift[getSubIndex(to - 1)] - width);
+        if (firstIndex == lastIndex) {
+            fillPacked(firstIndex, firstMask & lastMask, replicated);
+            return;
+        }
+        fillPacked(firstIndex, firstMask, replicated);
+        for (int index = firstIndex + 1; index < lastIndex; index++) {
+            array.set(index, replicated);
+        }
+        fillPacked(lastIndex, lastMask, replicated);
+    }
+
+    private void fillPacked(int index, int mask, int replicated) {
+        if (mask == -1) {
+            array.set(index, replicated);
+            return;
+        }
+        boolean success = false;
+        while (!success) {
+            int prev = array.get(index);
+            int next = (prev & ~mask) | (replicated & mask);
+            success = array.compareAndSet(index, prev, next);
+        }
+    }
+
+    private int replicate(int value) {
+        int replicated = value & maxValue;
+        for (int shift = width; shift < 32; shift <<= 1) {
+            replicated |= replicated << shift;
+        }
+        return replicated;
+    }
+
     private int addAndGet(int i, int delta, boolean old) {
         if (fullWidth) {
             if (old) {
@@ -265,9 +517,7 @@ public class AtomicVariableWidthArray implements Serializable {
             array = new int[length()];
         }
 
-        for (int i = 0; i < length(); i++) {
-            array[i] = get(i);
-        }
+        get(0, length(), array, 0);
 
         return array;
     }
@@ -284,6 +534,27 @@ public class AtomicVariableWidthArray implements Serializable {
         return packed;
     }
 
+    /**
+     * Gets the number of ints in the packed version of this array.
+     *
+     * @return the packed length
+     */
+    public int getPackedLength() {
+        return array.length();
+    }
+
+    /**
+     * Writes the packed version of this array to a buffer.  Tearing may occur if the array is updated during this method call.
+     *
+     * @param buffer the buffer to write to
+     */
+    public void writePacked(ByteBuffer buffer) {
+        int length = this.array.length();
+        for (int i = 0; i < length; i++) {
+            buffer.putInt(this.array.get(i));
+        }
+    }
+
     /**
      * Remaining methods use the above methods
      */
@@ -311,6 +582,13 @@ public class AtomicVariableWidthArray implements Serializable {
         return getAndAdd(i, -1);
     }
 
+    /**
+     * Releases the storage of the array, see {@link AtomicIntStorage#free()}.  The array must not be accessed after, or concurrently with, this method call.
+     */
+    public void free() {
+        array.free();
+    }
+
     private int getIndex(int i) {
         return i >> indexShift;
     }
@@ -0,0 +1,310 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+import com.flowpowered.commons.store.block.DirtyTracker;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Records dirty blocks in a bitmap with one bit per block, so it never overflows.  Writers only touch shared state the first time a block becomes dirty, which is when the count and the bounds of
+ * the dirty blocks are updated.  Dirty blocks are listed in index order, and the old and new states are not tracked.<br> <br> Reading the count and the bounds does not allocate.  After a reset or a
+ * drain that races with writers, the bounds may be larger than needed until the next reset.
+ */
+public class BitmapDirtyTracker implements DirtyTracker {
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MIN_Z = 2;
+    private static final int MAX_X = 3;
+    private static final int MAX_Y = 4;
+    private static final int MAX_Z = 5;
+    private final int shift;
+    private final int doubleShift;
+    private final int mask;
+    private final AtomicLongArray bits;
+    private final AtomicInteger dirtyBlocks = new AtomicInteger();
+    /**
+     * The bounds of the dirty blocks, in the order of {@link #getDirtyBounds(int[])}
+     */
+    private final AtomicIntegerArray dirtyBounds = new AtomicIntegerArray(6);
+    private volatile boolean dirty;
+
+    /**
+     * Creates a tracker for a store.
+     *
+     * @param shift the log2 of the side length of the store
+     */
+    public BitmapDirtyTracker(int shift) {
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.mask = (1 << shift) - 1;
+        bits = new AtomicLongArray(Math.max(1, (1 << (shift * 3)) >> 6));
+        resetBounds();
+    }
+
+    @Override
+    public void markDirty(int x, int y, int z, int oldState, int newState) {
+        int index = (y << doubleShift) + (z << shift) + x;
+        if (setBits(index >> 6, 1L << index) != 0) {
+            extendBounds(x, y, z, x, y, z);
+            dirtyBlocks.incrementAndGet();
+            modified();
+        }
+    }
+
+    @Override
+    public void markDirtyRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        boolean changed = false;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                int from = (y << doubleShift) + (z << shift) + minX;
+                int to = from + maxX - minX + 1;
+                while (from < to) {
+                    int word = from >> 6;
+                    int end = Math.min(to, (word + 1) << 6);
+                    long added = setBits(word, (-1L >>> (64 - (end - from))) << from);
+                    if (added != 0) {
+                        // The bits are in a single row, so only the first and last new bits extend the bounds
+                        int first = (word << 6) + Long.numberOfTrailingZeros(added);
+                        int last = (word << 6) + 63 - Long.numberOfLeadingZeros(added);
+                        extendBounds(first & mask, y, z, last & mask, y, z);
+                        dirtyBlocks.addAndGet(Long.bitCount(added));
+                        changed = true;
+                    }
+                    from = end;
+                }
+            }
+        }
+        if (changed) {
+            modified();
+        }
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        return false;
+    }
+
+    @Override
+    public boolean reset() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        resetBounds();
+        int cleared = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.get(i) != 0) {
+                cleared += Long.bitCount(bits.getAndSet(i, 0));
+            }
+        }
+        dirtyBlocks.addAndGet(-cleared);
+        return wasDirty;
+    }
+
+    /**
+     * {@inheritDoc}<br> <br> Each word of the bitmap is swapped out atomically, so writers never wait.
+     */
+    @Override
+    public int drain(DirtyBlockVisitor visitor, int[] bounds) {
+        // Blocks marked after this are dirty again once their bits are set
+        dirty = false;
+        resetBounds();
+        bounds[0] = bounds[1] = bounds[2] = Integer.MAX_VALUE;
+        bounds[3] = bounds[4] = bounds[5] = Integer.MIN_VALUE;
+        int visited = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.get(i) == 0) {
+                continue;
+            }
+            long word = bits.getAndSet(i, 0);
+            while (word != 0) {
+                int index = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                int x = index & mask;
+                int y = index >> doubleShift;
+                int z = (index >> shift) & mask;
+                bounds[0] = Math.min(bounds[0], x);
+                bounds[1] = Math.min(bounds[1], y);
+                bounds[2] = Math.min(bounds[2], z);
+                bounds[3] = Math.max(bounds[3], x);
+                bounds[4] = Math.max(bounds[4], y);
+                bounds[5] = Math.max(bounds[5], z);
+                visitor.visit(x, y, z, -1, -1);
+                visited++;
+            }
+        }
+        dirtyBlocks.addAndGet(-visited);
+        return visited;
+    }
+
+    @Override
+    public int getDirtyBlocks() {
+        // A writer counts its block after setting the bit, so a concurrent drain can briefly make the count negative
+        return Math.max(0, dirtyBlocks.get());
+    }
+
+    @Override
+    public Vector3i getMinDirty() {
+        return new Vector3i(dirtyBounds.get(MIN_X), dirtyBounds.get(MIN_Y), dirtyBounds.get(MIN_Z));
+    }
+
+    @Override
+    public Vector3i getMaxDirty() {
+        return new Vector3i(dirtyBounds.get(MAX_X), dirtyBounds.get(MAX_Y), dirtyBounds.get(MAX_Z));
+    }
+
+    @Override
+    public void getDirtyBounds(int[] dst) {
+        for (int i = 0; i < 6; i++) {
+            dst[i] = dirtyBounds.get(i);
+        }
+    }
+
+    @Override
+    public int forEachDirtyBlock(DirtyBlockVisitor visitor) {
+        int visited = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.get(i);
+            while (word != 0) {
+                int index = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                visitor.visit(index & mask, index >> doubleShift, (index >> shift) & mask, -1, -1);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    @Override
+    public int getDirtyIndices(int[] dst, int shift) {
+        int n = 0;
+        for (int i = 0; i < bits.length() && n < dst.length; i++) {
+            long word = bits.get(i);
+            while (word != 0 && n < dst.length) {
+                dst[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        if (i < 0) {
+            return null;
+        }
+        // Whole words are skipped by their bit count
+        for (int w = 0; w < bits.length(); w++) {
+            long word = bits.get(w);
+            int count = Long.bitCount(word);
+            if (i >= count) {
+                i -= count;
+                continue;
+            }
+            for (; i > 0; i--) {
+                word &= word - 1;
+            }
+            int index = (w << 6) + Long.numberOfTrailingZeros(word);
+            return new Vector3i(index & mask, index >> doubleShift, (index >> shift) & mask);
+        }
+        return null;
+    }
+
+    @Override
+    public int getDirtyOldState(int i) {
+        return -1;
+    }
+
+    @Override
+    public int getDirtyNewState(int i) {
+        return -1;
+    }
+
+    /**
+     * Sets the bits in a word
+     *
+     * @return the bits that were not set before
+     */
+    private long setBits(int word, long mask) {
+        while (true) {
+            long old = bits.get(word);
+            if ((old & mask) == mask) {
+                return 0;
+            }
+            if (bits.compareAndSet(word, old, old | mask)) {
+                return mask & ~old;
+            }
+        }
+    }
+
+    private void modified() {
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    private void extendBounds(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        setAsMin(MIN_X, minX);
+        setAsMin(MIN_Y, minY);
+        setAsMin(MIN_Z, minZ);
+        setAsMax(MAX_X, maxX);
+        setAsMax(MAX_Y, maxY);
+        setAsMax(MAX_Z, maxZ);
+    }
+
+    private void resetBounds() {
+        dirtyBounds.set(MIN_X, Integer.MAX_VALUE);
+        dirtyBounds.set(MIN_Y, Integer.MAX_VALUE);
+        dirtyBounds.set(MIN_Z, Integer.MAX_VALUE);
+        dirtyBounds.set(MAX_X, Integer.MIN_VALUE);
+        dirtyBounds.set(MAX_Y, Integer.MIN_VALUE);
+        dirtyBounds.set(MAX_Z, Integer.MIN_VALUE);
+    }
+
+    private void setAsMin(int slot, int value) {
+        int old;
+        while ((old = dirtyBounds.get(slot)) > value) {
+            if (dirtyBounds.compareAndSet(slot, old, value)) {
+                return;
+            }
+        }
+    }
+
+    private void setAsMax(int slot, int value) {
+        int old;
+        while ((old = dirtyBounds.get(slot)) < value) {
+            if (dirtyBounds.compareAndSet(slot, old, value)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses block stores in the background.  Stores are queued with {@link #schedule(AtomicPaletteBlockStore)}, typically after they have been modified, and are compressed in passes on an
+ * executor.  Each pass stops once its time budget is used, and the next pass is submitted to the executor if stores are still queued.<br> <br> Stores are only compressed if {@link
+ * AtomicPaletteBlockStore#needsCompression()} is true, and stores that are write locked by another thread are retried in the next pass.  If only such stores remain, the next pass is delayed by the
+ * time budget when the executor is a {@link ScheduledExecutorService}, and submitted immediately otherwise.
+ */
+public class BlockStoreCompactor {
+    private static final long MIN_RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+    private final Executor executor;
+    private final long budget;
+    private final Queue<AtomicPaletteBlockStore> queue = new ConcurrentLinkedQueue<>();
+    private final Set<AtomicPaletteBlockStore> queued = Collections.newSetFromMap(new ConcurrentHashMap<AtomicPaletteBlockStore, Boolean>());
+    private final AtomicBoolean submitted = new AtomicBoolean(false);
+    private final AtomicLong bytesSaved = new AtomicLong(0);
+    private final AtomicLong compressed = new AtomicLong(0);
+    /**
+     * The number of locked stores that the last pass queued again, which are retried after a delay if nothing else is queued
+     */
+    private volatile int retries = 0;
+    private final Runnable pass = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                runPass();
+            } finally {
+                submitted.set(false);
+            }
+            if (queue.size() > retries) {
+                submit();
+            } else if (retries > 0) {
+                submitRetry();
+            }
+        }
+    };
+
+    /**
+     * Creates a compactor.
+     *
+     * @param executor the executor that runs the compression passes
+     * @param budget the time a pass may spend compressing stores, a pass always checks at least one store
+     * @param unit the unit of the budget
+     */
+    public BlockStoreCompactor(Executor executor, long budget, TimeUnit unit) {
+        this.executor = executor;
+        this.budget = unit.toNanos(budget);
+    }
+
+    /**
+     * Queues a store to be checked and compressed if needed.  A store that is already queued is not queued twice.  A pass is submitted to the executor if none is pending.
+     *
+     * @param store the store
+     */
+    public void schedule(AtomicPaletteBlockStore store) {
+        if (queued.add(store)) {
+            queue.add(store);
+            submit();
+        }
+    }
+
+    /**
+     * Checks and compresses queued stores on the calling thread, until the queue is empty or the time budget is used.
+     *
+     * @return the number of bytes saved by this pass
+     */
+    public long runPass() {
+        long end = System.nanoTime() + budget;
+        long saved = 0;
+        List<AtomicPaletteBlockStore> locked = new ArrayList<>();
+        AtomicPaletteBlockStore store;
+        do {
+            store = queue.poll();
+            if (store == null) {
+                break;
+            }
+            queued.remove(store);
+            if (!store.needsCompression()) {
+                continue;
+            }
+            if (!store.tryWriteLock()) {
+                locked.add(store);
+                continue;
+            }
+            try {
+                int before = store.getSerializedSize();
+                store.compress();
+                saved += before - store.getSerializedSize();
+            } finally {
+                store.writeUnlock();
+            }
+            compressed.incrementAndGet();
+        } while (System.nanoTime() - end < 0);
+        for (AtomicPaletteBlockStore retry : locked) {
+            if (queued.add(retry)) {
+                queue.add(retry);
+            }
+        }
+        retries = locked.size();
+        bytesSaved.addAndGet(saved);
+        return saved;
+    }
+
+    /**
+     * Gets the number of stores waiting to be checked
+     *
+     * @return the number of queued stores
+     */
+    public int getQueued() {
+        return queued.size();
+    }
+
+    /**
+     * Gets the number of bytes saved by all the passes so far, measured as the change in the serialized size of the compressed stores
+     *
+     * @return the bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Gets the number of stores compressed by all the passes so far
+     *
+     * @return the number of compressed stores
+     */
+    public long getCompressedStores() {
+        return compressed.get();
+    }
+
+    private void submit() {
+        if (!queue.isEmpty() && submitted.compareAndSet(false, true)) {
+            executor.execute(pass);
+        }
+    }
+
+    /**
+     * Submits a pass for the stores that were locked, after a delay if the executor supports it, so that the pass doesn't spin while the stores stay locked
+     */
+    private void submitRetry() {
+        if (!(executor instanceof ScheduledExecutorService)) {
+            submit();
+        } else if (!queue.isEmpty() && submitted.compareAndSet(false, true)) {
+            ((ScheduledExecutorService) executor).schedule(pass, Math.max(budget, MIN_RETRY_DELAY), TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Encodes the dirty blocks of a store as a compact binary patch, and applies the patch to another store.<br> <br> A patch starts with its type.  A {@link #FULL} patch is followed by the whole store,
+ * in the format written by {@link AtomicPaletteBlockStore#writeTo(ByteBuffer)}.  A {@link #DELTA} patch is followed by a local palette of the changed states, then by runs of consecutive block
+ * indices, each with the gap from the end of the previous run, the run length and the palette id of each block in the run.  Counts, gaps and lengths are variable length ints, palette ids are bytes
+ * if the local palette has at most 256 entries and shorts otherwise.<br> <br> The dirty list gives the changed blocks, if it overflowed the blocks in the dirty bounding box are sent instead.  The
+ * current states of the blocks are sent, and the full store is sent if it is estimated to be smaller.
+ */
+public class BlockStoreDelta {
+    public static final byte DELTA = 0;
+    public static final byte FULL = 1;
+    private static final int MAX_VAR_INT_SIZE = 5;
+
+    private BlockStoreDelta() {
+    }
+
+    /**
+     * Encodes the blocks that changed since the dirty arrays of the store were last reset.  The store should not be updated while it is encoded, or the patch may not include the latest changes.
+     *
+     * @param store the store
+     * @return the patch
+     */
+    public static byte[] encode(AtomicPaletteBlockStore store) {
+        int[] indices = getDirtyIndices(store);
+        int count = indices.length;
+        int[] states = new int[count];
+        TIntIntHashMap ids = new TIntIntHashMap();
+        int[] palette = new int[Math.min(count, 16)];
+        for (int i = 0; i < count; i++) {
+            int state = store.getFullData(indices[i]);
+            states[i] = state;
+            if (!ids.containsKey(state)) {
+                if (ids.size() == palette.length) {
+                    palette = Arrays.copyOf(palette, palette.length << 1);
+                }
+                palette[ids.size()] = state;
+                ids.put(state, ids.size());
+            }
+        }
+        int paletteLength = ids.size();
+        int idSize = paletteLength <= 256 ? 1 : 2;
+        int runs = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || indices[i] != indices[i - 1] + 1) {
+                runs++;
+            }
+        }
+        int maxDeltaSize = 1 + MAX_VAR_INT_SIZE * 2 + paletteLength * 4 + runs * MAX_VAR_INT_SIZE * 2 + count * idSize;
+        int fullSize = 1 + store.getSerializedSize();
+        if (maxDeltaSize >= fullSize) {
+            store.writeLock();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(1 + store.getSerializedSize());
+                buffer.put(FULL);
+                store.writeTo(buffer);
+                return buffer.array();
+            } finally {
+                store.writeUnlock();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(maxDeltaSize);
+        buffer.put(DELTA);
+        putVarInt(buffer, paletteLength);
+        for (int i = 0; i < paletteLength; i++) {
+            buffer.putInt(palette[i]);
+        }
+        putVarInt(buffer, runs);
+        int end = 0;
+        for (int start = 0; start < count; ) {
+            int length = 1;
+            while (start + length < count && indices[start + length] == indices[start] + length) {
+                length++;
+            }
+            putVarInt(buffer, indices[start] - end);
+            putVarInt(buffer, length);
+            for (int i = start; i < start + length; i++) {
+                int id = ids.get(states[i]);
+                if (idSize == 1) {
+                    buffer.put((byte) id);
+                } else {
+                    buffer.putShort((short) id);
+                }
+            }
+            end = indices[start] + length;
+            start += length;
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Applies a patch created by {@link #encode(AtomicPaletteBlockStore)} to a store of the same size.  The changed blocks are marked as dirty.
+     *
+     * @param store the store
+     * @param patch the patch
+     * @throws IllegalArgumentException if the patch is malformed
+     */
+    public static void apply(AtomicPaletteBlockStore store, ByteBuffer patch) {
+        byte type = patch.get();
+        if (type == FULL) {
+            store.readFrom(patch);
+            return;
+        }
+        if (type != DELTA) {
+            throw new IllegalArgumentException("Unknown patch type " + type);
+        }
+        int shift = store.getShift();
+        int mask = (1 << shift) - 1;
+        int length = 1 << (shift * 3);
+        int paletteLength = getVarInt(patch);
+        // Each palette entry is the state of at least one changed block
+        if (paletteLength < 0 || paletteLength > length) {
+            throw new IllegalArgumentException("Patch palette of length " + paletteLength + " is larger than the store");
+        }
+        int[] palette = new int[paletteLength];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = patch.getInt();
+        }
+        boolean byteIds = palette.length <= 256;
+        int runs = getVarInt(patch);
+        int index = 0;
+        for (int run = 0; run < runs; run++) {
+            index += getVarInt(patch);
+            int runLength = getVarInt(patch);
+            if (index < 0 || runLength < 0 || runLength > length - index) {
+                throw new IllegalArgumentException("Patch run from " + index + " of length " + runLength + " is outside the store");
+            }
+            for (int end = index + runLength; index < end; index++) {
+                int id = byteIds ? patch.get() & 0xFF : patch.getShort() & 0xFFFF;
+                if (id >= palette.length) {
+                    throw new IllegalArgumentException("Patch palette id " + id + " is outside the palette of length " + palette.length);
+                }
+                int state = palette[id];
+                store.setBlock(index & mask, index >> (shift << 1), (index >> shift) & mask, (short) (state >> 16), (short) state);
+            }
+        }
+    }
+
+    /**
+     * Gets the sorted indices of the dirty blocks, or of every block in the dirty bounding box if the dirty list overflowed.
+     */
+    private static int[] getDirtyIndices(AtomicPaletteBlockStore store) {
+        int shift = store.getShift();
+        if (!store.isDirty()) {
+            return new int[0];
+        }
+        if (store.isDirtyOverflow()) {
+            int[] bounds = new int[6];
+            store.getDirtyBounds(bounds);
+            int sizeX = bounds[3] - bounds[0] + 1;
+            int[] indices = new int[sizeX * (bounds[4] - bounds[1] + 1) * (bounds[5] - bounds[2] + 1)];
+            int i = 0;
+            for (int y = bounds[1]; y <= bounds[4]; y++) {
+                for (int z = bounds[2]; z <= bounds[5]; z++) {
+                    int rowStart = (y << (shift << 1)) + (z << shift) + bounds[0];
+                    for (int x = 0; x < sizeX; x++) {
+                        indices[i++] = rowStart + x;
+                    }
+                }
+            }
+            return indices;
+        }
+        int[] indices = new int[store.getDirtyBlocks()];
+        int count = store.getDirtyIndices(indices);
+        Arrays.sort(indices, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || indices[i] != indices[unique - 1]) {
+                indices[unique++] = indices[i];
+            }
+        }
+        return Arrays.copyOf(indices, unique);
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Variable length int is too long");
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+
+/**
+ * A fork join task that processes a range of a list of block stores.  Ranges larger than the threshold are split in half, so idle workers can steal the other half.<br> <br> Scratch space for
+ * counting unique values is held per thread, so the workers of a pool reuse their scratch across stores.
+ *
+ * @param <T> the type of the stores
+ */
+public abstract class BlockStoreTask<T> extends RecursiveAction {
+    /**
+     * The default maximum number of stores processed by a task without splitting
+     */
+    public static final int DEFAULT_THRESHOLD = 16;
+    private static final long serialVersionUID = 1L;
+    private final List<? extends T> stores;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    /**
+     * Creates a task for a range of a list of stores
+     *
+     * @param stores the stores, the list should support fast random access
+     * @param from the index of the first store
+     * @param to the index after the last store
+     * @param threshold the maximum number of stores processed without splitting
+     */
+    protected BlockStoreTask(List<? extends T> stores, int from, int to, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("The threshold must be positive: " + threshold);
+        }
+        this.stores = stores;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Gets the stores
+     *
+     * @return the list of stores
+     */
+    protected List<? extends T> getStores() {
+        return stores;
+    }
+
+    /**
+     * Gets the maximum number of stores processed without splitting
+     *
+     * @return the threshold
+     */
+    protected int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Creates a task of the same type for a sub range
+     *
+     * @param from the index of the first store
+     * @param to the index after the last store
+     * @return the new task
+     */
+    protected abstract BlockStoreTask<T> split(int from, int to);
+
+    /**
+     * Processes one store
+     *
+     * @param i the index of the store in the list
+     * @param store the store
+     */
+    protected abstract void process(int i, T store);
+
+    @Override
+    protected void compute() {
+        if (to - from <= threshold) {
+            for (int i = from; i < to; i++) {
+                process(i, stores.get(i));
+            }
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(split(from, middle), split(middle, to));
+        }
+    }
+
+    /**
+     * Compresses block stores in parallel, and waits for all of them to be compressed.
+     *
+     * @param pool the pool to run the compression in
+     * @param stores the stores
+     */
+    public static void compress(ForkJoinPool pool, Collection<? extends AtomicBlockStore> stores) {
+        pool.invoke(new CompressTask(toList(stores)));
+    }
+
+    /**
+     * Counts the unique states of block stores in parallel.
+     *
+     * @param pool the pool to run the counting in
+     * @param stores the stores
+     * @return the number of unique states of each store, in the iteration order of the collection
+     */
+    public static int[] getUnique(ForkJoinPool pool, Collection<? extends AtomicPaletteBlockStore> stores) {
+        UniqueCountTask task = new UniqueCountTask(toList(stores));
+        pool.invoke(task);
+        return task.getCounts();
+    }
+
+    private static <T> List<? extends T> toList(Collection<? extends T> stores) {
+        if (stores instanceof ArrayList) {
+            return (List<? extends T>) stores;
+        }
+        return new ArrayList<>(stores);
+    }
+}
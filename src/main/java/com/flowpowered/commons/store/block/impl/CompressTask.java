@@ -0,0 +1,66 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.List;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+
+/**
+ * Compresses a list of block stores in parallel, see {@link AtomicBlockStore#compress()}.
+ */
+public class CompressTask extends BlockStoreTask<AtomicBlockStore> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a task that compresses all the stores in a list
+     *
+     * @param stores the stores, the list should support fast random access
+     */
+    public CompressTask(List<? extends AtomicBlockStore> stores) {
+        this(stores, 0, stores.size(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates a task that compresses a range of a list of stores
+     *
+     * @param stores the stores, the list should support fast random access
+     * @param from the index of the first store
+     * @param to the index after the last store
+     * @param threshold the maximum number of stores compressed without splitting
+     */
+    public CompressTask(List<? extends AtomicBlockStore> stores, int from, int to, int threshold) {
+        super(stores, from, to, threshold);
+    }
+
+    @Override
+    protected BlockStoreTask<AtomicBlockStore> split(int from, int to) {
+        return new CompressTask(getStores(), from, to, getThreshold());
+    }
+
+    @Override
+    protected void process(int i, AtomicBlockStore store) {
+        store.compress();
+    }
+}
@@ -0,0 +1,760 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore.DataMask;
+
+/**
+ * A state array that stores designated {@link DataMask} fields of the block data in separate layers, each an {@link AtomicShortIntArray} with its own palette and width.  The base layer holds the
+ * block id and the data bits outside the fields.  A field that takes many values no longer multiplies the number of full states in one palette, and updating or reading a single field only touches
+ * its layer.<br> <br> Full states are read without locking, using a striped sequence lock: a read that overlaps a write to the same stripe is retried.  Writers of a stripe are serialized, and only
+ * write the layers whose value changed.  Locking the array waits for in flight writers and blocks new ones, which park until it is unlocked, reads are not blocked.
+ */
+final class LayeredStateArray implements StateArray {
+    private static final int STRIPES = 16;
+    private static final int STRIPE_MASK = STRIPES - 1;
+    /**
+     * The sequences are spread out so that each one is on its own cache line
+     */
+    private static final int PAD_SHIFT = 4;
+    private static final int CHUNK = 1024;
+    private static final int OPTIMISTIC_READS = 4;
+    /**
+     * Starts the serialized form of a layered array, in place of the width that starts the form of a single array
+     */
+    static final int LAYERED_TAG = -1;
+    /**
+     * The size of the serialized header of a layered array, not counting the entry of each layer
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final int LAYER_ENTRY_SIZE = 8;
+    /**
+     * The buffers of bulk reads, reused by each thread so that reads don't allocate
+     */
+    private static final ThreadLocal<ReadBuffers> READ_BUFFERS = new ThreadLocal<ReadBuffers>() {
+        @Override
+        protected ReadBuffers initialValue() {
+            return new ReadBuffers();
+        }
+    };
+    private final int length;
+    private final AtomicShortIntArray base;
+    private final AtomicShortIntArray[] layers;
+    private final int[] fieldMasks;
+    private final int[] fieldShifts;
+    private final int baseMask;
+    private final AtomicIntegerArray sequences = new AtomicIntegerArray(STRIPES << PAD_SHIFT);
+    /**
+     * Held while the array is locked, writers and readers that wait for the owner park on it
+     */
+    private final ReentrantLock owner = new ReentrantLock();
+
+    /**
+     * Creates an array with all the states at 0
+     *
+     * @param length the length of the array
+     * @param mode the synchronization used by each layer
+     * @param storage where to allocate the layers
+     * @param masks the data fields stored in their own layers, which must not overlap
+     */
+    LayeredStateArray(int length, AtomicShortIntArray.SyncMode mode, AtomicIntStorage.Type storage, DataMask[] masks) {
+        if (masks.length == 0) {
+            throw new IllegalArgumentException("At least one data field must be layered");
+        }
+        this.length = length;
+        fieldMasks = new int[masks.length];
+        fieldShifts = new int[masks.length];
+        layers = new AtomicShortIntArray[masks.length];
+        int fieldBits = 0;
+        for (int k = 0; k < masks.length; k++) {
+            int mask = masks[k].getMask() & 0xFFFF;
+            int shift = masks[k].getShift();
+            int bits = mask << shift;
+            if (mask == 0 || shift < 0 || (bits & ~0xFFFF) != 0) {
+                throw new IllegalArgumentException("The data field with mask " + mask + " and shift " + shift + " is outside the data bits");
+            }
+            if ((fieldBits & bits) != 0) {
+                throw new IllegalArgumentException("The data field with mask " + mask + " and shift " + shift + " overlaps another field");
+            }
+            fieldBits |= bits;
+            fieldMasks[k] = mask;
+            fieldShifts[k] = shift;
+            layers[k] = new AtomicShortIntArray(length, mode, storage);
+        }
+        baseMask = ~fieldBits;
+        base = new AtomicShortIntArray(length, mode, storage);
+    }
+
+    /**
+     * Gets the layer that stores the given field
+     *
+     * @param mask the data field
+     * @return the layer index, or -1 if the field is not layered
+     */
+    int getLayer(DataMask mask) {
+        int m = mask.getMask() & 0xFFFF;
+        for (int k = 0; k < fieldMasks.length; k++) {
+            if (fieldMasks[k] == m && fieldShifts[k] == mask.getShift()) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of data fields stored in their own layers
+     *
+     * @return the number of layers, not counting the base layer
+     */
+    int getLayers() {
+        return layers.length;
+    }
+
+    /**
+     * Gets the value of a layered field, without reading the other layers
+     *
+     * @param i the index
+     * @param layer the layer index
+     * @return the field value, unshifted
+     */
+    int getField(int i, int layer) {
+        return layers[layer].get(i);
+    }
+
+    /**
+     * Sets the value of a layered field, without writing the other layers
+     *
+     * @param i the index
+     * @param layer the layer index
+     * @param value the field value, unshifted
+     * @return the old full state
+     */
+    int setField(int i, int layer, int value) {
+        int slot = beginWrite(i);
+        try {
+            int old = read(i);
+            value &= fieldMasks[layer];
+            if (((old >>> fieldShifts[layer]) & fieldMasks[layer]) != value) {
+                layers[layer].set(i, value);
+            }
+            return old;
+        } finally {
+            endWrite(slot);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the width of the base layer
+     */
+    @Override
+    public int width() {
+        return base.width();
+    }
+
+    @Override
+    public int get(int i) {
+        int slot = getSlot(i);
+        for (int spins = 0; ; spins++) {
+            int sequence = sequences.get(slot);
+            if ((sequence & 1) == 0) {
+                int state = read(i);
+                if (sequences.get(slot) == sequence) {
+                    return state;
+                }
+            } else if (spins > 64 && owner.isLocked() && !owner.isHeldByCurrentThread()) {
+                // A bulk write by the owner holds every stripe until it completes
+                awaitUnlock();
+            }
+            backoff(spins);
+        }
+    }
+
+    @Override
+    public void get(int from, int to, int[] dst, int offset) {
+        ReadBuffers buffers = READ_BUFFERS.get();
+        int[] before = buffers.sequences;
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            if (readSequences(before)) {
+                read(from, to, dst, offset, buffers.field);
+                if (validate(before)) {
+                    return;
+                }
+            }
+            backoff(attempt);
+        }
+        // Writers keep overlapping the read, so they are blocked while it runs
+        lock();
+        try {
+            read(from, to, dst, offset, buffers.field);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * The block ids are outside the data fields, so they are read from the base layer alone without the sequence lock
+     */
+    @Override
+    public void getIds(int from, int to, short[] dst, int offset) {
+        base.getIds(from, to, dst, offset);
+    }
+
+    @Override
+    public int set(int i, int newValue) {
+        int slot = beginWrite(i);
+        try {
+            int old = read(i);
+            write(i, old, newValue);
+            return old;
+        } finally {
+            endWrite(slot);
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(int i, int expect, int update) {
+        int slot = beginWrite(i);
+        try {
+            int old = read(i);
+            if (old != expect) {
+                return false;
+            }
+            write(i, old, update);
+            return true;
+        } finally {
+            endWrite(slot);
+        }
+    }
+
+    @Override
+    public void set(int i, int[] values, int offset, int count) {
+        lock();
+        try {
+            beginWriteAll();
+            try {
+                int[] split = new int[Math.min(count, CHUNK)];
+                for (int c = 0; c < count; c += split.length) {
+                    int n = Math.min(split.length, count - c);
+                    split(values, offset + c, n, -1, split);
+                    base.set(i + c, split, 0, n);
+                    for (int k = 0; k < layers.length; k++) {
+                        split(values, offset + c, n, k, split);
+                        layers[k].set(i + c, split, 0, n);
+                    }
+                }
+            } finally {
+                endWriteAll();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public void fill(int from, int to, int value) {
+        lock();
+        try {
+            beginWriteAll();
+            try {
+                base.fill(from, to, value & baseMask);
+                for (int k = 0; k < layers.length; k++) {
+                    layers[k].fill(from, to, (value >>> fieldShifts[k]) & fieldMasks[k]);
+                }
+            } finally {
+                endWriteAll();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public void set(int[] initial) {
+        set(initial, true);
+    }
+
+    @Override
+    public void uncompressedSet(int[] initial) {
+        set(initial, false);
+    }
+
+    private void set(int[] initial, boolean compress) {
+        lock();
+        try {
+            beginWriteAll();
+            try {
+                int[] split = new int[length];
+                for (int k = -1; k < layers.length; k++) {
+                    split(initial, 0, length, k, split);
+                    AtomicShortIntArray layer = k < 0 ? base : layers[k];
+                    if (compress) {
+                        layer.set(split);
+                    } else {
+                        layer.uncompressedSet(split);
+                    }
+                }
+            } finally {
+                endWriteAll();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Decodes the full states from the palette and packed array, then splits them into the layers
+     */
+    @Override
+    public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+        AtomicShortIntArray array = new AtomicShortIntArray(length);
+        array.set(palette, blockArrayWidth, variableWidthBlockArray);
+        int[] states = new int[length];
+        array.get(0, length, states, 0);
+        set(states);
+    }
+
+    @Override
+    public void compress() {
+        // Compression replaces the backing arrays without changing the values, so readers are not affected
+        base.compress();
+        for (AtomicShortIntArray layer : layers) {
+            layer.compress();
+        }
+    }
+
+    @Override
+    public boolean needsCompression() {
+        if (base.needsCompression()) {
+            return true;
+        }
+        for (AtomicShortIntArray layer : layers) {
+            if (layer.needsCompression()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getUnique() {
+        UniqueCounter inUse = UniqueCounter.get();
+        int chunk = Math.min(length, CHUNK);
+        int[] values = inUse.getBuffer(chunk);
+        for (int i = 0; i < length; i += chunk) {
+            int count = Math.min(chunk, length - i);
+            get(i, i + count, values, 0);
+            for (int j = 0; j < count; j++) {
+                inUse.add(values[j]);
+            }
+        }
+        return inUse.size();
+    }
+
+    /**
+     * Gets the palette of the base layer
+     */
+    @Override
+    public int[] getPalette() {
+        return base.getPalette();
+    }
+
+    /**
+     * Gets the packed array of the base layer
+     */
+    @Override
+    public int[] getBackingArray() {
+        return base.getBackingArray();
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = HEADER_SIZE + layers.length * LAYER_ENTRY_SIZE + base.getSerializedSize();
+        for (AtomicShortIntArray layer : layers) {
+            size += layer.getSerializedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Writes a header, then the base layer followed by each field layer, in the format of {@link AtomicShortIntArray#writeTo(ByteBuffer)}.  The header is {@link #LAYERED_TAG}, the number of field
+     * layers, then the mask and shift of each field, all as ints.
+     */
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        lock();
+        try {
+            AtomicShortIntBackingArray.checkRemaining(buffer, getSerializedSize());
+            buffer.putInt(LAYERED_TAG);
+            buffer.putInt(layers.length);
+            for (int k = 0; k < layers.length; k++) {
+                buffer.putInt(fieldMasks[k]);
+                buffer.putInt(fieldShifts[k]);
+            }
+            base.writeTo(buffer);
+            for (AtomicShortIntArray layer : layers) {
+                layer.writeTo(buffer);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Reads the layers written by {@link #writeTo(ByteBuffer)}.  Data written by an array with other fields, or by a single {@link AtomicShortIntArray}, is read as full states and split into the layers
+     * of this array.
+     */
+    @Override
+    public void readFrom(ByteBuffer buffer) {
+        if (!hasFields(getLayers(buffer))) {
+            set(readStates(buffer, length));
+            return;
+        }
+        readLayers(buffer);
+        lock();
+        try {
+            beginWriteAll();
+            try {
+                base.readFrom(buffer);
+                for (AtomicShortIntArray layer : layers) {
+                    layer.readFrom(buffer);
+                }
+            } finally {
+                endWriteAll();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Gets the data fields of serialized data, without moving the position of the buffer
+     *
+     * @param buffer the buffer, at the start of the data written by {@link #writeTo(ByteBuffer)} or {@link AtomicShortIntArray#writeTo(ByteBuffer)}
+     * @return the fields stored in their own layers, or no fields if the data is from a single array
+     */
+    static DataMask[] getLayers(ByteBuffer buffer) {
+        return readLayers(buffer.duplicate().order(buffer.order()));
+    }
+
+    /**
+     * Reads the full states from serialized data, combining the layers if the data is layered
+     *
+     * @param buffer the buffer, at the start of the data written by {@link #writeTo(ByteBuffer)} or {@link AtomicShortIntArray#writeTo(ByteBuffer)}
+     * @param length the length of the array that wrote the data
+     * @return the states
+     */
+    static int[] readStates(ByteBuffer buffer, int length) {
+        DataMask[] masks = readLayers(buffer);
+        int[] states = new int[length];
+        if (masks.length == 0) {
+            AtomicShortIntArray array = new AtomicShortIntArray(length);
+            array.readFrom(buffer);
+            array.get(0, length, states, 0);
+        } else {
+            LayeredStateArray array = new LayeredStateArray(length, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP, masks);
+            array.base.readFrom(buffer);
+            for (AtomicShortIntArray layer : array.layers) {
+                layer.readFrom(buffer);
+            }
+            array.read(0, length, states, 0, READ_BUFFERS.get().field);
+        }
+        return states;
+    }
+
+    /**
+     * Reads the header of serialized data, if the data is layered
+     *
+     * @return the fields stored in their own layers, or no fields if the data is from a single array
+     */
+    private static DataMask[] readLayers(ByteBuffer buffer) {
+        if (buffer.getInt(buffer.position()) != LAYERED_TAG) {
+            return new DataMask[0];
+        }
+        buffer.getInt();
+        int count = buffer.getInt();
+        if (count <= 0 || count > 16) {
+            throw new IllegalArgumentException("Invalid number of layers " + count);
+        }
+        DataMask[] masks = new DataMask[count];
+        for (int k = 0; k < count; k++) {
+            int mask = buffer.getInt();
+            int shift = buffer.getInt();
+            masks[k] = new DataMask((short) mask, (short) shift);
+        }
+        return masks;
+    }
+
+    private boolean hasFields(DataMask[] masks) {
+        if (masks.length != layers.length) {
+            return false;
+        }
+        for (int k = 0; k < masks.length; k++) {
+            if ((masks[k].getMask() & 0xFFFF) != fieldMasks[k] || masks[k].getShift() != fieldShifts[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void lock() {
+        owner.lock();
+        if (owner.getHoldCount() == 1) {
+            drain();
+        }
+    }
+
+    @Override
+    public void unlock() {
+        if (!owner.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("The array is not locked by the current thread");
+        }
+        owner.unlock();
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!owner.tryLock()) {
+            return false;
+        }
+        if (owner.getHoldCount() == 1) {
+            drain();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isUniform() {
+        if (!base.isUniform()) {
+            return false;
+        }
+        for (AtomicShortIntArray layer : layers) {
+            if (!layer.isUniform()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getUniformValue(int notUniform) {
+        if (!isUniform()) {
+            return notUniform;
+        }
+        int state = get(0);
+        return isUniform() ? state : notUniform;
+    }
+
+    @Override
+    public void free() {
+        base.free();
+        for (AtomicShortIntArray layer : layers) {
+            layer.free();
+        }
+    }
+
+    /**
+     * Copies the full states into a new frozen array, as the layers can't be combined into a single backing array without copying
+     */
+    @Override
+    public AtomicShortIntBackingArray freeze() {
+        int[] states = new int[length];
+        lock();
+        try {
+            read(0, length, states, 0, READ_BUFFERS.get().field);
+        } finally {
+            unlock();
+        }
+        AtomicShortIntArray copy = new AtomicShortIntArray(length, base.getSyncMode());
+        copy.set(states);
+        return copy.freeze();
+    }
+
+    private int read(int i) {
+        int state = base.get(i);
+        for (int k = 0; k < layers.length; k++) {
+            state |= layers[k].get(i) << fieldShifts[k];
+        }
+        return state;
+    }
+
+    /**
+     * Reads full states, a chunk of each layer at a time
+     *
+     * @param field a buffer of {@link #CHUNK} elements
+     */
+    private void read(int from, int to, int[] dst, int offset, int[] field) {
+        base.get(from, to, dst, offset);
+        for (int k = 0; k < layers.length; k++) {
+            int shift = fieldShifts[k];
+            for (int c = from; c < to; c += CHUNK) {
+                int n = Math.min(CHUNK, to - c);
+                layers[k].get(c, c + n, field, 0);
+                int o = offset + c - from;
+                for (int j = 0; j < n; j++) {
+                    dst[o + j] |= field[j] << shift;
+                }
+            }
+        }
+    }
+
+    private void write(int i, int old, int state) {
+        if ((old & baseMask) != (state & baseMask)) {
+            base.set(i, state & baseMask);
+        }
+        for (int k = 0; k < layers.length; k++) {
+            int value = (state >>> fieldShifts[k]) & fieldMasks[k];
+            if (((old >>> fieldShifts[k]) & fieldMasks[k]) != value) {
+                layers[k].set(i, value);
+            }
+        }
+    }
+
+    /**
+     * Extracts a layer from full states
+     *
+     * @param layer the layer index, or -1 for the base layer
+     */
+    private void split(int[] states, int offset, int count, int layer, int[] dst) {
+        if (layer < 0) {
+            for (int j = 0; j < count; j++) {
+                dst[j] = states[offset + j] & baseMask;
+            }
+        } else {
+            int shift = fieldShifts[layer];
+            int mask = fieldMasks[layer];
+            for (int j = 0; j < count; j++) {
+                dst[j] = (states[offset + j] >>> shift) & mask;
+            }
+        }
+    }
+
+    private static int getSlot(int i) {
+        return (i & STRIPE_MASK) << PAD_SHIFT;
+    }
+
+    /**
+     * Marks the stripe of an index as being written, waiting for other writers of the stripe and for the array to be unlocked by another thread
+     *
+     * @return the slot of the stripe sequence
+     */
+    private int beginWrite(int i) {
+        int slot = getSlot(i);
+        boolean isOwner = owner.isHeldByCurrentThread();
+        for (int spins = 0; ; spins++) {
+            if (!isOwner && owner.isLocked()) {
+                awaitUnlock();
+                continue;
+            }
+            int sequence = sequences.get(slot);
+            if ((sequence & 1) == 0 && sequences.compareAndSet(slot, sequence, sequence + 1)) {
+                if (isOwner || !owner.isLocked()) {
+                    return slot;
+                }
+                // The array was locked after the stripe was taken, the locker is waiting for the stripe
+                sequences.incrementAndGet(slot);
+            }
+            backoff(spins);
+        }
+    }
+
+    /**
+     * Parks until the array is unlocked by its owner
+     */
+    private void awaitUnlock() {
+        owner.lock();
+        owner.unlock();
+    }
+
+    private void endWrite(int slot) {
+        sequences.incrementAndGet(slot);
+    }
+
+    /**
+     * Marks all the stripes as being written, the array must be locked by the current thread
+     */
+    private void beginWriteAll() {
+        for (int s = 0; s < STRIPES; s++) {
+            beginWrite(s);
+        }
+    }
+
+    private void endWriteAll() {
+        for (int s = 0; s < STRIPES; s++) {
+            endWrite(getSlot(s));
+        }
+    }
+
+    /**
+     * Waits for the writers that took a stripe before the array was locked
+     */
+    private void drain() {
+        for (int s = 0; s < STRIPES; s++) {
+            int slot = getSlot(s);
+            for (int spins = 0; (sequences.get(slot) & 1) != 0; spins++) {
+                backoff(spins);
+            }
+        }
+    }
+
+    private boolean readSequences(int[] dst) {
+        for (int s = 0; s < STRIPES; s++) {
+            int sequence = sequences.get(getSlot(s));
+            if ((sequence & 1) != 0) {
+                return false;
+            }
+            dst[s] = sequence;
+        }
+        return true;
+    }
+
+    private boolean validate(int[] before) {
+        for (int s = 0; s < STRIPES; s++) {
+            if (sequences.get(getSlot(s)) != before[s]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void backoff(int spins) {
+        if (spins > 64) {
+            Thread.yield();
+        }
+    }
+
+    private static final class ReadBuffers {
+        private final int[] sequences = new int[STRIPES];
+        private final int[] field = new int[CHUNK];
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.io.Serializable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage allocated off the heap, accessed atomically through {@link UnsafeMemory}.<br> <br> The memory is released by {@link #free()}.  If the storage is garbage collected without being freed, the memory
+ * is released by the next allocation.  Accessing the storage after it is freed throws an {@link IllegalStateException}, but accessing it concurrently with {@link #free()} is not safe.<br> <br>
+ * When serialized, the storage is replaced by a copy on the heap.
+ */
+public class OffHeapAtomicIntStorage implements AtomicIntStorage, Serializable {
+    private static final long serialVersionUID = 7263498562347856234L;
+    private static final ReferenceQueue<OffHeapAtomicIntStorage> QUEUE = new ReferenceQueue<>();
+    /**
+     * Keeps the deallocators reachable until they have run
+     */
+    private static final Set<Deallocator> DEALLOCATORS = Collections.newSetFromMap(new ConcurrentHashMap<Deallocator, Boolean>());
+    private static final AtomicLong ALLOCATED = new AtomicLong();
+    private final int length;
+    private final transient Deallocator deallocator;
+    /**
+     * Volatile so that reading it in {@link #keepAlive()} is not removed by the JIT
+     */
+    private transient volatile long address;
+
+    public OffHeapAtomicIntStorage(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length cannot be negative " + length);
+        }
+        releaseCollected();
+        this.length = length;
+        long bytes = (long) length << 2;
+        address = UnsafeMemory.allocateMemory(Math.max(bytes, 1));
+        UnsafeMemory.setMemory(address, bytes, (byte) 0);
+        ALLOCATED.addAndGet(bytes);
+        deallocator = new Deallocator(this, address, bytes);
+        DEALLOCATORS.add(deallocator);
+    }
+
+    /**
+     * Gets the number of bytes currently allocated off the heap by all storage instances
+     *
+     * @return the number of bytes
+     */
+    public static long getAllocatedBytes() {
+        return ALLOCATED.get();
+    }
+
+    /**
+     * Releases the memory of storage instances that were garbage collected without being freed
+     */
+    public static void releaseCollected() {
+        Reference<? extends OffHeapAtomicIntStorage> reference;
+        while ((reference = QUEUE.poll()) != null) {
+            ((Deallocator) reference).free();
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public int get(int i) {
+        int value = UnsafeMemory.getIntVolatile(offset(i));
+        keepAlive();
+        return value;
+    }
+
+    @Override
+    public void set(int i, int newValue) {
+        UnsafeMemory.putIntVolatile(offset(i), newValue);
+        keepAlive();
+    }
+
+    @Override
+    public void lazySet(int i, int newValue) {
+        UnsafeMemory.putOrderedInt(offset(i), newValue);
+        keepAlive();
+    }
+
+    @Override
+    public int getAndSet(int i, int newValue) {
+        long offset = offset(i);
+        while (true) {
+            int prev = UnsafeMemory.getIntVolatile(offset);
+            if (UnsafeMemory.compareAndSwapInt(offset, prev, newValue)) {
+                keepAlive();
+                return prev;
+            }
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(int i, int expect, int update) {
+        boolean success = UnsafeMemory.compareAndSwapInt(offset(i), expect, update);
+        keepAlive();
+        return success;
+    }
+
+    @Override
+    public int getAndAdd(int i, int delta) {
+        long offset = offset(i);
+        while (true) {
+            int prev = UnsafeMemory.getIntVolatile(offset);
+            if (UnsafeMemory.compareAndSwapInt(offset, prev, prev + delta)) {
+                keepAlive();
+                return prev;
+            }
+        }
+    }
+
+    @Override
+    public int addAndGet(int i, int delta) {
+        return getAndAdd(i, delta) + delta;
+    }
+
+    @Override
+    public void free() {
+        address = 0;
+        deallocator.free();
+    }
+
+    private long offset(int i) {
+        long base = address;
+        if (base == 0) {
+            throw new IllegalStateException("The storage has been freed");
+        }
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("index " + i);
+        }
+        return base + ((long) i << 2);
+    }
+
+    /**
+     * Keeps this storage reachable until the raw access before the call has completed.  Without it, the storage could be collected as soon as its address is read, and {@link #releaseCollected()} on
+     * another thread could free the memory while it is still being accessed.
+     *
+     * @return the address, which is ignored
+     */
+    private long keepAlive() {
+        return address;
+    }
+
+    private Object writeReplace() {
+        int[] copy = new int[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = get(i);
+        }
+        return new HeapAtomicIntStorage(copy);
+    }
+
+    private static class Deallocator extends PhantomReference<OffHeapAtomicIntStorage> {
+        private final AtomicLong address;
+        private final long bytes;
+
+        private Deallocator(OffHeapAtomicIntStorage storage, long address, long bytes) {
+            super(storage, QUEUE);
+            this.address = new AtomicLong(address);
+            this.bytes = bytes;
+        }
+
+        private void free() {
+            long old = address.getAndSet(0);
+            if (old != 0) {
+                UnsafeMemory.freeMemory(old);
+                ALLOCATED.addAndGet(-bytes);
+                DEALLOCATORS.remove(this);
+            }
+        }
+    }
+}
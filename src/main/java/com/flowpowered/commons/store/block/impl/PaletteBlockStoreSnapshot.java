@@ -0,0 +1,149 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+
+import com.flowpowered.commons.store.block.BlockStoreSnapshot;
+
+/**
+ * A snapshot of an {@link AtomicPaletteBlockStore}.  The snapshot shares the frozen backing array of the store, and converts it to a plain palette and packed array the first time it is read, so
+ * taking a snapshot doesn't copy anything.
+ */
+public class PaletteBlockStoreSnapshot implements BlockStoreSnapshot {
+    private final int shift;
+    private final int doubleShift;
+    private final int length;
+    private final int width;
+    private final AtomicShortIntBackingArray frozen;
+    private volatile Packed packed;
+
+    PaletteBlockStoreSnapshot(int shift, AtomicShortIntBackingArray frozen) {
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.length = frozen.length();
+        this.width = frozen.width();
+        this.frozen = frozen;
+    }
+
+    @Override
+    public int getFullData(int x, int y, int z) {
+        return getFullData((y << doubleShift) + (z << shift) + x);
+    }
+
+    @Override
+    public int getFullData(int index) {
+        return getPacked().get(index);
+    }
+
+    @Override
+    public short getBlockId(int x, int y, int z) {
+        return (short) (getFullData(x, y, z) >> 16);
+    }
+
+    @Override
+    public short getData(int x, int y, int z) {
+        return (short) getFullData(x, y, z);
+    }
+
+    @Override
+    public int[] getFullArray() {
+        Packed p = getPacked();
+        int[] array = new int[length];
+        if (p.uniform) {
+            Arrays.fill(array, p.palette[0]);
+        } else if (p.direct) {
+            System.arraycopy(p.packed, 0, array, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                array[i] = p.palette[(p.packed[i >> p.indexShift] >>> ((i & p.subIndexMask) << p.widthShift)) & p.valueMask];
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public boolean isBlockUniform() {
+        return getPacked().uniform;
+    }
+
+    @Override
+    public int getPackedWidth() {
+        return width;
+    }
+
+    @Override
+    public int[] getPackedArray() {
+        return getPacked().packed;
+    }
+
+    @Override
+    public int[] getPalette() {
+        return getPacked().palette;
+    }
+
+    private Packed getPacked() {
+        Packed p = packed;
+        if (p == null) {
+            // The frozen array doesn't change, so concurrent conversions give equal results
+            p = new Packed(frozen, width);
+            packed = p;
+        }
+        return p;
+    }
+
+    /**
+     * The plain arrays read from the frozen backing array
+     */
+    private static class Packed {
+        private final int[] palette;
+        private final int[] packed;
+        private final boolean uniform;
+        private final boolean direct;
+        private final int widthShift;
+        private final int indexShift;
+        private final int subIndexMask;
+        private final int valueMask;
+
+        private Packed(AtomicShortIntBackingArray frozen, int width) {
+            palette = frozen.getPalette();
+            packed = frozen.getBackingArray();
+            uniform = frozen instanceof AtomicShortIntUniformBackingArray;
+            direct = palette.length == 0;
+            widthShift = width == 0 ? 0 : Integer.numberOfTrailingZeros(width);
+            indexShift = 5 - widthShift;
+            subIndexMask = (1 << indexShift) - 1;
+            valueMask = (1 << width) - 1;
+        }
+
+        private int get(int i) {
+            if (uniform) {
+                return palette[0];
+            } else if (direct) {
+                return packed[i];
+            }
+            return palette[(packed[i >> indexShift] >>> ((i & subIndexMask) << widthShift)) & valueMask];
+        }
+    }
+}
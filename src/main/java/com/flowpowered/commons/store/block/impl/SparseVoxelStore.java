@@ -0,0 +1,568 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.flowpowered.commons.store.block.BlockSectionVisitor;
+
+/**
+ * A block store for a large volume, split into cubic sections.  The volume is a fixed grid of sections, so locating a section is an array lookup.<br> <br> Block states are mapped to ids by a
+ * palette shared by all the sections, and each section that contains more than one state stores the global ids in an {@link AtomicShortIntArray}, which has its own local palette of global ids.
+ * Sections where all the blocks have the same state are a single shared reference, and are only expanded when a different state is written.  Empty sections, where all the states are 0, are
+ * null.<br> <br> Coordinates range from 0 (inclusive) to the size of the volume on each axis (exclusive).
+ */
+public class SparseVoxelStore {
+    /**
+     * The maximum number of states in the global palette, the ids must fit in a positive short
+     */
+    public static final int MAX_STATES = Short.MAX_VALUE;
+    private final int shift;
+    private final int doubleShift;
+    private final int sectionMask;
+    private final int sectionLength;
+    private final int sectionsX;
+    private final int sectionsY;
+    private final int sectionsZ;
+    private final AtomicShortIntArray.SyncMode mode;
+    private final AtomicReferenceArray<Section> sections;
+    private final AtomicIntShortSingleUseHashMap globalLookup;
+    private final AtomicIntegerArray globalStates;
+    private final AtomicInteger globalCount = new AtomicInteger(1);
+    private final AtomicReferenceArray<UniformSection> uniformSections;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param shift the log2 of the side length of the sections
+     * @param sectionsX the number of sections along the x axis
+     * @param sectionsY the number of sections along the y axis
+     * @param sectionsZ the number of sections along the z axis
+     */
+    public SparseVoxelStore(int shift, int sectionsX, int sectionsY, int sectionsZ) {
+        this(shift, sectionsX, sectionsY, sectionsZ, 4096, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK);
+    }
+
+    /**
+     * Creates an empty store.
+     *
+     * @param shift the log2 of the side length of the sections
+     * @param sectionsX the number of sections along the x axis
+     * @param sectionsY the number of sections along the y axis
+     * @param sectionsZ the number of sections along the z axis
+     * @param maxStates the maximum number of distinct states in the store, at most {@link #MAX_STATES}
+     * @param mode the synchronization used for updates of the sections
+     */
+    public SparseVoxelStore(int shift, int sectionsX, int sectionsY, int sectionsZ, int maxStates, AtomicShortIntArray.SyncMode mode) {
+        if (maxStates < 1 || maxStates > MAX_STATES) {
+            throw new IllegalArgumentException("The maximum number of states must be between 1 and " + MAX_STATES + ": " + maxStates);
+        }
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.sectionMask = (1 << shift) - 1;
+        this.sectionLength = 1 << (shift * 3);
+        this.sectionsX = sectionsX;
+        this.sectionsY = sectionsY;
+        this.sectionsZ = sectionsZ;
+        this.mode = mode;
+        sections = new AtomicReferenceArray<>(sectionsX * sectionsY * sectionsZ);
+        globalLookup = new AtomicIntShortSingleUseHashMap(maxStates + (maxStates >> 2) + 1);
+        globalStates = new AtomicIntegerArray(maxStates);
+        uniformSections = new AtomicReferenceArray<>(maxStates);
+        globalLookup.putIfAbsent(0, (short) 0);
+    }
+
+    /**
+     * Gets the log2 of the side length of the sections
+     *
+     * @return the section shift
+     */
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Gets the size of the volume along the x axis
+     *
+     * @return the size in blocks
+     */
+    public int getSizeX() {
+        return sectionsX << shift;
+    }
+
+    /**
+     * Gets the size of the volume along the y axis
+     *
+     * @return the size in blocks
+     */
+    public int getSizeY() {
+        return sectionsY << shift;
+    }
+
+    /**
+     * Gets the size of the volume along the z axis
+     *
+     * @return the size in blocks
+     */
+    public int getSizeZ() {
+        return sectionsZ << shift;
+    }
+
+    /**
+     * Gets the state of a block
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the full state of the block
+     */
+    public int get(int x, int y, int z) {
+        Section section = sections.get(getSection(x, y, z));
+        if (section == null) {
+            return 0;
+        }
+        return globalStates.get(section.get(getLocalIndex(x, y, z)));
+    }
+
+    /**
+     * Sets the state of a block
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param state the new full state
+     * @return the old full state
+     */
+    public int set(int x, int y, int z, int state) {
+        int s = getSection(x, y, z);
+        int id = getGlobalId(state);
+        int i = getLocalIndex(x, y, z);
+        while (true) {
+            Section section = sections.get(s);
+            if (getUniformId(section) == id) {
+                return state;
+            }
+            DenseSection dense = expand(s, section);
+            int old = dense.ids.set(i, id);
+            if (sections.get(s) == dense) {
+                return globalStates.get(old);
+            }
+        }
+    }
+
+    /**
+     * Sets the state of a block, but only if the current state is the expected state
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param expect the expected full state
+     * @param update the new full state
+     * @return true on success
+     */
+    public boolean compareAndSet(int x, int y, int z, int expect, int update) {
+        int s = getSection(x, y, z);
+        short expectId = globalLookup.get(expect);
+        if (globalLookup.isEmptyValue(expectId)) {
+            return false;
+        }
+        int id = getGlobalId(update);
+        int i = getLocalIndex(x, y, z);
+        while (true) {
+            Section section = sections.get(s);
+            if (section == null || section instanceof UniformSection) {
+                int uniformId = getUniformId(section);
+                if (uniformId != expectId) {
+                    return false;
+                } else if (uniformId == id) {
+                    return true;
+                }
+            }
+            DenseSection dense = expand(s, section);
+            boolean success = dense.ids.compareAndSet(i, expectId, id);
+            if (sections.get(s) == dense) {
+                return success;
+            }
+        }
+    }
+
+    /**
+     * Sets all the blocks in a region to a state.  Sections that are entirely covered by the region are replaced by a shared uniform section.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param state the new full state
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int state) {
+        checkRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        int id = getGlobalId(state);
+        for (int sy = minY >> shift; sy <= maxY >> shift; sy++) {
+            for (int sz = minZ >> shift; sz <= maxZ >> shift; sz++) {
+                for (int sx = minX >> shift; sx <= maxX >> shift; sx++) {
+                    int s = (sy * sectionsZ + sz) * sectionsX + sx;
+                    int x0 = Math.max(minX, sx << shift) & sectionMask;
+                    int y0 = Math.max(minY, sy << shift) & sectionMask;
+                    int z0 = Math.max(minZ, sz << shift) & sectionMask;
+                    int x1 = Math.min(maxX, ((sx + 1) << shift) - 1) & sectionMask;
+                    int y1 = Math.min(maxY, ((sy + 1) << shift) - 1) & sectionMask;
+                    int z1 = Math.min(maxZ, ((sz + 1) << shift) - 1) & sectionMask;
+                    if (x0 == 0 && y0 == 0 && z0 == 0 && x1 == sectionMask && y1 == sectionMask && z1 == sectionMask) {
+                        sections.set(s, id == 0 ? null : getUniformSection(id));
+                    } else {
+                        fillSection(s, x0, y0, z0, x1, y1, z1, id);
+                    }
+                }
+            }
+        }
+    }
+
+    private void fillSection(int s, int x0, int y0, int z0, int x1, int y1, int z1, int id) {
+        while (true) {
+            Section section = sections.get(s);
+            if (getUniformId(section) == id) {
+                return;
+            }
+            DenseSection dense = expand(s, section);
+            for (int y = y0; y <= y1; y++) {
+                for (int z = z0; z <= z1; z++) {
+                    int row = (y << doubleShift) + (z << shift);
+                    dense.ids.fill(row + x0, row + x1 + 1, id);
+                }
+            }
+            if (sections.get(s) == dense) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the states of all the blocks in a region, in y, z, x order with x varying fastest.  Each section is read a row at a time, and uniform sections are not read.<br> <br> If the store is
+     * updated while the region is read, data tearing could occur.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param dst the array to place the full states in
+     * @param offset the index in the destination array of the first state
+     */
+    public void get(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int[] dst, int offset) {
+        checkRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        int sizeX = maxX - minX + 1;
+        int sizeZ = maxZ - minZ + 1;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                int rowOffset = offset + ((y - minY) * sizeZ + (z - minZ)) * sizeX;
+                for (int sx = minX >> shift; sx <= maxX >> shift; sx++) {
+                    int x0 = Math.max(minX, sx << shift);
+                    int x1 = Math.min(maxX, ((sx + 1) << shift) - 1);
+                    int start = rowOffset + x0 - minX;
+                    int end = start + x1 - x0 + 1;
+                    Section section = sections.get(getSection(x0, y, z));
+                    if (section instanceof DenseSection) {
+                        int local = getLocalIndex(x0, y, z);
+                        ((DenseSection) section).ids.get(local, local + end - start, dst, start);
+                        for (int i = start; i < end; i++) {
+                            dst[i] = globalStates.get(dst[i]);
+                        }
+                    } else {
+                        Arrays.fill(dst, start, end, globalStates.get(getUniformId(section)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the states of all the blocks in a region, from an array in y, z, x order with x varying fastest.  Each section is written a row at a time.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param minZ the minimum z coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @param maxZ the maximum z coordinate
+     * @param states the array containing the new full states
+     * @param offset the index in the array of the first state
+     */
+    public void set(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int[] states, int offset) {
+        checkRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        int sizeX = maxX - minX + 1;
+        int sizeZ = maxZ - minZ + 1;
+        int[] ids = new int[Math.min(sizeX, 1 << shift)];
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                int rowOffset = offset + ((y - minY) * sizeZ + (z - minZ)) * sizeX;
+                for (int sx = minX >> shift; sx <= maxX >> shift; sx++) {
+                    int x0 = Math.max(minX, sx << shift);
+                    int x1 = Math.min(maxX, ((sx + 1) << shift) - 1);
+                    int count = x1 - x0 + 1;
+                    int start = rowOffset + x0 - minX;
+                    boolean uniform = true;
+                    for (int i = 0; i < count; i++) {
+                        ids[i] = getGlobalId(states[start + i]);
+                        uniform &= ids[i] == ids[0];
+                    }
+                    setRow(getSection(x0, y, z), getLocalIndex(x0, y, z), ids, count, uniform);
+                }
+            }
+        }
+    }
+
+    private void setRow(int s, int local, int[] ids, int count, boolean uniform) {
+        while (true) {
+            Section section = sections.get(s);
+            if (uniform && getUniformId(section) == ids[0]) {
+                return;
+            }
+            DenseSection dense = expand(s, section);
+            dense.ids.set(local, ids, 0, count);
+            if (sections.get(s) == dense) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visits the sections that contain more than one state.  Empty and uniform sections are skipped without reading their blocks.
+     *
+     * @param visitor the visitor, which is given the coordinates of the minimum corner of each section
+     */
+    public void forEachNonUniformSection(BlockSectionVisitor visitor) {
+        int side = 1 << shift;
+        for (int sy = 0; sy < sectionsY; sy++) {
+            for (int sz = 0; sz < sectionsZ; sz++) {
+                for (int sx = 0; sx < sectionsX; sx++) {
+                    Section section = sections.get((sy * sectionsZ + sz) * sectionsX + sx);
+                    if (section instanceof DenseSection && !((DenseSection) section).ids.isUniform()) {
+                        visitor.visit(sx << shift, sy << shift, sz << shift, side);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the state shared by all the blocks of the section containing a block, without reading the blocks.<br> <br> Note: this method may spuriously return notUniform for uniform sections
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param notUniform the value to return if the section is not uniform
+     * @return the full state of all the blocks in the section, or notUniform
+     */
+    public int getUniformState(int x, int y, int z, int notUniform) {
+        Section section = sections.get(getSection(x, y, z));
+        if (section instanceof DenseSection) {
+            int id = ((DenseSection) section).ids.getUniformValue(-1);
+            return id < 0 ? notUniform : globalStates.get(id);
+        }
+        return globalStates.get(getUniformId(section));
+    }
+
+    /**
+     * Replaces the sections that have become uniform by shared uniform sections, and compresses the other sections.  Updates that race with the replacement of their section are applied again
+     * to the replacement.
+     */
+    public void compress() {
+        for (int s = 0; s < sections.length(); s++) {
+            Section section = sections.get(s);
+            if (!(section instanceof DenseSection)) {
+                continue;
+            }
+            AtomicShortIntArray ids = ((DenseSection) section).ids;
+            ids.lock();
+            try {
+                ids.compress();
+                int id = ids.getUniformValue(-1);
+                if (id < 0 && ids.width() == 1 && ids.getUnique() == 1) {
+                    // Compression doesn't replace arrays that are already 1 bit wide
+                    id = ids.get(0);
+                }
+                if (id >= 0) {
+                    sections.compareAndSet(s, section, id == 0 ? null : getUniformSection(id));
+                }
+            } finally {
+                ids.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of states in the global palette
+     *
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return globalCount.get();
+    }
+
+    /**
+     * Gets the number of sections that are stored as arrays, rather than as a shared reference
+     *
+     * @return the number of expanded sections
+     */
+    public int getExpandedSections() {
+        int count = 0;
+        for (int s = 0; s < sections.length(); s++) {
+            if (sections.get(s) instanceof DenseSection) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the id of a state in the global palette, adding the state if required.<br> <br> Lookups of known states don't lock.  New states are added while holding the lock on the global palette, so
+     * threads that race to add the same state don't reserve an id each.
+     *
+     * @param state the full state
+     * @return the global id
+     */
+    private int getGlobalId(int state) {
+        short id = globalLookup.get(state);
+        if (!globalLookup.isEmptyValue(id)) {
+            return id;
+        }
+        synchronized (globalStates) {
+            id = globalLookup.get(state);
+            if (!globalLookup.isEmptyValue(id)) {
+                return id;
+            }
+            int next = globalCount.get();
+            if (next >= globalStates.length()) {
+                throw new IllegalStateException("The global palette is full, it holds " + globalStates.length() + " states");
+            }
+            // The state is visible before the id is published
+            globalStates.set(next, state);
+            globalLookup.putIfAbsent(state, (short) next);
+            globalCount.set(next + 1);
+            return next;
+        }
+    }
+
+    private UniformSection getUniformSection(int id) {
+        UniformSection section = uniformSections.get(id);
+        if (section == null) {
+            uniformSections.compareAndSet(id, null, new UniformSection(id));
+            section = uniformSections.get(id);
+        }
+        return section;
+    }
+
+    private static int getUniformId(Section section) {
+        if (section == null) {
+            return 0;
+        } else if (section instanceof UniformSection) {
+            return ((UniformSection) section).id;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces a uniform or empty section by an array, if it hasn't been replaced already
+     */
+    private DenseSection expand(int s, Section section) {
+        while (true) {
+            if (section instanceof DenseSection) {
+                return (DenseSection) section;
+            }
+            AtomicShortIntArray ids = new AtomicShortIntArray(sectionLength, mode);
+            int id = getUniformId(section);
+            if (id != 0) {
+                ids.fill(0, sectionLength, id);
+            }
+            DenseSection dense = new DenseSection(ids);
+            if (sections.compareAndSet(s, section, dense)) {
+                return dense;
+            }
+            section = sections.get(s);
+        }
+    }
+
+    private int getSection(int x, int y, int z) {
+        int sx = x >> shift;
+        int sy = y >> shift;
+        int sz = z >> shift;
+        if (x < 0 || y < 0 || z < 0 || sx >= sectionsX || sy >= sectionsY || sz >= sectionsZ) {
+            throw new IllegalArgumentException("Coordinates (" + x + ", " + y + ", " + z + ") are outside the store");
+        }
+        return (sy * sectionsZ + sz) * sectionsX + sx;
+    }
+
+    private int getLocalIndex(int x, int y, int z) {
+        return ((y & sectionMask) << doubleShift) + ((z & sectionMask) << shift) + (x & sectionMask);
+    }
+
+    private void checkRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        if (minX < 0 || minY < 0 || minZ < 0 || maxX >= getSizeX() || maxY >= getSizeY() || maxZ >= getSizeZ() || minX > maxX || minY > maxY || minZ > maxZ) {
+            throw new IllegalArgumentException("Invalid region (" + minX + ", " + minY + ", " + minZ + ") to (" + maxX + ", " + maxY + ", " + maxZ + ")");
+        }
+    }
+
+    private static abstract class Section {
+        /**
+         * Gets the global id of a block
+         *
+         * @param i the index of the block in the section
+         * @return the global id
+         */
+        abstract int get(int i);
+    }
+
+    private static final class UniformSection extends Section {
+        private final int id;
+
+        private UniformSection(int id) {
+            this.id = id;
+        }
+
+        @Override
+        int get(int i) {
+            return id;
+        }
+    }
+
+    private static final class DenseSection extends Section {
+        private final AtomicShortIntArray ids;
+
+        private DenseSection(AtomicShortIntArray ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        int get(int i) {
+            return ids.get(i);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The array of full block states behind an {@link AtomicPaletteBlockStore}.  See {@link AtomicShortIntArray} for the behaviour of each method, and {@link LayeredStateArray} for an array that stores
+ * data fields in separate layers.
+ */
+interface StateArray {
+    int length();
+
+    int width();
+
+    int get(int i);
+
+    void get(int from, int to, int[] dst, int offset);
+
+    void getIds(int from, int to, short[] dst, int offset);
+
+    int set(int i, int newValue);
+
+    void set(int i, int[] values, int offset, int count);
+
+    void fill(int from, int to, int value);
+
+    void set(int[] initial);
+
+    void uncompressedSet(int[] initial);
+
+    void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray);
+
+    boolean compareAndSet(int i, int expect, int update);
+
+    void compress();
+
+    boolean needsCompression();
+
+    int getUnique();
+
+    int[] getPalette();
+
+    int[] getBackingArray();
+
+    int getSerializedSize();
+
+    void writeTo(ByteBuffer buffer);
+
+    void readFrom(ByteBuffer buffer);
+
+    void lock();
+
+    void unlock();
+
+    boolean tryLock();
+
+    boolean isUniform();
+
+    int getUniformValue(int notUniform);
+
+    void free();
+
+    /**
+     * Gets a backing array with the current values that is never modified again
+     *
+     * @return the frozen backing array
+     */
+    AtomicShortIntBackingArray freeze();
+}
@@ -0,0 +1,397 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+import com.flowpowered.commons.store.block.DirtyTracker;
+import com.flowpowered.math.GenericMath;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Records dirty blocks in one append buffer per stripe, with the stripe chosen by the writing thread, so that concurrent writers don't contend on a shared counter or shared bounds.  The stripes are
+ * merged when the dirty blocks are read.  A stripe that fills drops its individual blocks and only keeps its dirty bounds.
+ */
+public class StripedDirtyTracker implements DirtyTracker {
+    /**
+     * Each stripe header is in its own cache line
+     */
+    private static final int HEADER_SHIFT = 4;
+    private static final int COUNT = 0;
+    private static final int MIN_X = 1;
+    private static final int MIN_Y = 2;
+    private static final int MIN_Z = 3;
+    private static final int MAX_X = 4;
+    private static final int MAX_Y = 5;
+    private static final int MAX_Z = 6;
+    /**
+     * The number of writers that are marking blocks in the stripe, with {@link #CLOSED} set while a drain reads the stripe
+     */
+    private static final int WRITERS = 7;
+    private static final int CLOSED = Integer.MIN_VALUE;
+    private static final int MAX_STRIPES = 64;
+    private final int stripeMask;
+    private final int capacity;
+    private final AtomicIntegerArray headers;
+    private final byte[][] dirtyX;
+    private final byte[][] dirtyY;
+    private final byte[][] dirtyZ;
+    private final int[][] oldState;
+    private final int[][] newState;
+
+    /**
+     * Creates a tracker with a stripe for every two available processors.
+     *
+     * @param dirtySize the number of dirty blocks that are tracked individually per stripe
+     * @param storeState if the old and new states of dirty blocks are stored
+     */
+    public StripedDirtyTracker(int dirtySize, boolean storeState) {
+        this(dirtySize, storeState, Runtime.getRuntime().availableProcessors() << 1);
+    }
+
+    /**
+     * Creates a tracker.
+     *
+     * @param dirtySize the number of dirty blocks that are tracked individually per stripe
+     * @param storeState if the old and new states of dirty blocks are stored
+     * @param stripes the number of stripes, rounded up to a power of two
+     */
+    public StripedDirtyTracker(int dirtySize, boolean storeState, int stripes) {
+        stripes = Math.min(MAX_STRIPES, GenericMath.roundUpPow2(Math.max(1, stripes)));
+        stripeMask = stripes - 1;
+        capacity = dirtySize;
+        headers = new AtomicIntegerArray(stripes << HEADER_SHIFT);
+        dirtyX = new byte[stripes][dirtySize];
+        dirtyY = new byte[stripes][dirtySize];
+        dirtyZ = new byte[stripes][dirtySize];
+        if (storeState) {
+            oldState = new int[stripes][dirtySize];
+            newState = new int[stripes][dirtySize];
+        } else {
+            oldState = null;
+            newState = null;
+        }
+        for (int s = 0; s < stripes; s++) {
+            resetBounds(s << HEADER_SHIFT);
+        }
+    }
+
+    @Override
+    public void markDirty(int x, int y, int z, int oldState, int newState) {
+        int stripe = getStripe();
+        int header = stripe << HEADER_SHIFT;
+        enter(header);
+        try {
+            extendBounds(header, x, y, z, x, y, z);
+
+            int index = incrementDirtyIndex(header);
+            if (index < capacity) {
+                dirtyX[stripe][index] = (byte) x;
+                dirtyY[stripe][index] = (byte) y;
+                dirtyZ[stripe][index] = (byte) z;
+                if (this.oldState != null) {
+                    this.oldState[stripe][index] = oldState;
+                    this.newState[stripe][index] = newState;
+                }
+            }
+        } finally {
+            headers.decrementAndGet(header + WRITERS);
+        }
+    }
+
+    @Override
+    public void markDirtyRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int header = getStripe() << HEADER_SHIFT;
+        enter(header);
+        try {
+            extendBounds(header, minX, minY, minZ, maxX, maxY, maxZ);
+            setAsMax(header + COUNT, capacity);
+        } finally {
+            headers.decrementAndGet(header + WRITERS);
+        }
+    }
+
+    @Override
+    public boolean isDirty() {
+        for (int s = 0; s <= stripeMask; s++) {
+            if (headers.get((s << HEADER_SHIFT) + COUNT) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        for (int s = 0; s <= stripeMask; s++) {
+            if (headers.get((s << HEADER_SHIFT) + COUNT) >= capacity) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reset() {
+        boolean dirty = false;
+        for (int s = 0; s <= stripeMask; s++) {
+            int header = s << HEADER_SHIFT;
+            resetBounds(header);
+            dirty |= headers.getAndSet(header + COUNT, 0) > 0;
+        }
+        return dirty;
+    }
+
+    /**
+     * {@inheritDoc}<br> <br> The stripes are drained one at a time, and writers to a stripe wait while it is read and reset.
+     */
+    @Override
+    public int drain(DirtyBlockVisitor visitor, int[] bounds) {
+        bounds[0] = bounds[1] = bounds[2] = Integer.MAX_VALUE;
+        bounds[3] = bounds[4] = bounds[5] = Integer.MIN_VALUE;
+        int visited = 0;
+        boolean overflow = false;
+        for (int s = 0; s <= stripeMask; s++) {
+            int header = s << HEADER_SHIFT;
+            int slot = header + WRITERS;
+            int w;
+            while ((w = headers.get(slot)) < 0 || !headers.compareAndSet(slot, w, w | CLOSED)) {
+                // Another drain is running
+                Thread.yield();
+            }
+            try {
+                // Wait for the writers that entered before the drain
+                while (headers.get(slot) != CLOSED) {
+                    Thread.yield();
+                }
+                bounds[0] = Math.min(bounds[0], headers.get(header + MIN_X));
+                bounds[1] = Math.min(bounds[1], headers.get(header + MIN_Y));
+                bounds[2] = Math.min(bounds[2], headers.get(header + MIN_Z));
+                bounds[3] = Math.max(bounds[3], headers.get(header + MAX_X));
+                bounds[4] = Math.max(bounds[4], headers.get(header + MAX_Y));
+                bounds[5] = Math.max(bounds[5], headers.get(header + MAX_Z));
+                int count = headers.get(header + COUNT);
+                if (count >= capacity) {
+                    overflow = true;
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        int oldState = this.oldState == null ? -1 : this.oldState[s][i];
+                        int newState = this.newState == null ? -1 : this.newState[s][i];
+                        visitor.visit(dirtyX[s][i] & 0xFF, dirtyY[s][i] & 0xFF, dirtyZ[s][i] & 0xFF, oldState, newState);
+                    }
+                    visited += count;
+                }
+                resetBounds(header);
+                headers.set(header + COUNT, 0);
+            } finally {
+                headers.set(slot, 0);
+            }
+        }
+        return overflow ? -1 : visited;
+    }
+
+    @Override
+    public int getDirtyBlocks() {
+        int count = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            count += headers.get((s << HEADER_SHIFT) + COUNT);
+        }
+        return count;
+    }
+
+    @Override
+    public Vector3i getMinDirty() {
+        int x = Integer.MAX_VALUE;
+        int y = Integer.MAX_VALUE;
+        int z = Integer.MAX_VALUE;
+        for (int s = 0; s <= stripeMask; s++) {
+            int header = s << HEADER_SHIFT;
+            x = Math.min(x, headers.get(header + MIN_X));
+            y = Math.min(y, headers.get(header + MIN_Y));
+            z = Math.min(z, headers.get(header + MIN_Z));
+        }
+        return new Vector3i(x, y, z);
+    }
+
+    @Override
+    public Vector3i getMaxDirty() {
+        int x = Integer.MIN_VALUE;
+        int y = Integer.MIN_VALUE;
+        int z = Integer.MIN_VALUE;
+        for (int s = 0; s <= stripeMask; s++) {
+            int header = s << HEADER_SHIFT;
+            x = Math.max(x, headers.get(header + MAX_X));
+            y = Math.max(y, headers.get(header + MAX_Y));
+            z = Math.max(z, headers.get(header + MAX_Z));
+        }
+        return new Vector3i(x, y, z);
+    }
+
+    @Override
+    public void getDirtyBounds(int[] dst) {
+        dst[0] = dst[1] = dst[2] = Integer.MAX_VALUE;
+        dst[3] = dst[4] = dst[5] = Integer.MIN_VALUE;
+        for (int s = 0; s <= stripeMask; s++) {
+            int header = s << HEADER_SHIFT;
+            dst[0] = Math.min(dst[0], headers.get(header + MIN_X));
+            dst[1] = Math.min(dst[1], headers.get(header + MIN_Y));
+            dst[2] = Math.min(dst[2], headers.get(header + MIN_Z));
+            dst[3] = Math.max(dst[3], headers.get(header + MAX_X));
+            dst[4] = Math.max(dst[4], headers.get(header + MAX_Y));
+            dst[5] = Math.max(dst[5], headers.get(header + MAX_Z));
+        }
+    }
+
+    @Override
+    public int forEachDirtyBlock(DirtyBlockVisitor visitor) {
+        int visited = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            int count = Math.min(capacity, headers.get((s << HEADER_SHIFT) + COUNT));
+            for (int i = 0; i < count; i++) {
+                int oldState = this.oldState == null ? -1 : this.oldState[s][i];
+                int newState = this.newState == null ? -1 : this.newState[s][i];
+                visitor.visit(dirtyX[s][i] & 0xFF, dirtyY[s][i] & 0xFF, dirtyZ[s][i] & 0xFF, oldState, newState);
+            }
+            visited += count;
+        }
+        return visited;
+    }
+
+    @Override
+    public int getDirtyIndices(int[] dst, int shift) {
+        int doubleShift = shift << 1;
+        int n = 0;
+        for (int s = 0; s <= stripeMask && n < dst.length; s++) {
+            int count = Math.min(Math.min(capacity, headers.get((s << HEADER_SHIFT) + COUNT)), dst.length - n);
+            for (int i = 0; i < count; i++) {
+                dst[n++] = ((dirtyY[s][i] & 0xFF) << doubleShift) + ((dirtyZ[s][i] & 0xFF) << shift) + (dirtyX[s][i] & 0xFF);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        for (int s = 0; s <= stripeMask; s++) {
+            int count = Math.min(capacity, headers.get((s << HEADER_SHIFT) + COUNT));
+            if (i < count) {
+                return new Vector3i(dirtyX[s][i] & 0xFF, dirtyY[s][i] & 0xFF, dirtyZ[s][i] & 0xFF);
+            }
+            i -= count;
+        }
+        return null;
+    }
+
+    @Override
+    public int getDirtyOldState(int i) {
+        return getState(oldState, i);
+    }
+
+    @Override
+    public int getDirtyNewState(int i) {
+        return getState(newState, i);
+    }
+
+    private int getState(int[][] states, int i) {
+        if (states == null) {
+            return -1;
+        }
+        for (int s = 0; s <= stripeMask; s++) {
+            int count = Math.min(capacity, headers.get((s << HEADER_SHIFT) + COUNT));
+            if (i < count) {
+                return states[s][i];
+            }
+            i -= count;
+        }
+        return -1;
+    }
+
+    private int getStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & stripeMask;
+    }
+
+    private void enter(int header) {
+        int slot = header + WRITERS;
+        while (true) {
+            int w = headers.get(slot);
+            if (w < 0) {
+                // Wait for the drain of the stripe to complete
+                Thread.yield();
+            } else if (headers.compareAndSet(slot, w, w + 1)) {
+                return;
+            }
+        }
+    }
+
+    private int incrementDirtyIndex(int header) {
+        int slot = header + COUNT;
+        while (true) {
+            int index = headers.get(slot);
+            if (index > capacity) {
+                return index;
+            }
+            if (headers.compareAndSet(slot, index, index + 1)) {
+                return index;
+            }
+        }
+    }
+
+    private void extendBounds(int header, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        setAsMin(header + MIN_X, minX);
+        setAsMin(header + MIN_Y, minY);
+        setAsMin(header + MIN_Z, minZ);
+        setAsMax(header + MAX_X, maxX);
+        setAsMax(header + MAX_Y, maxY);
+        setAsMax(header + MAX_Z, maxZ);
+    }
+
+    private void resetBounds(int header) {
+        headers.set(header + MIN_X, Integer.MAX_VALUE);
+        headers.set(header + MIN_Y, Integer.MAX_VALUE);
+        headers.set(header + MIN_Z, Integer.MAX_VALUE);
+        headers.set(header + MAX_X, Integer.MIN_VALUE);
+        headers.set(header + MAX_Y, Integer.MIN_VALUE);
+        headers.set(header + MAX_Z, Integer.MIN_VALUE);
+    }
+
+    private void setAsMin(int slot, int x) {
+        int old;
+        while ((old = headers.get(slot)) > x) {
+            if (headers.compareAndSet(slot, old, x)) {
+                return;
+            }
+        }
+    }
+
+    private void setAsMax(int slot, int x) {
+        int old;
+        while ((old = headers.get(slot)) < x) {
+            if (headers.compareAndSet(slot, old, x)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for counting unique values, reused by each thread so that counting does not allocate once the scratch has grown to the largest count seen.  The set is cleared in constant time
+ * by stamping the occupied slots with the current count number.<br> <br> A counter must not be used by two counts at the same time on one thread.
+ */
+final class UniqueCounter {
+    private static final ThreadLocal<UniqueCounter> SCRATCH = new ThreadLocal<UniqueCounter>() {
+        @Override
+        protected UniqueCounter initialValue() {
+            return new UniqueCounter();
+        }
+    };
+    private int[] keys = new int[64];
+    private int[] stamps = new int[64];
+    private int mask = 63;
+    private int stamp = 0;
+    private int size = 0;
+    private int[] buffer = new int[1024];
+    private long[] bits = new long[16];
+
+    private UniqueCounter() {
+    }
+
+    /**
+     * Gets the counter of the current thread, with an empty set
+     *
+     * @return the counter
+     */
+    public static UniqueCounter get() {
+        UniqueCounter counter = SCRATCH.get();
+        counter.clear();
+        return counter;
+    }
+
+    /**
+     * Removes all the values from the set
+     */
+    public void clear() {
+        size = 0;
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Adds a value to the set
+     *
+     * @param value the value
+     * @return true if the value was not in the set
+     */
+    public boolean add(int value) {
+        int i = hash(value) & mask;
+        while (stamps[i] == stamp) {
+            if (keys[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = value;
+        stamps[i] = stamp;
+        if (++size > (mask >> 1)) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of values in the set
+     *
+     * @return the size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets a buffer for reading values in chunks.  The contents are undefined.
+     *
+     * @param length the minimum length
+     * @return the buffer
+     */
+    public int[] getBuffer(int length) {
+        if (buffer.length < length) {
+            buffer = new int[length];
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets a bitmap with all the bits cleared
+     *
+     * @param words the minimum length, in longs
+     * @return the bitmap
+     */
+    public long[] getBits(int words) {
+        if (bits.length < words) {
+            bits = new long[words];
+        } else {
+            Arrays.fill(bits, 0, words, 0L);
+        }
+        return bits;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldStamps = stamps;
+        int oldStamp = stamp;
+        keys = new int[oldKeys.length << 1];
+        stamps = new int[keys.length];
+        mask = keys.length - 1;
+        stamp = 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldStamps[j] == oldStamp) {
+                int i = hash(oldKeys[j]) & mask;
+                while (stamps[i] == stamp) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                stamps[i] = stamp;
+            }
+        }
+    }
+
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
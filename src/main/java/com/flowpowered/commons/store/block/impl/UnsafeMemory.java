@@ -0,0 +1,131 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Raw memory access for {@link OffHeapAtomicIntStorage}.<br> <br> The methods of <code>sun.misc.Unsafe</code> are looked up reflectively and called through constant method handles, which the JIT
+ * inlines, so no proprietary API is referenced at compile time.
+ */
+final class UnsafeMemory {
+    private static final MethodHandle ALLOCATE_MEMORY;
+    private static final MethodHandle SET_MEMORY;
+    private static final MethodHandle FREE_MEMORY;
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_INT_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_INT;
+    private static final MethodHandle COMPARE_AND_SWAP_INT;
+
+    static {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ALLOCATE_MEMORY = lookup.findVirtual(type, "allocateMemory", MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+            SET_MEMORY = lookup.findVirtual(type, "setMemory", MethodType.methodType(void.class, long.class, long.class, byte.class)).bindTo(unsafe);
+            FREE_MEMORY = lookup.findVirtual(type, "freeMemory", MethodType.methodType(void.class, long.class)).bindTo(unsafe);
+            GET_INT_VOLATILE = lookup.findVirtual(type, "getIntVolatile", MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            PUT_INT_VOLATILE = lookup.findVirtual(type, "putIntVolatile", MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            PUT_ORDERED_INT = lookup.findVirtual(type, "putOrderedInt", MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            COMPARE_AND_SWAP_INT = lookup.findVirtual(type, "compareAndSwapInt", MethodType.methodType(boolean.class, Object.class, long.class, int.class, int.class)).bindTo(unsafe);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private UnsafeMemory() {
+    }
+
+    static long allocateMemory(long bytes) {
+        try {
+            return (long) ALLOCATE_MEMORY.invokeExact(bytes);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void setMemory(long address, long bytes, byte value) {
+        try {
+            SET_MEMORY.invokeExact(address, bytes, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void freeMemory(long address) {
+        try {
+            FREE_MEMORY.invokeExact(address);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int getIntVolatile(long address) {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void putIntVolatile(long address, int value) {
+        try {
+            PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void putOrderedInt(long address, int value) {
+        try {
+            PUT_ORDERED_INT.invokeExact((Object) null, address, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static boolean compareAndSwapInt(long address, int expect, int update) {
+        try {
+            return (boolean) COMPARE_AND_SWAP_INT.invokeExact((Object) null, address, expect, update);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
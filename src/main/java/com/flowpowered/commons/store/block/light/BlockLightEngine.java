@@ -0,0 +1,47 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.light;
+
+/**
+ * Propagates the light emitted by blocks, see {@link LightProperties#getEmittedLight(int)}.
+ */
+public class BlockLightEngine extends LightEngine {
+    /**
+     * Creates an engine with no sections
+     *
+     * @param shift the log2 of the side length of the sections, which must match the shift of the block stores
+     * @param sectionsX the number of sections along the x axis
+     * @param sectionsY the number of sections along the y axis
+     * @param sectionsZ the number of sections along the z axis
+     * @param properties the light properties of the block states
+     */
+    public BlockLightEngine(int shift, int sectionsX, int sectionsY, int sectionsZ, LightProperties properties) {
+        super(shift, sectionsX, sectionsY, sectionsZ, properties);
+    }
+
+    @Override
+    protected int getSource(int state, int y) {
+        return getProperties().getEmittedLight(state);
+    }
+}
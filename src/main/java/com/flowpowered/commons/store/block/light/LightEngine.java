@@ -0,0 +1,503 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.light;
+
+import com.flowpowered.commons.hashing.Int10TripleHashed;
+import com.flowpowered.commons.hashing.NibbleQuadHashed;
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+
+/**
+ * Propagates light through a fixed grid of block store sections, storing the levels in a {@link NibbleLightArray} per section.  Light spreads across section boundaries, and sections that are not
+ * set neither hold nor pass light.  Coordinates range from 0 (inclusive) to the size of the grid in blocks (exclusive), which is at most 1024 on each axis.<br> <br> Changes are queued by
+ * {@link #setSection(int, int, int, AtomicBlockStore)}, {@link #relight(int, int, int, int, int, int)} and {@link #update()}, and are applied by a breadth first propagation pass.  Removals are
+ * processed first, by clearing the light that depended on the changed blocks, then the remaining light spreads back in.  The work queues hold positions packed into ints by an
+ * {@link Int10TripleHashed}, so neither reading the dirty blocks nor a pass allocate once the queues have grown to the size of the change.<br> <br> The engine is not thread safe and should be driven by a single thread.  The
+ * block stores can be updated concurrently, and the changes are picked up by the next {@link #update()}.
+ */
+public abstract class LightEngine {
+    /**
+     * The direction towards negative y
+     */
+    protected static final int DOWN = 0;
+    /**
+     * The direction index used for queued positions that were not reached from a neighbour
+     */
+    private static final int NONE = 6;
+    private static final int[] DX = {0, 0, 0, 0, -1, 1};
+    private static final int[] DY = {-1, 1, 0, 0, 0, 0};
+    private static final int[] DZ = {0, 0, -1, 1, 0, 0};
+    private final int shift;
+    private final int mask;
+    private final int sectionsX;
+    private final int sectionsY;
+    private final int sectionsZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final LightProperties properties;
+    private final AtomicBlockStore[] stores;
+    private final NibbleLightArray[] light;
+    private final Int10TripleHashed hash = new Int10TripleHashed(0, 0, 0);
+    private final IntQueue increase = new IntQueue();
+    private final IntQueue decrease = new IntQueue();
+    private final IntQueue dirty = new IntQueue();
+    private final int[] bounds = new int[6];
+    private final RelightVisitor dirtyVisitor = new RelightVisitor();
+
+    /**
+     * Creates an engine with no sections
+     *
+     * @param shift the log2 of the side length of the sections, which must match the shift of the block stores
+     * @param sectionsX the number of sections along the x axis
+     * @param sectionsY the number of sections along the y axis
+     * @param sectionsZ the number of sections along the z axis
+     * @param properties the light properties of the block states
+     */
+    public LightEngine(int shift, int sectionsX, int sectionsY, int sectionsZ, LightProperties properties) {
+        if (shift < 1 || sectionsX < 1 || sectionsY < 1 || sectionsZ < 1) {
+            throw new IllegalArgumentException("The shift and the number of sections must be positive");
+        }
+        if (sectionsX << shift > 1024 || sectionsY << shift > 1024 || sectionsZ << shift > 1024) {
+            throw new IllegalArgumentException("The grid can be at most 1024 blocks on each axis");
+        }
+        this.shift = shift;
+        this.mask = (1 << shift) - 1;
+        this.sectionsX = sectionsX;
+        this.sectionsY = sectionsY;
+        this.sectionsZ = sectionsZ;
+        this.sizeX = sectionsX << shift;
+        this.sizeY = sectionsY << shift;
+        this.sizeZ = sectionsZ << shift;
+        this.properties = properties;
+        this.stores = new AtomicBlockStore[sectionsX * sectionsY * sectionsZ];
+        this.light = new NibbleLightArray[stores.length];
+    }
+
+    /**
+     * Gets the light level emitted at a position, before any propagation
+     *
+     * @param state the block state at the position
+     * @param y the y coordinate of the position
+     * @return the level
+     */
+    protected abstract int getSource(int state, int y);
+
+    /**
+     * Gets the level of light after it moves into a neighbouring block
+     *
+     * @param level the level of the light
+     * @param opacity the opacity of the block it moves into
+     * @param direction the direction of the move
+     * @return the new level, 0 or less if the light does not reach the block
+     */
+    protected int attenuate(int level, int opacity, int direction) {
+        return level - Math.max(1, opacity);
+    }
+
+    /**
+     * Gets if the light at a neighbouring block could have come from a given block, when the light at the given block is removed
+     *
+     * @param level the old level of the given block
+     * @param neighbourLevel the level of the neighbour
+     * @param direction the direction from the given block to the neighbour
+     * @return true if the neighbour may depend on the given block
+     */
+    protected boolean isDependent(int level, int neighbourLevel, int direction) {
+        return neighbourLevel < level;
+    }
+
+    /**
+     * Gets the light properties of the block states
+     *
+     * @return the properties
+     */
+    public LightProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Gets the size of the grid along the y axis, in blocks
+     *
+     * @return the size
+     */
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    /**
+     * Gets the light level at the given coordinates
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the level, or 0 if the section is not set
+     */
+    public int getLight(int x, int y, int z) {
+        checkCoordinates(x, y, z);
+        NibbleLightArray array = light[getSectionIndex(x, y, z)];
+        return array == null ? 0 : array.get(x, y, z);
+    }
+
+    /**
+     * Gets the light array of a section
+     *
+     * @param sx the x coordinate of the section
+     * @param sy the y coordinate of the section
+     * @param sz the z coordinate of the section
+     * @return the light array, or null if the section is not set
+     */
+    public NibbleLightArray getLightArray(int sx, int sy, int sz) {
+        return light[getSectionIndexChecked(sx, sy, sz)];
+    }
+
+    /**
+     * Gets the block store of a section
+     *
+     * @param sx the x coordinate of the section
+     * @param sy the y coordinate of the section
+     * @param sz the z coordinate of the section
+     * @return the block store, or null if the section is not set
+     */
+    public AtomicBlockStore getSection(int sx, int sy, int sz) {
+        return stores[getSectionIndexChecked(sx, sy, sz)];
+    }
+
+    /**
+     * Sets the block store of a section and queues the section for lighting.  A previous store for the section is removed first, see {@link #removeSection(int, int, int)}.
+     *
+     * @param sx the x coordinate of the section
+     * @param sy the y coordinate of the section
+     * @param sz the z coordinate of the section
+     * @param store the block store, with the same shift as the engine
+     */
+    public void setSection(int sx, int sy, int sz, AtomicBlockStore store) {
+        int s = getSectionIndexChecked(sx, sy, sz);
+        if (stores[s] != null) {
+            removeSection(sx, sy, sz);
+        }
+        stores[s] = store;
+        light[s] = new NibbleLightArray(shift);
+        int side = mask + 1;
+        relight(sx << shift, sy << shift, sz << shift, (sx << shift) + side - 1, (sy << shift) + side - 1, (sz << shift) + side - 1);
+    }
+
+    /**
+     * Removes the block store of a section, and removes the light that spread from the section to its neighbours.  This method runs a propagation pass.
+     *
+     * @param sx the x coordinate of the section
+     * @param sy the y coordinate of the section
+     * @param sz the z coordinate of the section
+     */
+    public void removeSection(int sx, int sy, int sz) {
+        int s = getSectionIndexChecked(sx, sy, sz);
+        NibbleLightArray array = light[s];
+        if (array == null) {
+            return;
+        }
+        // Light can no longer enter the section, but the levels are still readable until the removal is propagated
+        stores[s] = null;
+        int side = mask + 1;
+        for (int y = 0; y < side; y++) {
+            for (int z = 0; z < side; z++) {
+                for (int x = 0; x < side; x++) {
+                    int i = array.getIndex(x, y, z);
+                    int level = array.get(i);
+                    if (level > 0) {
+                        array.set(i, 0);
+                        queueDecrease(hash.key((sx << shift) + x, (sy << shift) + y, (sz << shift) + z), level, NONE);
+                    }
+                }
+            }
+        }
+        propagate();
+        light[s] = null;
+    }
+
+    /**
+     * Drains the blocks that changed in the block stores since the last update, queues them for relighting and runs a propagation pass.  The engine uses the dirty bounds if a store dropped
+     * individual dirty blocks.  Blocks that change during the update are relit by this update or by the next one.
+     */
+    public void update() {
+        for (int sy = 0; sy < sectionsY; sy++) {
+            for (int sz = 0; sz < sectionsZ; sz++) {
+                for (int sx = 0; sx < sectionsX; sx++) {
+                    AtomicBlockStore store = stores[(sy * sectionsZ + sz) * sectionsX + sx];
+                    if (store == null || !store.isDirty()) {
+                        continue;
+                    }
+                    int bx = sx << shift;
+                    int by = sy << shift;
+                    int bz = sz << shift;
+                    dirtyVisitor.setBase(bx, by, bz);
+                    if (store.drainDirty(dirtyVisitor, bounds) < 0) {
+                        // The bounds cover the blocks that were visited
+                        dirty.clear();
+                        relight(bx + bounds[0], by + bounds[1], bz + bounds[2], bx + bounds[3], by + bounds[4], bz + bounds[5]);
+                    }
+                    // The blocks are relit once the drain completed, since writers to the store may wait for it
+                    while (!dirty.isEmpty()) {
+                        int key = dirty.remove();
+                        relight(hash.keyX(key), hash.keyY(key), hash.keyZ(key));
+                    }
+                }
+            }
+        }
+        propagate();
+    }
+
+    /**
+     * Queues a block for relighting, after its state changed
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     */
+    public void relight(int x, int y, int z) {
+        relight(x, y, z, x, y, z);
+    }
+
+    /**
+     * Queues a region for relighting, after the states of its blocks changed.  All the coordinates are inclusive.
+     */
+    public void relight(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        checkCoordinates(minX, minY, minZ);
+        checkCoordinates(maxX, maxY, maxZ);
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    int s = getSectionIndex(x, y, z);
+                    AtomicBlockStore store = stores[s];
+                    if (store == null) {
+                        continue;
+                    }
+                    NibbleLightArray array = light[s];
+                    int i = array.getIndex(x, y, z);
+                    int level = array.get(i);
+                    int source = getSource(store.getFullData(i), y);
+                    array.set(i, source);
+                    int key = hash.key(x, y, z);
+                    if (level > 0) {
+                        queueDecrease(key, level, NONE);
+                    }
+                    if (source > 0) {
+                        increase.add(key);
+                    }
+                }
+            }
+        }
+        // Light around the region spreads back in, even where no light in the region was removed
+        for (int y = Math.max(0, minY - 1); y <= Math.min(sizeY - 1, maxY + 1); y++) {
+            boolean insideY = y >= minY && y <= maxY;
+            for (int z = Math.max(0, minZ - 1); z <= Math.min(sizeZ - 1, maxZ + 1); z++) {
+                boolean insideYZ = insideY && z >= minZ && z <= maxZ;
+                for (int x = Math.max(0, minX - 1); x <= Math.min(sizeX - 1, maxX + 1); x++) {
+                    if (insideYZ && x >= minX && x <= maxX) {
+                        x = maxX;
+                        continue;
+                    }
+                    NibbleLightArray array = light[getSectionIndex(x, y, z)];
+                    if (array != null && array.get(x, y, z) > 0) {
+                        increase.add(hash.key(x, y, z));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the queued changes, first removing light that depended on changed blocks and then spreading light from the sources and the remaining lit blocks.
+     */
+    public void propagate() {
+        while (!decrease.isEmpty()) {
+            int key = decrease.remove();
+            int meta = decrease.remove();
+            int level = NibbleQuadHashed.key1(meta);
+            int from = NibbleQuadHashed.key2(meta) ^ 1;
+            int x = hash.keyX(key);
+            int y = hash.keyY(key);
+            int z = hash.keyZ(key);
+            for (int d = 0; d < 6; d++) {
+                if (d == from) {
+                    continue;
+                }
+                int nx = x + DX[d];
+                int ny = y + DY[d];
+                int nz = z + DZ[d];
+                if (!isInside(nx, ny, nz)) {
+                    continue;
+                }
+                int s = getSectionIndex(nx, ny, nz);
+                NibbleLightArray array = light[s];
+                if (array == null) {
+                    continue;
+                }
+                int i = array.getIndex(nx, ny, nz);
+                int neighbourLevel = array.get(i);
+                if (neighbourLevel == 0) {
+                    continue;
+                }
+                int neighbourKey = hash.key(nx, ny, nz);
+                if (isDependent(level, neighbourLevel, d)) {
+                    AtomicBlockStore store = stores[s];
+                    int source = store == null ? 0 : getSource(store.getFullData(i), ny);
+                    if (source >= neighbourLevel) {
+                        increase.add(neighbourKey);
+                        continue;
+                    }
+                    array.set(i, source);
+                    queueDecrease(neighbourKey, neighbourLevel, d);
+                    if (source > 0) {
+                        increase.add(neighbourKey);
+                    }
+                } else {
+                    increase.add(neighbourKey);
+                }
+            }
+        }
+        while (!increase.isEmpty()) {
+            int key = increase.remove();
+            int x = hash.keyX(key);
+            int y = hash.keyY(key);
+            int z = hash.keyZ(key);
+            NibbleLightArray array = light[getSectionIndex(x, y, z)];
+            if (array == null) {
+                continue;
+            }
+            int level = array.get(x, y, z);
+            if (level == 0) {
+                continue;
+            }
+            for (int d = 0; d < 6; d++) {
+                int nx = x + DX[d];
+                int ny = y + DY[d];
+                int nz = z + DZ[d];
+                if (!isInside(nx, ny, nz)) {
+                    continue;
+                }
+                int s = getSectionIndex(nx, ny, nz);
+                AtomicBlockStore store = stores[s];
+                if (store == null) {
+                    continue;
+                }
+                NibbleLightArray neighbour = light[s];
+                int i = neighbour.getIndex(nx, ny, nz);
+                int current = neighbour.get(i);
+                // Light never grows as it spreads, so brighter neighbours can be skipped without reading the block state
+                if (current >= level) {
+                    continue;
+                }
+                int neighbourLevel = attenuate(level, properties.getOpacity(store.getFullData(i)), d);
+                if (neighbourLevel > current) {
+                    neighbour.set(i, neighbourLevel);
+                    increase.add(hash.key(nx, ny, nz));
+                }
+            }
+        }
+    }
+
+    private void queueDecrease(int key, int level, int direction) {
+        decrease.add(key);
+        decrease.add(NibbleQuadHashed.key(level, direction, 0, 0));
+    }
+
+    private boolean isInside(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < sizeX && y < sizeY && z < sizeZ;
+    }
+
+    private void checkCoordinates(int x, int y, int z) {
+        if (!isInside(x, y, z)) {
+            throw new IllegalArgumentException("Coordinates (" + x + ", " + y + ", " + z + ") are outside the grid");
+        }
+    }
+
+    private int getSectionIndex(int x, int y, int z) {
+        return ((y >> shift) * sectionsZ + (z >> shift)) * sectionsX + (x >> shift);
+    }
+
+    private int getSectionIndexChecked(int sx, int sy, int sz) {
+        if (sx < 0 || sy < 0 || sz < 0 || sx >= sectionsX || sy >= sectionsY || sz >= sectionsZ) {
+            throw new IllegalArgumentException("Section (" + sx + ", " + sy + ", " + sz + ") is outside the grid");
+        }
+        return (sy * sectionsZ + sz) * sectionsX + sx;
+    }
+
+    /**
+     * Queues the visited dirty blocks of a section for relighting, once the drain completed
+     */
+    private final class RelightVisitor implements DirtyBlockVisitor {
+        private int bx;
+        private int by;
+        private int bz;
+
+        private void setBase(int bx, int by, int bz) {
+            this.bx = bx;
+            this.by = by;
+            this.bz = bz;
+        }
+
+        @Override
+        public void visit(int x, int y, int z, int oldState, int newState) {
+            dirty.add(hash.key(bx + x, by + y, bz + z));
+        }
+    }
+
+    /**
+     * A growable ring buffer of ints
+     */
+    private static final class IntQueue {
+        private int[] queue = new int[1024];
+        private int head;
+        private int tail;
+
+        public boolean isEmpty() {
+            return head == tail;
+        }
+
+        public void add(int value) {
+            queue[tail] = value;
+            tail = (tail + 1) & (queue.length - 1);
+            if (tail == head) {
+                int[] grown = new int[queue.length << 1];
+                int split = queue.length - head;
+                System.arraycopy(queue, head, grown, 0, split);
+                System.arraycopy(queue, 0, grown, split, head);
+                head = 0;
+                tail = queue.length;
+                queue = grown;
+            }
+        }
+
+        public void clear() {
+            head = 0;
+            tail = 0;
+        }
+
+        public int remove() {
+            int value = queue[head];
+            head = (head + 1) & (queue.length - 1);
+            return value;
+        }
+    }
+}
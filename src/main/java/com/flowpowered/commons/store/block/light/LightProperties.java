@@ -0,0 +1,46 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.light;
+
+/**
+ * Maps block states to the properties used when propagating light.  Both values range from 0 to 15.
+ */
+public interface LightProperties {
+    /**
+     * Gets the light emitted by blocks with the given state
+     *
+     * @param state the full state, see {@link com.flowpowered.commons.store.block.AtomicBlockStore#getFullData(int, int, int)}
+     * @return the emitted light level
+     */
+    int getEmittedLight(int state);
+
+    /**
+     * Gets how much light is lost when entering blocks with the given state.  Light always loses at least one level per block, except sky light going straight down through blocks with an opacity of
+     * 0.
+     *
+     * @param state the full state, see {@link com.flowpowered.commons.store.block.AtomicBlockStore#getFullData(int, int, int)}
+     * @return the opacity
+     */
+    int getOpacity(int state);
+}
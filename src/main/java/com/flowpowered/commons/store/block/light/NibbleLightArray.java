@@ -0,0 +1,141 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.light;
+
+import java.util.Arrays;
+
+import com.flowpowered.commons.hashing.NibblePairHashed;
+
+/**
+ * Light levels for a cubic section, packed two to a byte.  Indexes use the same layout as the block stores, (y << doubleShift) + (z << shift) + x.<br> <br> The array is written by a single
+ * {@link LightEngine}.  Readers on other threads may see levels from before or during a propagation pass.
+ */
+public class NibbleLightArray {
+    private final int shift;
+    private final int doubleShift;
+    private final int mask;
+    private final int length;
+    private final byte[] data;
+
+    /**
+     * Creates an array with all the levels at 0
+     *
+     * @param shift the log2 of the side length of the section, at least 1
+     */
+    public NibbleLightArray(int shift) {
+        if (shift < 1 || shift > 10) {
+            throw new IllegalArgumentException("Shift must be between 1 and 10: " + shift);
+        }
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.mask = (1 << shift) - 1;
+        this.length = 1 << (shift * 3);
+        this.data = new byte[length >> 1];
+    }
+
+    /**
+     * Gets the number of levels in the array
+     *
+     * @return the length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the light level at a given index
+     *
+     * @param i the index
+     * @return the level
+     */
+    public int get(int i) {
+        byte pair = data[i >> 1];
+        return (i & 1) == 0 ? NibblePairHashed.key2(pair) : NibblePairHashed.key1(pair);
+    }
+
+    /**
+     * Gets the light level at the given coordinates, which are relative to the section
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the level
+     */
+    public int get(int x, int y, int z) {
+        return get(getIndex(x, y, z));
+    }
+
+    /**
+     * Sets the light level at a given index
+     *
+     * @param i the index
+     * @param level the new level, from 0 to 15
+     */
+    public void set(int i, int level) {
+        int j = i >> 1;
+        data[j] = (i & 1) == 0 ? NibblePairHashed.setKey2(data[j], level) : NibblePairHashed.setKey1(data[j], level);
+    }
+
+    /**
+     * Sets the light level at the given coordinates, which are relative to the section
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param level the new level, from 0 to 15
+     */
+    public void set(int x, int y, int z, int level) {
+        set(getIndex(x, y, z), level);
+    }
+
+    /**
+     * Sets all the levels to the given level
+     *
+     * @param level the new level, from 0 to 15
+     */
+    public void fill(int level) {
+        Arrays.fill(data, NibblePairHashed.key(level, level));
+    }
+
+    /**
+     * Gets the index for the given coordinates, which are relative to the section
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the index
+     */
+    public int getIndex(int x, int y, int z) {
+        return ((y & mask) << doubleShift) + ((z & mask) << shift) + (x & mask);
+    }
+
+    /**
+     * Gets a copy of the packed levels, the level at an even index is in the low nibble of a byte
+     *
+     * @return the packed levels
+     */
+    public byte[] getPacked() {
+        return Arrays.copyOf(data, data.length);
+    }
+}
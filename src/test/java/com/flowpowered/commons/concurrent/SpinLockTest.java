@@ -0,0 +1,187 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpinLockTest {
+    private static final int THREADS = 4;
+    private static final int LOCKS_PER_THREAD = 50000;
+
+    @Test
+    public void mutualExclusion() throws InterruptedException {
+        testMutualExclusion(new SpinLock());
+        testMutualExclusion(new SpinLock(true));
+        testMutualExclusion(new SpinLock(false, true));
+    }
+
+    private void testMutualExclusion(final SpinLock lock) throws InterruptedException {
+        final int[] counter = new int[1];
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) throws InterruptedException {
+                for (int i = 0; i < LOCKS_PER_THREAD; i++) {
+                    if ((i & 1) == 0) {
+                        lock.lock();
+                    } else {
+                        lock.lockInterruptibly();
+                    }
+                    try {
+                        counter[0]++;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+        Assert.assertEquals(THREADS * LOCKS_PER_THREAD, counter[0]);
+        Assert.assertFalse(lock.isLocked());
+        Assert.assertTrue(lock.getSpinCount() >= 0);
+        Assert.assertTrue(lock.getParkCount() >= 0);
+    }
+
+    @Test
+    public void tryLock() throws InterruptedException {
+        final SpinLock lock = new SpinLock();
+        Assert.assertTrue(lock.tryLock());
+        Assert.assertFalse(lock.tryLock());
+        final boolean[] acquired = new boolean[2];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = lock.tryLock(10, TimeUnit.MILLISECONDS);
+                    acquired[1] = lock.tryLock(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        lock.unlock();
+        thread.join();
+        Assert.assertFalse(acquired[0]);
+        Assert.assertTrue(acquired[1]);
+        Assert.assertTrue(lock.isLocked());
+        lock.unlock();
+        try {
+            lock.unlock();
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void condition() throws InterruptedException {
+        final SpinLock lock = new SpinLock(true);
+        final Condition ready = lock.newCondition();
+        final int[] state = new int[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    while (state[0] == 0) {
+                        ready.awaitUninterruptibly();
+                    }
+                    state[0]++;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        lock.lock();
+        try {
+            state[0] = 1;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        thread.join();
+        Assert.assertEquals(2, state[0]);
+        try {
+            ready.signal();
+            Assert.fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+    }
+
+    @Test
+    public void holdTime() throws InterruptedException {
+        SpinLock lock = new SpinLock(false, true);
+        for (int i = 0; i < 3; i++) {
+            lock.lock();
+            Thread.sleep(5);
+            lock.unlock();
+        }
+        Assert.assertEquals(3, lock.getLockCount());
+        Assert.assertTrue(lock.getHoldTime(TimeUnit.MILLISECONDS) >= 15);
+        Assert.assertTrue(lock.resetCounters());
+        Assert.assertEquals(0, lock.getLockCount());
+        Assert.assertEquals(0, lock.getHoldTime(TimeUnit.NANOSECONDS));
+        Assert.assertEquals(0, lock.getSpinCount());
+        lock.lock();
+        Assert.assertFalse(lock.resetCounters());
+        lock.unlock();
+    }
+
+    private static void runThreads(final ThreadTask task) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(thread);
+                    } catch (Throwable e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new AssertionError(error[0]);
+            }
+        }
+    }
+
+    private static interface ThreadTask {
+        public void run(int thread) throws InterruptedException;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.concurrent;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.commons.map.TripleIntObjectVisitor;
+
+public class TripleIntObjectReferenceArrayMapTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 2000;
+
+    @Test
+    public void putGetRemove() {
+        TripleIntObjectReferenceArrayMap<String> map = new TripleIntObjectReferenceArrayMap<>(4);
+        // Keys that share their low bits but differ in the high bits, or in sign, force splits at several levels
+        int[][] keys = {{0, 0, 0}, {1, 2, 3}, {1 << 20, 2, 3}, {-1, 2, 3}, {Integer.MIN_VALUE, 0, 0}, {Integer.MAX_VALUE, -5, 17}, {16, 0, 0}, {0, 0, 256}};
+        for (int[] k : keys) {
+            Assert.assertNull(map.put(k[0], k[1], k[2], toString(k)));
+        }
+        for (int[] k : keys) {
+            Assert.assertEquals(toString(k), map.get(k[0], k[1], k[2]));
+        }
+        Assert.assertNull(map.get(2, 2, 3));
+        Assert.assertNull(map.get(1 << 21, 2, 3));
+        Assert.assertEquals(keys.length, map.valueCollection().size());
+
+        Assert.assertEquals("1,2,3", map.putIfAbsent(1, 2, 3, "other"));
+        Assert.assertFalse(map.remove(1, 2, 3, "other"));
+        Assert.assertTrue(map.remove(1, 2, 3, map.get(1, 2, 3)));
+        Assert.assertNull(map.get(1, 2, 3));
+        Assert.assertNull(map.putIfAbsent(1, 2, 3, "again"));
+        Assert.assertEquals("again", map.put(1, 2, 3, "replaced"));
+        Assert.assertEquals("replaced", map.remove(1, 2, 3));
+        Assert.assertNull(map.remove(1, 2, 3));
+        Assert.assertEquals(keys.length - 1, map.valueCollection().size());
+        Assert.assertFalse(map.valueCollection().contains("replaced"));
+    }
+
+    @Test
+    public void concurrentUpdates() throws InterruptedException {
+        final TripleIntObjectReferenceArrayMap<Integer> map = new TripleIntObjectReferenceArrayMap<>(2);
+        final int[][] keys = new int[THREADS * KEYS_PER_THREAD][];
+        Random random = new Random(42);
+        Set<String> unique = new HashSet<>();
+        for (int i = 0; i < keys.length; ) {
+            int[] k = {random.nextInt(64) << random.nextInt(24), random.nextInt(64) - 32, random.nextInt(64) << random.nextInt(24)};
+            if (unique.add(toString(k))) {
+                keys[i++] = k;
+            }
+        }
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                // Each key is raced for by two threads, exactly one of them must win
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    int index = thread * KEYS_PER_THREAD + i;
+                    int[] k = keys[index];
+                    map.putIfAbsent(k[0], k[1], k[2], index);
+                    int[] other = keys[((thread + 1) % THREADS) * KEYS_PER_THREAD + i];
+                    map.putIfAbsent(other[0], other[1], other[2], -(((thread + 1) % THREADS) * KEYS_PER_THREAD + i) - 1);
+                }
+            }
+        });
+        Assert.assertEquals(keys.length, map.valueCollection().size());
+        for (int i = 0; i < keys.length; i++) {
+            Integer value = map.get(keys[i][0], keys[i][1], keys[i][2]);
+            Assert.assertTrue(value == i || value == -i - 1);
+        }
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                for (int i = thread; i < keys.length; i += THREADS) {
+                    Assert.assertNotNull(map.remove(keys[i][0], keys[i][1], keys[i][2]));
+                }
+            }
+        });
+        Assert.assertTrue(map.valueCollection().isEmpty());
+        for (int[] k : keys) {
+            Assert.assertNull(map.get(k[0], k[1], k[2]));
+        }
+    }
+
+    @Test
+    public void rangeQueries() {
+        TripleIntObjectReferenceArrayMap<String> map = new TripleIntObjectReferenceArrayMap<>(3);
+        Random random = new Random(42);
+        Set<String> all = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            int[] k = {random.nextInt(128) - 64, random.nextInt(128) - 64, random.nextInt(128) - 64};
+            if (all.add(toString(k))) {
+                map.put(k[0], k[1], k[2], toString(k));
+            }
+        }
+        int[][] far = {{Integer.MIN_VALUE, 0, 0}, {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE}, {1 << 24, -(1 << 24), 5}};
+        for (int[] k : far) {
+            all.add(toString(k));
+            map.put(k[0], k[1], k[2], toString(k));
+        }
+        int[][] boxes = {{-3, -2, -1, 4, 5, 6}, {-64, -64, -64, 0, 0, 0}, {10, -40, 0, 63, 63, 1}, {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE}, {1, 1, 1, 0, 1, 1}};
+        for (int[] b : boxes) {
+            Set<String> expected = new HashSet<>();
+            for (String value : all) {
+                int[] k = parse(value);
+                if (k[0] >= b[0] && k[0] <= b[3] && k[1] >= b[1] && k[1] <= b[4] && k[2] >= b[2] && k[2] <= b[5]) {
+                    expected.add(value);
+                }
+            }
+            CollectingVisitor visitor = new CollectingVisitor();
+            map.forEachInBox(b[0], b[1], b[2], b[3], b[4], b[5], visitor);
+            Assert.assertEquals(expected, visitor.visited);
+        }
+        int[][] spheres = {{0, 0, 0, 3}, {-20, 10, 30, 25}, {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, 1}, {0, 0, 0, Integer.MAX_VALUE}};
+        for (int[] s : spheres) {
+            Set<String> expected = new HashSet<>();
+            for (String value : all) {
+                int[] k = parse(value);
+                double dx = (double) k[0] - s[0];
+                double dy = (double) k[1] - s[1];
+                double dz = (double) k[2] - s[2];
+                if (dx * dx + dy * dy + dz * dz <= (double) s[3] * s[3]) {
+                    expected.add(value);
+                }
+            }
+            CollectingVisitor visitor = new CollectingVisitor();
+            map.forEachInSphere(s[0], s[1], s[2], s[3], visitor);
+            Assert.assertEquals(expected, visitor.visited);
+        }
+    }
+
+    private static int[] parse(String value) {
+        String[] split = value.split(",");
+        return new int[] {Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2])};
+    }
+
+    private static String toString(int[] k) {
+        return k[0] + "," + k[1] + "," + k[2];
+    }
+
+    private static void runThreads(final ThreadTask task) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(thread);
+                    } catch (Throwable e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new AssertionError(error[0]);
+            }
+        }
+    }
+
+    private static class CollectingVisitor implements TripleIntObjectVisitor<String> {
+        private final Set<String> visited = new HashSet<>();
+
+        @Override
+        public void visit(int x, int y, int z, String value) {
+            Assert.assertEquals(x + "," + y + "," + z, value);
+            Assert.assertTrue("Visited twice: " + value, visited.add(value));
+        }
+    }
+
+    private static interface ThreadTask {
+        public void run(int thread);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.concurrent.set;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TNonBlockingIntHashSetTest {
+    @Test
+    public void addRemove() {
+        TNonBlockingIntHashSet set = new TNonBlockingIntHashSet(4);
+        for (int i = -100; i < 100; i++) {
+            Assert.assertTrue(set.add(i));
+            Assert.assertFalse(set.add(i));
+        }
+        Assert.assertEquals(200, set.size());
+        Assert.assertTrue(set.contains(0));
+        Assert.assertTrue(set.containsAll(new int[] {-100, 0, 99}));
+        Assert.assertFalse(set.containsAll(new int[] {-100, 100}));
+        Assert.assertTrue(set.remove(0));
+        Assert.assertFalse(set.remove(0));
+        Assert.assertFalse(set.contains(0));
+        Assert.assertTrue(set.retainAll(new int[] {-5, 5, 500}));
+        int[] values = set.toArray();
+        Arrays.sort(values);
+        Assert.assertArrayEquals(new int[] {-5, 5}, values);
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+    }
+}
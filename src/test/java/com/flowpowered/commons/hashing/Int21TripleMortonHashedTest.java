@@ -0,0 +1,71 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.hashing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Int21TripleMortonHashedTest {
+    public void testValue(int x, int y, int z) {
+        long key = Int21TripleMortonHashed.key(x, y, z);
+        Assert.assertEquals(x, Int21TripleMortonHashed.key1(key));
+        Assert.assertEquals(y, Int21TripleMortonHashed.key2(key));
+        Assert.assertEquals(z, Int21TripleMortonHashed.key3(key));
+    }
+
+    @Test
+    public void testHashes() {
+        testValue(-1048576, -1048576, -1048576);
+        testValue(-1048575, -1048575, -1048575);
+        testValue(0, 0, 0);
+        testValue(1048575, 1048575, 1048575);
+        testValue(1048575, -1048575, 1048575);
+        testValue(-1048575, 1048575, -1048575);
+        testValue(32423, 14144, 24114);
+        testValue(10475, 104865, 104835);
+        testValue(128, 512, 1024);
+        testValue(-34, 2421, -4452);
+    }
+
+    @Test
+    public void testOrdering() {
+        // The key of any point in a box is between the keys of its corners, along each axis
+        int[] values = {-1048576, -4452, -34, -1, 0, 1, 128, 2421, 1048575};
+        for (int i = 1; i < values.length; i++) {
+            Assert.assertTrue(Int21TripleMortonHashed.key(values[i - 1], 0, 0) < Int21TripleMortonHashed.key(values[i], 0, 0));
+            Assert.assertTrue(Int21TripleMortonHashed.key(0, values[i - 1], 0) < Int21TripleMortonHashed.key(0, values[i], 0));
+            Assert.assertTrue(Int21TripleMortonHashed.key(0, 0, values[i - 1]) < Int21TripleMortonHashed.key(0, 0, values[i]));
+        }
+        long min = Int21TripleMortonHashed.key(-3, -3, -3);
+        long max = Int21TripleMortonHashed.key(3, 3, 3);
+        for (int x = -3; x <= 3; x++) {
+            for (int y = -3; y <= 3; y++) {
+                for (int z = -3; z <= 3; z++) {
+                    long key = Int21TripleMortonHashed.key(x, y, z);
+                    Assert.assertTrue(key >= min && key <= max);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gnu.trove.function.TObjectFunction;
+import gnu.trove.procedure.TIntObjectProcedure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TNonBlockingIntObjectHashMapTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 20000;
+
+    @Test
+    public void putGetRemove() {
+        TNonBlockingIntObjectHashMap<String> map = new TNonBlockingIntObjectHashMap<>(4);
+        Assert.assertTrue(map.isEmpty());
+        // Zero and the negative keys are valid keys too
+        for (int i = -500; i < 500; i++) {
+            Assert.assertNull(map.put(i, "v" + i));
+        }
+        Assert.assertEquals(1000, map.size());
+        for (int i = -500; i < 500; i++) {
+            Assert.assertEquals("v" + i, map.get(i));
+        }
+        Assert.assertNull(map.get(500));
+        Assert.assertFalse(map.containsKey(-501));
+        Assert.assertTrue(map.containsValue("v0"));
+
+        Assert.assertEquals("v0", map.put(0, "zero"));
+        Assert.assertEquals("zero", map.putIfAbsent(0, "other"));
+        Assert.assertFalse(map.remove(0, "other"));
+        Assert.assertTrue(map.remove(0, map.get(0)));
+        Assert.assertNull(map.putIfAbsent(0, "again"));
+        Assert.assertEquals("v7", map.remove(7));
+        Assert.assertNull(map.remove(7));
+        Assert.assertEquals("v8", map.put(8, null));
+        Assert.assertEquals(998, map.size());
+
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        Assert.assertEquals(998, keys.length);
+        Assert.assertEquals(-500, keys[0]);
+        Assert.assertEquals(998, map.valueCollection().size());
+        Assert.assertEquals(998, map.values(new String[0]).length);
+
+        map.retainEntries(new TIntObjectProcedure<String>() {
+            @Override
+            public boolean execute(int key, String value) {
+                return key >= 0;
+            }
+        });
+        Assert.assertEquals(498, map.size());
+        map.transformValues(new TObjectFunction<String, String>() {
+            @Override
+            public String execute(String value) {
+                return value + "!";
+            }
+        });
+        Assert.assertEquals("v9!", map.get(9));
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(0, map.keys().length);
+        Assert.assertNull(map.get(9));
+    }
+
+    @Test
+    public void concurrentUpdates() throws InterruptedException {
+        final TNonBlockingIntObjectHashMap<Integer> map = new TNonBlockingIntObjectHashMap<>(16);
+        // Each thread adds its own keys, the table is resized many times while they do
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    int key = i * THREADS + thread;
+                    Assert.assertNull(map.put(key, key));
+                    if ((i & 3) == 0) {
+                        Assert.assertEquals(Integer.valueOf(key), map.remove(key));
+                    }
+                    if (i > 0) {
+                        int previous = (i - 1) * THREADS + thread;
+                        Assert.assertEquals(((i - 1) & 3) == 0 ? null : Integer.valueOf(previous), map.get(previous));
+                    }
+                }
+            }
+        });
+        int expected = THREADS * KEYS_PER_THREAD - THREADS * ((KEYS_PER_THREAD + 3) / 4);
+        Assert.assertEquals(expected, map.size());
+        Assert.assertEquals(expected, map.keys().length);
+        for (int key = 0; key < THREADS * KEYS_PER_THREAD; key++) {
+            Assert.assertEquals(((key / THREADS) & 3) == 0 ? null : Integer.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void concurrentPutIfAbsent() throws InterruptedException {
+        final TNonBlockingIntObjectHashMap<Integer> map = new TNonBlockingIntObjectHashMap<>(16);
+        final AtomicInteger wins = new AtomicInteger(0);
+        // All the threads race for the same keys, exactly one must win each key
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                for (int key = 0; key < KEYS_PER_THREAD; key++) {
+                    if (map.putIfAbsent(key, thread) == null) {
+                        wins.incrementAndGet();
+                    }
+                }
+            }
+        });
+        Assert.assertEquals(KEYS_PER_THREAD, wins.get());
+        Assert.assertEquals(KEYS_PER_THREAD, map.size());
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                for (int key = 0; key < KEYS_PER_THREAD; key++) {
+                    Integer value = map.get(key);
+                    if (value != null && map.remove(key, value)) {
+                        wins.decrementAndGet();
+                    }
+                }
+            }
+        });
+        Assert.assertEquals(0, wins.get());
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    private static void runThreads(final ThreadTask task) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(thread);
+                    } catch (Throwable e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new AssertionError(error[0]);
+            }
+        }
+    }
+
+    private static interface ThreadTask {
+        public void run(int thread);
+    }
+}
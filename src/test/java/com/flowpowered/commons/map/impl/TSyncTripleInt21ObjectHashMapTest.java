@@ -0,0 +1,217 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gnu.trove.iterator.TLongObjectIterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.commons.hashing.Int21TripleHashed;
+import com.flowpowered.commons.map.TripleIntFunction;
+
+public class TSyncTripleInt21ObjectHashMapTest {
+    private static final int THREADS = 4;
+    private static final int SIDE = 24;
+
+    @Test
+    public void putGetRemove() {
+        TSyncTripleInt21ObjectHashMap<String> map = new TSyncTripleInt21ObjectHashMap<>(4);
+        Assert.assertNull(map.put(0, 0, 0, "origin"));
+        Assert.assertNull(map.putIfAbsent(-1, 2, -3, "a"));
+        Assert.assertEquals("a", map.putIfAbsent(-1, 2, -3, "b"));
+        Assert.assertEquals("a", map.get(-1, 2, -3));
+        Assert.assertTrue(map.containsKey(0, 0, 0));
+        Assert.assertEquals(2, map.size());
+        Assert.assertFalse(map.remove(-1, 2, -3, "b"));
+        Assert.assertTrue(map.remove(-1, 2, -3, map.get(-1, 2, -3)));
+        Assert.assertNull(map.get(-1, 2, -3));
+        Assert.assertEquals("origin", map.computeIfAbsent(0, 0, 0, new Labeller()));
+        Assert.assertEquals("5,6,7", map.computeIfAbsent(5, 6, 7, new Labeller()));
+        Assert.assertEquals("5,6,7", map.get(5, 6, 7));
+        Assert.assertNull(map.computeIfAbsent(1, 1, 1, new TripleIntFunction<String>() {
+            @Override
+            public String apply(int x, int y, int z) {
+                return null;
+            }
+        }));
+        Assert.assertFalse(map.containsKey(1, 1, 1));
+        Assert.assertEquals("origin", map.remove(0, 0, 0));
+        Assert.assertEquals(1, map.size());
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void concurrentComputeIfAbsent() throws InterruptedException {
+        final TSyncTripleInt21ObjectHashMap<Object> map = new TSyncTripleInt21ObjectHashMap<>(16);
+        final Object[][][] seen = new Object[THREADS][][];
+        final AtomicInteger calls = new AtomicInteger(0);
+        // All the threads race to create the same keys, each value is created once and all the threads get it
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                Object[][] values = new Object[SIDE * SIDE][SIDE];
+                for (int x = 0; x < SIDE; x++) {
+                    for (int y = 0; y < SIDE; y++) {
+                        for (int z = 0; z < SIDE; z++) {
+                            values[x * SIDE + y][z] = map.computeIfAbsent(x, -y, z, new TripleIntFunction<Object>() {
+                                @Override
+                                public Object apply(int x, int y, int z) {
+                                    calls.incrementAndGet();
+                                    return new Object();
+                                }
+                            });
+                        }
+                    }
+                }
+                seen[thread] = values;
+            }
+        });
+        Assert.assertEquals(SIDE * SIDE * SIDE, map.size());
+        Assert.assertEquals(SIDE * SIDE * SIDE, calls.get());
+        for (int x = 0; x < SIDE; x++) {
+            for (int y = 0; y < SIDE; y++) {
+                for (int z = 0; z < SIDE; z++) {
+                    Object value = map.get(x, -y, z);
+                    for (int thread = 0; thread < THREADS; thread++) {
+                        Assert.assertSame(value, seen[thread][x * SIDE + y][z]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void slowComputeIfAbsent() throws InterruptedException {
+        final TSyncTripleInt21ObjectHashMap<Object> map = new TSyncTripleInt21ObjectHashMap<>(16);
+        final Object[] seen = new Object[THREADS];
+        final AtomicInteger calls = new AtomicInteger(0);
+        // The computation is still running when the other threads look up the key
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                seen[thread] = map.computeIfAbsent(1, 2, 3, new TripleIntFunction<Object>() {
+                    @Override
+                    public Object apply(int x, int y, int z) {
+                        calls.incrementAndGet();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return new Object();
+                    }
+                });
+            }
+        });
+        Assert.assertEquals(1, calls.get());
+        for (int thread = 0; thread < THREADS; thread++) {
+            Assert.assertSame(map.get(1, 2, 3), seen[thread]);
+        }
+    }
+
+    @Test
+    public void weaklyConsistentIterator() throws InterruptedException {
+        final TSyncTripleInt21ObjectHashMap<Integer> map = new TSyncTripleInt21ObjectHashMap<>(16);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, 0, 0, i);
+        }
+        // Writers add and remove keys while the other threads iterate, an iterator only returns live entries
+        runThreads(new ThreadTask() {
+            @Override
+            public void run(int thread) {
+                if (thread == 0) {
+                    for (int i = 0; i < 20000; i++) {
+                        map.put(i, 1, 0, i);
+                        map.remove(i, 0, 0);
+                    }
+                    return;
+                }
+                for (int pass = 0; pass < 20; pass++) {
+                    TLongObjectIterator<Integer> iterator = map.iterator();
+                    while (iterator.hasNext()) {
+                        iterator.advance();
+                        Assert.assertEquals(Int21TripleHashed.key1(iterator.key()), iterator.value().intValue());
+                    }
+                }
+            }
+        });
+        Assert.assertEquals(20000, map.size());
+        TLongObjectIterator<Integer> iterator = map.iterator();
+        while (iterator.hasNext()) {
+            iterator.advance();
+            if ((iterator.value() & 1) == 0) {
+                iterator.remove();
+            } else {
+                iterator.setValue(-iterator.value());
+            }
+        }
+        Assert.assertEquals(10000, map.size());
+        Assert.assertEquals(Integer.valueOf(-1), map.get(1, 1, 0));
+        Assert.assertNull(map.get(2, 1, 0));
+    }
+
+    private static void runThreads(final ThreadTask task) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(thread);
+                    } catch (Throwable e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new AssertionError(error[0]);
+            }
+        }
+    }
+
+    private static interface ThreadTask {
+        public void run(int thread);
+    }
+
+    private static class Labeller implements TripleIntFunction<String> {
+        @Override
+        public String apply(int x, int y, int z) {
+            return x + "," + y + "," + z;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.map.impl;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.commons.map.TripleIntObjectMap;
+import com.flowpowered.commons.map.TripleIntObjectVisitor;
+
+public class TTripleInt21ObjectHashMapTest {
+    @Test
+    public void rangeQueries() {
+        testRangeQueries(new TTripleInt21ObjectHashMap<String>());
+        testRangeQueries(new TTripleInt21MortonObjectHashMap<String>());
+        testRangeQueries(new TSyncTripleInt21ObjectHashMap<String>());
+    }
+
+    @Test
+    public void putIfAbsent() {
+        TTripleInt21ObjectHashMap<String> map = new TTripleInt21ObjectHashMap<>();
+        Assert.assertNull(map.putIfAbsent(1, -2, 3, "a"));
+        Assert.assertEquals("a", map.putIfAbsent(1, -2, 3, "b"));
+        Assert.assertEquals("a", map.get(1, -2, 3));
+        Assert.assertEquals(1, map.size());
+    }
+
+    private void testRangeQueries(TripleIntObjectMap<String> map) {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(64) - 32;
+            int y = random.nextInt(64) - 32;
+            int z = random.nextInt(64) - 32;
+            map.put(x, y, z, toString(x, y, z));
+        }
+        map.put(1048575, -1048576, 0, toString(1048575, -1048576, 0));
+        // Small boxes are probed key by key, large ones scan all the entries
+        checkBox(map, -2, -1, 0, 1, 2, 3);
+        checkBox(map, -20, -30, -10, 25, 5, 31);
+        checkBox(map, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        checkBox(map, 5, 5, 5, 4, 5, 5);
+        checkSphere(map, 0, 0, 0, 2);
+        checkSphere(map, -10, 7, 3, 20);
+        checkSphere(map, 1048575, -1048575, 0, 1);
+        checkSphere(map, 0, 0, 0, Integer.MAX_VALUE);
+    }
+
+    private void checkBox(TripleIntObjectMap<String> map, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        Set<String> expected = new HashSet<>();
+        for (String value : map.valueCollection()) {
+            int[] k = parse(value);
+            if (k[0] >= minX && k[0] <= maxX && k[1] >= minY && k[1] <= maxY && k[2] >= minZ && k[2] <= maxZ) {
+                expected.add(value);
+            }
+        }
+        CollectingVisitor visitor = new CollectingVisitor();
+        map.forEachInBox(minX, minY, minZ, maxX, maxY, maxZ, visitor);
+        Assert.assertEquals(expected, visitor.visited);
+    }
+
+    private void checkSphere(TripleIntObjectMap<String> map, int x, int y, int z, int radius) {
+        Set<String> expected = new HashSet<>();
+        for (String value : map.valueCollection()) {
+            int[] k = parse(value);
+            double dx = k[0] - x;
+            double dy = k[1] - y;
+            double dz = k[2] - z;
+            if (dx * dx + dy * dy + dz * dz <= (double) radius * radius) {
+                expected.add(value);
+            }
+        }
+        CollectingVisitor visitor = new CollectingVisitor();
+        map.forEachInSphere(x, y, z, radius, visitor);
+        Assert.assertEquals(expected, visitor.visited);
+    }
+
+    private static String toString(int x, int y, int z) {
+        return x + "," + y + "," + z;
+    }
+
+    private static int[] parse(String value) {
+        String[] split = value.split(",");
+        return new int[] {Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2])};
+    }
+
+    private static class CollectingVisitor implements TripleIntObjectVisitor<String> {
+        private final Set<String> visited = new HashSet<>();
+
+        @Override
+        public void visit(int x, int y, int z, String value) {
+            Assert.assertEquals(TTripleInt21ObjectHashMapTest.toString(x, y, z), value);
+            Assert.assertTrue("Visited twice: " + value, visited.add(value));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore.DataMask;
+import com.flowpowered.commons.store.block.impl.ArrayDirtyTracker;
+import com.flowpowered.commons.store.block.impl.AtomicIntStorage;
+import com.flowpowered.commons.store.block.impl.AtomicPaletteBlockStore;
+import com.flowpowered.commons.store.block.impl.AtomicShortIntArray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedRegionFileTest {
+    private static final int SHIFT = 4;
+    private static final int SLOTS = 64;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("region.dat");
+        int[] uniques = {1, 2, 16, 200, 4096};
+        int[][] expected = new int[SLOTS][];
+        try (MappedRegionFile region = new MappedRegionFile(path, SHIFT, SLOTS)) {
+            for (int slot = 0; slot < SLOTS; slot += 3) {
+                AtomicPaletteBlockStore store = createRandomStore(uniques[slot % uniques.length], slot);
+                assertTrue("Dirty store was not saved", region.save(slot, store));
+                expected[slot] = store.getFullArray();
+                store.resetDirtyArrays();
+                assertFalse("Clean store was saved", region.save(slot, store));
+            }
+            // Grow a store from uniform to direct, so that it is moved
+            AtomicPaletteBlockStore store = createRandomStore(4096, 100);
+            assertTrue(region.save(0, store));
+            expected[0] = store.getFullArray();
+            // Shrink a store, it is moved too
+            store = createRandomStore(1, 101);
+            assertTrue(region.save(6, store));
+            expected[6] = store.getFullArray();
+            region.delete(3);
+            expected[3] = null;
+        }
+        try (MappedRegionFile region = new MappedRegionFile(path, SHIFT, SLOTS)) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                AtomicPaletteBlockStore store = region.load(slot, false, 10);
+                if (expected[slot] == null) {
+                    assertNull("Empty slot " + slot + " loaded a store", store);
+                } else {
+                    assertArrayEquals("Loaded store " + slot + " did not match saved store", expected[slot], store.getFullArray());
+                    assertFalse("Loaded store was dirty", store.isDirty());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void layeredStore() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("region.dat");
+        DataMask field = new DataMask((short) 0x3, (short) 0);
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, new ArrayDirtyTracker(10, false), AtomicShortIntArray.SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP, field);
+        int[] expected = createRandomStore(16, 1).getFullArray();
+        int mask = (1 << SHIFT) - 1;
+        for (int i = 0; i < expected.length; i++) {
+            store.setBlock(i & mask, i >> (SHIFT << 1), (i >> SHIFT) & mask, (short) (expected[i] >> 16), (short) expected[i]);
+        }
+        try (MappedRegionFile region = new MappedRegionFile(path, SHIFT, SLOTS)) {
+            assertTrue(region.save(5, store));
+        }
+        try (MappedRegionFile region = new MappedRegionFile(path, SHIFT, SLOTS)) {
+            AtomicPaletteBlockStore loaded = region.load(5, false, 10);
+            assertArrayEquals("Loaded layered store did not match saved store", expected, loaded.getFullArray());
+            assertFalse("Loaded store was dirty", loaded.isDirty());
+            ByteBuffer buffer = ByteBuffer.allocate(loaded.getSerializedSize());
+            loaded.writeTo(buffer);
+            buffer.flip();
+            assertEquals("The store was not loaded with its layers", 1, AtomicPaletteBlockStore.getSerializedLayers(buffer).length);
+        }
+    }
+
+    @Test (expected = IOException.class)
+    public void oversizedFile() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("region.dat");
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // Sparse, so no disk space is used
+            file.setLength((MappedRegionFile.MAX_SECTORS + 1L) * MappedRegionFile.SECTOR_SIZE);
+        }
+        new MappedRegionFile(path, SHIFT, SLOTS).close();
+    }
+
+    @Test (expected = IOException.class)
+    public void shiftMismatch() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("region.dat");
+        new MappedRegionFile(path, SHIFT, SLOTS).close();
+        new MappedRegionFile(path, SHIFT + 1, SLOTS).close();
+    }
+
+    private static AtomicPaletteBlockStore createRandomStore(int unique, int seed) {
+        Random random = new Random(seed);
+        int[] initial = new int[1 << (SHIFT * 3)];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = (random.nextInt(unique) + 1) << 16 | (unique == 1 ? 0 : random.nextInt(4));
+        }
+        return new AtomicPaletteBlockStore(SHIFT, false, true, 10, initial);
+    }
+}
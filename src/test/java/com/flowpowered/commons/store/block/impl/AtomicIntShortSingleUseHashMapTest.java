@@ -0,0 +1,88 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomicIntShortSingleUseHashMapTest {
+    @Test
+    public void putAndGet() {
+        AtomicIntShortSingleUseHashMap map = new AtomicIntShortSingleUseHashMap(320);
+        for (int i = 0; i < 256; i++) {
+            int key = i << 16 | (i & 3);
+            assertTrue(map.isEmptyValue(map.get(key)));
+            assertTrue(map.isEmptyValue(map.putIfAbsent(key, (short) i)));
+            assertEquals(i, map.putIfAbsent(key, (short) 0));
+        }
+        for (int i = 0; i < 256; i++) {
+            assertEquals(i, map.get(i << 16 | (i & 3)));
+            assertEquals(i, map.get(i << 16 | (i & 3)));
+            assertTrue(map.isEmptyValue(map.get(i << 16 | 4)));
+        }
+        assertTrue("Probe length is not bounded by the table", map.getMaxProbe() < map.getCapacity());
+    }
+
+    @Test
+    public void concurrentPutIfAbsent() throws InterruptedException {
+        final AtomicIntShortSingleUseHashMap map = new AtomicIntShortSingleUseHashMap(4096);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    // The threads race for the same keys, a key seen in the map must also be found by a lookup
+                    for (int i = 0; i < 3000; i++) {
+                        int key = i << 16 | (i & 3);
+                        short value = map.putIfAbsent(key, (short) thread);
+                        short expected = map.isEmptyValue(value) ? (short) thread : value;
+                        if (map.get(key) != expected) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse("A lookup missed a key that was in the map", failed.get());
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void full() {
+        AtomicIntShortSingleUseHashMap map = new AtomicIntShortSingleUseHashMap(16);
+        for (int i = 0; i <= map.getCapacity(); i++) {
+            map.putIfAbsent(i, (short) i);
+        }
+    }
+}
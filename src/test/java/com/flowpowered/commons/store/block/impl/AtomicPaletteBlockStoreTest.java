@@ -0,0 +1,683 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore.DataMask;
+import com.flowpowered.commons.store.block.BlockSectionVisitor;
+import com.flowpowered.commons.store.block.BlockStoreSnapshot;
+import com.flowpowered.commons.store.block.DirtyBlockVisitor;
+import com.flowpowered.commons.store.block.DirtyTracker;
+import com.flowpowered.math.vector.Vector3i;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtomicPaletteBlockStoreTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+
+    @Test
+    public void fill() {
+        AtomicPaletteBlockStore store = createRandomStore(16);
+        int[] expected = store.getFullArray();
+        store.resetDirtyArrays();
+
+        fill(store, expected, 3, 2, 5, 9, 11, 6, (short) 7, (short) 3);
+        fill(store, expected, 0, 4, 0, SIDE - 1, 4, SIDE - 1, (short) 8, (short) 0);
+        fill(store, expected, 0, 6, 2, SIDE - 1, 8, 13, (short) 9, (short) 1);
+        fill(store, expected, 15, 15, 15, 15, 15, 15, (short) 10, (short) 2);
+        check(store, expected);
+
+        assertTrue("Fill did not mark the store dirty", store.isDirty());
+        assertTrue("Fill did not overflow the dirty list", store.isDirtyOverflow());
+        assertEquals(0, store.getMinDirty().getX());
+        assertEquals(15, store.getMaxDirty().getY());
+
+        store.fill(0, 0, 0, SIDE - 1, SIDE - 1, SIDE - 1, (short) 4, (short) 4);
+        assertTrue("Filling the whole store did not make it uniform", store.isBlockUniform());
+        assertEquals(4 << 16 | 4, store.getFullData(5, 6, 7));
+    }
+
+    @Test
+    public void copyFrom() {
+        AtomicPaletteBlockStore source = createRandomStore(64);
+        AtomicPaletteBlockStore dest = createRandomStore(4);
+        int[] expected = dest.getFullArray();
+
+        dest.copyFrom(source, 1, 2, 3, 10, 12, 14, 4, 3, 0);
+        for (int y = 2; y <= 12; y++) {
+            for (int z = 3; z <= 14; z++) {
+                for (int x = 1; x <= 10; x++) {
+                    expected[index(x + 3, y + 1, z - 3)] = source.getFullData(x, y, z);
+                }
+            }
+        }
+        check(dest, expected);
+
+        // Overlapping copy within the same store
+        int[] before = dest.getFullArray();
+        dest.copyFrom(dest, 0, 0, 0, 11, 11, 11, 4, 4, 4);
+        for (int y = 0; y < 12; y++) {
+            for (int z = 0; z < 12; z++) {
+                for (int x = 0; x < 12; x++) {
+                    expected[index(x + 4, y + 4, z + 4)] = before[index(x, y, z)];
+                }
+            }
+        }
+        check(dest, expected);
+    }
+
+    @Test
+    public void serialization() {
+        for (int unique : new int[] {1, 2, 3, 16, 200, 4096}) {
+            AtomicPaletteBlockStore store = createRandomStore(unique);
+            int[] expected = store.getFullArray();
+            int size = store.getSerializedSize();
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(size), ByteBuffer.allocateDirect(size)}) {
+                store.writeTo(buffer);
+                assertEquals("Serialized size did not match the bytes written", size, buffer.position());
+                buffer.flip();
+                AtomicPaletteBlockStore copy = new AtomicPaletteBlockStore(SHIFT, false, 10);
+                copy.readFrom(buffer);
+                assertEquals("Not all bytes were read", size, buffer.position());
+                assertEquals(store.getPackedWidth(), copy.getPackedWidth());
+                check(copy, expected);
+                copy.setBlock(1, 2, 3, (short) 1000, (short) 1);
+                assertEquals(1000 << 16 | 1, copy.getFullData(1, 2, 3));
+            }
+        }
+    }
+
+    @Test
+    public void delta() {
+        AtomicPaletteBlockStore source = createRandomStore(16);
+        AtomicPaletteBlockStore dest = createRandomStore(16);
+        source.resetDirtyArrays();
+
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            source.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) (100 + random.nextInt(5)), (short) 0);
+        }
+        for (int x = 2; x < 12; x++) {
+            source.setBlock(x, 7, 7, (short) 200, (short) 1);
+        }
+        byte[] patch = source.encodeDelta();
+        assertEquals("Small change was not sent as a delta", BlockStoreDelta.DELTA, patch[0]);
+        assertTrue("Delta was larger than the full store", patch.length < source.getSerializedSize());
+        dest.applyDelta(ByteBuffer.wrap(patch));
+        check(dest, source.getFullArray());
+
+        // Overflow the dirty list, so the dirty bounding box is sent
+        source.resetDirtyArrays();
+        source.fill(1, 1, 1, 5, 6, 7, (short) 300, (short) 2);
+        patch = source.encodeDelta();
+        assertEquals("Overflowed region was not sent as a delta", BlockStoreDelta.DELTA, patch[0]);
+        dest.applyDelta(ByteBuffer.wrap(patch));
+        check(dest, source.getFullArray());
+
+        // Changing the whole store falls back to the full store
+        source.resetDirtyArrays();
+        for (int i = 0; i < SIDE * SIDE * SIDE; i++) {
+            source.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1), (short) (400 + random.nextInt(16)), (short) 0);
+        }
+        source.compress();
+        patch = source.encodeDelta();
+        assertEquals("Whole store change was not sent in full", BlockStoreDelta.FULL, patch[0]);
+        dest.applyDelta(ByteBuffer.wrap(patch));
+        check(dest, source.getFullArray());
+    }
+
+    @Test
+    public void malformedDelta() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+        byte[][] patches = {
+                // A palette larger than the store
+                {BlockStoreDelta.DELTA, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},
+                // A palette id outside the palette of one state
+                {BlockStoreDelta.DELTA, 1, 0, 1, 0, 0, 1, 0, 1, 5},
+                // A run that overflows the index
+                {BlockStoreDelta.DELTA, 1, 0, 1, 0, 0, 1, 10, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}
+        };
+        for (byte[] patch : patches) {
+            try {
+                store.applyDelta(ByteBuffer.wrap(patch));
+                fail("Malformed patch was applied");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void fillOutsideStore() {
+        new AtomicPaletteBlockStore(SHIFT, false, 10).fill(0, 0, 0, SIDE, 1, 1, (short) 1, (short) 0);
+    }
+
+    private static void fill(AtomicPaletteBlockStore store, int[] expected, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short id, short data) {
+        store.fill(minX, minY, minZ, maxX, maxY, maxZ, id, data);
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    expected[index(x, y, z)] = id << 16 | data & 0xFFFF;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bulkGet() {
+        AtomicPaletteBlockStore store = createRandomStore(16);
+        int[] expected = store.getFullArray();
+        int[] row = new int[SIDE];
+        int[] slice = new int[SIDE * SIDE];
+        for (int y = 0; y < SIDE; y++) {
+            store.getSlice(y, slice, 0);
+            for (int z = 0; z < SIDE; z++) {
+                store.getRow(3, y, z, row, 0, SIDE - 3);
+                for (int x = 0; x < SIDE; x++) {
+                    assertEquals(expected[index(x, y, z)], slice[(z << SHIFT) + x]);
+                    if (x >= 3) {
+                        assertEquals(expected[index(x, y, z)], row[x - 3]);
+                    }
+                }
+            }
+        }
+        short[] ids = store.getBlockIdArray();
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals((short) (expected[i] >> 16), ids[i]);
+        }
+    }
+
+    @Test
+    public void compaction() {
+        AtomicPaletteBlockStore store = createRandomStore(16);
+        store.compress();
+        assertFalse("A compressed store needs compression", store.needsCompression());
+        for (int y = 0; y < SIDE; y++) {
+            for (int z = 0; z < SIDE; z++) {
+                for (int x = 0; x < SIDE; x++) {
+                    store.setBlock(x, y, z, (short) ((x & 1) + 1), (short) 0);
+                }
+            }
+        }
+        assertTrue("A store with unused palette entries does not need compression", store.needsCompression());
+        int[] expected = store.getFullArray();
+        BlockStoreCompactor compactor = new BlockStoreCompactor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 1, TimeUnit.SECONDS);
+        compactor.schedule(store);
+        assertEquals(0, compactor.getQueued());
+        assertEquals(1, compactor.getCompressedStores());
+        assertTrue("Compaction did not save any bytes", compactor.getBytesSaved() > 0);
+        assertFalse("A compacted store needs compression", store.needsCompression());
+        check(store, expected);
+    }
+
+    @Test
+    public void lockedCompaction() throws InterruptedException {
+        AtomicPaletteBlockStore store = createRandomStore(16);
+        store.compress();
+        for (int y = 0; y < SIDE; y++) {
+            for (int z = 0; z < SIDE; z++) {
+                for (int x = 0; x < SIDE; x++) {
+                    store.setBlock(x, y, z, (short) ((x & 1) + 1), (short) 0);
+                }
+            }
+        }
+        assertTrue(store.needsCompression());
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            BlockStoreCompactor compactor = new BlockStoreCompactor(executor, 1, TimeUnit.MILLISECONDS);
+            store.writeLock();
+            try {
+                compactor.schedule(store);
+                Thread.sleep(20);
+                assertEquals("The locked store was compressed", 0, compactor.getCompressedStores());
+            } finally {
+                store.writeUnlock();
+            }
+            // The store is retried without another store being scheduled
+            for (int i = 0; i < 500 && compactor.getCompressedStores() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, compactor.getCompressedStores());
+            assertEquals(0, compactor.getQueued());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelCompaction() {
+        List<AtomicPaletteBlockStore> stores = new ArrayList<>();
+        List<int[]> expected = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            AtomicPaletteBlockStore store = createRandomStore(16);
+            for (int y = 0; y < SIDE; y++) {
+                for (int z = 0; z < SIDE; z++) {
+                    for (int x = 0; x < SIDE; x++) {
+                        store.setBlock(x, y, z, (short) (((x + i) & 3) + 1), (short) 0);
+                    }
+                }
+            }
+            stores.add(store);
+            expected.add(store.getFullArray());
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] unique = BlockStoreTask.getUnique(pool, stores);
+            for (int count : unique) {
+                assertEquals(4, count);
+            }
+            BlockStoreTask.compress(pool, stores);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < stores.size(); i++) {
+            assertFalse("A compressed store needs compression", stores.get(i).needsCompression());
+            assertEquals(2, stores.get(i).getPackedWidth());
+            check(stores.get(i), expected.get(i));
+        }
+    }
+
+    @Test
+    public void uniform() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+        assertEquals(0, store.getUniformFullData(-1));
+        final List<Vector3i> sections = new ArrayList<>();
+        BlockSectionVisitor visitor = new BlockSectionVisitor() {
+            @Override
+            public void visit(int x, int y, int z, int side) {
+                sections.add(new Vector3i(x, y, z));
+            }
+        };
+        store.forEachNonUniformSection(2, visitor);
+        assertTrue("A uniform store has non uniform sections", sections.isEmpty());
+
+        store.setBlock(5, 9, 13, (short) 3, (short) 1);
+        assertEquals(-1, store.getUniformFullData(-1));
+        assertEquals(0, store.getUniformFullData(0, 0, 0, SIDE - 1, 8, SIDE - 1, -1));
+        assertEquals(-1, store.getUniformFullData(4, 8, 12, 7, 11, 15, -1));
+        assertEquals(3 << 16 | 1, store.getUniformFullData(5, 9, 13, 5, 9, 13, -1));
+        store.forEachNonUniformSection(2, visitor);
+        assertEquals(1, sections.size());
+        assertEquals(new Vector3i(4, 8, 12), sections.get(0));
+
+        short[] data = store.getDataArray();
+        assertEquals(1, data[index(5, 9, 13)]);
+        assertEquals(0, data[index(5, 9, 12)]);
+    }
+
+    @Test
+    public void snapshot() {
+        for (AtomicShortIntArray.SyncMode mode : AtomicShortIntArray.SyncMode.values()) {
+            AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10, mode);
+            BlockStoreSnapshot empty = store.snapshot();
+            store.copyFrom(createRandomStore(16), 0, 0, 0, SIDE - 1, SIDE - 1, SIDE - 1, 0, 0, 0);
+            assertTrue("The snapshot of an empty store changed", empty.isBlockUniform());
+            assertEquals(0, empty.getFullData(3, 4, 5));
+
+            int[] expected = store.getFullArray();
+            BlockStoreSnapshot snapshot = store.snapshot();
+            Random random = new Random(mode.ordinal());
+            for (int i = 0; i < 2000; i++) {
+                store.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(1000), (short) 0);
+            }
+            int[] snapshotArray = snapshot.getFullArray();
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("Snapshot changed at " + i + " in mode " + mode, expected[i], snapshot.getFullData(i));
+                assertEquals(expected[i], snapshotArray[i]);
+            }
+            expected = store.getFullArray();
+            check(store, expected);
+            store.free();
+        }
+    }
+
+    @Test
+    public void layeredData() {
+        DataMask low = new DataMask((short) 0xF, (short) 0);
+        DataMask high = new DataMask((short) 0xF, (short) 4);
+        AtomicPaletteBlockStore store = createLayeredStore(low, high);
+        int[] expected = new int[SIDE * SIDE * SIDE];
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(SIDE);
+            int y = random.nextInt(SIDE);
+            int z = random.nextInt(SIDE);
+            short id = (short) (random.nextInt(3) + 1);
+            short data = (short) random.nextInt(1 << 10);
+            store.setBlock(x, y, z, id, data);
+            expected[index(x, y, z)] = id << 16 | data;
+        }
+        check(store, expected);
+        assertTrue("The data fields widened the base layer", store.getPackedWidth() <= 4);
+        // The block ids are read from the base layer alone
+        short[] ids = store.getBlockIdArray();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals((short) (expected[i] >> 16), ids[i]);
+        }
+
+        store.setData(1, 2, 3, (short) 9, high);
+        int state = expected[index(1, 2, 3)];
+        expected[index(1, 2, 3)] = state & ~0xF0 | 9 << 4;
+        assertEquals(9, store.getData(1, 2, 3, high));
+        assertEquals(state & 0xF, store.getData(1, 2, 3, low));
+        // Fields that are not layered still only change the masked bits
+        store.setData(1, 2, 3, (short) 3, new DataMask((short) 0x3, (short) 8));
+        expected[index(1, 2, 3)] = expected[index(1, 2, 3)] & ~0x300 | 3 << 8;
+        check(store, expected);
+
+        store.fill(0, 0, 0, SIDE - 1, 1, SIDE - 1, (short) 7, (short) 0x3A5);
+        for (int i = 0; i < 2 * SIDE * SIDE; i++) {
+            expected[i] = 7 << 16 | 0x3A5;
+        }
+        check(store, expected);
+        store.compress();
+        check(store, expected);
+
+        int size = store.getSerializedSize();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        store.writeTo(buffer);
+        assertEquals(size, buffer.position());
+        buffer.flip();
+        AtomicPaletteBlockStore copy = createLayeredStore(low, high);
+        copy.readFrom(buffer);
+        check(copy, expected);
+        // Stores with other layers convert the data
+        for (AtomicPaletteBlockStore other : new AtomicPaletteBlockStore[] {new AtomicPaletteBlockStore(SHIFT, false, 10), createLayeredStore(high)}) {
+            buffer.rewind();
+            assertEquals(2, AtomicPaletteBlockStore.getSerializedLayers(buffer).length);
+            other.readFrom(buffer);
+            assertEquals(size, buffer.position());
+            check(other, expected);
+        }
+        AtomicPaletteBlockStore plain = new AtomicPaletteBlockStore(SHIFT, false, true, 10, expected);
+        buffer = ByteBuffer.allocate(plain.getSerializedSize());
+        plain.writeTo(buffer);
+        buffer.flip();
+        assertEquals(0, AtomicPaletteBlockStore.getSerializedLayers(buffer).length);
+        copy = createLayeredStore(low);
+        copy.readFrom(buffer);
+        check(copy, expected);
+        LayeredStateArray array = new LayeredStateArray(expected.length, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP, new DataMask[] {high});
+        array.set(plain.getPalette(), plain.getPackedWidth(), plain.getPackedArray());
+        int[] states = new int[expected.length];
+        array.get(0, states.length, states, 0);
+        assertArrayEquals(expected, states);
+        AtomicPaletteBlockStore patched = new AtomicPaletteBlockStore(SHIFT, false, 10);
+        patched.applyDelta(ByteBuffer.wrap(store.encodeDelta()));
+        check(patched, expected);
+
+        BlockStoreSnapshot snapshot = store.snapshot();
+        store.setBlock(0, 0, 0, (short) 5, (short) 5);
+        assertEquals(expected[0], snapshot.getFullData(0, 0, 0));
+    }
+
+    @Test
+    public void layeredConcurrency() throws InterruptedException {
+        final DataMask low = new DataMask((short) 0xF, (short) 0);
+        final DataMask high = new DataMask((short) 0xF, (short) 4);
+        final AtomicPaletteBlockStore store = createLayeredStore(low, high);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    while (running.get()) {
+                        int x = random.nextInt(SIDE);
+                        int y = random.nextInt(SIDE);
+                        int z = random.nextInt(SIDE);
+                        if ((seed & 1) == 0) {
+                            // Every state written has the same value in the id and both fields
+                            int v = random.nextInt(16);
+                            store.setBlock(x, y, z, (short) v, (short) (v << 4 | v));
+                        } else {
+                            int state = store.getFullData(x, y, z);
+                            int v = state >> 16;
+                            if ((state & 0xF) != v || (state >> 4 & 0xF) != v) {
+                                failed.set(true);
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        Thread.sleep(200);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse("A reader saw a torn state", failed.get());
+    }
+
+    private static AtomicPaletteBlockStore createLayeredStore(DataMask... layers) {
+        return new AtomicPaletteBlockStore(SHIFT, new ArrayDirtyTracker(10, false), AtomicShortIntArray.SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP, layers);
+    }
+
+    @Test
+    public void drainDirty() throws InterruptedException {
+        for (int pass = 0; pass < 20; pass++) {
+            checkConcurrentDrain(new ArrayDirtyTracker(2048, false));
+            checkConcurrentDrain(new StripedDirtyTracker(1024, false, 4));
+            checkConcurrentDrain(new BitmapDirtyTracker(SHIFT));
+        }
+    }
+
+    @Test
+    public void bitmapDirtyRegion() {
+        BitmapDirtyTracker tracker = new BitmapDirtyTracker(SHIFT);
+        tracker.markDirty(3, 4, 5, 0, 1);
+        // The region overlaps the dirty block, which is only counted once
+        tracker.markDirtyRegion(2, 4, 5, 9, 6, 7);
+        assertEquals(8 * 3 * 3, tracker.getDirtyBlocks());
+        int[] bounds = new int[6];
+        tracker.getDirtyBounds(bounds);
+        assertArrayEquals(new int[] {2, 4, 5, 9, 6, 7}, bounds);
+        assertEquals(new Vector3i(2, 4, 5), tracker.getMinDirty());
+        assertEquals(new Vector3i(9, 6, 7), tracker.getMaxDirty());
+        assertEquals(new Vector3i(2, 4, 5), tracker.getDirtyBlock(0));
+        assertEquals(new Vector3i(3, 4, 6), tracker.getDirtyBlock(9));
+        assertEquals(new Vector3i(9, 6, 7), tracker.getDirtyBlock(8 * 3 * 3 - 1));
+        assertNull(tracker.getDirtyBlock(8 * 3 * 3));
+        tracker.markDirty(15, 0, 0, 0, 1);
+        tracker.getDirtyBounds(bounds);
+        assertArrayEquals(new int[] {2, 0, 0, 15, 6, 7}, bounds);
+        assertEquals(8 * 3 * 3 + 1, tracker.getDirtyBlocks());
+        assertTrue(tracker.reset());
+        assertEquals(0, tracker.getDirtyBlocks());
+    }
+
+    @Test
+    public void emptyDirtyTrackers() {
+        DirtyTracker[] trackers = {new ArrayDirtyTracker(10, false), new StripedDirtyTracker(16, false, 4), new BitmapDirtyTracker(SHIFT)};
+        for (DirtyTracker tracker : trackers) {
+            for (int pass = 0; pass < 2; pass++) {
+                assertFalse(tracker.isDirty());
+                int[] bounds = new int[6];
+                tracker.getDirtyBounds(bounds);
+                for (int i = 0; i < 3; i++) {
+                    assertTrue(tracker.getClass().getSimpleName() + " reported dirty bounds without dirty blocks", bounds[i] > bounds[i + 3]);
+                }
+                // The bounds are empty again after a reset
+                tracker.markDirty(1, 2, 3, 0, 1);
+                tracker.reset();
+            }
+        }
+    }
+
+    @Test
+    public void dirtyTrackers() throws InterruptedException {
+        checkConcurrentDirty(new ArrayDirtyTracker(2048, true), false);
+        checkConcurrentDirty(new StripedDirtyTracker(1024, true, 4), false);
+        checkConcurrentDirty(new BitmapDirtyTracker(SHIFT), false);
+        checkConcurrentDirty(new StripedDirtyTracker(16, false, 4), true);
+    }
+
+    private static void checkConcurrentDrain(DirtyTracker tracker) throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, tracker);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int y = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int z = 0; z < SIDE; z++) {
+                        for (int x = 0; x < SIDE; x++) {
+                            store.setBlock(x, y, z, (short) 1, (short) 0);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        final Set<Vector3i> drained = new HashSet<>();
+        DirtyBlockVisitor visitor = new DirtyBlockVisitor() {
+            @Override
+            public void visit(int x, int y, int z, int oldState, int newState) {
+                assertTrue("Block (" + x + ", " + y + ", " + z + ") was drained twice", drained.add(new Vector3i(x, y, z)));
+            }
+        };
+        int[] bounds = new int[6];
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            int count = store.drainDirty(visitor, bounds);
+            assertTrue(tracker.getClass().getSimpleName() + " overflowed", count >= 0);
+            if (count > 0) {
+                assertTrue(bounds[0] <= bounds[3] && bounds[1] <= bounds[4] && bounds[2] <= bounds[5]);
+            }
+        }
+        assertEquals(tracker.getClass().getSimpleName() + " lost dirty blocks", threads.length * SIDE * SIDE, drained.size());
+        assertEquals(0, store.drainDirty(visitor, bounds));
+        assertFalse(store.isDirty());
+    }
+
+    private static void checkConcurrentDirty(DirtyTracker tracker, final boolean overflow) throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, tracker);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int y = t + 2;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int z = 0; z < SIDE; z++) {
+                        for (int x = 0; x < SIDE; x++) {
+                            store.setBlock(x, y, z, (short) 1, (short) 0);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Writes did not mark the store dirty", store.isDirty());
+        assertEquals(overflow, store.isDirtyOverflow());
+        assertEquals(new Vector3i(0, 2, 0), store.getMinDirty());
+        assertEquals(new Vector3i(SIDE - 1, 5, SIDE - 1), store.getMaxDirty());
+        int[] bounds = new int[6];
+        store.getDirtyBounds(bounds);
+        assertArrayEquals(new int[] {0, 2, 0, SIDE - 1, 5, SIDE - 1}, bounds);
+        if (!overflow) {
+            Set<Vector3i> blocks = new HashSet<>();
+            for (int i = 0; i < store.getDirtyBlocks(); i++) {
+                blocks.add(store.getDirtyBlock(i));
+            }
+            assertEquals(threads.length * SIDE * SIDE, blocks.size());
+            final Set<Vector3i> visited = new HashSet<>();
+            int count = store.forEachDirtyBlock(new DirtyBlockVisitor() {
+                @Override
+                public void visit(int x, int y, int z, int oldState, int newState) {
+                    visited.add(new Vector3i(x, y, z));
+                }
+            });
+            assertEquals(blocks.size(), count);
+            assertEquals(blocks, visited);
+            int[] indices = new int[count];
+            assertEquals(count, store.getDirtyIndices(indices));
+            for (int i = 0; i < count; i++) {
+                Vector3i block = store.getDirtyBlock(i);
+                assertEquals(index(block.getX(), block.getY(), block.getZ()), indices[i]);
+            }
+        }
+        assertTrue(store.resetDirtyArrays());
+        assertFalse(store.isDirty());
+    }
+
+    private static void check(AtomicPaletteBlockStore store, int[] expected) {
+        for (int y = 0; y < SIDE; y++) {
+            for (int z = 0; z < SIDE; z++) {
+                for (int x = 0; x < SIDE; x++) {
+                    int got = store.getFullData(x, y, z);
+                    int exp = expected[index(x, y, z)];
+                    assertTrue("State mismatch at (" + x + ", " + y + ", " + z + "), got " + got + ", expected " + exp, got == exp);
+                }
+            }
+        }
+    }
+
+    private static AtomicPaletteBlockStore createRandomStore(int unique) {
+        Random random = new Random(unique);
+        int[] initial = new int[SIDE * SIDE * SIDE];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = (random.nextInt(unique) + 1) << 16 | random.nextInt(4);
+        }
+        return new AtomicPaletteBlockStore(SHIFT, true, true, 100, initial);
+    }
+
+    private static int index(int x, int y, int z) {
+        return (y << (SHIFT << 1)) + (z << SHIFT) + x;
+    }
+}
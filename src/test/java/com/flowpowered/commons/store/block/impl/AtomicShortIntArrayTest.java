@@ -23,19 +23,46 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+import com.flowpowered.commons.store.block.impl.AtomicShortIntArray.SyncMode;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+@RunWith(Parameterized.class)
 public class AtomicShortIntArrayTest {
-    final AtomicShortIntArray a = new AtomicShortIntArray(256);
+    final AtomicShortIntArray a;
     final int[] copy = new int[256];
     final int COUNT = 16384;
     final int THREADS = 8;
     final int THREAD_REPEATS = 8;
 
+    public AtomicShortIntArrayTest(SyncMode mode, AtomicIntStorage.Type storage) {
+        a = new AtomicShortIntArray(256, mode, storage);
+    }
+
+    @Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][]{
+                {SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.HEAP},
+                {SyncMode.LOCK_FREE, AtomicIntStorage.Type.HEAP},
+                {SyncMode.READ_WRITE_LOCK, AtomicIntStorage.Type.OFF_HEAP},
+                {SyncMode.LOCK_FREE, AtomicIntStorage.Type.OFF_HEAP},
+                {SyncMode.STRIPED_LOCK, AtomicIntStorage.Type.HEAP},
+                {SyncMode.STRIPED_LOCK, AtomicIntStorage.Type.OFF_HEAP}
+        });
+    }
+
     @Test
     public void repeatTest() {
 
@@ -162,6 +189,25 @@ public class AtomicShortIntArrayTest {
         }
     }
 
+    @Test
+    public void getIds() {
+        Random r = new Random(42);
+        for (int unique : new int[] {1, 3, 200}) {
+            for (int i = 0; i < a.length(); i++) {
+                set(i, (r.nextInt(unique) + 1) << 16 | r.nextInt(0x10000));
+            }
+            short[] ids = new short[a.length() + 2];
+            a.getIds(0, a.length(), ids, 1);
+            for (int i = 0; i < a.length(); i++) {
+                assertEquals((short) (copy[i] >> 16), ids[i + 1]);
+            }
+            a.getIds(37, 201, ids, 0);
+            for (int i = 37; i < 201; i++) {
+                assertEquals((short) (copy[i] >> 16), ids[i - 37]);
+            }
+        }
+    }
+
     @Test
     public void compareAndSet() {
 
@@ -178,6 +224,24 @@ public class AtomicShortIntArrayTest {
         }
     }
 
+    @Test
+    public void free() {
+
+        for (int i = 0; i < 256; i++) {
+            set(i, i);
+        }
+
+        a.free();
+
+        if (a.getStorageType() == AtomicIntStorage.Type.OFF_HEAP) {
+            try {
+                a.get(0);
+                fail("Freed off heap array was accessed");
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
     private void checkCompress(int unique, int expWidth, int base) {
         for (int i = 0; i < 256; i++) {
             set(i, base + (i % unique));
@@ -201,7 +265,40 @@ public class AtomicShortIntArrayTest {
         }
     }
 
+    @Test
+    public void parallelGrowth() {
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread locker = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    a.compress();
+                    a.lock();
+                    a.unlock();
+                }
+            }
+        };
+        locker.start();
+        try {
+            for (int i = 0; i < THREAD_REPEATS; i++) {
+                a.fill(0, a.length(), 0);
+                parallelRun(true);
+            }
+        } finally {
+            done.set(true);
+            try {
+                locker.join();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        }
+    }
+
     private void parallelRun() {
+        parallelRun(false);
+    }
+
+    private void parallelRun(boolean growth) {
 
         for (int i = 0; i < 256; i++) {
             a.set(i, 0);
@@ -211,7 +308,7 @@ public class AtomicShortIntArrayTest {
         Thread[] thread = new Thread[THREADS];
 
         for (int i = 0; i < THREADS; i++) {
-            thread[i] = new ArrayTest(i, THREADS, COUNT);
+            thread[i] = new ArrayTest(i, THREADS, COUNT, growth);
         }
 
         for (int i = 0; i < THREADS; i++) {
@@ -263,12 +360,14 @@ public class AtomicShortIntArrayTest {
         public final int count;
         public final int base;
         public final int step;
+        public final boolean growth;
         public int[] value = new int[a.length()];
 
-        public ArrayTest(int base, int step, int count) {
+        public ArrayTest(int base, int step, int count, boolean growth) {
             this.base = base;
             this.step = step;
             this.count = count;
+            this.growth = growth;
         }
 
         @Override
@@ -281,7 +380,8 @@ public class AtomicShortIntArrayTest {
                     int got = a.get(pos);
                     int exp = value[pos];
                     assertTrue("Element mismatch at " + pos + " got=" + got + ", exp=" + exp, exp == got);
-                    int val = r.nextInt();
+                    // When testing growth, the number of distinct values increases slowly, so the palette passes through every width
+                    int val = growth ? r.nextInt(1 + (i >> 6)) : r.nextInt();
                     value[pos] = val;
                     a.set(pos, val);
 
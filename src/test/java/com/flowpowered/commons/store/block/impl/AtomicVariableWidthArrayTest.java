@@ -23,10 +23,16 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Random;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 
 public class AtomicVariableWidthArrayTest {
@@ -106,6 +112,93 @@ public class AtomicVariableWidthArrayTest {
         }
     }
 
+    @Test
+    public void testFill() {
+        Random rand = new Random();
+        for (int i = 1; i <= 32; i <<= 1) {
+            setup(i);
+            for (int j = 0; j < LENGTH; j++) {
+                array.set(j, arrayData[j]);
+            }
+            for (int j = 0; j < 64; j++) {
+                int from = rand.nextInt(LENGTH);
+                int to = from + rand.nextInt(Math.min(LENGTH - from, 100) + 1);
+                int value = rand.nextInt() & valueMask;
+                array.fill(from, to, value);
+                for (int k = from; k < to; k++) {
+                    arrayData[k] = value;
+                }
+            }
+            for (int j = 0; j < LENGTH; j++) {
+                assertTrue("Width = " + i + " Array data mismatch after fill at " + j + ": " + array.get(j) + ":" + arrayData[j], array.get(j) == arrayData[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testBulkGet() {
+        Random rand = new Random();
+        for (int i = 1; i <= 32; i <<= 1) {
+            setup(i);
+            for (int j = 0; j < LENGTH; j++) {
+                array.set(j, arrayData[j]);
+            }
+            for (int j = 0; j < 64; j++) {
+                int from = rand.nextInt(LENGTH);
+                int to = from + rand.nextInt(Math.min(LENGTH - from, 100) + 1);
+                int[] dst = new int[to - from + 2];
+                array.get(from, to, dst, 1);
+                for (int k = from; k < to; k++) {
+                    assertTrue("Width = " + i + " Bulk get mismatch at " + k + ": " + dst[k - from + 1] + ":" + arrayData[k], dst[k - from + 1] == arrayData[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBulkSet() {
+        Random rand = new Random();
+        for (int i = 1; i <= 32; i <<= 1) {
+            setup(i);
+            for (int j = 0; j < LENGTH; j++) {
+                array.set(j, arrayData[j]);
+            }
+            for (int j = 0; j < 64; j++) {
+                int from = rand.nextInt(LENGTH);
+                int length = rand.nextInt(Math.min(LENGTH - from, 200) + 1);
+                int[] values = new int[length + 1];
+                for (int k = 0; k < length; k++) {
+                    values[k + 1] = rand.nextInt() & valueMask;
+                    arrayData[from + k] = values[k + 1];
+                }
+                array.set(from, values, 1, length);
+            }
+            int[] result = array.getArray(null);
+            for (int j = 0; j < LENGTH; j++) {
+                assertTrue("Width = " + i + " Array data mismatch after bulk set at " + j + ": " + result[j] + ":" + arrayData[j], result[j] == arrayData[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException {
+        for (AtomicIntStorage.Type storage : AtomicIntStorage.Type.values()) {
+            AtomicVariableWidthArray source = new AtomicVariableWidthArray(LENGTH, 4, storage);
+            for (int i = 0; i < LENGTH; i++) {
+                source.set(i, i & 0xF);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(source);
+            }
+            AtomicVariableWidthArray copy;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                copy = (AtomicVariableWidthArray) in.readObject();
+            }
+            assertArrayEquals("Storage = " + storage + " Array data mismatch after serialization", source.getArray(null), copy.getArray(null));
+        }
+    }
+
     private void compareAndSetTrue(int index, int value) {
         assertTrue("Width = " + width + " Compare and set attempt failed, index = " + index + ", expected value incorrect " + array.get(index) + " expected " + value, array.compareAndSet(index, arrayData[index], value));
         arrayData[index] = value & valueMask;
@@ -0,0 +1,168 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.flowpowered.commons.store.block.BlockSectionVisitor;
+
+import static org.junit.Assert.assertEquals;
+
+public class SparseVoxelStoreTest {
+    private static final int SHIFT = 3;
+    private static final int SIDE = 1 << SHIFT;
+
+    @Test
+    public void setAndGet() {
+        SparseVoxelStore store = new SparseVoxelStore(SHIFT, 4, 2, 3);
+        int[] expected = new int[store.getSizeX() * store.getSizeY() * store.getSizeZ()];
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(store.getSizeX());
+            int y = random.nextInt(store.getSizeY());
+            int z = random.nextInt(store.getSizeZ());
+            int state = random.nextInt(50);
+            assertEquals(expected[index(store, x, y, z)], store.set(x, y, z, state));
+            expected[index(store, x, y, z)] = state;
+        }
+        store.fill(3, 2, 5, 20, 9, 17, 77);
+        for (int y = 2; y <= 9; y++) {
+            for (int z = 5; z <= 17; z++) {
+                for (int x = 3; x <= 20; x++) {
+                    expected[index(store, x, y, z)] = 77;
+                }
+            }
+        }
+        check(store, expected);
+
+        int[] region = new int[10 * 5 * 12];
+        for (int i = 0; i < region.length; i++) {
+            region[i] = random.nextInt(5);
+        }
+        store.set(6, 4, 1, 15, 8, 12, region, 0);
+        int i = 0;
+        for (int y = 4; y <= 8; y++) {
+            for (int z = 1; z <= 12; z++) {
+                for (int x = 6; x <= 15; x++) {
+                    expected[index(store, x, y, z)] = region[i++];
+                }
+            }
+        }
+        check(store, expected);
+        store.compress();
+        check(store, expected);
+    }
+
+    @Test
+    public void uniformSections() {
+        SparseVoxelStore store = new SparseVoxelStore(SHIFT, 3, 3, 3);
+        store.fill(0, 0, 0, 2 * SIDE - 1, SIDE - 1, SIDE - 1, 9);
+        assertEquals(0, store.getExpandedSections());
+        assertEquals(9, store.getUniformState(SIDE + 1, 2, 3, -1));
+        assertEquals(0, store.getUniformState(2 * SIDE, 0, 0, -1));
+
+        store.set(1, 1, 1, 4);
+        store.set(1, SIDE + 1, 1, 0);
+        assertEquals(1, store.getExpandedSections());
+        assertEquals(-1, store.getUniformState(1, 1, 1, -1));
+        final int[] visited = new int[1];
+        store.forEachNonUniformSection(new BlockSectionVisitor() {
+            @Override
+            public void visit(int x, int y, int z, int side) {
+                assertEquals(0, x + y + z);
+                visited[0]++;
+            }
+        });
+        assertEquals(1, visited[0]);
+
+        store.set(1, 1, 1, 9);
+        store.compress();
+        assertEquals(0, store.getExpandedSections());
+        assertEquals(9, store.get(1, 1, 1));
+    }
+
+    @Test
+    public void concurrentStates() throws InterruptedException {
+        final int states = 32;
+        for (int pass = 0; pass < 2000; pass++) {
+            // The palette only has room for the empty state and the new states
+            final SparseVoxelStore store = new SparseVoxelStore(SHIFT, 2, 1, 1, states + 1, AtomicShortIntArray.SyncMode.READ_WRITE_LOCK);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int z = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int state = 1; state <= states; state++) {
+                                store.set(state % store.getSizeX(), state / store.getSizeX(), z, state);
+                            }
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (error.get() != null) {
+                throw new AssertionError(error.get());
+            }
+            assertEquals(states + 1, store.getStateCount());
+            for (int z = 0; z < threads.length; z++) {
+                for (int state = 1; state <= states; state++) {
+                    assertEquals(state, store.get(state % store.getSizeX(), state / store.getSizeX(), z));
+                }
+            }
+        }
+    }
+
+    private static void check(SparseVoxelStore store, int[] expected) {
+        int[] all = new int[expected.length];
+        store.get(0, 0, 0, store.getSizeX() - 1, store.getSizeY() - 1, store.getSizeZ() - 1, all, 0);
+        for (int y = 0; y < store.getSizeY(); y++) {
+            for (int z = 0; z < store.getSizeZ(); z++) {
+                for (int x = 0; x < store.getSizeX(); x++) {
+                    int i = index(store, x, y, z);
+                    assertEquals("State mismatch at (" + x + ", " + y + ", " + z + ")", expected[i], store.get(x, y, z));
+                    assertEquals(expected[i], all[i]);
+                }
+            }
+        }
+    }
+
+    private static int index(SparseVoxelStore store, int x, int y, int z) {
+        return (y * store.getSizeZ() + z) * store.getSizeX() + x;
+    }
+}
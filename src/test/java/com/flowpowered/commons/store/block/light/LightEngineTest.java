@@ -0,0 +1,136 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.light;
+
+import org.junit.Test;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.impl.AtomicPaletteBlockStore;
+
+import static org.junit.Assert.assertEquals;
+
+public class LightEngineTest {
+    private static final short TORCH = 1;
+    private static final short STONE = 2;
+    private static final short GLASS = 3;
+    private static final LightProperties PROPERTIES = new LightProperties() {
+        @Override
+        public int getEmittedLight(int state) {
+            return state >> 16 == TORCH ? 14 : 0;
+        }
+
+        @Override
+        public int getOpacity(int state) {
+            switch (state >> 16) {
+                case STONE:
+                    return 15;
+                case GLASS:
+                    return 2;
+                default:
+                    return 0;
+            }
+        }
+    };
+
+    @Test
+    public void blockLight() {
+        AtomicBlockStore[] stores = new AtomicBlockStore[2];
+        BlockLightEngine engine = new BlockLightEngine(4, 2, 1, 1, PROPERTIES);
+        for (int i = 0; i < stores.length; i++) {
+            stores[i] = new AtomicPaletteBlockStore(4, true, 64);
+            engine.setSection(i, 0, 0, stores[i]);
+        }
+        engine.propagate();
+        assertEquals(0, engine.getLight(8, 8, 8));
+
+        stores[0].setBlock(12, 8, 8, TORCH, (short) 0);
+        engine.update();
+        assertEquals(14, engine.getLight(12, 8, 8));
+        assertEquals(13, engine.getLight(11, 8, 8));
+        // Across the section boundary
+        assertEquals(10, engine.getLight(16, 8, 8));
+        assertEquals(7, engine.getLight(17, 9, 9));
+        assertEquals(0, engine.getLight(31, 8, 8));
+
+        // A wall of stone at x = 14 blocks the direct path
+        stores[0].fill(14, 0, 0, 14, 15, 15, STONE, (short) 0);
+        engine.update();
+        assertEquals(0, engine.getLight(14, 8, 8));
+        assertEquals(0, engine.getLight(16, 8, 8));
+        assertEquals(13, engine.getLight(13, 8, 8));
+
+        stores[0].setBlock(14, 8, 8, GLASS, (short) 0);
+        engine.update();
+        assertEquals(11, engine.getLight(14, 8, 8));
+        assertEquals(10, engine.getLight(15, 8, 8));
+
+        stores[0].setBlock(12, 8, 8, (short) 0, (short) 0);
+        engine.update();
+        for (int x = 0; x < 32; x++) {
+            assertEquals(0, engine.getLight(x, 8, 8));
+        }
+    }
+
+    @Test
+    public void removeSection() {
+        BlockLightEngine engine = new BlockLightEngine(4, 2, 1, 1, PROPERTIES);
+        AtomicBlockStore torch = new AtomicPaletteBlockStore(4, true, 64);
+        torch.setBlock(15, 0, 0, TORCH, (short) 0);
+        engine.setSection(0, 0, 0, torch);
+        engine.setSection(1, 0, 0, new AtomicPaletteBlockStore(4, true, 64));
+        engine.propagate();
+        assertEquals(13, engine.getLight(16, 0, 0));
+
+        engine.removeSection(0, 0, 0);
+        assertEquals(0, engine.getLight(15, 0, 0));
+        assertEquals(0, engine.getLight(16, 0, 0));
+        assertEquals(0, engine.getLight(20, 0, 0));
+    }
+
+    @Test
+    public void skyLight() {
+        AtomicBlockStore[] stores = new AtomicBlockStore[2];
+        SkyLightEngine engine = new SkyLightEngine(4, 1, 2, 1, PROPERTIES);
+        for (int i = 0; i < stores.length; i++) {
+            stores[i] = new AtomicPaletteBlockStore(4, true, 64);
+            engine.setSection(0, i, 0, stores[i]);
+        }
+        engine.propagate();
+        assertEquals(15, engine.getLight(3, 31, 3));
+        assertEquals(15, engine.getLight(3, 0, 3));
+
+        // A roof at y = 20 shadows the blocks under it, light comes in from the sides
+        stores[1].fill(4, 4, 4, 8, 4, 8, STONE, (short) 0);
+        engine.update();
+        assertEquals(0, engine.getLight(6, 20, 6));
+        assertEquals(15, engine.getLight(3, 19, 6));
+        assertEquals(12, engine.getLight(6, 19, 6));
+        assertEquals(14, engine.getLight(4, 19, 6));
+
+        stores[1].fill(4, 4, 4, 8, 4, 8, (short) 0, (short) 0);
+        engine.update();
+        assertEquals(15, engine.getLight(6, 19, 6));
+        assertEquals(15, engine.getLight(6, 0, 6));
+    }
+}